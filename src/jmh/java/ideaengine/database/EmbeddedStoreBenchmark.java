@@ -0,0 +1,115 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The EmbeddedStoreBenchmark class measures the embedded backend on the same operations as the PostgreSQLBenchmark:
+ * registering new users one at a time and in write-behind sized batches, registering an existing user, and saving and
+ * loading conversation contexts. syncMillis 0 waits for every fsync (group commit), 10 syncs on a timer instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EmbeddedStoreBenchmark {
+    private static final int BATCH = 500;
+    private static final String CONTEXT = "{\"turns\":[\"hello\",\"hi there, how can I help?\"]}";
+
+    @Param({"0", "10"})
+    public int syncMillis;
+
+    private final AtomicLong nextId = new AtomicLong(100000000000000000L);
+    private Path directory;
+    private EmbeddedStore store;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        directory = Files.createTempDirectory("idea-store-benchmark");
+        store = EmbeddedStore.open(directory, syncMillis, 64L << 20);
+        store.registerDiscord(Collections.singletonList("100000000000000000"), Collections.<String>emptyList());
+        store.saveConversationContext(1, 2, 3, CONTEXT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<List<String>> registerDiscordUser() throws SQLException {
+        return store.registerDiscord(Collections.singletonList(Long.toString(nextId.incrementAndGet())),
+                Collections.<String>emptyList());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<List<String>> registerDiscordUserContended() throws SQLException {
+        return store.registerDiscord(Collections.singletonList(Long.toString(nextId.incrementAndGet())),
+                Collections.<String>emptyList());
+    }
+
+    @Benchmark
+    public List<List<String>> registerExistingUser() throws SQLException {
+        return store.registerDiscord(Collections.singletonList("100000000000000000"),
+                Collections.<String>emptyList());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<List<String>> registerDiscordUsers() throws SQLException {
+        List<String> users = new ArrayList<>(BATCH);
+
+        for (int i = 0; i < BATCH; i++) {
+            users.add(Long.toString(nextId.incrementAndGet()));
+        }
+
+        return store.registerDiscord(users, Collections.<String>emptyList());
+    }
+
+    @Benchmark
+    public void saveConversationContext() throws IOException {
+        store.saveConversationContext(1, 2, nextId.incrementAndGet() & 1023, CONTEXT);
+    }
+
+    @Benchmark
+    public String loadConversationContext() throws IOException {
+        return store.loadConversationContext(1, 2, 3);
+    }
+}
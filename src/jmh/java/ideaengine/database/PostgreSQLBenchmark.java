@@ -0,0 +1,77 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The PostgreSQLBenchmark class measures inserting newly encountered users into the Idea Network, one at a time (the
+ * original path) and in write-behind sized batches, against the local StandInDatabase. Every insert uses a fresh ID so
+ * that no run is skewed by conflicts, except for registerExistingUser(), which measures the conflict path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PostgreSQLBenchmark {
+    private static final int BATCH = 500;
+
+    private final AtomicLong nextId = new AtomicLong(100000000000000000L);
+    private StandInDatabase database;
+
+    @Setup
+    public void setup() throws SQLException {
+        database = new StandInDatabase();
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public void insertDiscordUser() throws IOException {
+        database.insertDiscordUser(Long.toString(nextId.getAndIncrement()));
+    }
+
+    @Benchmark
+    public boolean registerExistingUser() throws IOException, SQLException {
+        return database.registerDiscordUser("100000000000000000");  // created by the first invocation
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int insertDiscordUsers() throws IOException, SQLException {
+        List<String> users = new ArrayList<>(BATCH);
+
+        for (int i = 0; i < BATCH; i++) {
+            users.add(Long.toString(nextId.getAndIncrement()));
+        }
+
+        return database.insertDiscordUsers(users);
+    }
+}
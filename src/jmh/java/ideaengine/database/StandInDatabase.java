@@ -0,0 +1,103 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The StandInDatabase class points the PostgreSQL code at a throwaway PostgreSQL server on the local machine (started
+ * from binaries that Gradle downloads), so the benchmarks need no database of their own and measure IDEA's overhead
+ * rather than a network round trip. A real PostgreSQL is needed since registrations rely on ON CONFLICT, RETURNING and
+ * unnest(). The JDBC pathway comes from the PostgreSQL_IDEA_JDBC system property that the jmh task sets, which is also
+ * what DBMS picks up, so the server is started on the port that property names.
+ *
+ * <dl>
+ *     <dt><span class="strong">StandInDatabase()</span></dt><dd>Constructor that opens a pool to the stand-in.</dd>
+ *     <dt><span class="strong">Connection getConnection()</span></dt><dd>Borrows a pooled stand-in connection.</dd>
+ *     <dt><span class="strong">void close()</span></dt><dd>Closes the pool.</dd>
+ *     <dt><span class="strong">void createSchema()</span></dt><dd>Starts the server and creates the tables.</dd>
+ * </dl>
+ */
+public class StandInDatabase extends PostgreSQL implements AutoCloseable {
+    private static final int PORT = 54329;  // must match PostgreSQL_IDEA_JDBC in build.gradle
+    private static EmbeddedPostgres server;
+
+    private final ConnectionPool pool;
+
+    /**
+     * The StandInDatabase constructor creates the schema and opens a connection pool to the stand-in database.
+     *
+     * @throws SQLException the stand-in database could not be reached
+     */
+    public StandInDatabase() throws SQLException {
+        createSchema();
+        pool = new ConnectionPool(getJDBC(), getRole(), getPass(), getPoolMin(), getPoolMax(),
+                getPoolIdle() * 1000L, getPoolWait());
+    }
+
+    /**
+     * This method borrows a connection from the stand-in's pool. Closing the connection returns it to the pool.
+     *
+     * @return pooled database connection
+     * @throws SQLException no connection became available before the borrow-timeout
+     */
+    public Connection getConnection() throws SQLException {
+        return pool.borrow();
+    }
+
+    /**
+     * This method closes the stand-in's pool.
+     */
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * This method starts the stand-in server (once per JVM) and creates the Idea Network tables, emptying them if they
+     * already exist.
+     *
+     * @throws SQLException the stand-in database could not be started or reached
+     */
+    public static synchronized void createSchema() throws SQLException {
+        if (server == null) {
+            try {
+                server = EmbeddedPostgres.builder().setPort(PORT).start();
+            } catch (IOException e) {
+                throw new SQLException("Unable to start the stand-in PostgreSQL server.", e);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "idea-stand-in-shutdown"));
+        }
+
+        try (Connection conn = DriverManager.getConnection(JDBC, ROLE, PASS);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS discord_users (user_id VARCHAR(20) PRIMARY KEY)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS discord_servers (server_id VARCHAR(20) PRIMARY KEY)");
+            stmt.execute("TRUNCATE TABLE discord_users");
+            stmt.execute("TRUNCATE TABLE discord_servers");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The ConversationBenchmark class measures the two steps every guild message goes through in Conversation: rejecting
+ * messages that are not directed at IDEA, and matching the ones that are against an index of intents. Run with
+ * -prof gc to confirm that rejecting a message does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConversationBenchmark {
+    private static final long SELF = 659873042348580864L;
+    private static final String CHATTER = "did anyone catch the game last night? that ending was unreal";
+    private static final String MENTION = "<@!" + SELF + "> could you help me find a good idea for a game jam";
+
+    @Param({"10", "1000"})
+    public int intents;
+
+    private IntentIndex index;
+
+    @Setup
+    public void setup() {
+        String[] phrases = new String[intents];
+        boolean[] anchored = new boolean[intents];
+
+        for (int i = 0; i < intents; i++) {
+            phrases[i] = "intent" + i;
+        }
+
+        phrases[intents - 1] = "game jam";
+        index = new IntentIndex(phrases, anchored);
+    }
+
+    @Benchmark
+    public int rejectChatter() {
+        return Conversation.addressed(CHATTER, "!idea", SELF);
+    }
+
+    @Benchmark
+    public int matchMention() {
+        int start = Conversation.addressed(MENTION, "!idea", SELF);
+
+        return index.match(MENTION, start, MENTION.length());
+    }
+}
@@ -0,0 +1,113 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.util.ThreadFactories;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The DispatcherBenchmark class compares the EventDispatcher's platform and virtual thread modes. Each invocation
+ * dispatches a burst of guild messages spread over many servers and waits until all of them have been handled. Next to
+ * KnownUsers, a second listener blocks for blockMicros per message to stand in for a JDBC round trip. On JVMs without
+ * virtual threads the "virtual" runs fall back to platform threads, just like the engine does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatcherBenchmark {
+    private static final int BURST = 1024;
+    private static final int EVENTS = 1 << 12;
+    private static final int SERVERS = 1000;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"0", "1000"})
+    public int blockMicros;
+
+    private final GuildMessageReceivedEvent[] events = new GuildMessageReceivedEvent[EVENTS];
+    private EventDispatcher dispatcher;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(11);
+        long[] guilds = new long[SERVERS];
+
+        for (int i = 0; i < SERVERS; i++) {
+            guilds[i] = SyntheticEvents.snowflake(random);
+            KnownUsers.servers.add(guilds[i]);
+        }
+
+        for (int i = 0; i < EVENTS; i++) {
+            long user = SyntheticEvents.snowflake(random);
+            KnownUsers.users.add(user);
+            events[i] = SyntheticEvents.message(user, guilds[random.nextInt(SERVERS)]);
+        }
+
+        // Same defaults as Discord.getLanes(): one lane per core, or 1024 lanes on virtual threads.
+        ThreadFactory factory = threads.equals("virtual") ? ThreadFactories.virtual("idea-lane-") : null;
+        int lanes = factory == null ? Runtime.getRuntime().availableProcessors() : 1024;
+
+        if (factory == null) {
+            factory = ThreadFactories.platform("idea-lane-");
+        }
+
+        final long blockNanos = TimeUnit.MICROSECONDS.toNanos(blockMicros);
+        EventListener database = event -> {
+            if (blockNanos > 0) {
+                LockSupport.parkNanos(blockNanos);
+            }
+        };
+
+        dispatcher = new EventDispatcher(lanes, 1024, factory, new KnownUsers(), database);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long dispatchBurst() {
+        long target = dispatcher.getProcessed() + BURST;
+
+        for (int i = 0; i < BURST; i++) {
+            dispatcher.onEvent(events[next++ & (EVENTS - 1)]);
+        }
+
+        while (dispatcher.getProcessed() < target) {
+            LockSupport.parkNanos(10000);
+        }
+
+        return dispatcher.getProcessed();
+    }
+}
@@ -0,0 +1,95 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.database.DBMS;
+import ideaengine.database.StandInDatabase;
+
+import java.sql.SQLException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The GuildMessageBenchmark class measures KnownUsers.onGuildMessageReceived() end to end with synthetic events. Most
+ * messages come from known users in known servers; optionally one in every unknownEvery messages comes from a new
+ * user, which is queued for the (stand-in) database by the write-behind queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GuildMessageBenchmark {
+    private static final int EVENTS = 1 << 12;
+    private static final int KNOWN_USERS = 100000;
+    private static final int KNOWN_SERVERS = 1000;
+
+    @Param({"0", "100"})
+    public int unknownEvery;
+
+    private final KnownUsers listener = new KnownUsers();
+    private final GuildMessageReceivedEvent[] events = new GuildMessageReceivedEvent[EVENTS];
+    private final long[] guilds = new long[KNOWN_SERVERS];
+    private final SplittableRandom random = new SplittableRandom(7);
+    private int next = 0;
+
+    @Setup
+    public void setup() throws SQLException {
+        StandInDatabase.createSchema();
+
+        long[] users = new long[KNOWN_USERS];
+
+        for (int i = 0; i < KNOWN_USERS; i++) {
+            users[i] = SyntheticEvents.snowflake(random);
+            KnownUsers.users.add(users[i]);
+        }
+
+        for (int i = 0; i < KNOWN_SERVERS; i++) {
+            guilds[i] = SyntheticEvents.snowflake(random);
+            KnownUsers.servers.add(guilds[i]);
+        }
+
+        for (int i = 0; i < EVENTS; i++) {
+            long user = users[random.nextInt(KNOWN_USERS)];
+            long guild = guilds[random.nextInt(KNOWN_SERVERS)];
+
+            events[i] = SyntheticEvents.message(user, guild);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        DBMS.shutdown();  // write whatever the new users left in the write-behind queue
+    }
+
+    @Benchmark
+    public void onGuildMessageReceived() {
+        int index = next++;
+
+        if (unknownEvery > 0 && index % unknownEvery == 0) {
+            listener.onGuildMessageReceived(SyntheticEvents.message(SyntheticEvents.snowflake(random),
+                    guilds[Math.floorMod(index, KNOWN_SERVERS)]));
+        } else {
+            listener.onGuildMessageReceived(events[index & (EVENTS - 1)]);
+        }
+    }
+}
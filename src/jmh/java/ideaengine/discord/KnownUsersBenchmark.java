@@ -0,0 +1,92 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.util.SnowflakeSet;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * The KnownUsersBenchmark class measures the known user and server checks that run for every guild message. Half of
+ * the probed ID's are known and half are not, in an order the branch predictor cannot learn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KnownUsersBenchmark {
+    private static final int PROBES = 1 << 16;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int known;
+
+    private final long[] probes = new long[PROBES];
+    private int next = 0;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        // Every benchmark runs in its own JVM, so only the set being measured has to be filled.
+        SnowflakeSet ids = params.getBenchmark().endsWith("isKnownServer") ? KnownUsers.servers : KnownUsers.users;
+        SplittableRandom random = new SplittableRandom(42);
+
+        long[] sample = new long[Math.min(known, PROBES / 2)];
+
+        ids.ensureCapacity(known);
+
+        while (ids.size() < known) {
+            long id = SyntheticEvents.snowflake(random);
+
+            if (ids.add(id) && ids.size() <= sample.length) {
+                sample[ids.size() - 1] = id;
+            }
+        }
+
+        for (int i = 0; i < PROBES; i += 2) {
+            long miss;
+
+            do {
+                miss = SyntheticEvents.snowflake(random);
+            } while (ids.contains(miss));
+
+            probes[i] = sample[i / 2 % sample.length];
+            probes[i + 1] = miss;
+        }
+
+        for (int i = PROBES - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = probes[i];
+            probes[i] = probes[j];
+            probes[j] = swap;
+        }
+    }
+
+    @Benchmark
+    public boolean isKnownUser() {
+        return KnownUsers.isKnownUser(probes[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public boolean isKnownServer() {
+        return KnownUsers.isKnownServer(probes[next++ & (PROBES - 1)]);
+    }
+}
@@ -0,0 +1,135 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The LoadGenerator class produces a configurable mix of guild messages and sends them through a MockGateway. Every
+ * message goes to a random server; its author is a user never seen before with the unique-author ratio and otherwise
+ * one of the earlier authors, so the ratio decides how much registration work the bot gets. Messages that mention the
+ * bot ask it to "ping", and the bot's reply is timed.
+ *
+ * <dl>
+ *     <dt><span class="strong">LoadGenerator()</span></dt><dd>Constructor that picks the servers.</dd>
+ *     <dt><span class="strong">long[] getGuilds()</span></dt><dd>Returns the servers messages are sent to.</dd>
+ *     <dt><span class="strong">int run()</span></dt><dd>Sends the messages at the requested rate.</dd>
+ *     <dt><span class="strong">int getAuthors()</span></dt><dd>Returns the number of distinct authors.</dd>
+ * </dl>
+ */
+final class LoadGenerator {
+    private final long[] guilds;
+    private final double uniqueAuthors;
+    private final double mentions;
+    private final SplittableRandom random;
+
+    private long[] authors = new long[1024];
+    private int authorCount = 0;
+
+    /**
+     * The LoadGenerator constructor picks the servers that messages are sent to.
+     *
+     * @param guildCount number of servers
+     * @param uniqueAuthors fraction of messages (0 to 1) written by a user who has not written before
+     * @param mentions fraction of messages (0 to 1) that mention the bot
+     * @param seed seed of the random mix, so that runs can be repeated
+     */
+    LoadGenerator(int guildCount, double uniqueAuthors, double mentions, long seed) {
+        this.random = new SplittableRandom(seed);
+        this.guilds = new long[Math.max(1, guildCount)];
+        this.uniqueAuthors = uniqueAuthors;
+        this.mentions = mentions;
+
+        for (int i = 0; i < guilds.length; i++) {
+            guilds[i] = SyntheticEvents.snowflake(random);
+        }
+    }
+
+    /**
+     * This method returns the servers that messages are sent to.
+     *
+     * @return Discord server snowflake ID's
+     */
+    long[] getGuilds() {
+        return guilds.clone();
+    }
+
+    /**
+     * This method sends messages through the gateway, spaced out evenly if a rate is given.
+     *
+     * @param gateway gateway the bot is connected to
+     * @param messages number of messages to send
+     * @param rate messages per second, or 0 to send as fast as the gateway accepts them
+     * @return number of messages that mentioned the bot
+     * @throws IOException the gateway connection failed
+     */
+    int run(MockGateway gateway, int messages, int rate) throws IOException {
+        long start = System.nanoTime();
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        int mentioned = 0;
+
+        for (int i = 0; i < messages; i++) {
+            if (interval > 0) {
+                long wait = start + i * interval - System.nanoTime();
+
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            long guild = guilds[random.nextInt(guilds.length)];
+            boolean mention = random.nextDouble() < mentions;
+            String content = mention ? "<@" + MockGateway.BOT_ID + "> ping" : "message " + i;
+
+            gateway.dispatch(guild, author(), content, mention, mention);
+            mentioned += mention ? 1 : 0;
+        }
+
+        return mentioned;
+    }
+
+    /**
+     * This method returns the number of distinct authors that have written a message.
+     *
+     * @return distinct authors
+     */
+    int getAuthors() {
+        return authorCount;
+    }
+
+    /**
+     * This method picks the author of the next message: a new user with the unique-author ratio and otherwise one of
+     * the earlier authors.
+     *
+     * @return Discord user snowflake ID
+     */
+    private long author() {
+        if (authorCount > 0 && random.nextDouble() >= uniqueAuthors) {
+            return authors[random.nextInt(authorCount)];
+        }
+
+        if (authorCount == authors.length) {
+            authors = Arrays.copyOf(authors, authors.length * 2);
+        }
+
+        long author = SyntheticEvents.snowflake(random);
+        authors[authorCount++] = author;
+
+        return author;
+    }
+}
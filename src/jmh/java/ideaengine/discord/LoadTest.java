@@ -0,0 +1,307 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.database.DBMS;
+import ideaengine.database.StandInDatabase;
+import ideaengine.logging.Logger;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.StartupGraph;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import okhttp3.OkHttpClient;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The LoadTest class measures the whole pipeline offline: the real bot (JDA, the event dispatcher, admission control,
+ * the listeners and the write-behind queue) logs into a MockGateway instead of Discord and writes to the stand-in
+ * database, while a LoadGenerator sends it messages. It reports the bot's sustained events per second, the end-to-end
+ * latency percentiles of its replies and the rate at which new users and servers were inserted. Run it with
+ * <code>./gradlew loadTest</code>; the message mix is set with -PloadGuilds, -PloadMessages, -PloadRate (messages per
+ * second, 0 for as fast as possible), -PloadUniqueAuthors and -PloadMentions (both fractions from 0 to 1).
+ *
+ * <dl>
+ *     <dt><span class="strong">void main()</span></dt><dd>Runs the load test and prints the report.</dd>
+ * </dl>
+ */
+public final class LoadTest {
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);  // no progress for this long ends it
+
+    private LoadTest() {
+    }
+
+    /**
+     * This method starts the stand-in database, the mock gateway and the bot, sends the configured messages and prints
+     * the report once the bot has handled them (or stopped making progress).
+     *
+     * @param args unused, the load test is configured through system properties
+     * @throws Exception the load test could not be set up
+     */
+    public static void main(String[] args) throws Exception {
+        int guilds = Integer.getInteger("loadGuilds", 100);
+        int messages = Integer.getInteger("loadMessages", 100000);
+        int rate = Integer.getInteger("loadRate", 0);
+        double uniqueAuthors = fraction("loadUniqueAuthors", 0.1);
+        double mentions = fraction("loadMentions", 0.05);
+
+        LoadGenerator load = new LoadGenerator(guilds, uniqueAuthors, mentions, 42);
+        StartupGraph startup = new StartupGraph();
+
+        startup.step("logging", () -> new Logger(true));
+        startup.step("database", StandInDatabase::createSchema);
+
+        StandInBot bot = new StandInBot(startup, "logging", "database");
+        int[] range = bot.getShardRange();
+
+        try (MockGateway gateway = new MockGateway(load.getGuilds(), bot.getShards(), range[1] - range[0] + 1)) {
+            bot.gateway = gateway;
+            startup.run();
+
+            if (!gateway.awaitShards(2, TimeUnit.MINUTES) || !bot.ready.await(2, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("JDA did not finish logging into the mock gateway.");
+            }
+
+            bot.getConversation().registerCommand("ping", (event, text, context) ->
+                    event.getChannel().sendMessage("pong " + event.getMessageId()).queue());
+
+            long handledBefore = metric("idea_events_total");
+            long usersBefore = rows("discord_users");
+            long serversBefore = rows("discord_servers");
+            long shedBefore = metric("idea_admission_", "shed");
+
+            long start = System.nanoTime();
+            int mentioned = load.run(gateway, messages, rate);
+            long sent = System.nanoTime();
+            long handled = awaitHandled(handledBefore, messages);
+            long finished = System.nanoTime();
+
+            awaitWrites();
+            long written = System.nanoTime();
+
+            report(guilds, messages, rate, uniqueAuthors, mentions, load.getAuthors());
+            System.out.printf(Locale.US, "Sent in %.2f s (%.0f messages/s); handled %d events in %.2f s "
+                    + "(%.0f events/s sustained)%n", seconds(sent - start), messages / seconds(sent - start),
+                    handled, seconds(finished - start), handled / seconds(finished - start));
+
+            long[] latencies = gateway.getReplyLatencies();
+            Arrays.sort(latencies);
+            System.out.printf(Locale.US, "Replies: %d of %d mentions; end-to-end latency p50 %.2f ms, p90 %.2f ms, "
+                    + "p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n", latencies.length, mentioned,
+                    millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.9)),
+                    millis(percentile(latencies, 0.99)), millis(percentile(latencies, 0.999)),
+                    millis(percentile(latencies, 1.0)));
+
+            long users = rows("discord_users") - usersBefore;
+            long servers = rows("discord_servers") - serversBefore;
+            System.out.printf(Locale.US, "Database: %d users and %d servers inserted in %.2f s (%.0f inserts/s); "
+                    + "%d listener calls shed%n", users, servers, seconds(written - start),
+                    (users + servers) / seconds(written - start), metric("idea_admission_", "shed") - shedBefore);
+        } finally {
+            bot.shutdown();
+            DBMS.shutdown();
+            Logger.shutdown();
+        }
+
+        System.exit(0);  // JDA's threads would keep the JVM alive otherwise
+    }
+
+    /**
+     * This method waits until the bot has handled every message, or until it has made no progress for a while (e.g.
+     * because messages were lost).
+     *
+     * @param before handled events before the messages were sent
+     * @param messages number of messages sent
+     * @return number of messages handled
+     * @throws InterruptedException interrupted while waiting
+     */
+    private static long awaitHandled(long before, int messages) throws InterruptedException {
+        long handled = metric("idea_events_total") - before;
+        long progressAt = System.nanoTime();
+
+        while (handled < messages && System.nanoTime() - progressAt < IDLE_TIMEOUT_NANOS) {
+            Thread.sleep(1);
+
+            long now = metric("idea_events_total") - before;
+
+            if (now > handled) {
+                handled = now;
+                progressAt = System.nanoTime();
+            }
+        }
+
+        return handled;
+    }
+
+    /**
+     * This method waits until the write-behind queue has written every pending insert (for at most the idle timeout).
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    private static void awaitWrites() throws InterruptedException {
+        long deadline = System.nanoTime() + IDLE_TIMEOUT_NANOS;
+
+        while (DBMS.getPendingWrites() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * This method prints the configuration of the run.
+     *
+     * @param guilds number of servers
+     * @param messages number of messages
+     * @param rate offered messages per second (0 for unlimited)
+     * @param uniqueAuthors fraction of messages from new authors
+     * @param mentions fraction of messages that mention the bot
+     * @param authors number of distinct authors
+     */
+    private static void report(int guilds, int messages, int rate, double uniqueAuthors, double mentions,
+                               int authors) {
+        System.out.printf(Locale.US, "Load test: %d messages from %d authors in %d servers, %.1f%% unique authors, "
+                + "%.1f%% mentions, offered rate %s%n", messages, authors, guilds, uniqueAuthors * 100, mentions * 100,
+                rate > 0 ? rate + " messages/s" : "unlimited");
+    }
+
+    /**
+     * This method sums every sample of the metrics whose names start with the given prefix and whose line contains
+     * every given word (e.g. a label value).
+     *
+     * @param prefix metric name, or the start of it
+     * @param words text the sample line has to contain as well
+     * @return sum of the matching samples
+     */
+    private static long metric(String prefix, String... words) {
+        long sum = 0;
+
+        lines:
+        for (String line : Metrics.scrape().split("\n")) {
+            if (!line.startsWith(prefix)) {
+                continue;
+            }
+
+            for (String word : words) {
+                if (!line.contains(word)) {
+                    continue lines;
+                }
+            }
+
+            sum += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+
+        return sum;
+    }
+
+    /**
+     * This method counts the rows of a stand-in database table.
+     *
+     * @param table table name
+     * @return number of rows
+     * @throws SQLException the table could not be counted
+     */
+    private static long rows(String table) throws SQLException {
+        try (Connection conn = new DBMS(false).getConnection();
+             Statement count = conn.createStatement();
+             ResultSet result = count.executeQuery("SELECT count(*) FROM " + table)) {
+            result.next();
+            return result.getLong(1);
+        } catch (IOException e) {
+            throw new SQLException("The logging system is not properly configured.", e);
+        }
+    }
+
+    /**
+     * This method returns a percentile of sorted latencies.
+     *
+     * @param sorted latencies in ascending order
+     * @param quantile quantile from 0 to 1 (1 is the maximum)
+     * @return latency at the quantile, or 0 if there are none
+     */
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * This method reads a fraction (0 to 1) from a system property.
+     *
+     * @param name system property
+     * @param fallback value used when the property is missing or out of range
+     * @return fraction
+     */
+    private static double fraction(String name, double fallback) {
+        try {
+            double value = Double.parseDouble(System.getProperty(name, String.valueOf(fallback)));
+            return value >= 0 && value <= 1 ? value : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(1, nanos) / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The StandInBot class is the real bot, except that JDA's HTTP requests and gateway connections go to the mock
+     * gateway and that it reports once every shard is ready.
+     */
+    private static final class StandInBot extends Bot {
+        private final CountDownLatch ready;
+        private MockGateway gateway;  // set before the startup graph runs
+
+        private StandInBot(StartupGraph startup, String... after) {
+            super(startup, after);
+
+            int[] range = getShardRange();
+            ready = new CountDownLatch(range[1] - range[0] + 1);
+        }
+
+        @Override
+        public String getToken() {
+            return "idea-load-test";  // the mock gateway accepts any token
+        }
+
+        @Override
+        protected DefaultShardManagerBuilder configure(DefaultShardManagerBuilder shards) {
+            return shards
+                    .setHttpClientBuilder(new OkHttpClient.Builder().addInterceptor(gateway::rewrite))
+                    .addEventListeners(new ListenerAdapter() {
+                        @Override
+                        public void onReady(@NotNull ReadyEvent event) {
+                            ready.countDown();
+                        }
+                    });
+        }
+    }
+}
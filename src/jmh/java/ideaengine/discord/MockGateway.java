@@ -0,0 +1,643 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The MockGateway class stands in for Discord during load tests. It speaks just enough of the gateway protocol (version
+ * 6, JSON, optionally zlib-stream compressed) for JDA to log in: HELLO, IDENTIFY, heartbeats, READY and a GUILD_CREATE
+ * per server, after which MESSAGE_CREATE events can be dispatched to the bot. A small REST stand-in answers the few
+ * HTTP calls JDA makes (the bot user, the gateway address and sent messages), and rewrite() redirects JDA's requests to
+ * it. A reply whose text ends with the ID of a timed message gives that message's end-to-end latency.
+ *
+ * <dl>
+ *     <dt><span class="strong">MockGateway()</span></dt><dd>Constructor that starts the gateway and REST stand-in.</dd>
+ *     <dt><span class="strong">Response rewrite()</span></dt><dd>Redirects a JDA request to the REST stand-in.</dd>
+ *     <dt><span class="strong">boolean awaitShards()</span></dt><dd>Waits until every shard has identified.</dd>
+ *     <dt><span class="strong">long dispatch()</span></dt><dd>Sends a MESSAGE_CREATE event to the bot.</dd>
+ *     <dt><span class="strong">long[] getReplyLatencies()</span></dt><dd>Returns the latency of every timed reply.</dd>
+ *     <dt><span class="strong">void close()</span></dt><dd>Disconnects the bot and stops the stand-in.</dd>
+ * </dl>
+ */
+final class MockGateway implements AutoCloseable {
+    static final long BOT_ID = 657000000000000001L;  // snowflake of the bot user the stand-in logs JDA in as
+
+    private static final long DISCORD_EPOCH = 1420070400000L;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String JOINED_AT = "2020-01-01T00:00:00+00:00";
+    private static final Pattern OP = Pattern.compile("\"op\"\\s*:\\s*(\\d+)");
+    private static final Pattern SHARD = Pattern.compile("\"shard\"\\s*:\\s*\\[\\s*(\\d+)\\s*,\\s*(\\d+)");
+    private static final Pattern MESSAGES = Pattern.compile("channels/(\\d+)/messages");
+    private static final Pattern CONTENT = Pattern.compile("\"content\"\\s*:\\s*(\"(?:[^\"\\\\]|\\\\.)*\")");
+    private static final Pattern TRAILING_ID = Pattern.compile("(\\d+)\"$");
+
+    private final long[] guilds;
+    private final int shardTotal;
+    private final ServerSocket gateway;
+    private final HttpServer rest;
+    private final AtomicReferenceArray<Session> sessions;
+    private final CountDownLatch identified;
+
+    private final AtomicLong nextMessage = new AtomicLong((System.currentTimeMillis() - DISCORD_EPOCH) << 22);
+    private final Map<Long, Long> timed = new ConcurrentHashMap<>();  // message ID -> nanoTime it was dispatched at
+    private final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The MockGateway constructor starts the gateway and the REST stand-in on free local ports.
+     *
+     * @param guilds snowflake ID's of the servers the bot is in (each has one text channel, ID + 1)
+     * @param shardTotal total number of shards the bot is split into
+     * @param shardsExpected number of shards that will connect (the bot's shard range)
+     * @throws IOException a port could not be opened
+     */
+    MockGateway(long[] guilds, int shardTotal, int shardsExpected) throws IOException {
+        this.guilds = guilds.clone();
+        this.shardTotal = Math.max(1, shardTotal);
+        this.sessions = new AtomicReferenceArray<>(this.shardTotal);
+        this.identified = new CountDownLatch(shardsExpected);
+
+        InetAddress local = InetAddress.getLoopbackAddress();
+        gateway = new ServerSocket(0, 50, local);
+        rest = HttpServer.create(new InetSocketAddress(local, 0), 0);
+        rest.createContext("/", this::respond);
+        rest.start();
+
+        Thread acceptor = new Thread(this::accept, "idea-mock-gateway");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * This method redirects a request JDA meant for Discord's API to the REST stand-in. It is added to JDA's HTTP
+     * client as an interceptor.
+     *
+     * @param chain request being made
+     * @return response of the REST stand-in
+     * @throws IOException the stand-in could not be reached
+     */
+    Response rewrite(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        HttpUrl local = request.url().newBuilder()
+                .scheme("http")
+                .host(gateway.getInetAddress().getHostAddress())
+                .port(rest.getAddress().getPort())
+                .build();
+
+        return chain.proceed(request.newBuilder().url(local).build());
+    }
+
+    /**
+     * This method waits until every expected shard has identified and has been sent its servers.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of the timeout
+     * @return true if every shard identified in time
+     * @throws InterruptedException interrupted while waiting
+     */
+    boolean awaitShards(long timeout, TimeUnit unit) throws InterruptedException {
+        return identified.await(timeout, unit);
+    }
+
+    /**
+     * This method sends a MESSAGE_CREATE event to the shard that the server belongs to.
+     *
+     * @param guild Discord server snowflake ID (one of the servers the bot is in)
+     * @param author Discord user snowflake ID of the author
+     * @param content message text
+     * @param mention true if the message mentions the bot
+     * @param time true if the bot's reply to this message should be timed
+     * @return snowflake ID of the message
+     * @throws IOException the shard's connection failed
+     */
+    long dispatch(long guild, long author, String content, boolean mention, boolean time) throws IOException {
+        Session session = sessions.get(shardOf(guild));
+
+        if (session == null) {
+            throw new IllegalStateException("The shard of server " + guild + " is not connected.");
+        }
+
+        long id = nextMessage.incrementAndGet();
+        String mentions = mention ? "[" + user(BOT_ID, true, ",\"member\":" + member()) + "]" : "[]";
+
+        if (time) {
+            timed.put(id, System.nanoTime());
+        }
+
+        session.dispatch("MESSAGE_CREATE", "{\"id\":\"" + id + "\",\"type\":0,\"channel_id\":\"" + (guild + 1)
+                + "\",\"guild_id\":\"" + guild + "\",\"author\":" + user(author, false, "") + ",\"member\":" + member()
+                + ",\"content\":\"" + escape(content) + "\",\"timestamp\":\"" + OffsetDateTime.now(ZoneOffset.UTC)
+                + "\",\"edited_timestamp\":null,\"tts\":false,\"mention_everyone\":false,\"mentions\":" + mentions
+                + ",\"mention_roles\":[],\"attachments\":[],\"embeds\":[],\"pinned\":false,\"flags\":0}");
+
+        return id;
+    }
+
+    /**
+     * This method returns the end-to-end latency (from dispatching a timed message to receiving the bot's reply) of
+     * every reply received so far.
+     *
+     * @return latencies in nanoseconds, in the order the replies arrived
+     */
+    long[] getReplyLatencies() {
+        return latencies.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * This method disconnects every shard and stops the gateway and the REST stand-in.
+     */
+    public void close() {
+        try {
+            gateway.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (int shard = 0; shard < sessions.length(); shard++) {
+            Session session = sessions.get(shard);
+
+            if (session != null) {
+                session.close();
+            }
+        }
+
+        rest.stop(0);
+    }
+
+    /**
+     * This method returns the shard a server belongs to, the same way Discord assigns them.
+     *
+     * @param guild Discord server snowflake ID
+     * @return shard ID
+     */
+    private int shardOf(long guild) {
+        return (int) ((guild >>> 22) % shardTotal);
+    }
+
+    /**
+     * This method accepts gateway connections (one per shard) until the gateway is closed.
+     */
+    private void accept() {
+        while (!gateway.isClosed()) {
+            try {
+                Session session = new Session(gateway.accept());
+                Thread reader = new Thread(session::run, "idea-mock-gateway-session");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!gateway.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * This method answers a REST call made by JDA. Only the calls JDA makes while logging in and sending messages are
+     * supported; everything else is answered with 404.
+     *
+     * @param exchange HTTP request and response
+     * @throws IOException the response could not be sent
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+        String route = exchange.getRequestURI().getPath().replaceFirst("^/api(/v\\d+)?/", "");
+        Matcher messages = MESSAGES.matcher(route);
+        String body;
+        int status = 200;
+
+        if (route.equals("users/@me")) {
+            body = user(BOT_ID, true, ",\"verified\":true,\"mfa_enabled\":false,\"email\":null,\"flags\":0");
+        } else if (route.equals("gateway") || route.equals("gateway/bot")) {
+            body = "{\"url\":\"ws://" + gateway.getInetAddress().getHostAddress() + ":" + gateway.getLocalPort()
+                    + "\",\"shards\":" + shardTotal + ",\"session_start_limit\":{\"total\":1000,\"remaining\":1000,"
+                    + "\"reset_after\":0}}";
+        } else if (messages.matches() && exchange.getRequestMethod().equals("POST")) {
+            String request = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            Matcher reply = CONTENT.matcher(request);
+            String content = reply.find() ? reply.group(1) : "\"\"";  // still a JSON string literal
+            Matcher id = TRAILING_ID.matcher(content);
+
+            if (id.find()) {
+                Long sentAt = timed.remove(Long.parseLong(id.group(1)));
+
+                if (sentAt != null) {
+                    latencies.add(System.nanoTime() - sentAt);
+                }
+            }
+
+            long channel = Long.parseLong(messages.group(1));
+            body = "{\"id\":\"" + nextMessage.incrementAndGet() + "\",\"type\":0,\"channel_id\":\"" + channel
+                    + "\",\"guild_id\":\"" + (channel - 1) + "\",\"author\":" + user(BOT_ID, true, "")
+                    + ",\"content\":" + content + ",\"timestamp\":\""
+                    + OffsetDateTime.now(ZoneOffset.UTC) + "\",\"edited_timestamp\":null,\"tts\":false,"
+                    + "\"mention_everyone\":false,\"mentions\":[],\"mention_roles\":[],\"attachments\":[],"
+                    + "\"embeds\":[],\"pinned\":false,\"flags\":0}";
+        } else {
+            status = 404;
+            body = "{\"message\":\"404: Not Found\",\"code\":0}";
+        }
+
+        // Generous rate limits, so JDA never holds requests back because of the stand-in.
+        long reset = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 1;
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("X-RateLimit-Limit", "1000000");
+        exchange.getResponseHeaders().set("X-RateLimit-Remaining", "999999");
+        exchange.getResponseHeaders().set("X-RateLimit-Reset", String.valueOf(reset));
+        exchange.getResponseHeaders().set("X-RateLimit-Reset-After", "1");
+        exchange.getResponseHeaders().set("X-RateLimit-Bucket", "idea-mock");
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * This method returns the JSON of a Discord user.
+     *
+     * @param id Discord user snowflake ID
+     * @param bot true if the user is a bot
+     * @param extra further fields, each starting with a comma (may be empty)
+     * @return user object
+     */
+    private static String user(long id, boolean bot, String extra) {
+        return "{\"id\":\"" + id + "\",\"username\":\"" + (bot ? "IDEA" : "user-" + id) + "\",\"discriminator\":"
+                + "\"0001\",\"avatar\":null,\"bot\":" + bot + extra + "}";
+    }
+
+    /**
+     * This method returns the JSON of a server member without roles or a nickname (the user is given separately).
+     *
+     * @return member object
+     */
+    private static String member() {
+        return "{\"roles\":[],\"nick\":null,\"joined_at\":\"" + JOINED_AT + "\",\"premium_since\":null,"
+                + "\"deaf\":false,\"mute\":false}";
+    }
+
+    /**
+     * This method returns the JSON of a server the bot is in, with one text channel and the bot as its only member
+     * (so JDA never asks for more members).
+     *
+     * @param guild Discord server snowflake ID
+     * @return guild object for GUILD_CREATE
+     */
+    private static String guild(long guild) {
+        return "{\"id\":\"" + guild + "\",\"name\":\"guild-" + guild + "\",\"icon\":null,\"splash\":null,"
+                + "\"banner\":null,\"description\":null,\"owner_id\":\"" + BOT_ID + "\",\"region\":\"us-east\","
+                + "\"afk_channel_id\":null,\"afk_timeout\":300,\"system_channel_id\":null,\"widget_enabled\":false,"
+                + "\"verification_level\":0,\"default_message_notifications\":0,\"explicit_content_filter\":0,"
+                + "\"mfa_level\":0,\"premium_tier\":0,\"premium_subscription_count\":0,\"vanity_url_code\":null,"
+                + "\"preferred_locale\":\"en-US\",\"features\":[],\"emojis\":[],\"voice_states\":[],\"presences\":[],"
+                + "\"large\":false,\"unavailable\":false,\"member_count\":1,\"max_members\":250000,"
+                + "\"max_presences\":5000,\"joined_at\":\"" + JOINED_AT + "\",\"roles\":[{\"id\":\"" + guild
+                + "\",\"name\":\"@everyone\",\"color\":0,\"hoist\":false,\"position\":0,\"permissions\":104324673,"
+                + "\"managed\":false,\"mentionable\":false}],\"channels\":[{\"id\":\"" + (guild + 1) + "\",\"type\":0,"
+                + "\"guild_id\":\"" + guild + "\",\"name\":\"general\",\"position\":0,\"permission_overwrites\":[],"
+                + "\"topic\":null,\"nsfw\":false,\"last_message_id\":null,\"parent_id\":null,"
+                + "\"rate_limit_per_user\":0}],\"members\":[{\"user\":" + user(BOT_ID, true, "") + ",\"roles\":[],"
+                + "\"nick\":null,\"joined_at\":\"" + JOINED_AT + "\",\"premium_since\":null,\"deaf\":false,"
+                + "\"mute\":false}]}";
+    }
+
+    /**
+     * This method escapes text for a JSON string.
+     *
+     * @param text raw text
+     * @return escaped text (without quotes)
+     */
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * This method reads a stream to its end.
+     *
+     * @param in stream to read
+     * @return every byte of the stream
+     * @throws IOException the stream could not be read
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The Session class is the gateway connection of one shard: a minimal WebSocket server (RFC 6455) that reads JDA's
+     * frames on its own thread. Sending is synchronized, since dispatches and heartbeat acknowledgements come from
+     * different threads.
+     */
+    private final class Session {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private Deflater deflater;  // set if JDA asked for zlib-stream compression
+        private byte[] compressed = new byte[8192];
+        private int sequence = 0;
+
+        private Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            socket.setTcpNoDelay(true);
+        }
+
+        /**
+         * This method completes the WebSocket handshake, says HELLO and then handles JDA's frames until the connection
+         * closes.
+         */
+        private void run() {
+            try {
+                handshake();
+                send("{\"op\":10,\"d\":{\"heartbeat_interval\":41250,\"_trace\":[\"idea-mock-gateway\"]}}");
+
+                while (true) {
+                    int first = in.readUnsignedByte();
+                    int second = in.readUnsignedByte();
+                    long length = second & 0x7F;
+
+                    if (length == 126) {
+                        length = in.readUnsignedShort();
+                    } else if (length == 127) {
+                        length = in.readLong();
+                    }
+
+                    byte[] mask = new byte[4];
+
+                    if ((second & 0x80) != 0) {
+                        in.readFully(mask);
+                    }
+
+                    byte[] payload = new byte[(int) length];
+                    in.readFully(payload);
+
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+
+                    switch (first & 0x0F) {
+                        case 0x1:  // text
+                            handle(new String(payload, StandardCharsets.UTF_8));
+                            break;
+                        case 0x8:  // close
+                            synchronized (this) {
+                                frame(0x8, payload, payload.length);
+                            }
+                            close();
+                            return;
+                        case 0x9:  // ping
+                            synchronized (this) {
+                                frame(0xA, payload, payload.length);
+                            }
+                            break;
+                        default:
+                            break;  // pongs and binary frames are not used by JDA's client side
+                    }
+                }
+            } catch (IOException e) {
+                close();  // JDA disconnected (or the stand-in is closing)
+            }
+        }
+
+        /**
+         * This method handles a gateway payload sent by JDA.
+         *
+         * @param payload JSON payload
+         * @throws IOException the response could not be sent
+         */
+        private void handle(String payload) throws IOException {
+            Matcher op = OP.matcher(payload);
+
+            if (!op.find()) {
+                return;
+            }
+
+            switch (Integer.parseInt(op.group(1))) {
+                case 1:  // heartbeat
+                    send("{\"op\":11}");
+                    break;
+                case 2:  // identify
+                    Matcher shard = SHARD.matcher(payload);
+                    int id = shard.find() ? Integer.parseInt(shard.group(1)) : 0;
+                    identify(id);
+                    break;
+                default:
+                    break;  // presence updates and the like change nothing here
+            }
+        }
+
+        /**
+         * This method answers IDENTIFY with READY (listing the shard's servers as unavailable) followed by a
+         * GUILD_CREATE for each of them, which is how Discord introduces the servers of a bot.
+         *
+         * @param shard shard ID that JDA identified as
+         * @throws IOException the events could not be sent
+         */
+        private void identify(int shard) throws IOException {
+            StringBuilder unavailable = new StringBuilder();
+
+            for (long guild : guilds) {
+                if (shardOf(guild) == shard) {
+                    unavailable.append(unavailable.length() == 0 ? "" : ",")
+                            .append("{\"id\":\"").append(guild).append("\",\"unavailable\":true}");
+                }
+            }
+
+            dispatch("READY", "{\"v\":6,\"user\":" + user(BOT_ID, true, ",\"verified\":true,\"mfa_enabled\":false,"
+                    + "\"email\":null,\"flags\":0") + ",\"guilds\":[" + unavailable + "],\"session_id\":\"idea-mock-"
+                    + shard + "\",\"private_channels\":[],\"relationships\":[],\"presences\":[],\"user_settings\":{},"
+                    + "\"shard\":[" + shard + "," + shardTotal + "],\"_trace\":[\"idea-mock-gateway\"]}");
+
+            for (long guild : guilds) {
+                if (shardOf(guild) == shard) {
+                    dispatch("GUILD_CREATE", guild(guild));
+                }
+            }
+
+            sessions.set(shard, this);
+            identified.countDown();
+        }
+
+        /**
+         * This method sends a dispatch (op 0) event with the next sequence number.
+         *
+         * @param type event name (e.g. MESSAGE_CREATE)
+         * @param data event data as JSON
+         * @throws IOException the event could not be sent
+         */
+        private synchronized void dispatch(String type, String data) throws IOException {
+            send("{\"op\":0,\"t\":\"" + type + "\",\"s\":" + (++sequence) + ",\"d\":" + data + "}");
+        }
+
+        /**
+         * This method sends a payload as a text frame, or as a binary frame continuing the zlib stream if JDA asked
+         * for compression. Every compressed payload ends in a sync flush (00 00 FF FF), which is how JDA recognizes
+         * that a payload is complete.
+         *
+         * @param payload JSON payload
+         * @throws IOException the payload could not be sent
+         */
+        private synchronized void send(String payload) throws IOException {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+
+            if (deflater == null) {
+                frame(0x1, bytes, bytes.length);
+                return;
+            }
+
+            deflater.setInput(bytes);
+            int length = 0;
+
+            while (true) {
+                length += deflater.deflate(compressed, length, compressed.length - length, Deflater.SYNC_FLUSH);
+
+                if (length < compressed.length) {
+                    break;
+                }
+
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+
+            frame(0x2, compressed, length);
+        }
+
+        /**
+         * This method writes a single, unmasked WebSocket frame.
+         *
+         * @param opcode frame opcode
+         * @param payload frame payload
+         * @param length number of payload bytes to send
+         * @throws IOException the frame could not be written
+         */
+        private void frame(int opcode, byte[] payload, int length) throws IOException {
+            out.write(0x80 | opcode);
+
+            if (length < 126) {
+                out.write(length);
+            } else if (length < 65536) {
+                out.write(126);
+                out.write(length >>> 8);
+                out.write(length);
+            } else {
+                out.write(127);
+
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) ((long) length >>> shift));
+                }
+            }
+
+            out.write(payload, 0, length);
+            out.flush();
+        }
+
+        /**
+         * This method reads the HTTP upgrade request and accepts it, turning on compression if JDA asked for it.
+         *
+         * @throws IOException the handshake failed
+         */
+        private void handshake() throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+            while (request.size() < 4 || !request.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+                request.write(in.readUnsignedByte());
+            }
+
+            String[] lines = request.toString("ISO-8859-1").split("\r\n");
+            String key = null;
+
+            for (String line : lines) {
+                if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+
+            if (key == null) {
+                throw new IOException("Not a WebSocket upgrade request: " + lines[0]);
+            }
+
+            if (lines[0].contains("compress=zlib-stream")) {
+                deflater = new Deflater();
+            }
+
+            String accept;
+
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                accept = Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID)
+                        .getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-1 is not available.", e);
+            }
+
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        /**
+         * This method closes the connection, ignoring any errors since it is being discarded.
+         */
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The connection is being thrown away either way.
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.SplittableRandom;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+
+/**
+ * The SyntheticEvents class builds GuildMessageReceivedEvents without a Discord connection. The JDA entities behind an
+ * event are dynamic proxies that only answer what IDEA's listeners ask for (ID's, author, channel and server).
+ *
+ * <dl>
+ *     <dt><span class="strong">long snowflake()</span></dt><dd>Returns a realistic, random snowflake ID.</dd>
+ *     <dt><span class="strong">GuildMessageReceivedEvent message()</span></dt><dd>Builds a message event.</dd>
+ * </dl>
+ */
+final class SyntheticEvents {
+    private static final long DISCORD_EPOCH = 1420070400000L;
+    private static final JDA API = entity(JDA.class, 0, null, null, null);
+
+    private SyntheticEvents() {
+    }
+
+    /**
+     * This method returns a random snowflake with a creation time between 2015 and 2020, which gives the hashes the
+     * same bit patterns real ID's have.
+     *
+     * @param random source of randomness
+     * @return snowflake ID
+     */
+    static long snowflake(SplittableRandom random) {
+        long millis = random.nextLong(1577836800000L - DISCORD_EPOCH);
+
+        return millis << 22 | random.nextInt(1 << 22);
+    }
+
+    /**
+     * This method builds an event for a message sent by a user in a server.
+     *
+     * @param user Discord user snowflake ID
+     * @param guild Discord server snowflake ID
+     * @return message event
+     */
+    static GuildMessageReceivedEvent message(long user, long guild) {
+        Guild server = entity(Guild.class, guild, null, null, null);
+        TextChannel channel = entity(TextChannel.class, guild, null, null, server);
+        User author = entity(User.class, user, null, null, null);
+        Message message = entity(Message.class, user ^ guild, author, channel, null);
+
+        return new GuildMessageReceivedEvent(API, 0, message);
+    }
+
+    /**
+     * This method creates a proxy for a JDA entity. Methods other than the ones below return null, false or 0.
+     *
+     * @param type JDA entity interface
+     * @param id snowflake ID returned by getIdLong() and getId()
+     * @param author returned by getAuthor()
+     * @param channel returned by getTextChannel() and getChannel()
+     * @param guild returned by getGuild()
+     * @return proxy implementing the interface
+     */
+    private static <T> T entity(Class<T> type, long id, User author, TextChannel channel, Guild guild) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toUnsignedString(id);
+                case "getAuthor":
+                    return author;
+                case "getTextChannel":
+                case "getChannel":
+                    return channel;
+                case "getGuild":
+                    return guild;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return Long.hashCode(id);
+                case "toString":
+                    return type.getSimpleName() + "(" + id + ")";
+                default:
+                    Class<?> returns = method.getReturnType();
+
+                    if (returns == boolean.class) {
+                        return false;
+                    } else if (returns == long.class) {
+                        return 0L;
+                    } else if (returns == int.class) {
+                        return 0;
+                    }
+
+                    return null;
+            }
+        };
+
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+}
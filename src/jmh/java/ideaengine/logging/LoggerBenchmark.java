@@ -0,0 +1,89 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The LoggerBenchmark class measures the throughput of Logger.discordUserAdded(), the line logged for every new user,
+ * from one thread and from eight threads at once, through the shared Logger. Run once with IDEA_LOG_MODE=async and
+ * once without to compare the asynchronous and synchronous writers, and with IDEA_LOG_FORMAT=binary to compare binary
+ * template records with text lines. The databaseConnected() benchmarks measure the cost of an event below its
+ * category's threshold (DEBUG, skipped by default) and of the same event sampled one out of every 100 times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoggerBenchmark {
+    private Logger log;
+
+    @Setup
+    public void setup() throws IOException {
+        log = Logger.get();
+        log.discordConnected();  // creates the Discord log if it does not exist yet
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.setLevel(Logger.Category.DBMS, Logger.Level.INFO);
+        Logger.setSampling("databaseConnected", 1);
+        Logger.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void discordUserAddedSingleThread() throws IOException {
+        log.discordUserAdded("123456789012345678");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void discordUserAddedEightThreads() throws IOException {
+        log.discordUserAdded("123456789012345678");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void databaseConnectedSkipped() throws IOException {
+        log.databaseConnected();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void databaseConnectedSampled(Sampled sampled) throws IOException {
+        log.databaseConnected();
+    }
+
+    /**
+     * The Sampled class logs DEBUG events of the database and keeps one out of every 100 databaseConnected() events.
+     */
+    @State(Scope.Benchmark)
+    public static class Sampled {
+        @Setup
+        public void setup() {
+            Logger.setLevel(Logger.Category.DBMS, Logger.Level.DEBUG);
+            Logger.setSampling("databaseConnected", 100);
+        }
+    }
+}
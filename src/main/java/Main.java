@@ -14,19 +14,33 @@
 import ideaengine.database.DBMS;
 import ideaengine.discord.Bot;
 import ideaengine.logging.Logger;
-
-import java.io.IOException;
-import javax.security.auth.login.LoginException;
+import ideaengine.metrics.MetricsServer;
+import ideaengine.util.StartupGraph;
 
 public class Main {
-    public static void main(String[] args) throws IOException, LoginException {
+    public static void main(String[] args) throws Exception {
+        final StartupGraph startup = new StartupGraph();
+
         // Establish that a logging system can be achieved on this operating system.
-        final Logger log = new Logger(true);
+        startup.step("logging", () -> new Logger(true));
+
+        // Serve metrics (if IDEA_METRICS_PORT is set) from the start, so a slow warm-up can be watched as well.
+        startup.step("metrics", MetricsServer::start);
+
+        // Establish a connection to the Idea Network (nothing waits on this check, the warm-up opens its own).
+        startup.step("database", () -> new DBMS(true), "logging");
+
+        // Warm up the known users and servers while connecting to Discord.
+        final Bot bot = new Bot(startup, "logging");
 
-        // Establish a connection to the Idea Network.
-        final DBMS database = new DBMS(true);
+        // Finish handling queued events first, since they may still queue inserts and log.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            bot.shutdown();
+            DBMS.shutdown();  // may still log while draining pending inserts
+            Logger.shutdown();
+            MetricsServer.shutdown();
+        }, "idea-shutdown"));
 
-        // Establish a connection to Discord.
-        final Bot bot = new Bot();
+        startup.run();
     }
 }
@@ -0,0 +1,833 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Histogram;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.ThreadFactories;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ConnectionPool class keeps a bounded set of physical connections to the Idea Network open so that callers do not
+ * pay for a TCP handshake, authentication and a fresh backend process every time they touch the database. Connections
+ * handed out by the pool are thin wrappers; calling close() on them returns the physical connection to the pool.
+ * Every physical connection also keeps its most recently used prepared statements, so preparing the same SQL again on
+ * a later borrow hands back the statement PostgreSQL has already parsed and planned instead of preparing it anew.
+ *
+ * <dl>
+ *     <dt><span class="strong">ConnectionPool()</span></dt><dd>Constructor that opens the minimum connections.</dd>
+ *     <dt><span class="strong">Connection borrow()</span></dt><dd>Borrows a validated connection from the pool.</dd>
+ *     <dt><span class="strong">void close()</span></dt><dd>Closes every connection and rejects further borrows.</dd>
+ *     <dt><span class="strong">int getActive()</span></dt><dd>Returns the number of borrowed connections.</dd>
+ *     <dt><span class="strong">int getIdle()</span></dt><dd>Returns the number of idle connections.</dd>
+ *     <dt><span class="strong">int getWaiting()</span></dt><dd>Returns the number of callers waiting to borrow.</dd>
+ *     <dt><span class="strong">int getTotal()</span></dt><dd>Returns the number of physical connections.</dd>
+ *     <dt><span class="strong">long getBorrowCount()</span></dt><dd>Returns the number of successful borrows.</dd>
+ *     <dt><span class="strong">long getTimeoutCount()</span></dt><dd>Returns the number of timed out borrows.</dd>
+ *     <dt><span class="strong">long getAverageBorrowNanos()</span></dt><dd>Returns the mean borrow latency.</dd>
+ *     <dt><span class="strong">long getMaxBorrowNanos()</span></dt><dd>Returns the worst borrow latency.</dd>
+ * </dl>
+ */
+public class ConnectionPool {
+    // Connections that were handed back within this window are trusted without a validation round trip.
+    private static final long VALIDATION_BYPASS_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    // Number of prepared statements each physical connection keeps when no other limit is given.
+    private static final int DEFAULT_STATEMENT_CACHE = 64;
+
+    private static final Histogram BORROW = Metrics.histogram("idea_pool_borrow_seconds",
+            "Time taken to borrow a connection from the pool (including any wait).");
+    private static final Counter STATEMENT_HITS = Metrics.counter("idea_pool_statements_total",
+            "Prepared statements requested from pooled connections.", "result", "hit");
+    private static final Counter STATEMENT_MISSES = Metrics.counter("idea_pool_statements_total",
+            "Prepared statements requested from pooled connections.", "result", "miss");
+
+    private final String jdbc;
+    private final Properties properties = new Properties();
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long borrowTimeoutNanos;
+    private final int statementCacheSize;
+
+    // Everything below the lock is guarded by it.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();  // most recently used first
+    private int total = 0;  // physical connections, including ones currently being opened
+    private int active = 0;
+    private int waiting = 0;
+    private boolean closed = false;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final LongAccumulator maxBorrowNanos = new LongAccumulator(Math::max, 0);
+
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * The ConnectionPool constructor records the pool limits and starts a background thread that evicts idle
+     * connections and keeps the pool topped up to its minimum size. Each connection caches up to 64 statements.
+     *
+     * @param jdbc JDBC pathway (e.g. jdbc:postgresql://host:port/database)
+     * @param role name of role with the appropriate permissions and privileges
+     * @param pass password of role
+     * @param minSize number of connections kept open even when idle
+     * @param maxSize upper bound on the number of physical connections
+     * @param idleTimeoutMillis idle time after which a connection above the minimum is closed
+     * @param borrowTimeoutMillis time a caller may wait for a connection before giving up
+     */
+    public ConnectionPool(String jdbc, String role, String pass, int minSize, int maxSize, long idleTimeoutMillis,
+                          long borrowTimeoutMillis) {
+        this(jdbc, role, pass, minSize, maxSize, idleTimeoutMillis, borrowTimeoutMillis, DEFAULT_STATEMENT_CACHE);
+    }
+
+    /**
+     * The ConnectionPool constructor records the pool limits and starts a background thread that evicts idle
+     * connections and keeps the pool topped up to its minimum size. Connections are opened with a prepare threshold
+     * of 1 (unless the JDBC pathway says otherwise), so a cached statement is prepared on the server the first time it
+     * runs rather than after several executions.
+     *
+     * @param jdbc JDBC pathway (e.g. jdbc:postgresql://host:port/database)
+     * @param role name of role with the appropriate permissions and privileges
+     * @param pass password of role
+     * @param minSize number of connections kept open even when idle
+     * @param maxSize upper bound on the number of physical connections
+     * @param idleTimeoutMillis idle time after which a connection above the minimum is closed
+     * @param borrowTimeoutMillis time a caller may wait for a connection before giving up
+     * @param statementCacheSize prepared statements kept per physical connection (0 disables the cache)
+     */
+    public ConnectionPool(String jdbc, String role, String pass, int minSize, int maxSize, long idleTimeoutMillis,
+                          long borrowTimeoutMillis, int statementCacheSize) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+
+        this.jdbc = jdbc;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+
+        // Settings given in the JDBC pathway take precedence over these.
+        if (role != null) {
+            properties.setProperty("user", role);
+        }
+
+        if (pass != null) {
+            properties.setProperty("password", pass);
+        }
+
+        if (this.statementCacheSize > 0) {
+            properties.setProperty("prepareThreshold", "1");
+        }
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("idea-pool-evictor-"));
+
+        long period = Math.max(1000L, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+
+        Metrics.gauge("idea_pool_active", "Connections currently borrowed from the pool.", this::getActive);
+        Metrics.gauge("idea_pool_idle", "Open connections waiting in the pool.", this::getIdle);
+        Metrics.gauge("idea_pool_waiting", "Callers waiting to borrow a connection.", this::getWaiting);
+        Metrics.counter("idea_pool_timeouts_total", "Borrows that gave up waiting for a connection.",
+                this::getTimeoutCount);
+    }
+
+    /**
+     * This method borrows a connection from the pool. An idle connection is reused when possible, a new one is opened
+     * if the pool is below its maximum size, and otherwise the caller waits until a connection is returned or the
+     * borrow-timeout expires. Closing the returned connection hands it back to the pool.
+     *
+     * @return pooled connection
+     * @throws SQLException no connection became available in time or a new connection could not be opened
+     */
+    public Connection borrow() throws SQLException {
+        final long start = System.nanoTime();
+        final long deadline = start + borrowTimeoutNanos;
+
+        while (true) {
+            PooledConnection pooled = null;
+
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && total >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0) {
+                        timeoutCount.incrementAndGet();
+                        throw new SQLTransientConnectionException("Timed out after "
+                                + TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos)
+                                + " ms waiting for a connection to the Idea Network.");
+                    }
+
+                    waiting++;
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection to the Idea Network.", e);
+                    } finally {
+                        waiting--;
+                    }
+                }
+
+                if (closed) {
+                    throw new SQLException("The connection pool has been closed.");
+                }
+
+                if (!idle.isEmpty()) {
+                    pooled = idle.pollFirst();
+                } else {
+                    total++;  // reserve the slot before opening outside of the lock
+                }
+
+                active++;
+            } finally {
+                lock.unlock();
+            }
+
+            if (pooled == null) {
+                try {
+                    pooled = new PooledConnection(DriverManager.getConnection(jdbc, properties));
+                } catch (SQLException e) {
+                    forget(null, true);
+                    throw e;
+                }
+            } else if (!isUsable(pooled)) {
+                forget(pooled, true);
+                continue;  // try again with whatever is left before the deadline
+            }
+
+            long elapsed = System.nanoTime() - start;
+            borrowCount.incrementAndGet();
+            borrowNanos.addAndGet(elapsed);
+            maxBorrowNanos.accumulate(elapsed);
+            BORROW.observe(elapsed);
+
+            return pooled.lease();
+        }
+    }
+
+    /**
+     * This method closes every idle connection and marks the pool as closed. Borrowed connections are closed as they
+     * are returned, and any waiting callers are woken up with an error.
+     */
+    public void close() {
+        List<PooledConnection> drained;
+
+        lock.lock();
+        try {
+            closed = true;
+            drained = new ArrayList<>(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        evictor.shutdownNow();
+
+        for (PooledConnection pooled : drained) {
+            pooled.closePhysical();
+        }
+    }
+
+    /**
+     * This method returns the number of connections that are currently borrowed.
+     *
+     * @return active connections
+     */
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the number of connections that are open but not borrowed.
+     *
+     * @return idle connections
+     */
+    public int getIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the number of callers that are currently blocked waiting for a connection.
+     *
+     * @return waiting callers
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the number of physical connections the pool currently owns.
+     *
+     * @return physical connections
+     */
+    public int getTotal() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the upper bound on the number of physical connections.
+     *
+     * @return maximum pool size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * This method returns the number of prepared statements each physical connection keeps.
+     *
+     * @return statement cache size per connection
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * This method returns the number of successful borrows since the pool was created.
+     *
+     * @return successful borrows
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * This method returns the number of borrows that gave up after waiting for the borrow-timeout.
+     *
+     * @return timed out borrows
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * This method returns the mean time a successful borrow took, including validation and connection setup.
+     *
+     * @return mean borrow latency in nanoseconds
+     */
+    public long getAverageBorrowNanos() {
+        long count = borrowCount.get();
+
+        return count == 0 ? 0 : borrowNanos.get() / count;
+    }
+
+    /**
+     * This method returns the longest time a successful borrow took.
+     *
+     * @return worst borrow latency in nanoseconds
+     */
+    public long getMaxBorrowNanos() {
+        return maxBorrowNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[active=" + getActive() + ", idle=" + getIdle() + ", waiting=" + getWaiting()
+                + ", total=" + getTotal() + ", max=" + maxSize + ", borrows=" + getBorrowCount()
+                + ", timeouts=" + getTimeoutCount() + ", avgBorrowMicros="
+                + TimeUnit.NANOSECONDS.toMicros(getAverageBorrowNanos()) + "]";
+    }
+
+    /**
+     * This method determines whether an idle connection can be handed out again. Connections that were returned only
+     * moments ago are trusted; older ones are checked with a validation round trip.
+     *
+     * @param pooled idle connection that was just taken from the pool
+     * @return true if the connection is still usable
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        if (System.nanoTime() - pooled.lastUsed < VALIDATION_BYPASS_NANOS) {
+            return true;
+        }
+
+        try {
+            return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method takes a borrowed connection back from a caller. Connections are rolled back if the caller left a
+     * transaction open and are discarded entirely if they are broken or the pool has been closed.
+     *
+     * @param pooled connection being returned
+     */
+    private void release(PooledConnection pooled) {
+        boolean healthy;
+
+        try {
+            healthy = !pooled.physical.isClosed();
+
+            if (healthy && !pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            healthy = false;
+        }
+
+        if (!healthy) {
+            forget(pooled, true);
+            return;
+        }
+
+        lock.lock();
+        try {
+            active--;
+
+            if (!closed) {
+                pooled.lastUsed = System.nanoTime();
+                idle.addFirst(pooled);
+                available.signal();
+                return;
+            }
+
+            total--;
+        } finally {
+            lock.unlock();
+        }
+
+        pooled.closePhysical();
+    }
+
+    /**
+     * This method removes a connection (or a reserved slot for one that failed to open) from the pool's books.
+     *
+     * @param pooled connection to discard, or null if the connection never opened
+     * @param wasActive true if the connection was counted as borrowed
+     */
+    private void forget(PooledConnection pooled, boolean wasActive) {
+        lock.lock();
+        try {
+            total--;
+
+            if (wasActive) {
+                active--;
+            }
+
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (pooled != null) {
+            pooled.closePhysical();
+        }
+    }
+
+    /**
+     * This method runs periodically to close connections that have been idle for longer than the idle timeout (while
+     * keeping at least the minimum) and to open new connections whenever the pool falls below its minimum size.
+     */
+    private void maintain() {
+        List<PooledConnection> expired = new ArrayList<>();
+        int missing;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            Iterator<PooledConnection> oldest = idle.descendingIterator();
+
+            while (oldest.hasNext() && total > minSize) {
+                PooledConnection pooled = oldest.next();
+
+                if (now - pooled.lastUsed < idleTimeoutNanos) {
+                    break;  // everything after this was used more recently
+                }
+
+                oldest.remove();
+                total--;
+                expired.add(pooled);
+            }
+
+            missing = minSize - total;
+            total += Math.max(missing, 0);
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection pooled : expired) {
+            pooled.closePhysical();
+        }
+
+        for (int i = 0; i < missing; i++) {
+            try {
+                PooledConnection pooled = new PooledConnection(DriverManager.getConnection(jdbc, properties));
+                boolean discard;
+
+                lock.lock();
+                try {
+                    // The pool may have been closed while we were connecting, after close() emptied the idle list.
+                    discard = closed;
+
+                    if (discard) {
+                        total -= missing - i;
+                    } else {
+                        idle.addLast(pooled);
+                        available.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (discard) {
+                    pooled.closePhysical();
+                    return;
+                }
+            } catch (SQLException e) {
+                // Give back every slot we reserved but could not fill; the next run will try again.
+                lock.lock();
+                try {
+                    total -= missing - i;
+                } finally {
+                    lock.unlock();
+                }
+
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The PooledConnection class pairs a physical connection with its bookkeeping and hands out wrappers that return
+     * the connection to the pool when closed. It also keeps the connection's cached prepared statements; only the
+     * borrower of the connection touches them, so the cache needs no locking of its own.
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        private volatile long lastUsed = System.nanoTime();
+
+        // Least recently used statements are closed once the cache is full, which also deallocates them on the server.
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+
+                eldest.getValue().discard();
+                return true;
+            }
+        };
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * This method wraps the physical connection for a single borrower. Every borrow gets its own wrapper so that a
+         * stale reference cannot close a connection that has since been handed to someone else.
+         *
+         * @return wrapper that returns the connection to the pool when closed
+         */
+        private Connection lease() {
+            InvocationHandler handler = new InvocationHandler() {
+                private final AtomicBoolean returned = new AtomicBoolean();
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "close":
+                            if (returned.compareAndSet(false, true)) {
+                                release(PooledConnection.this);
+                            }
+                            return null;
+                        case "isClosed":
+                            return returned.get() || physical.isClosed();
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "Pooled" + physical;
+                        default:
+                            if (returned.get()) {
+                                throw new SQLException("This connection has already been returned to the pool.");
+                            }
+
+                            if (method.getName().equals("prepareStatement") && args.length == 1
+                                    && statementCacheSize > 0) {
+                                return prepare((Connection) proxy, (String) args[0]);
+                            }
+
+                            try {
+                                return method.invoke(physical, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                    }
+                }
+            };
+
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, handler);
+        }
+
+        /**
+         * This method hands out the cached statement for the given SQL, preparing (and caching) it first if this
+         * connection has not seen the SQL before. Should the cached statement still be open from an earlier call in the
+         * same borrow, a separate uncached statement is prepared so that the two do not share parameters.
+         *
+         * @param lease wrapper the statement reports as its connection
+         * @param sql SQL statement with "?" parameter placeholders
+         * @return wrapper whose close() keeps the statement for the next borrower
+         * @throws SQLException the statement could not be prepared
+         */
+        private PreparedStatement prepare(Connection lease, String sql) throws SQLException {
+            CachedStatement cached = statements.get(sql);
+
+            if (cached != null && cached.statement.isClosed()) {
+                statements.remove(sql);  // it could not be reset, prepare it again
+                cached = null;
+            }
+
+            if (cached != null && cached.inUse) {
+                STATEMENT_MISSES.increment();
+                return physical.prepareStatement(sql);
+            }
+
+            if (cached == null) {
+                STATEMENT_MISSES.increment();
+                cached = new CachedStatement(physical.prepareStatement(sql));
+                statements.put(sql, cached);
+            } else {
+                STATEMENT_HITS.increment();
+            }
+
+            return cached.open(lease);
+        }
+
+        /**
+         * This method closes the physical connection, ignoring any errors since the connection is being discarded.
+         * Closing the connection also closes every statement it has cached.
+         */
+        private void closePhysical() {
+            statements.clear();
+
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // The connection is being thrown away either way.
+            }
+        }
+    }
+
+    /**
+     * The CachedStatement class keeps a prepared statement open across borrows. Each caller gets its own wrapper, and
+     * closing the wrapper resets the statement's parameters and batch, as well as any fetch size, row limit or timeout
+     * the caller set, so that the next caller starts clean. A statement whose other settings were changed is not
+     * reused.
+     */
+    private static final class CachedStatement {
+        // Settings that reset() puts back, and settings that make it close the statement since it cannot.
+        private static final List<String> RESTORED = Arrays.asList("setFetchSize", "setFetchDirection", "setMaxRows",
+                "setLargeMaxRows", "setMaxFieldSize", "setQueryTimeout");
+        private static final List<String> NOT_RESTORED = Arrays.asList("setCursorName", "setEscapeProcessing",
+                "setPoolable", "closeOnCompletion");
+
+        private final PreparedStatement statement;
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        private boolean configured = false;  // the settings below were saved and must be put back
+        private boolean tainted = false;  // a setting that cannot be put back was changed
+        private int fetchSize;
+        private int fetchDirection;
+        private int maxRows;
+        private int maxFieldSize;
+        private int queryTimeout;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        /**
+         * This method wraps the cached statement for a single caller.
+         *
+         * @param lease wrapper the statement reports as its connection
+         * @return wrapper that hands the statement back to the cache when closed
+         */
+        private PreparedStatement open(Connection lease) {
+            inUse = true;
+
+            InvocationHandler handler = new InvocationHandler() {
+                private boolean closed = false;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "close":
+                            if (!closed) {
+                                closed = true;
+                                reset();
+                            }
+                            return null;
+                        case "isClosed":
+                            return closed || statement.isClosed();
+                        case "getConnection":
+                            return lease;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "Cached" + statement;
+                        default:
+                            if (closed) {
+                                throw new SQLException("This statement has already been closed.");
+                            }
+
+                            if (!configured && RESTORED.contains(method.getName())) {
+                                save();
+                            } else if (NOT_RESTORED.contains(method.getName())) {
+                                tainted = true;
+                            }
+
+                            try {
+                                return method.invoke(statement, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                    }
+                }
+            };
+
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, handler);
+        }
+
+        /**
+         * This method saves the settings a caller is about to change, which are the statement's defaults since every
+         * caller's changes are put back when it is done.
+         *
+         * @throws SQLException the settings could not be read
+         */
+        private void save() throws SQLException {
+            fetchSize = statement.getFetchSize();
+            fetchDirection = statement.getFetchDirection();
+            maxRows = statement.getMaxRows();
+            maxFieldSize = statement.getMaxFieldSize();
+            queryTimeout = statement.getQueryTimeout();
+            configured = true;
+        }
+
+        /**
+         * This method clears whatever the last caller left behind. A statement that cannot be reset (or has been
+         * evicted meanwhile) is closed, which makes the next caller prepare a fresh one.
+         */
+        private void reset() {
+            inUse = false;
+
+            if (evicted || tainted) {
+                discard();
+                return;
+            }
+
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+
+                if (configured) {
+                    statement.setFetchSize(fetchSize);
+                    statement.setFetchDirection(fetchDirection);
+                    statement.setMaxRows(maxRows);
+                    statement.setMaxFieldSize(maxFieldSize);
+                    statement.setQueryTimeout(queryTimeout);
+                    configured = false;
+                }
+            } catch (SQLException e) {
+                discard();
+            }
+        }
+
+        /**
+         * This method closes the statement once it has fallen out of the cache. A statement that is still in use is
+         * closed as soon as its caller is done with it.
+         */
+        private void discard() {
+            if (inUse) {
+                evicted = true;
+                return;
+            }
+
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // The statement is being thrown away either way.
+            }
+        }
+    }
+}
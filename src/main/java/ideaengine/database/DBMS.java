@@ -13,17 +13,59 @@
  * ****************************************************************************************************************** */
 package ideaengine.database;
 
+import ideaengine.logging.Logger;
+import ideaengine.util.SnowflakeSet;
+
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Database Management Systems (DBMS) class handles the connection to the Idea Network along with all other
  * embedded-SQL capabilities. You can extend the appropriate database management system as per your operating system.
+ * The backend is selected at runtime: PostgreSQL by default, or the EmbeddedStore (a log-structured store on local
+ * disk) when IDEA_DATABASE_BACKEND is set to embedded. The embedded backend has no SQL connections, so the features
+ * that query PostgreSQL directly (snapshots, tiered membership and multi-node sync) are turned off with it.
  *
  * <dl>
+ *     <dt><span class="strong">pool</span></dt><dd>Connection pool shared by every DBMS instance.</dd>
+ *     <dt><span class="strong">writeBehind</span></dt><dd>Write-behind queue shared by every DBMS instance.</dd>
+ *     <dt><span class="strong">store</span></dt><dd>Embedded store shared by every DBMS instance.</dd>
+ *     <dt><span class="strong">closed</span></dt><dd>Whether shutdown() has begun.</dd>
  *     <dt><span class="strong">DBMS()</span></dt><dd>Constructor that initializes the database management system.</dd>
+ *     <dt><span class="strong">void initialization()</span></dt><dd>Checks if the selected backend is usable.</dd>
+ *     <dt><span class="strong">Connection getConnection()</span></dt><dd>Borrows a connection from the pool.</dd>
+ *     <dt><span class="strong">ConnectionPool getPool()</span></dt><dd>Returns (and lazily creates) the pool.</dd>
+ *     <dt><span class="strong">EmbeddedStore getEmbeddedStore()</span></dt><dd>Returns (and opens) the store.</dd>
+ *     <dt><span class="strong">void initializeDiscordUsers()</span></dt><dd>Initializes known Discord users.</dd>
+ *     <dt><span class="strong">void initializeDiscordServers()</span></dt><dd>Initializes known Discord servers.</dd>
+ *     <dt><span class="strong">List registerDiscordUsers()</span></dt><dd>Idempotently registers a user batch.</dd>
+ *     <dt><span class="strong">List registerDiscordServers()</span></dt><dd>Idempotently registers servers.</dd>
+ *     <dt><span class="strong">List registerDiscord()</span></dt><dd>Registers users and servers together.</dd>
+ *     <dt><span class="strong">boolean saveConversationContext()</span></dt><dd>Saves an evicted context.</dd>
+ *     <dt><span class="strong">String loadConversationContext()</span></dt><dd>Loads an evicted context.</dd>
+ *     <dt><span class="strong">String getSnapshot()</span></dt><dd>Returns the SNAPSHOT (PostgreSQL only).</dd>
+ *     <dt><span class="strong">boolean isTiered()</span></dt><dd>Returns the MEMBERSHIP (PostgreSQL only).</dd>
+ *     <dt><span class="strong">boolean isSync()</span></dt><dd>Returns the SYNC (PostgreSQL only).</dd>
+ *     <dt><span class="strong">CompletableFuture queueDiscordUser()</span></dt><dd>Queues a user registration.</dd>
+ *     <dt><span class="strong">CompletableFuture queueDiscordServer()</span></dt><dd>Queues a server registration.</dd>
+ *     <dt><span class="strong">WriteBehindQueue getWriteBehind()</span></dt><dd>Returns (and creates) the queue.</dd>
+ *     <dt><span class="strong">int getPendingWrites()</span></dt><dd>Returns the number of queued inserts.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Drains inserts, saves snapshots, closes the backend.</dd>
  * </dl>
  */
 public class DBMS extends PostgreSQL {
+    // Shared across instances, since a DBMS is created per operation.
+    private static volatile ConnectionPool pool = null;
+    private static volatile WriteBehindQueue writeBehind = null;  // batches inserts of new users and servers
+    private static volatile EmbeddedStore store = null;  // only opened when the embedded backend is selected
+    private static volatile boolean closed = false;  // set by shutdown(), after which nothing is created again
+
     /**
      * The DBMS constructor initializes the database management system to determine if connecting to any given database
      * is achievable.
@@ -36,4 +78,442 @@ public class DBMS extends PostgreSQL {
             initialization();
         }
     }
+
+    /**
+     * This method will perform a quick initialization to determine if the selected backend is usable: a connection to
+     * PostgreSQL, or opening the embedded store.
+     *
+     * @throws IOException logging system is not properly configured
+     */
+    @Override
+    public void initialization() throws IOException {
+        if (!isEmbedded()) {
+            super.initialization();
+            return;
+        }
+
+        try {
+            getEmbeddedStore();
+            Logger.get().databaseFirstConnect();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method borrows a connection from the shared connection pool. Closing the connection returns it to the pool.
+     *
+     * @return pooled database connection
+     * @throws SQLException no connection became available before the borrow-timeout, the embedded backend is in use or
+     *                      the pool has been shut down
+     */
+    public Connection getConnection() throws SQLException {
+        if (isEmbedded()) {
+            throw new SQLException("The embedded backend has no SQL connections.");
+        }
+
+        try {
+            return getPool().borrow();
+        } catch (IllegalStateException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method returns the connection pool shared by every DBMS instance, creating it on first use from the pool
+     * settings found in the DatabaseADT interface. Once shutdown() has begun no pool is created anymore, so a late
+     * caller cannot open connections that nothing would ever close.
+     *
+     * @return shared connection pool
+     * @throws IllegalStateException the pool has been shut down
+     */
+    public ConnectionPool getPool() {
+        ConnectionPool shared = pool;
+
+        if (shared == null) {
+            synchronized (DBMS.class) {
+                if (pool == null && closed) {
+                    throw new IllegalStateException("The connection pool has been shut down.");
+                }
+
+                if (pool == null) {
+                    pool = new ConnectionPool(getJDBC(), getRole(), getPass(), getPoolMin(), getPoolMax(),
+                            getPoolIdle() * 1000L, getPoolWait(), getStatementCache());
+                }
+
+                shared = pool;
+            }
+        }
+
+        return shared;
+    }
+
+    /**
+     * This method returns the embedded store shared by every DBMS instance, opening it on first use from the store
+     * settings found in the DatabaseADT interface.
+     *
+     * @return shared embedded store
+     * @throws SQLException the embedded backend is not selected, the store could not be opened or it has been shut down
+     */
+    EmbeddedStore getEmbeddedStore() throws SQLException {
+        EmbeddedStore shared = store;
+
+        if (shared == null) {
+            if (!isEmbedded()) {
+                throw new SQLException("The embedded backend is not selected.");
+            }
+
+            synchronized (DBMS.class) {
+                if (store == null && closed) {
+                    throw new SQLException("The embedded store has been shut down.");
+                }
+
+                if (store == null) {
+                    try {
+                        store = EmbeddedStore.open(Paths.get(getStore()), getStoreSync(),
+                                getStoreCompact() * 1048576L);
+                    } catch (IOException e) {
+                        throw new SQLException("Unable to open the embedded store in " + getStore() + ".", e);
+                    }
+                }
+
+                shared = store;
+            }
+        }
+
+        return shared;
+    }
+
+    /**
+     * This method initializes the user list (via SnowflakeSet) by storing all known Discord user ID's from the selected
+     * backend.
+     *
+     * @param userList empty SnowflakeSet data structure
+     * @throws IOException logging system is not properly configured
+     */
+    @Override
+    public void initializeDiscordUsers(SnowflakeSet userList) throws IOException {
+        if (!isEmbedded()) {
+            super.initializeDiscordUsers(userList);
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            getEmbeddedStore().loadDiscordUsers(userList);
+            Logger.get().databaseWarmedUp("discord_users", userList.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method initializes the server list (via SnowflakeSet) by storing all known Discord server ID's from the
+     * selected backend.
+     *
+     * @param serverList empty SnowflakeSet data structure
+     * @throws IOException logging system is not properly configured
+     */
+    @Override
+    public void initializeDiscordServers(SnowflakeSet serverList) throws IOException {
+        if (!isEmbedded()) {
+            super.initializeDiscordServers(serverList);
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            getEmbeddedStore().loadDiscordServers(serverList);
+            Logger.get().databaseWarmedUp("discord_servers", serverList.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method registers a batch of Discord users with the selected backend (see PostgreSQL.registerDiscordUsers()).
+     *
+     * @param users Discord user identification strings
+     * @return the users this call created (the others already existed)
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batch could not be registered (nothing was committed)
+     */
+    @Override
+    public List<String> registerDiscordUsers(List<String> users) throws IOException, SQLException {
+        if (!isEmbedded()) {
+            return super.registerDiscordUsers(users);
+        }
+
+        return registerDiscord(users, Collections.<String>emptyList()).get(0);
+    }
+
+    /**
+     * This method registers a batch of Discord servers with the selected backend (see
+     * PostgreSQL.registerDiscordServers()).
+     *
+     * @param servers Discord server identification strings
+     * @return the servers this call created (the others already existed)
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batch could not be registered (nothing was committed)
+     */
+    @Override
+    public List<String> registerDiscordServers(List<String> servers) throws IOException, SQLException {
+        if (!isEmbedded()) {
+            return super.registerDiscordServers(servers);
+        }
+
+        return registerDiscord(Collections.<String>emptyList(), servers).get(1);
+    }
+
+    /**
+     * This method registers a batch of Discord users and a batch of Discord servers with the selected backend (see
+     * PostgreSQL.registerDiscord()). The embedded backend appends both batches to its log in one write.
+     *
+     * @param users Discord user identification strings (may be empty)
+     * @param servers Discord server identification strings (may be empty)
+     * @return two lists: the users and the servers this call created (the others already existed)
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batches could not be registered
+     */
+    @Override
+    public List<List<String>> registerDiscord(List<String> users, List<String> servers)
+            throws IOException, SQLException {
+        if (!isEmbedded()) {
+            return super.registerDiscord(users, servers);
+        }
+
+        Logger log = Logger.get();  // logging system (shared)
+        List<List<String>> created = getEmbeddedStore().registerDiscord(users, servers);
+
+        for (String user : created.get(0)) {
+            log.databaseUserAdded(user, "discord_users");
+            log.discordUserAdded(user);
+        }
+
+        for (String server : created.get(1)) {
+            log.databaseServerAdded(server, "discord_servers");
+            log.discordServerAdded(server);
+        }
+
+        return created;
+    }
+
+    /**
+     * This method saves (or replaces) the serialized context of a conversation that was evicted from memory.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @param context serialized conversation context
+     * @return true if the context was saved
+     * @throws IOException logging system is not properly configured
+     */
+    @Override
+    public boolean saveConversationContext(long guild, long channel, long user, String context) throws IOException {
+        if (!isEmbedded()) {
+            return super.saveConversationContext(guild, channel, user, context);
+        }
+
+        try {
+            getEmbeddedStore().saveConversationContext(guild, channel, user, context);
+            return true;
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * This method loads the serialized context of a conversation that was previously evicted from memory.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @return serialized conversation context, or null if none was saved (or it could not be loaded)
+     * @throws IOException logging system is not properly configured
+     */
+    @Override
+    public String loadConversationContext(long guild, long channel, long user) throws IOException {
+        if (!isEmbedded()) {
+            return super.loadConversationContext(guild, channel, user);
+        }
+
+        try {
+            return getEmbeddedStore().loadConversationContext(guild, channel, user);
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * This method returns the directory that keeps local snapshots of known ID's. The embedded backend keeps its ID's
+     * on local disk anyway, so snapshots only apply to PostgreSQL.
+     *
+     * @return snapshot directory, or null if snapshots are disabled
+     */
+    @Override
+    public String getSnapshot() {
+        return isEmbedded() ? null : super.getSnapshot();
+    }
+
+    /**
+     * This method determines if known users are tracked through a Bloom filter, an LRU of recent users and batched
+     * database lookups. Tiered membership only applies to PostgreSQL.
+     *
+     * @return true if membership is tiered
+     */
+    @Override
+    public boolean isTiered() {
+        return !isEmbedded() && super.isTiered();
+    }
+
+    /**
+     * This method determines if newly known ID's should be shared with other IDEA processes. The embedded store belongs
+     * to a single process, so this only applies to PostgreSQL.
+     *
+     * @return true if known ID's are synchronized
+     */
+    @Override
+    public boolean isSync() {
+        return !isEmbedded() && super.isSync();
+    }
+
+    /**
+     * This method queues a Discord user to be registered with the Idea Network in the background (see
+     * WriteBehindQueue).
+     *
+     * @param user Discord user identification string
+     * @return completes once the user is committed: true if newly created, false if the user already existed (or
+     *         exceptionally if shutdown() has begun)
+     */
+    public CompletableFuture<Boolean> queueDiscordUser(String user) {
+        WriteBehindQueue queue = writeBehindOrNull();
+
+        return queue == null ? shutDown(user) : queue.queueDiscordUser(user);
+    }
+
+    /**
+     * This method queues a Discord server to be registered with the Idea Network in the background (see
+     * WriteBehindQueue).
+     *
+     * @param server Discord server identification string
+     * @return completes once the server is committed: true if newly created, false if the server already existed (or
+     *         exceptionally if shutdown() has begun)
+     */
+    public CompletableFuture<Boolean> queueDiscordServer(String server) {
+        WriteBehindQueue queue = writeBehindOrNull();
+
+        return queue == null ? shutDown(server) : queue.queueDiscordServer(server);
+    }
+
+    /**
+     * This method returns the write-behind queue shared by every DBMS instance, creating it on first use from the batch
+     * settings found in the DatabaseADT interface. Once shutdown() has begun no queue is handed out anymore, since
+     * nothing would flush what a late caller queues.
+     *
+     * @return shared write-behind queue
+     * @throws IllegalStateException the queue has been shut down
+     */
+    public WriteBehindQueue getWriteBehind() {
+        WriteBehindQueue shared = writeBehindOrNull();
+
+        if (shared == null) {
+            throw new IllegalStateException("The write-behind queue has been shut down.");
+        }
+
+        return shared;
+    }
+
+    /**
+     * This method returns the shared write-behind queue, creating it on first use.
+     *
+     * @return shared write-behind queue, or null once shutdown() has begun
+     */
+    private WriteBehindQueue writeBehindOrNull() {
+        WriteBehindQueue shared = writeBehind;
+
+        if (shared == null || closed) {
+            synchronized (DBMS.class) {
+                if (closed) {
+                    return null;
+                }
+
+                if (writeBehind == null) {
+                    writeBehind = new WriteBehindQueue(this, getBatchSize(), getBatchDelay());
+                }
+
+                shared = writeBehind;
+            }
+        }
+
+        return shared;
+    }
+
+    /**
+     * This method answers a registration that arrived after shutdown() began.
+     *
+     * @param id Discord identification string
+     * @return future that has already failed
+     */
+    private static CompletableFuture<Boolean> shutDown(String id) {
+        CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new SQLException(id + " arrived after the database was shut down."));
+
+        return failed;
+    }
+
+    /**
+     * This method returns the number of inserts waiting in the write-behind queue, without creating the queue.
+     *
+     * @return pending inserts (0 if the queue was never created)
+     */
+    public static int getPendingWrites() {
+        WriteBehindQueue shared = writeBehind;
+
+        return shared == null ? 0 : shared.getPending();
+    }
+
+    /**
+     * This method writes any pending inserts, saves the known-ID snapshots (if enabled) and then closes the shared
+     * connection pool and embedded store (if they were ever created). It should be called once while the engine shuts
+     * down; afterwards registrations fail right away and no pool, queue or store is created again.
+     */
+    public static void shutdown() {
+        WriteBehindQueue queue;
+        ConnectionPool closing;
+        EmbeddedStore closingStore;
+
+        synchronized (DBMS.class) {
+            closed = true;
+            queue = writeBehind;
+            writeBehind = null;
+        }
+
+        // Drain outside of the lock since the background writer still needs the pool to do so.
+        if (queue != null) {
+            queue.shutdown();
+        }
+
+        KnownIdSnapshot.shutdown();  // the final save reads newer rows, so it still needs the pool
+
+        synchronized (DBMS.class) {
+            closing = pool;
+            pool = null;
+            closingStore = store;
+            store = null;
+        }
+
+        if (closing != null) {
+            closing.close();
+        }
+
+        if (closingStore != null) {
+            closingStore.close();
+        }
+    }
 }
@@ -14,22 +14,80 @@
 package ideaengine.database;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
 
 /**
  * The DatabaseADT interface provides an abstraction of the different types of variables and methods one may use to
  * connect a database. Utilizing environment variables for sensitive information is strongly recommended.
  *
  * <dl>
+ *     <dt><span class="strong">BACKEND</span></dt><dd>Backend keeping the Idea Network (postgresql or embedded).</dd>
+ *     <dt><span class="strong">STORE</span></dt><dd>Directory of the embedded backend's logs.</dd>
+ *     <dt><span class="strong">STORE_SYNC</span></dt><dd>Milliseconds between timed fsyncs of the embedded store.</dd>
+ *     <dt><span class="strong">STORE_COMPACT</span></dt><dd>MiB of garbage that lets the embedded store compact.</dd>
  *     <dt><span class="strong">JDBC</span></dt><dd>Java Database Connectivity pathway (e.g. jdbc:postgresql://).</dd>
  *     <dt><span class="strong">ROLE</span></dt><dd>Name of role with the appropriate permissions and privileges.</dd>
  *     <dt><span class="strong">PASS</span></dt><dd>Password of role in order to form a connection with database.</dd>
+ *     <dt><span class="strong">POOL_MIN</span></dt><dd>Number of pooled connections kept open while idle.</dd>
+ *     <dt><span class="strong">POOL_MAX</span></dt><dd>Upper bound on the number of pooled connections.</dd>
+ *     <dt><span class="strong">POOL_IDLE</span></dt><dd>Seconds a pooled connection may stay idle before eviction.</dd>
+ *     <dt><span class="strong">POOL_WAIT</span></dt><dd>Milliseconds a caller may wait to borrow a connection.</dd>
+ *     <dt><span class="strong">STATEMENT_CACHE</span></dt><dd>Prepared statements cached per pooled connection.</dd>
+ *     <dt><span class="strong">BATCH_SIZE</span></dt><dd>Number of queued inserts that triggers a batch flush.</dd>
+ *     <dt><span class="strong">BATCH_DELAY</span></dt><dd>Milliseconds a queued insert may wait before a flush.</dd>
+ *     <dt><span class="strong">WARMUP_FETCH</span></dt><dd>Rows fetched per round trip while loading known ID's.</dd>
+ *     <dt><span class="strong">WARMUP_PARTITIONS</span></dt><dd>Key ranges loaded in parallel while warming up.</dd>
+ *     <dt><span class="strong">SNAPSHOT</span></dt><dd>Directory that keeps local snapshots of known ID's.</dd>
+ *     <dt><span class="strong">SNAPSHOT_INTERVAL</span></dt><dd>Minutes between saving known-ID snapshots.</dd>
+ *     <dt><span class="strong">MEMBERSHIP</span></dt><dd>How known users are tracked (set or tiered).</dd>
+ *     <dt><span class="strong">FILTER_SIZE</span></dt><dd>Number of ID's the tiered Bloom filter is sized for.</dd>
+ *     <dt><span class="strong">FILTER_BITS</span></dt><dd>Bits of Bloom filter per expected ID.</dd>
+ *     <dt><span class="strong">RECENT</span></dt><dd>Number of recently confirmed ID's kept in the tiered LRU.</dd>
+ *     <dt><span class="strong">SYNC</span></dt><dd>Whether known ID's are shared with other IDEA processes.</dd>
  * </dl>
  */
 interface DatabaseADT {
-    // Refer to the DatabaseADT JavaDoc for a brief explanation regarding the variables below.
-    String JDBC = System.getenv("PostgreSQL_IDEA_JDBC");
-    String ROLE = System.getenv("PostgreSQL_IDEA_ROLE");
-    String PASS = System.getenv("PostgreSQL_IDEA_LOGIN");
+    // Backend selection and the embedded backend's settings (optional, PostgreSQL is used when these are not set). A
+    // system property of the same name takes precedence, so benchmarks and tests can run on the embedded backend.
+    String BACKEND = System.getProperty("IDEA_DATABASE_BACKEND", System.getenv("IDEA_DATABASE_BACKEND"));
+    String STORE = System.getProperty("IDEA_DATABASE_STORE", System.getenv("IDEA_DATABASE_STORE"));
+    String STORE_SYNC = System.getenv("IDEA_DATABASE_STORE_SYNC");
+    String STORE_COMPACT = System.getenv("IDEA_DATABASE_STORE_COMPACT");
+
+    // Refer to the DatabaseADT JavaDoc for a brief explanation regarding the variables below. A system property of the
+    // same name takes precedence (e.g. -DPostgreSQL_IDEA_JDBC=...), which lets benchmarks use a stand-in database.
+    String JDBC = System.getProperty("PostgreSQL_IDEA_JDBC", System.getenv("PostgreSQL_IDEA_JDBC"));
+    String ROLE = System.getProperty("PostgreSQL_IDEA_ROLE", System.getenv("PostgreSQL_IDEA_ROLE"));
+    String PASS = System.getProperty("PostgreSQL_IDEA_LOGIN", System.getenv("PostgreSQL_IDEA_LOGIN"));
+
+    // Connection pool settings (optional, sensible defaults are used when these are not set).
+    String POOL_MIN = System.getenv("PostgreSQL_IDEA_POOL_MIN");
+    String POOL_MAX = System.getenv("PostgreSQL_IDEA_POOL_MAX");
+    String POOL_IDLE = System.getenv("PostgreSQL_IDEA_POOL_IDLE");
+    String POOL_WAIT = System.getenv("PostgreSQL_IDEA_POOL_WAIT");
+    String STATEMENT_CACHE = System.getenv("PostgreSQL_IDEA_STATEMENT_CACHE");
+
+    // Write-behind settings for batched inserts (optional, sensible defaults are used when these are not set).
+    String BATCH_SIZE = System.getenv("PostgreSQL_IDEA_BATCH_SIZE");
+    String BATCH_DELAY = System.getenv("PostgreSQL_IDEA_BATCH_DELAY");
+
+    // Warm-up settings for loading known ID's at startup (optional, sensible defaults are used when these are not set).
+    String WARMUP_FETCH = System.getenv("PostgreSQL_IDEA_WARMUP_FETCH");
+    String WARMUP_PARTITIONS = System.getenv("PostgreSQL_IDEA_WARMUP_PARTITIONS");
+
+    // Snapshot settings for restoring known ID's from local files (optional, disabled when SNAPSHOT is not set).
+    String SNAPSHOT = System.getenv("PostgreSQL_IDEA_SNAPSHOT");
+    String SNAPSHOT_INTERVAL = System.getenv("PostgreSQL_IDEA_SNAPSHOT_INTERVAL");
+
+    // Tiered membership settings for very large user tables (optional, an exact in-memory set is used by default).
+    String MEMBERSHIP = System.getenv("PostgreSQL_IDEA_MEMBERSHIP");
+    String FILTER_SIZE = System.getenv("PostgreSQL_IDEA_FILTER_SIZE");
+    String FILTER_BITS = System.getenv("PostgreSQL_IDEA_FILTER_BITS");
+    String RECENT = System.getenv("PostgreSQL_IDEA_RECENT");
+
+    // Multi-node setting for sharing newly known ID's through LISTEN/NOTIFY (optional, disabled when this is not set).
+    String SYNC = System.getenv("PostgreSQL_IDEA_SYNC");
 
     /**
      * This method will perform a quick initialization to determine if connecting to any given database is achievable.
@@ -38,6 +96,45 @@ interface DatabaseADT {
      */
     void initialization() throws IOException;
 
+    /**
+     * This method returns an open connection to the database. Closing the connection hands it back to whoever manages
+     * it (e.g. a connection pool) rather than necessarily closing the underlying network connection.
+     *
+     * @return open database connection
+     * @throws SQLException unable to obtain a connection
+     */
+    Connection getConnection() throws SQLException;
+
+    /**
+     * This method determines if the Idea Network is kept by the embedded store (see EmbeddedStore) rather than by a
+     * PostgreSQL server.
+     *
+     * @return true if the embedded backend is selected
+     */
+    boolean isEmbedded();
+
+    /**
+     * This method returns the directory that holds the embedded store's logs.
+     *
+     * @return store directory
+     */
+    String getStore();
+
+    /**
+     * This method returns how long (in milliseconds) the embedded store waits between syncing its logs to disk.
+     *
+     * @return sync interval in milliseconds (0 if every write waits until it is synced)
+     */
+    int getStoreSync();
+
+    /**
+     * This method returns how much garbage (in MiB) the embedded store's context log has to hold before it is
+     * compacted.
+     *
+     * @return compaction threshold in MiB
+     */
+    int getStoreCompact();
+
     /**
      * This method returns the Java Database Connectivity pathway.
      *
@@ -60,4 +157,118 @@ interface DatabaseADT {
      * @return password of role
      */
     String getPass();
+
+    /**
+     * This method returns the number of pooled connections that are kept open even while idle.
+     *
+     * @return minimum pool size
+     */
+    int getPoolMin();
+
+    /**
+     * This method returns the upper bound on the number of pooled connections.
+     *
+     * @return maximum pool size
+     */
+    int getPoolMax();
+
+    /**
+     * This method returns how long (in seconds) a pooled connection may stay idle before it is closed.
+     *
+     * @return idle timeout in seconds
+     */
+    int getPoolIdle();
+
+    /**
+     * This method returns how long (in milliseconds) a caller may wait to borrow a pooled connection.
+     *
+     * @return borrow timeout in milliseconds
+     */
+    int getPoolWait();
+
+    /**
+     * This method returns the number of prepared statements each pooled connection keeps for reuse.
+     *
+     * @return statement cache size per connection (0 if statements are not cached)
+     */
+    int getStatementCache();
+
+    /**
+     * This method returns the number of queued inserts that immediately triggers a batch flush.
+     *
+     * @return batch size threshold
+     */
+    int getBatchSize();
+
+    /**
+     * This method returns how long (in milliseconds) a queued insert may wait before it is flushed.
+     *
+     * @return maximum batch delay in milliseconds
+     */
+    int getBatchDelay();
+
+    /**
+     * This method returns the number of rows fetched from the server-side cursor per round trip while warming up.
+     *
+     * @return warm-up fetch size
+     */
+    int getWarmUpFetch();
+
+    /**
+     * This method returns the number of key ranges that are loaded in parallel while warming up.
+     *
+     * @return warm-up partitions
+     */
+    int getWarmUpPartitions();
+
+    /**
+     * This method returns the directory that keeps local snapshots of known ID's.
+     *
+     * @return snapshot directory, or null if snapshots are disabled
+     */
+    String getSnapshot();
+
+    /**
+     * This method returns how long (in minutes) to wait between saving snapshots of known ID's.
+     *
+     * @return snapshot interval in minutes
+     */
+    int getSnapshotInterval();
+
+    /**
+     * This method determines if known users are tracked through a Bloom filter, an LRU of recent users and batched
+     * database lookups (see TieredKnownIds) instead of an exact in-memory set.
+     *
+     * @return true if membership is tiered
+     */
+    boolean isTiered();
+
+    /**
+     * This method returns the number of ID's the tiered Bloom filter is sized for.
+     *
+     * @return expected number of ID's
+     */
+    int getFilterSize();
+
+    /**
+     * This method returns the bits of Bloom filter memory per expected ID.
+     *
+     * @return bits per ID
+     */
+    int getFilterBits();
+
+    /**
+     * This method returns the number of recently confirmed ID's kept in the tiered LRU.
+     *
+     * @return LRU capacity
+     */
+    int getRecent();
+
+    /**
+     * This method determines if newly known ID's should be shared with (and learned from) other IDEA processes that
+     * use the same database.
+     *
+     * @return true if known ID's are synchronized
+     */
+    boolean isSync();
 }
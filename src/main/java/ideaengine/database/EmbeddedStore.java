@@ -0,0 +1,919 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.logging.Logger;
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Histogram;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.SnowflakeSet;
+import ideaengine.util.ThreadFactories;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * The EmbeddedStore class keeps the Idea Network on local disk for single-node deployments that do without a
+ * PostgreSQL server (see DBMS, IDEA_DATABASE_BACKEND). It consists of two append-only logs in one directory: ids.log
+ * holds every registered user and server, contexts.log holds the conversation contexts saved by the ContextStore. Both
+ * are indexed in memory (the ID's in SnowflakeSets, the contexts by their position in the log), so a lookup never reads
+ * more than the record it asks for.
+ *
+ * <p>Every write is appended and then made durable with fsync. Writers that arrive while an fsync is running wait for
+ * the next one together (group commit), so a burst of writes costs a few fsyncs rather than one each; with
+ * IDEA_DATABASE_STORE_SYNC set, the logs are instead synced on a timer and writers do not wait at all. A saved context
+ * replaces the previous copy, which stays in the log as garbage until the context log is compacted: once the garbage
+ * outgrows both the live contexts and IDEA_DATABASE_STORE_COMPACT, the live contexts are copied to a new file in the
+ * background, which is then moved over the old one. Registered ID's are never garbage, so the ID log is never
+ * rewritten.</p>
+ *
+ * <p>Log layout (big-endian): magic, version, reserved, followed by records of payload length, type, payload and a
+ * CRC32 of the type and payload. A record that was only partly written when the process died fails its checksum and is
+ * cut off (together with anything after it) when the log is opened.</p>
+ *
+ * <dl>
+ *     <dt><span class="strong">EmbeddedStore open()</span></dt><dd>Opens the store and replays its logs.</dd>
+ *     <dt><span class="strong">void loadDiscordUsers()</span></dt><dd>Adds every registered user to a set.</dd>
+ *     <dt><span class="strong">void loadDiscordServers()</span></dt><dd>Adds every registered server to a set.</dd>
+ *     <dt><span class="strong">List registerDiscord()</span></dt><dd>Registers users and servers in one append.</dd>
+ *     <dt><span class="strong">void saveConversationContext()</span></dt><dd>Saves an evicted context.</dd>
+ *     <dt><span class="strong">String loadConversationContext()</span></dt><dd>Loads an evicted context.</dd>
+ *     <dt><span class="strong">void close()</span></dt><dd>Syncs and closes both logs.</dd>
+ * </dl>
+ */
+final class EmbeddedStore implements AutoCloseable {
+    private static final long MAGIC = 0x4944454153544F52L;  // "IDEASTOR"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_OVERHEAD = 9;  // payload length, type and checksum
+    private static final int MAX_PAYLOAD = 64 << 20;  // anything longer is a damaged length field
+
+    private static final byte USERS = 1;
+    private static final byte SERVERS = 2;
+    private static final byte CONTEXT = 3;
+
+    // Same families as the PostgreSQL backend, so dashboards do not depend on which backend is selected.
+    private static final Histogram REGISTER_BOTH = call("registerDiscord");
+    private static final Histogram SAVE_CONTEXT = call("saveConversationContext");
+    private static final Histogram LOAD_CONTEXT = call("loadConversationContext");
+    private static final Counter SYNCS = Metrics.counter("idea_store_syncs_total", "fsyncs of the embedded store's "
+            + "logs.");
+    private static final Counter COMPACTIONS = Metrics.counter("idea_store_compactions_total", "Compactions of the "
+            + "embedded store's context log.");
+
+    private final Path directory;
+    private final Log ids;
+    private final Log contexts;
+    private final int syncMillis;
+    private final long compactBytes;
+
+    private final SnowflakeSet users = new SnowflakeSet();
+    private final SnowflakeSet servers = new SnowflakeSet();
+    private final Map<Key, Location> index = new HashMap<>();  // guarded by the context log's lock
+    private long liveBytes = 0;  // guarded by the context log's lock
+    private long garbageBytes = 0;  // guarded by the context log's lock
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService compactor;
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * The EmbeddedStore constructor opens both logs and rebuilds the in-memory index from them.
+     *
+     * @param directory directory holding the logs
+     * @param syncMillis milliseconds between timed fsyncs, or 0 to make every write wait for its fsync
+     * @param compactBytes garbage in the context log that has to be exceeded before it is compacted
+     * @throws IOException the logs could not be opened, or a file that is not an IDEA store is in the way
+     */
+    private EmbeddedStore(Path directory, int syncMillis, long compactBytes) throws IOException {
+        this.directory = directory;
+        this.syncMillis = syncMillis;
+        this.compactBytes = compactBytes;
+
+        Files.createDirectories(directory);
+
+        ids = new Log(directory.resolve("ids.log"));
+        contexts = new Log(directory.resolve("contexts.log"));
+
+        try {
+            ids.replay((type, payload, offset) -> {
+                SnowflakeSet set = type == USERS ? users : type == SERVERS ? servers : null;
+
+                if (set == null) {
+                    throw new IOException("Unexpected record type " + type + " in " + ids.file + ".");
+                }
+
+                ByteBuffer values = ByteBuffer.wrap(payload);
+
+                while (values.remaining() >= 8) {
+                    set.add(values.getLong());
+                }
+            });
+
+            contexts.replay((type, payload, offset) -> {
+                if (type != CONTEXT) {
+                    throw new IOException("Unexpected record type " + type + " in " + contexts.file + ".");
+                }
+
+                ByteBuffer key = ByteBuffer.wrap(payload);
+                put(new Key(key.getLong(), key.getLong(), key.getLong()), new Location(offset + 24,
+                        payload.length - 24));
+            });
+        } catch (IOException e) {
+            ids.close();
+            contexts.close();
+            throw e;
+        }
+
+        compactor = Executors.newSingleThreadExecutor(ThreadFactories.platform("idea-store-compaction-"));
+
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("idea-store-sync-"));
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+
+        Metrics.gauge("idea_store_bytes", "Size of the embedded store's logs.", "log", "ids", ids::size);
+        Metrics.gauge("idea_store_bytes", "Size of the embedded store's logs.", "log", "contexts", contexts::size);
+    }
+
+    /**
+     * This method opens the store in a directory, creating it if needed, and logs what was found.
+     *
+     * @param directory directory holding the logs
+     * @param syncMillis milliseconds between timed fsyncs, or 0 to make every write wait for its fsync
+     * @param compactBytes garbage in the context log that has to be exceeded before it is compacted
+     * @return open store
+     * @throws IOException the store could not be opened
+     */
+    static EmbeddedStore open(Path directory, int syncMillis, long compactBytes) throws IOException {
+        Logger log = Logger.get();  // logging system (shared)
+        long start = System.nanoTime();
+        EmbeddedStore store = new EmbeddedStore(directory, syncMillis, compactBytes);
+
+        log.databaseStoreOpened(directory.toString(), store.users.size(), store.servers.size(), store.index.size(),
+                store.ids.dropped + store.contexts.dropped, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        return store;
+    }
+
+    /**
+     * This method adds every registered Discord user to a set.
+     *
+     * @param userList set to fill
+     */
+    void loadDiscordUsers(SnowflakeSet userList) {
+        userList.ensureCapacity(userList.size() + users.size());
+        users.forEach(userList::add);
+    }
+
+    /**
+     * This method adds every registered Discord server to a set.
+     *
+     * @param serverList set to fill
+     */
+    void loadDiscordServers(SnowflakeSet serverList) {
+        serverList.ensureCapacity(serverList.size() + servers.size());
+        servers.forEach(serverList::add);
+    }
+
+    /**
+     * This method registers a batch of Discord users and a batch of Discord servers. The new ones are appended to the
+     * ID log in one write, and the call returns once that write is durable (or, with timed syncs, right away).
+     * Registering is idempotent: exactly one caller is told that an ID was newly created.
+     *
+     * @param userBatch Discord user identification strings (may be empty)
+     * @param serverBatch Discord server identification strings (may be empty)
+     * @return two lists: the users and the servers this call created (the others already existed)
+     * @throws SQLException an identification string is not a snowflake, or the log could not be written
+     */
+    List<List<String>> registerDiscord(List<String> userBatch, List<String> serverBatch) throws SQLException {
+        long start = System.nanoTime();
+        long[] userIds = parse(userBatch);
+        long[] serverIds = parse(serverBatch);
+        List<String> createdUsers = new ArrayList<>();
+        List<String> createdServers = new ArrayList<>();
+        long target;
+
+        try {
+            ids.lock.writeLock().lock();
+
+            try {
+                ByteBuffer userRecord = fresh(users, userIds, userBatch, createdUsers);
+                ByteBuffer serverRecord = fresh(servers, serverIds, serverBatch, createdServers);
+
+                if (createdUsers.isEmpty() && createdServers.isEmpty()) {
+                    return Arrays.asList(createdUsers, createdServers);
+                }
+
+                ids.append(USERS, userRecord);
+                ids.append(SERVERS, serverRecord);
+
+                // Only remembered once appended, so a failed write leaves nothing half-registered behind.
+                for (String user : createdUsers) {
+                    users.add(Long.parseUnsignedLong(user));
+                }
+
+                for (String server : createdServers) {
+                    servers.add(Long.parseUnsignedLong(server));
+                }
+
+                target = ids.appended;
+            } finally {
+                ids.lock.writeLock().unlock();
+            }
+
+            durable(ids, target);
+        } catch (IOException e) {
+            throw new SQLException("The embedded store could not register the batch.", e);
+        } finally {
+            REGISTER_BOTH.observeSince(start);
+        }
+
+        return Arrays.asList(createdUsers, createdServers);
+    }
+
+    /**
+     * This method saves (or replaces) the serialized context of a conversation that was evicted from memory.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @param context serialized conversation context
+     * @throws IOException the context log could not be written
+     */
+    void saveConversationContext(long guild, long channel, long user, String context) throws IOException {
+        long start = System.nanoTime();
+        byte[] text = context.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(24 + text.length);
+        payload.putLong(guild).putLong(channel).putLong(user).put(text).flip();
+
+        long target;
+        boolean compact;
+
+        try {
+            contexts.lock.writeLock().lock();
+
+            try {
+                long offset = contexts.append(CONTEXT, payload);
+
+                put(new Key(guild, channel, user), new Location(offset + 24, text.length));
+                target = contexts.appended;
+                compact = garbageBytes > compactBytes && garbageBytes > liveBytes;
+            } finally {
+                contexts.lock.writeLock().unlock();
+            }
+
+            durable(contexts, target);
+        } finally {
+            SAVE_CONTEXT.observeSince(start);
+        }
+
+        if (compact && compacting.compareAndSet(false, true)) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * This method loads the serialized context of a conversation that was previously evicted from memory.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @return serialized conversation context, or null if none was saved
+     * @throws IOException the context log could not be read
+     */
+    String loadConversationContext(long guild, long channel, long user) throws IOException {
+        long start = System.nanoTime();
+
+        contexts.lock.readLock().lock();
+
+        try {
+            Location location = index.get(new Key(guild, channel, user));
+
+            return location == null ? null : new String(contexts.read(location.offset, location.length),
+                    StandardCharsets.UTF_8);
+        } finally {
+            contexts.lock.readLock().unlock();
+            LOAD_CONTEXT.observeSince(start);
+        }
+    }
+
+    /**
+     * This method stops the background threads, makes everything written so far durable and closes both logs.
+     */
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+
+        compactor.shutdown();
+
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        syncQuietly();
+        ids.close();
+        contexts.close();
+    }
+
+    /**
+     * This method indexes a context record, counting the copy it replaces (if any) as garbage.
+     *
+     * @param key conversation
+     * @param location position of the context in the log
+     */
+    private void put(Key key, Location location) {
+        Location replaced = index.put(key, location);
+
+        liveBytes += location.length + 24 + RECORD_OVERHEAD;
+
+        if (replaced != null) {
+            liveBytes -= replaced.length + 24 + RECORD_OVERHEAD;
+            garbageBytes += replaced.length + 24 + RECORD_OVERHEAD;
+        }
+    }
+
+    /**
+     * This method collects the ID's of a batch that are not registered yet (each only once) into a record payload.
+     * It must be called while holding the ID log's write lock.
+     *
+     * @param set registered ID's
+     * @param values parsed ID's of the batch
+     * @param batch identification strings of the batch
+     * @param created receives the identification strings that will be created
+     * @return record payload of the new ID's
+     */
+    private static ByteBuffer fresh(SnowflakeSet set, long[] values, List<String> batch, List<String> created) {
+        ByteBuffer payload = ByteBuffer.allocate(values.length * 8);
+        SnowflakeSet seen = new SnowflakeSet(values.length);
+
+        for (int i = 0; i < values.length; i++) {
+            if (!set.contains(values[i]) && seen.add(values[i])) {
+                payload.putLong(values[i]);
+                created.add(batch.get(i));
+            }
+        }
+
+        payload.flip();
+
+        return payload;
+    }
+
+    /**
+     * This method parses a batch of identification strings.
+     *
+     * @param batch identification strings
+     * @return snowflake ID's
+     * @throws SQLException an identification string is not a snowflake
+     */
+    private static long[] parse(List<String> batch) throws SQLException {
+        long[] values = new long[batch.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = Long.parseUnsignedLong(batch.get(i));
+            } catch (NumberFormatException e) {
+                throw new SQLException("Not a snowflake ID: " + batch.get(i), e);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * This method waits until a log is durable up to a point, unless the logs are synced on a timer.
+     *
+     * @param log log that was appended to
+     * @param target logical position the caller's write ended at
+     * @throws IOException the log could not be synced
+     */
+    private void durable(Log log, long target) throws IOException {
+        if (syncMillis == 0) {
+            log.sync(target);
+        }
+    }
+
+    /**
+     * This method syncs both logs, reporting (rather than throwing) any failure since it runs in the background.
+     */
+    private void syncQuietly() {
+        for (Log log : new Log[] { ids, contexts }) {
+            try {
+                log.sync(log.appendedSoFar());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * This method rewrites the context log with only the live contexts. The new file is written and synced next to the
+     * old one and then moved over it, so a crash leaves either the old or the new log behind. Saving and loading
+     * contexts waits while this runs.
+     */
+    private void compact() {
+        long start = System.nanoTime();
+        Path temporary = null;
+
+        contexts.lock.writeLock().lock();
+
+        try {
+            long before = contexts.size();
+            Map<Key, Location> moved = new HashMap<>(index.size() * 2);
+            long position = HEADER_BYTES;
+
+            temporary = Files.createTempFile(directory, "contexts.log", ".tmp");
+
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                Log.writeFully(out, Log.header(), 0);
+
+                for (Map.Entry<Key, Location> entry : index.entrySet()) {
+                    Key key = entry.getKey();
+                    byte[] text = contexts.read(entry.getValue().offset, entry.getValue().length);
+                    ByteBuffer payload = ByteBuffer.allocate(24 + text.length);
+                    payload.putLong(key.guild).putLong(key.channel).putLong(key.user).put(text).flip();
+
+                    ByteBuffer record = Log.record(CONTEXT, payload);
+                    int length = record.remaining();
+
+                    Log.writeFully(out, record, position);
+                    moved.put(key, new Location(position + 5 + 24, text.length));
+                    position += length;
+                }
+
+                out.force(true);
+            }
+
+            contexts.replace(temporary, position);
+            index.putAll(moved);
+            liveBytes = position - HEADER_BYTES;
+            garbageBytes = 0;
+            COMPACTIONS.increment();
+
+            Logger.get().databaseStoreCompacted(contexts.file.toString(), before, position,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            e.printStackTrace();  // the old log is still in place and keeps being used
+        } finally {
+            contexts.lock.writeLock().unlock();
+            compacting.set(false);
+
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * This method returns the latency histogram of a database call.
+     *
+     * @param method name of the method making the call
+     * @return latency histogram
+     */
+    private static Histogram call(String method) {
+        return Metrics.histogram("idea_database_call_seconds", "Latency of database calls, including borrowing a "
+                + "connection.", "method", method);
+    }
+
+    /**
+     * The Log class is one append-only file of checksummed records. Appends and swapping the file (compaction) take
+     * the write lock, positional reads the read lock, and fsyncs run without the lock so that appends continue while
+     * the disk catches up. Positions handed to sync() are logical (bytes ever appended), so they stay comparable after
+     * the file has been compacted.
+     */
+    private static final class Log {
+        private final Path file;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private FileChannel channel;  // guarded by the lock
+        private long end;  // guarded by the lock, physical end of the file
+        private long appended = 0;  // guarded by the lock, bytes ever appended
+        private long dropped = 0;  // bytes of a torn record cut off while opening
+
+        private long synced = 0;  // guarded by this, bytes ever appended that are known to be durable
+        private boolean syncing = false;  // guarded by this
+
+        /**
+         * The Log constructor opens (or creates) a log file and checks its header.
+         *
+         * @param file log file
+         * @throws IOException the file could not be opened or is not an IDEA store log
+         */
+        private Log(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+
+            try {
+                if (channel.size() < HEADER_BYTES) {
+                    channel.truncate(0);
+                    writeFully(channel, header(), 0);
+                    channel.force(true);
+                } else {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+                    while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                        // keep reading until the header is complete
+                    }
+
+                    header.flip();
+
+                    if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                        throw new IOException(file + " is not an IDEA store log (or was written by another version).");
+                    }
+                }
+
+                end = HEADER_BYTES;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * This method reads every record of the log in order. The log is cut off at the first record that is
+         * incomplete or fails its checksum, since that can only be a write the process did not live to finish.
+         *
+         * @param replay receives every intact record
+         * @throws IOException the log could not be read
+         */
+        private void replay(Replay replay) throws IOException {
+            long size = channel.size();
+            long position = HEADER_BYTES;
+            CRC32 crc = new CRC32();
+
+            channel.position(HEADER_BYTES);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                    1 << 16));
+
+            while (position < size) {
+                try {
+                    int length = in.readInt();
+
+                    if (length < 0 || length > MAX_PAYLOAD || position + RECORD_OVERHEAD + length > size) {
+                        break;
+                    }
+
+                    byte type = in.readByte();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    int checksum = in.readInt();
+
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload);
+
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+
+                    replay.record(type, payload, position + 5);
+                    position += RECORD_OVERHEAD + length;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+
+            if (position < size) {
+                dropped = size - position;
+                channel.truncate(position);
+                channel.force(true);
+            }
+
+            end = position;
+        }
+
+        /**
+         * This method appends a record. It must be called while holding the write lock, and the record is not durable
+         * until sync() has been called for the logical position it ended at.
+         *
+         * @param type record type
+         * @param payload record payload (an empty payload appends nothing)
+         * @return position of the payload in the file
+         * @throws IOException the record could not be written
+         */
+        private long append(byte type, ByteBuffer payload) throws IOException {
+            if (!payload.hasRemaining()) {
+                return end;
+            }
+
+            ByteBuffer record = record(type, payload);
+            int length = record.remaining();
+            long offset = end + 5;
+
+            writeFully(channel, record, end);
+            end += length;
+            appended += length;
+
+            return offset;
+        }
+
+        /**
+         * This method reads part of the log. It must be called while holding the read (or write) lock.
+         *
+         * @param offset position in the file
+         * @param length number of bytes
+         * @return bytes read
+         * @throws IOException the log could not be read
+         */
+        private byte[] read(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("The record at " + offset + " of " + file + " is cut off.");
+                }
+            }
+
+            return buffer.array();
+        }
+
+        /**
+         * This method makes the log durable up to a logical position. Only one fsync runs at a time; callers arriving
+         * meanwhile wait for the next one, which then covers all of them (group commit).
+         *
+         * @param target logical position that has to be durable
+         * @throws IOException the log could not be synced
+         */
+        private void sync(long target) throws IOException {
+            synchronized (this) {
+                while (syncing && synced < target) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for " + file + " to be synced.");
+                    }
+                }
+
+                if (synced >= target) {
+                    return;
+                }
+
+                syncing = true;
+            }
+
+            FileChannel forcing;
+            long reached;
+            boolean done = false;
+
+            lock.readLock().lock();
+
+            try {
+                forcing = channel;
+                reached = appended;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            try {
+                forcing.force(false);
+                SYNCS.increment();
+                done = true;
+            } catch (ClosedChannelException e) {
+                lock.readLock().lock();
+
+                try {
+                    if (forcing == channel) {
+                        throw e;  // the store was closed
+                    }
+
+                    done = true;  // compaction swapped the file, and the new file was synced before the swap
+                } finally {
+                    lock.readLock().unlock();
+                }
+            } finally {
+                synchronized (this) {
+                    syncing = false;
+
+                    if (done) {
+                        synced = Math.max(synced, reached);
+                    }
+
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * This method returns the logical position of everything appended so far.
+         *
+         * @return bytes ever appended
+         */
+        private long appendedSoFar() {
+            lock.readLock().lock();
+
+            try {
+                return appended;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * This method moves a compacted (and already synced) file over the log and continues appending to it. It must
+         * be called while holding the write lock.
+         *
+         * @param compacted compacted copy of the log
+         * @param size size of the compacted copy
+         * @throws IOException the file could not be moved or opened
+         */
+        private void replace(Path compacted, long size) throws IOException {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            FileChannel old = channel;
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            end = size;
+            old.close();
+
+            synchronized (this) {
+                synced = Math.max(synced, appended);  // everything live is in the synced copy
+                notifyAll();
+            }
+        }
+
+        /**
+         * This method returns the size of the log file.
+         *
+         * @return size in bytes
+         */
+        private long size() {
+            lock.readLock().lock();
+
+            try {
+                return end;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * This method closes the log file.
+         */
+        private void close() {
+            lock.writeLock().lock();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * This method returns the header every log file starts with.
+         *
+         * @return header bytes
+         */
+        private static ByteBuffer header() {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(MAGIC).putInt(VERSION).putInt(0).flip();
+
+            return header;
+        }
+
+        /**
+         * This method frames a payload as a record.
+         *
+         * @param type record type
+         * @param payload record payload
+         * @return record bytes
+         */
+        private static ByteBuffer record(byte type, ByteBuffer payload) {
+            int length = payload.remaining();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + length);
+            CRC32 crc = new CRC32();
+
+            record.putInt(length).put(type).put(payload.duplicate());
+            crc.update(type);
+            crc.update(record.array(), 5, length);
+            record.putInt((int) crc.getValue()).flip();
+
+            return record;
+        }
+
+        /**
+         * This method writes a buffer at a position of a file.
+         *
+         * @param channel file
+         * @param buffer bytes to write
+         * @param position position in the file
+         * @throws IOException the file could not be written
+         */
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            long at = position;
+
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+    }
+
+    /**
+     * The Replay interface receives the records of a log while it is opened.
+     */
+    private interface Replay {
+        /**
+         * This method handles one intact record.
+         *
+         * @param type record type
+         * @param payload record payload
+         * @param offset position of the payload in the file
+         * @throws IOException the record does not belong in this log
+         */
+        void record(byte type, byte[] payload, long offset) throws IOException;
+    }
+
+    /**
+     * The Key class identifies a conversation (server, channel and user).
+     */
+    private static final class Key {
+        private final long guild;
+        private final long channel;
+        private final long user;
+
+        private Key(long guild, long channel, long user) {
+            this.guild = guild;
+            this.channel = channel;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+
+            return guild == key.guild && channel == key.channel && user == key.user;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(guild) * 961 + Long.hashCode(channel) * 31 + Long.hashCode(user);
+        }
+    }
+
+    /**
+     * The Location class is the position of a saved context in the context log.
+     */
+    private static final class Location {
+        private final long offset;
+        private final int length;
+
+        private Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
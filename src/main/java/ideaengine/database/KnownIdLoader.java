@@ -0,0 +1,353 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.logging.Logger;
+import ideaengine.util.SnowflakeSet;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * The KnownIdLoader class warms up an in-memory SnowflakeSet from a table of identification strings. Rows are streamed
+ * through a server-side cursor (autocommit off plus a fetch size) so that memory stays bounded no matter how large the
+ * table is, and the table can be split into key ranges that are loaded in parallel over separate pooled connections.
+ * Key ranges come from the column's equi-depth histogram in pg_stats, so each range holds roughly the same number of
+ * rows and is read through the primary key index.
+ *
+ * <dl>
+ *     <dt><span class="strong">KnownIdLoader()</span></dt><dd>Constructor that records the warm-up settings.</dd>
+ *     <dt><span class="strong">long load()</span></dt><dd>Loads every ID in a table into a SnowflakeSet (or sink).</dd>
+ * </dl>
+ */
+class KnownIdLoader {
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+    private final DatabaseADT database;
+    private final int fetchSize;
+    private final int partitions;
+
+    /**
+     * The KnownIdLoader constructor records how rows should be streamed and how many key ranges to load in parallel.
+     *
+     * @param database database whose (pooled) connections are used
+     * @param fetchSize number of rows fetched from the cursor per round trip
+     * @param partitions number of key ranges to load in parallel (1 streams the whole table over one connection)
+     */
+    KnownIdLoader(DatabaseADT database, int fetchSize, int partitions) {
+        this.database = database;
+        this.fetchSize = Math.max(1, fetchSize);
+        this.partitions = Math.max(1, Math.min(partitions, database.getPoolMax()));
+    }
+
+    /**
+     * This method loads every identification string of a table into a SnowflakeSet, logging the progress (in rows per
+     * second) while it runs.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param ids set to load the identification strings into
+     * @return number of rows loaded
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException one of the key ranges could not be loaded
+     */
+    long load(String table, String column, SnowflakeSet ids) throws IOException, SQLException {
+        return load(table, column, ids, ids::add);
+    }
+
+    /**
+     * This method streams every identification string of a table into a sink (e.g. a Bloom filter) rather than a set,
+     * logging the progress (in rows per second) while it runs. The sink may be called from several threads at once.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param sink receives every identification string
+     * @return number of rows loaded
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException one of the key ranges could not be loaded
+     */
+    long load(String table, String column, LongConsumer sink) throws IOException, SQLException {
+        return load(table, column, null, sink);
+    }
+
+    /**
+     * This method streams every identification string of a table into a sink, pre-sizing the set the sink adds to.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param ids set to pre-size from the planner's row estimate, or null
+     * @param sink receives every identification string
+     * @return number of rows loaded
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException one of the key ranges could not be loaded
+     */
+    private long load(String table, String column, SnowflakeSet ids, LongConsumer sink)
+            throws IOException, SQLException {
+        final Logger log = Logger.get();  // logging system (shared)
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final long start = System.nanoTime();
+
+        List<String> bounds = new ArrayList<>();
+        planPartitions(table, column, ids, bounds);
+
+        ScheduledExecutorService progress =
+                Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("idea-warm-up-progress-"));
+        AtomicLong reported = new AtomicLong();
+
+        progress.scheduleAtFixedRate(() -> {
+            long loaded = rows.get();
+
+            try {
+                log.databaseWarmUp(table, loaded, (loaded - reported.getAndSet(loaded)) / PROGRESS_INTERVAL_SECONDS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        try {
+            if (bounds.isEmpty()) {
+                loadRange(table, column, null, null, sink, rows, skipped, log);
+            } else {
+                loadRanges(table, column, bounds, sink, rows, skipped, log);
+            }
+        } finally {
+            progress.shutdownNow();
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.databaseWarmedUp(table, rows.get(), skipped.get(), millis);
+
+        return rows.get();
+    }
+
+    /**
+     * This method pre-sizes the set from the planner's row estimate and, if more than one partition was requested,
+     * looks up the key range boundaries. No boundaries means the table is loaded in one pass.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param ids set that is about to be loaded, or null if there is nothing to pre-size
+     * @param bounds list that receives the (sorted) boundaries between key ranges
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the statistics could not be read
+     */
+    private void planPartitions(String table, String column, SnowflakeSet ids, List<String> bounds)
+            throws IOException, SQLException {
+        Logger log = Logger.get();  // logging system (shared)
+
+        try (Connection conn = database.getConnection()) {
+            log.databaseConnected();
+
+            try {
+                try (PreparedStatement estimate = conn.prepareStatement(
+                        "SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(?)")) {
+                    estimate.setString(1, table);
+
+                    try (ResultSet rSet = estimate.executeQuery()) {
+                        if (ids != null && rSet.next() && rSet.getLong(1) > 0) {
+                            ids.ensureCapacity((int) Math.min(Integer.MAX_VALUE / 2, ids.size() + rSet.getLong(1)));
+                        }
+                    }
+                }
+
+                if (partitions > 1) {
+                    findBounds(conn, table, column, bounds);
+                }
+            } finally {
+                log.databaseDisconnect();
+            }
+        }
+    }
+
+    /**
+     * This method picks evenly spaced values from the column's equi-depth histogram as key range boundaries, so that
+     * every range holds about the same number of rows. Tables that were never analyzed have no histogram and are then
+     * loaded in a single pass. Only the statistics of the table in the current schema are used, since a table of the
+     * same name in another schema has a histogram of its own.
+     *
+     * @param conn open database connection
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param bounds list that receives the (sorted) boundaries between key ranges
+     * @throws SQLException the statistics could not be read
+     */
+    private void findBounds(Connection conn, String table, String column, List<String> bounds) throws SQLException {
+        try (PreparedStatement histogram = conn.prepareStatement(
+                "SELECT histogram_bounds::text::text[] FROM pg_stats "
+                        + "WHERE schemaname = current_schema() AND tablename = ? AND attname = ?")) {
+            histogram.setString(1, table);
+            histogram.setString(2, column);
+
+            try (ResultSet rSet = histogram.executeQuery()) {
+                Array array = rSet.next() ? rSet.getArray(1) : null;
+
+                if (array == null) {
+                    return;
+                }
+
+                String[] values = (String[]) array.getArray();
+
+                for (int i = 1; i < partitions && values.length > partitions; i++) {
+                    String bound = values[i * values.length / partitions];
+
+                    if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) {
+                        bounds.add(bound);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method loads the key ranges between consecutive boundaries in parallel, one pooled connection per range.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param bounds sorted boundaries between key ranges
+     * @param sink receives every identification string
+     * @param rows running count of loaded rows
+     * @param skipped running count of malformed rows that were skipped
+     * @param log logging system
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException one of the key ranges could not be loaded
+     */
+    private void loadRanges(String table, String column, List<String> bounds, LongConsumer sink, AtomicLong rows,
+                            AtomicLong skipped, Logger log) throws IOException, SQLException {
+        ExecutorService workers =
+                Executors.newFixedThreadPool(bounds.size() + 1, ThreadFactories.platform("idea-warm-up-"));
+        List<Future<Void>> ranges = new ArrayList<>();
+
+        for (int i = 0; i <= bounds.size(); i++) {
+            final String from = i == 0 ? null : bounds.get(i - 1);
+            final String to = i == bounds.size() ? null : bounds.get(i);
+
+            ranges.add(workers.submit(() -> {
+                loadRange(table, column, from, to, sink, rows, skipped, log);
+                return null;
+            }));
+        }
+
+        workers.shutdown();
+
+        try {
+            for (Future<Void> range : ranges) {
+                range.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading the " + table + " table.", e);
+        } catch (ExecutionException e) {
+            workers.shutdownNow();
+
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new SQLException("Unable to load the " + table + " table.", e.getCause());
+        }
+    }
+
+    /**
+     * This method streams one key range (from inclusive, to exclusive; null means unbounded) into the set through a
+     * server-side cursor. Rows that do not hold a valid identification string are skipped (and counted) rather than
+     * failing the whole warm-up, the same as KnownIdSync does.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param from lowest identification string in the range, or null
+     * @param to identification string just past the range, or null
+     * @param sink receives every identification string
+     * @param rows running count of loaded rows
+     * @param skipped running count of malformed rows that were skipped
+     * @param log logging system
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the range could not be loaded
+     */
+    private void loadRange(String table, String column, String from, String to, LongConsumer sink, AtomicLong rows,
+                           AtomicLong skipped, Logger log) throws IOException, SQLException {
+        String sql = "SELECT " + column + " FROM " + table
+                + (from == null && to == null ? "" : " WHERE ")
+                + (from == null ? "" : column + " >= ?")
+                + (from != null && to != null ? " AND " : "")
+                + (to == null ? "" : column + " < ?");
+
+        try (Connection conn = database.getConnection()) {
+            log.databaseConnected();
+
+            // The PostgreSQL driver only uses a cursor (instead of reading every row up front) inside a transaction.
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                int parameter = 1;
+
+                if (from != null) {
+                    stmt.setString(parameter++, from);
+                }
+
+                if (to != null) {
+                    stmt.setString(parameter, to);
+                }
+
+                stmt.setFetchSize(fetchSize);
+
+                try (ResultSet rSet = stmt.executeQuery()) {
+                    long loaded = 0;
+
+                    while (rSet.next()) {
+                        long id;
+
+                        try {
+                            id = Long.parseUnsignedLong(rSet.getString(1));
+                        } catch (NumberFormatException e) {
+                            skipped.incrementAndGet();  // reported once the warm-up is done
+                            continue;
+                        }
+
+                        sink.accept(id);
+
+                        if ((++loaded & 1023) == 0) {
+                            rows.addAndGet(1024);  // publish progress in chunks to keep partitions from contending
+                        }
+                    }
+
+                    rows.addAndGet(loaded & 1023);
+                }
+
+                conn.commit();
+            } finally {
+                log.databaseDisconnect();  // the pool rolls back anything left open when the connection returns
+            }
+        }
+    }
+}
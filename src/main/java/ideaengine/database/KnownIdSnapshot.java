@@ -0,0 +1,433 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.logging.Logger;
+import ideaengine.util.SnowflakeSet;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The KnownIdSnapshot class keeps a local copy of a table's known ID's so that startup does not have to read the whole
+ * table. The file holds the ID's sorted and delta-encoded as variable-length integers (a few bytes per snowflake), a
+ * CRC32 checksum, and the table's high-water mark (its highest seq) at the time the copy was complete. At startup the
+ * file is read and decoded, and only the rows above the mark are read from the database. A missing, damaged or
+ * outdated file simply falls back to a full load, after which a fresh snapshot is written.
+ *
+ * <p>File layout (big-endian): magic, version, reserved, high-water mark, ID count, payload length, payload CRC32,
+ * followed by the payload of unsigned LEB128 deltas between consecutive sorted ID's.</p>
+ *
+ * <dl>
+ *     <dt><span class="strong">KnownIdSnapshot()</span></dt><dd>Constructor that records the table and file.</dd>
+ *     <dt><span class="strong">long restore()</span></dt><dd>Loads the snapshot and catches up with the table.</dd>
+ *     <dt><span class="strong">void save()</span></dt><dd>Catches up with the table and rewrites the snapshot.</dd>
+ *     <dt><span class="strong">long getMark()</span></dt><dd>Returns the mark the set is complete up to.</dd>
+ *     <dt><span class="strong">void keep()</span></dt><dd>Saves the snapshot periodically from now on.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Saves every kept snapshot one last time.</dd>
+ * </dl>
+ */
+class KnownIdSnapshot {
+    private static final long MAGIC = 0x49444541534E4150L;  // "IDEASNAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 48;
+
+    private static final CopyOnWriteArrayList<KnownIdSnapshot> kept = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService saver = null;
+
+    private final DatabaseADT database;
+    private final Path file;
+    private final String table;
+    private final String column;
+    private final SnowflakeSet ids;
+
+    private volatile long mark = 0;  // every row up to here (minus the catch-up window) is in the set
+
+    /**
+     * The KnownIdSnapshot constructor records which table is kept in which file. Nothing is read or written yet.
+     *
+     * @param database database whose (pooled) connections are used to catch up
+     * @param file snapshot file
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param ids set the snapshot is loaded into and saved from
+     */
+    KnownIdSnapshot(DatabaseADT database, Path file, String table, String column, SnowflakeSet ids) {
+        this.database = database;
+        this.file = file;
+        this.table = table;
+        this.column = column;
+        this.ids = ids;
+    }
+
+    /**
+     * This method fills the set from the snapshot file and then reads only the rows that are newer than the snapshot.
+     * Without a usable snapshot the whole table is loaded instead, and a snapshot is written for the next start.
+     *
+     * @param loader loads the whole table when there is no usable snapshot
+     * @return number of ID's in the set
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the table has no seq column or could not be read
+     */
+    long restore(KnownIdLoader loader) throws IOException, SQLException {
+        Logger log = Logger.get();  // logging system (shared)
+        long start = System.nanoTime();
+        long restored = read();
+
+        if (restored < 0) {
+            // Take the mark before loading, so rows inserted during the load are caught up afterwards.
+            try (Connection conn = database.getConnection()) {
+                mark = highWaterMark(conn);
+            }
+
+            loader.load(table, column, ids);
+        } else {
+            mark = restored;
+        }
+
+        long before = ids.size();
+        catchUp();
+
+        log.databaseSnapshotLoaded(table, ids.size(), ids.size() - before,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (restored < 0) {
+            saveQuietly();  // the set is loaded either way, a failed save only means the next start is slow again
+        }
+
+        return ids.size();
+    }
+
+    /**
+     * This method reads the rows that are newer than the high-water mark and then rewrites the snapshot file. The file
+     * is written next to the old one and moved over it, so a crash never leaves a half-written snapshot behind.
+     *
+     * @throws IOException the snapshot could not be written
+     * @throws SQLException the newer rows could not be read
+     */
+    synchronized void save() throws IOException, SQLException {
+        Logger log = Logger.get();  // logging system (shared)
+        long start = System.nanoTime();
+
+        catchUp();
+
+        long complete = mark;
+        long[] values = ids.toArray();
+        Arrays.sort(values);
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+
+        try {
+            long bytes = write(temporary, values, complete);
+
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.databaseSnapshotSaved(table, values.length, bytes,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * This method returns the high-water mark (highest seq) of the table that the set is known to be complete up to.
+     *
+     * @return high-water mark
+     */
+    long getMark() {
+        return mark;
+    }
+
+    /**
+     * This method saves the snapshot every so often from now on, and once more while the engine shuts down. Calling it
+     * again for the same snapshot does nothing.
+     *
+     * @param minutes minutes between saves
+     */
+    void keep(long minutes) {
+        if (!kept.addIfAbsent(this)) {
+            return;
+        }
+
+        synchronized (KnownIdSnapshot.class) {
+            if (saver == null) {
+                saver = Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("idea-known-id-snapshot-"));
+            }
+
+            saver.scheduleWithFixedDelay(this::saveQuietly, minutes, minutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * This method stops the periodic saves and saves every kept snapshot one last time. It must run before the
+     * connection pool is closed.
+     */
+    static void shutdown() {
+        ScheduledExecutorService stopping;
+
+        synchronized (KnownIdSnapshot.class) {
+            stopping = saver;
+            saver = null;
+        }
+
+        if (stopping == null) {
+            return;
+        }
+
+        stopping.shutdownNow();
+
+        try {
+            stopping.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (KnownIdSnapshot snapshot : kept) {
+            snapshot.saveQuietly();
+        }
+
+        kept.clear();
+    }
+
+    /**
+     * This method saves the snapshot, reporting (rather than throwing) any failure since it runs in the background.
+     */
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method adds every row newer than (just below) the high-water mark to the set and moves the mark forward.
+     * Sequence numbers are handed out before commit, so the rows just below the mark are read again in case one of
+     * them committed late.
+     *
+     * @throws SQLException the rows could not be read
+     */
+    private void catchUp() throws SQLException {
+        long next = mark;
+
+        try (Connection conn = database.getConnection()) {
+            conn.setAutoCommit(false);  // stream through a cursor, as the KnownIdLoader does
+
+            try (PreparedStatement query = conn.prepareStatement(
+                    "SELECT seq, " + column + " FROM " + table + " WHERE seq > ? ORDER BY seq")) {
+                query.setLong(1, Math.max(0, mark - KnownIdSync.CATCH_UP_WINDOW));
+                query.setFetchSize(database.getWarmUpFetch());
+
+                try (ResultSet rSet = query.executeQuery()) {
+                    while (rSet.next()) {
+                        next = Math.max(next, rSet.getLong(1));
+                        ids.add(Long.parseUnsignedLong(rSet.getString(2)));
+                    }
+                }
+
+                conn.commit();
+            }
+        }
+
+        mark = next;
+    }
+
+    /**
+     * This method returns the highest sequence number of the table.
+     *
+     * @param conn open database connection
+     * @return highest sequence number (0 for an empty table)
+     * @throws SQLException the seq column could not be read
+     */
+    private long highWaterMark(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rSet = stmt.executeQuery("SELECT coalesce(max(seq), 0) FROM " + table)) {
+            return rSet.next() ? rSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * This method reads the snapshot file and decodes its ID's into the set. The file is read into the heap rather than
+     * memory-mapped, since a mapping would hold on to the file until it is garbage collected and keep save() from
+     * moving a new snapshot over it on some platforms.
+     *
+     * @return high-water mark of the snapshot, or -1 if there is no usable snapshot
+     */
+    long read() {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size < HEADER_BYTES) {
+                return -1;
+            }
+
+            if (size > Integer.MAX_VALUE) {
+                return -1;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return -1;  // the file shrank while we were reading it
+                }
+            }
+
+            buffer.flip();
+
+            long magic = buffer.getLong();
+            int version = buffer.getInt();
+            buffer.getInt();  // reserved
+            long snapshotMark = buffer.getLong();
+            long count = buffer.getLong();
+            long length = buffer.getLong();
+            long checksum = buffer.getLong();
+
+            if (magic != MAGIC || version != VERSION || length != size - HEADER_BYTES || count < 0
+                    || count > Integer.MAX_VALUE / 2) {
+                return -1;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+
+            if (crc.getValue() != checksum) {
+                return -1;
+            }
+
+            ids.ensureCapacity((int) (ids.size() + count));
+
+            long value = 0;
+
+            for (long i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+
+                do {
+                    b = buffer.get();
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                value += delta;
+                ids.add(value);
+            }
+
+            return snapshotMark;
+        } catch (NoSuchFileException e) {
+            return -1;  // first start, or snapshots were just enabled
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();  // damaged snapshot, fall back to a full load
+            return -1;
+        }
+    }
+
+    /**
+     * This method writes sorted ID's to a file in the snapshot format.
+     *
+     * @param path file to write
+     * @param values sorted ID's
+     * @param complete high-water mark the ID's are complete up to
+     * @return size of the file in bytes
+     * @throws IOException the file could not be written
+     */
+    static long write(Path path, long[] values, long complete) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            CRC32 crc = new CRC32();
+            long length = 0;
+            long previous = 0;
+
+            channel.position(HEADER_BYTES);
+
+            for (long value : values) {
+                if (buffer.remaining() < 10) {
+                    length += flush(channel, buffer, crc);
+                }
+
+                long delta = value - previous;
+                previous = value;
+
+                while ((delta & ~0x7FL) != 0) {
+                    buffer.put((byte) ((delta & 0x7F) | 0x80));
+                    delta >>>= 7;
+                }
+
+                buffer.put((byte) delta);
+            }
+
+            length += flush(channel, buffer, crc);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(MAGIC).putInt(VERSION).putInt(0).putLong(complete).putLong(values.length).putLong(length)
+                    .putLong(crc.getValue());
+            header.flip();
+
+            channel.position(0);
+
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            channel.force(true);
+
+            return HEADER_BYTES + length;
+        }
+    }
+
+    /**
+     * This method writes the buffered payload to the file and adds it to the checksum.
+     *
+     * @param channel snapshot file
+     * @param buffer buffered payload
+     * @param crc running payload checksum
+     * @return number of bytes written
+     * @throws IOException the file could not be written
+     */
+    private static int flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+
+        int written = buffer.remaining();
+        crc.update(buffer.duplicate());
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+
+        return written;
+    }
+}
@@ -0,0 +1,294 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.logging.Logger;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * The KnownIdSync class keeps the known user and server sets of several IDEA processes in sync. Every row inserted into
+ * discord_users or discord_servers (by any process) fires a PostgreSQL NOTIFY carrying the row's sequence number and
+ * ID, which every process LISTENs for on a dedicated connection and adds to its sets. The highest sequence number seen
+ * is remembered as a high-water mark, so after a lost connection the rows inserted in the meantime are caught up by
+ * query. See the README for the seq columns and triggers this relies on.
+ *
+ * <dl>
+ *     <dt><span class="strong">KnownIdSync()</span></dt><dd>Constructor that records the current high-water marks.</dd>
+ *     <dt><span class="strong">void start()</span></dt><dd>Starts listening on a background thread.</dd>
+ *     <dt><span class="strong">void stop()</span></dt><dd>Stops listening and closes the connection.</dd>
+ *     <dt><span class="strong">long getReceived()</span></dt><dd>Returns the number of ID's learned.</dd>
+ * </dl>
+ */
+public class KnownIdSync {
+    private static final String CHANNEL = "idea_known_ids";
+    private static final String USERS = "discord_users";
+    private static final String SERVERS = "discord_servers";
+
+    // Sequence numbers are handed out before commit, so a row may commit after a higher one has been seen. Catching up
+    // re-reads this many sequence numbers below the high-water mark to pick such rows up as well.
+    static final long CATCH_UP_WINDOW = 1000;
+    private static final int POLL_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final DBMS database;
+    private final LongPredicate users;
+    private final LongPredicate servers;
+
+    private volatile long userMark;
+    private volatile long serverMark;
+    private volatile long received = 0;
+    private volatile boolean running = false;
+    private volatile Connection listener = null;
+    private Thread thread = null;
+
+    /**
+     * The KnownIdSync constructor records the current high-water marks. It should be created before the known ID's
+     * are loaded, so that nothing inserted during the load is missed (ID's seen twice are harmless).
+     *
+     * @param database database to listen to
+     * @param users adds a user ID to the known users (e.g. SnowflakeSet.add), reporting whether it was new
+     * @param servers adds a server ID to the known servers, reporting whether it was new
+     * @throws SQLException the high-water marks could not be read (e.g. the seq columns are missing)
+     */
+    public KnownIdSync(DBMS database, LongPredicate users, LongPredicate servers) throws SQLException {
+        this.database = database;
+        this.users = users;
+        this.servers = servers;
+
+        try (Connection conn = database.getConnection()) {
+            userMark = highWaterMark(conn, USERS);
+            serverMark = highWaterMark(conn, SERVERS);
+        }
+    }
+
+    /**
+     * This method starts listening for new rows on a background thread, which reconnects (and catches up) whenever
+     * the connection is lost.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = ThreadFactories.platform("idea-known-id-sync-").newThread(this::listen);
+        thread.start();
+    }
+
+    /**
+     * This method stops listening and closes the dedicated connection.
+     */
+    public synchronized void stop() {
+        running = false;
+
+        if (thread != null) {
+            thread.interrupt();
+            closeListener();
+
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            thread = null;
+        }
+    }
+
+    /**
+     * This method returns the number of ID's learned from notifications and catch-up queries.
+     *
+     * @return received ID's
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * This method is the body of the background thread: connect, LISTEN, catch up, and then handle notifications until
+     * the connection fails, in which case it reconnects with an exponential backoff.
+     */
+    private void listen() {
+        long backoff = 1000;
+
+        while (running) {
+            try {
+                Logger log = Logger.get();  // logging system (shared)
+
+                // LISTEN needs a session of its own for as long as we listen, so it does not come from the pool.
+                listener = DriverManager.getConnection(database.getJDBC(), database.getRole(), database.getPass());
+                log.databaseConnected();
+
+                try (Statement stmt = listener.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+
+                catchUp(listener);
+                backoff = 1000;
+
+                PGConnection notifications = listener.unwrap(PGConnection.class);
+
+                while (running) {
+                    PGNotification[] batch = notifications.getNotifications(POLL_MILLIS);
+
+                    if (batch != null) {
+                        for (PGNotification notification : batch) {
+                            received(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException | IOException | RuntimeException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            } finally {
+                closeListener();
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;  // stopped
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * This method adds the ID's of every row inserted since (just below) the high-water marks.
+     *
+     * @param conn open database connection
+     * @throws SQLException the rows could not be read
+     */
+    private void catchUp(Connection conn) throws SQLException {
+        userMark = catchUp(conn, USERS, "user_id", users, userMark);
+        serverMark = catchUp(conn, SERVERS, "server_id", servers, serverMark);
+    }
+
+    /**
+     * This method adds the ID's of every row of a table inserted since (just below) a high-water mark.
+     *
+     * @param conn open database connection
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param ids adds an identification string to the known ones
+     * @param mark high-water mark
+     * @return new high-water mark
+     * @throws SQLException the rows could not be read
+     */
+    private long catchUp(Connection conn, String table, String column, LongPredicate ids, long mark)
+            throws SQLException {
+        try (PreparedStatement query = conn.prepareStatement(
+                "SELECT seq, " + column + " FROM " + table + " WHERE seq > ? ORDER BY seq")) {
+            query.setLong(1, Math.max(0, mark - CATCH_UP_WINDOW));
+            query.setFetchSize(10000);
+
+            try (ResultSet rSet = query.executeQuery()) {
+                while (rSet.next()) {
+                    mark = Math.max(mark, rSet.getLong(1));
+
+                    try {
+                        if (ids.test(Long.parseUnsignedLong(rSet.getString(2)))) {
+                            received++;
+                        }
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();  // skip the malformed row instead of failing every catch-up from now on
+                    }
+                }
+            }
+        }
+
+        return mark;
+    }
+
+    /**
+     * This method handles a notification, whose payload is "table:seq:id".
+     *
+     * @param payload notification payload
+     */
+    private void received(String payload) {
+        int first = payload.indexOf(':');
+        int second = payload.indexOf(':', first + 1);
+
+        if (first < 0 || second < 0) {
+            return;
+        }
+
+        try {
+            String table = payload.substring(0, first);
+            long seq = Long.parseLong(payload.substring(first + 1, second));
+            long id = Long.parseUnsignedLong(payload.substring(second + 1));
+
+            if (table.equals(USERS)) {
+                userMark = Math.max(userMark, seq);
+
+                if (users.test(id)) {
+                    received++;
+                }
+            } else if (table.equals(SERVERS)) {
+                serverMark = Math.max(serverMark, seq);
+
+                if (servers.test(id)) {
+                    received++;
+                }
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method returns the highest sequence number of a table.
+     *
+     * @param conn open database connection
+     * @param table name of table in database
+     * @return highest sequence number (0 for an empty table)
+     * @throws SQLException the seq column could not be read
+     */
+    private static long highWaterMark(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rSet = stmt.executeQuery("SELECT coalesce(max(seq), 0) FROM " + table)) {
+            return rSet.next() ? rSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * This method closes the dedicated connection (which also ends a wait for notifications).
+     */
+    private void closeListener() {
+        Connection closing = listener;
+        listener = null;
+
+        if (closing != null) {
+            try {
+                closing.close();
+            } catch (SQLException e) {
+                // Already broken, which is why it is being closed.
+            }
+        }
+    }
+}
@@ -14,15 +14,23 @@
 package ideaengine.database;
 
 import ideaengine.logging.Logger;
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Histogram;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.Settings;
+import ideaengine.util.SnowflakeSet;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * The PostgreSQL abstract class implements the DatabaseADT interface. This class loosely provides a working skeleton
@@ -34,16 +42,49 @@ import java.util.HashSet;
  *     <dt><span class="strong">void initializeDiscordServers()</span></dt><dd>Initializes known Discord servers.</dd>
  *     <dt><span class="strong">void insertDiscordUser()</span></dt><dd>Inserts a Discord user into the DB.</dd>
  *     <dt><span class="strong">void insertDiscordServer()</span></dt><dd>Inserts a Discord server into the DB.</dd>
+ *     <dt><span class="strong">int insertDiscordUsers()</span></dt><dd>Inserts a batch of Discord users.</dd>
+ *     <dt><span class="strong">int insertDiscordServers()</span></dt><dd>Inserts a batch of Discord servers.</dd>
+ *     <dt><span class="strong">boolean registerDiscordUser()</span></dt><dd>Idempotently registers a user.</dd>
+ *     <dt><span class="strong">boolean registerDiscordServer()</span></dt><dd>Idempotently registers a server.</dd>
+ *     <dt><span class="strong">List registerDiscordUsers()</span></dt><dd>Idempotently registers a user batch.</dd>
+ *     <dt><span class="strong">List registerDiscordServers()</span></dt><dd>Idempotently registers servers.</dd>
+ *     <dt><span class="strong">List registerDiscord()</span></dt><dd>Registers users and servers in one trip.</dd>
+ *     <dt><span class="strong">boolean saveConversationContext()</span></dt><dd>Saves an evicted context.</dd>
+ *     <dt><span class="strong">String loadConversationContext()</span></dt><dd>Loads an evicted context.</dd>
+ *     <dt><span class="strong">boolean isEmbedded()</span></dt><dd>Returns the BACKEND from the interface class.</dd>
+ *     <dt><span class="strong">String getStore()</span></dt><dd>Returns the STORE from the interface class.</dd>
+ *     <dt><span class="strong">int getStoreSync()</span></dt><dd>Returns the STORE_SYNC from the interface class.</dd>
+ *     <dt><span class="strong">int getStoreCompact()</span></dt><dd>Returns the STORE_COMPACT setting.</dd>
  *     <dt><span class="strong">String getJDBC()</span></dt><dd>Returns the JDBC pathway from the interface class.</dd>
  *     <dt><span class="strong">String getRole()</span></dt><dd>Returns the ROLE from the interface class.</dd>
  *     <dt><span class="strong">String getPass()</span></dt><dd>Returns the PASS from the interface class.</dd>
+ *     <dt><span class="strong">int getPoolMin()</span></dt><dd>Returns the POOL_MIN from the interface class.</dd>
+ *     <dt><span class="strong">int getPoolMax()</span></dt><dd>Returns the POOL_MAX from the interface class.</dd>
+ *     <dt><span class="strong">int getPoolIdle()</span></dt><dd>Returns the POOL_IDLE from the interface class.</dd>
+ *     <dt><span class="strong">int getPoolWait()</span></dt><dd>Returns the POOL_WAIT from the interface class.</dd>
+ *     <dt><span class="strong">int getStatementCache()</span></dt><dd>Returns the STATEMENT_CACHE setting.</dd>
+ *     <dt><span class="strong">int getBatchSize()</span></dt><dd>Returns the BATCH_SIZE from the interface class.</dd>
+ *     <dt><span class="strong">int getBatchDelay()</span></dt><dd>Returns the BATCH_DELAY setting.</dd>
+ *     <dt><span class="strong">int getWarmUpFetch()</span></dt><dd>Returns the WARMUP_FETCH from the interface.</dd>
+ *     <dt><span class="strong">int getWarmUpPartitions()</span></dt><dd>Returns the WARMUP_PARTITIONS setting.</dd>
+ *     <dt><span class="strong">String getSnapshot()</span></dt><dd>Returns the SNAPSHOT from the interface class.</dd>
+ *     <dt><span class="strong">int getSnapshotInterval()</span></dt><dd>Returns the SNAPSHOT_INTERVAL setting.</dd>
+ *     <dt><span class="strong">boolean isTiered()</span></dt><dd>Returns the MEMBERSHIP from the interface class.</dd>
+ *     <dt><span class="strong">int getFilterSize()</span></dt><dd>Returns the FILTER_SIZE setting.</dd>
+ *     <dt><span class="strong">int getFilterBits()</span></dt><dd>Returns the FILTER_BITS setting.</dd>
+ *     <dt><span class="strong">int getRecent()</span></dt><dd>Returns the RECENT from the interface class.</dd>
+ *     <dt><span class="strong">boolean isSync()</span></dt><dd>Returns the SYNC from the interface class.</dd>
  * </dl>
  */
 abstract class PostgreSQL implements DatabaseADT {
-    private Connection conn = null;
-    private Statement stmt = null;
-    private ResultSet rSet = null;
-    private PreparedStatement pStmt = null;
+    // Latency of every database call made on a hot path, labelled by method.
+    private static final Histogram REGISTER_USERS = call("registerDiscordUsers");
+    private static final Histogram REGISTER_SERVERS = call("registerDiscordServers");
+    private static final Histogram REGISTER_BOTH = call("registerDiscord");
+    private static final Histogram SAVE_CONTEXT = call("saveConversationContext");
+    private static final Histogram LOAD_CONTEXT = call("loadConversationContext");
+    private static final Counter SAVE_CONTEXT_ERRORS = error("saveConversationContext");
+    private static final Counter LOAD_CONTEXT_ERRORS = error("loadConversationContext");
 
     /**
      * This method will perform a quick initialization to determine if connecting to a PostgreSQL database is
@@ -52,201 +93,443 @@ abstract class PostgreSQL implements DatabaseADT {
      * @throws IOException logging system is not properly configured
      */
     public void initialization() throws IOException {
-        Logger log = new Logger(false);  // logging system
+        Logger log = Logger.get();  // logging system (shared)
 
-        try {
-            // Open the connection via the JDBC pathway (e.g. jdbc:postgresql://host:port/database).
-            conn = DriverManager.getConnection(getJDBC(), getRole(), getPass());
+        // Borrow a pooled connection opened via the JDBC pathway (e.g. jdbc:postgresql://host:port/database). Nothing
+        // is kept in fields, so a single instance can be shared by every thread.
+        try (Connection versionConn = getConnection(); Statement version = versionConn.createStatement()) {
+            version.execute("SELECT version()");  // closing the statement closes its result set
+            log.databaseFirstConnect();  // log the successful connection attempt
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
 
-            // Create statement.
-            stmt = conn.createStatement();
+        log.databaseDisconnect();  // the connection has been handed back to the pool
+    }
 
-            // Execute statement.
-            rSet = stmt.executeQuery("SELECT version()");
+    /**
+     * This method initializes the user list (via SnowflakeSet) by storing all known Discord user ID's from the Idea
+     * Network. Rows are streamed (and optionally loaded in parallel key ranges) by the KnownIdLoader, or restored from
+     * a local snapshot when snapshots are enabled (see KnownIdSnapshot).
+     *
+     * @param userList empty SnowflakeSet data structure
+     * @throws IOException logging system is not properly configured
+     */
+    public void initializeDiscordUsers(SnowflakeSet userList) throws IOException {
+        initializeKnownIds("discord_users", "user_id", userList);
+    }
 
-            log.databaseFirstConnect();  // log the successful connection attempt
-        }  catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                // Ensure that statements cannot be created.
-                if (stmt != null) {
-                    stmt.close();
-                    stmt = null;
-                }
+    /**
+     * This method initializes the server list (via SnowflakeSet) by storing all known Discord server ID's from the Idea
+     * Network. Rows are streamed (and optionally loaded in parallel key ranges) by the KnownIdLoader, or restored from
+     * a local snapshot when snapshots are enabled (see KnownIdSnapshot).
+     *
+     * @param serverList empty SnowflakeSet data structure
+     * @throws IOException logging system is not properly configured
+     */
+    public void initializeDiscordServers(SnowflakeSet serverList) throws IOException {
+        initializeKnownIds("discord_servers", "server_id", serverList);
+    }
 
-                // Ensure that statements cannot be executed.
-                if (rSet != null) {
-                    rSet.close();
-                    rSet = null;
-                }
+    /**
+     * This method loads every known identification string of a table. When snapshots are enabled, the set is restored
+     * from the table's snapshot file (only newer rows are read from the table) and the snapshot is kept up to date
+     * from then on; should that fail (e.g. the table has no seq column yet), the whole table is loaded instead.
+     *
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param ids empty SnowflakeSet data structure
+     * @throws IOException logging system is not properly configured
+     */
+    private void initializeKnownIds(String table, String column, SnowflakeSet ids) throws IOException {
+        KnownIdLoader loader = new KnownIdLoader(this, getWarmUpFetch(), getWarmUpPartitions());
 
-                // Ensure that the connection is closed.
-                if (conn != null) {
-                    conn.close();
-                    conn = null;
-                }
+        if (getSnapshot() != null) {
+            KnownIdSnapshot snapshot = new KnownIdSnapshot(this, Paths.get(getSnapshot(), table + ".snapshot"), table,
+                    column, ids);
 
-                log.databaseDisconnect();  // log the successful disconnection attempt
+            try {
+                snapshot.restore(loader);
+                snapshot.keep(getSnapshotInterval());
+                return;
             } catch (SQLException e) {
                 e.printStackTrace();
             }
         }
+
+        try {
+            loader.load(table, column, ids);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * This method initializes the user list (via HashSet) by storing all known Discord user ID's from the Idea Network.
+     * This method inserts a Discord user into the Idea Network. A user that already exists is left alone rather than
+     * causing a duplicate-key error.
      *
-     * @param userList empty HashSet data structure
+     * @param user Discord user identification string
      * @throws IOException logging system is not properly configured
      */
-    public void initializeDiscordUsers(HashSet<String> userList) throws IOException {
-        Logger log = new Logger(false);  // logging system
+    public void insertDiscordUser(String user) throws IOException {
+        try {
+            registerDiscordUser(user);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * This method inserts a Discord server into the Idea Network. A server that already exists is left alone rather
+     * than causing a duplicate-key error.
+     *
+     * @param server Discord user identification string
+     * @throws IOException logging system is not properly configured
+     */
+    public void insertDiscordServer(String server) throws IOException {
         try {
-            conn = DriverManager.getConnection(getJDBC(), getRole(), getPass());
-            log.databaseConnected();
+            registerDiscordServer(server);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-            stmt = conn.createStatement();
-            rSet = stmt.executeQuery("SELECT user_id FROM discord_users");
+    /**
+     * This method inserts a batch of Discord users into the Idea Network in a single statement. Users that already
+     * exist are skipped rather than failing the whole batch.
+     *
+     * @param users Discord user identification strings
+     * @return number of users that were newly added
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batch could not be written (nothing was committed)
+     */
+    public int insertDiscordUsers(List<String> users) throws IOException, SQLException {
+        return registerDiscordUsers(users).size();
+    }
 
-            while (rSet.next()) {
-                String user_id = rSet.getString("user_id");
-                userList.add(user_id);
-            }
+    /**
+     * This method inserts a batch of Discord servers into the Idea Network in a single statement. Servers that already
+     * exist are skipped rather than failing the whole batch.
+     *
+     * @param servers Discord server identification strings
+     * @return number of servers that were newly added
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batch could not be written (nothing was committed)
+     */
+    public int insertDiscordServers(List<String> servers) throws IOException, SQLException {
+        return registerDiscordServers(servers).size();
+    }
 
-            if (stmt != null){
-                stmt.close();
-                stmt = null;
-            }
+    /**
+     * This method registers a Discord user with the Idea Network. Registering is idempotent: whether the user is new,
+     * already registered, or being registered by another thread or bot instance at the same time, afterwards the user
+     * exists and exactly one caller is told that it was newly created.
+     *
+     * @param user Discord user identification string
+     * @return true if this call created the user, false if the user already existed
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the user could not be registered
+     */
+    public boolean registerDiscordUser(String user) throws IOException, SQLException {
+        return !registerDiscordUsers(Collections.singletonList(user)).isEmpty();
+    }
 
-            if (rSet != null) {
-                rSet.close();
-                rSet = null;
-            }
+    /**
+     * This method registers a Discord server with the Idea Network (see registerDiscordUser()).
+     *
+     * @param server Discord server identification string
+     * @return true if this call created the server, false if the server already existed
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the server could not be registered
+     */
+    public boolean registerDiscordServer(String server) throws IOException, SQLException {
+        return !registerDiscordServers(Collections.singletonList(server)).isEmpty();
+    }
 
-            if (conn != null) {
-                conn.close();
-                conn = null;
+    /**
+     * This method registers a batch of Discord users with the Idea Network in a single, idempotent statement.
+     *
+     * @param users Discord user identification strings
+     * @return the users this call created (the others already existed)
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batch could not be registered (nothing was committed)
+     */
+    public List<String> registerDiscordUsers(List<String> users) throws IOException, SQLException {
+        Logger log = Logger.get();  // logging system (shared)
+        List<String> created = register("INSERT INTO discord_users (user_id) SELECT * FROM unnest(?) "
+                + "ON CONFLICT DO NOTHING RETURNING user_id", users, log, REGISTER_USERS);
 
-                log.databaseDisconnect();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        for (String user : created) {
+            log.databaseUserAdded(user, "discord_users");
+            log.discordUserAdded(user);
         }
+
+        return created;
     }
 
     /**
-     * This method initializes the server list (via HashSet) by storing all known Discord server ID's from the Idea
-     * Network.
+     * This method registers a batch of Discord servers with the Idea Network in a single, idempotent statement.
      *
-     * @param serverList empty HashSet data structure
+     * @param servers Discord server identification strings
+     * @return the servers this call created (the others already existed)
      * @throws IOException logging system is not properly configured
+     * @throws SQLException the batch could not be registered (nothing was committed)
      */
-    public void initializeDiscordServers(HashSet<String> serverList) throws IOException {
-        Logger log = new Logger(false);  // logging system
+    public List<String> registerDiscordServers(List<String> servers) throws IOException, SQLException {
+        Logger log = Logger.get();  // logging system (shared)
+        List<String> created = register("INSERT INTO discord_servers (server_id) SELECT * FROM unnest(?) "
+                + "ON CONFLICT DO NOTHING RETURNING server_id", servers, log, REGISTER_SERVERS);
 
-        try {
-            conn = DriverManager.getConnection(getJDBC(), getRole(), getPass());
-            log.databaseConnected();
+        for (String server : created) {
+            log.databaseServerAdded(server, "discord_servers");
+            log.discordServerAdded(server);
+        }
 
-            stmt = conn.createStatement();
-            rSet = stmt.executeQuery("SELECT server_id FROM discord_servers");
+        return created;
+    }
 
-            while (rSet.next()) {
-                String server_id = rSet.getString("server_id");
-                serverList.add(server_id);
-            }
+    /**
+     * This method registers a batch of Discord users and a batch of Discord servers with the Idea Network. Both
+     * inserts are sent together and answered together (one network round trip on one connection), and they commit or
+     * fail as a whole.
+     *
+     * @param users Discord user identification strings (may be empty)
+     * @param servers Discord server identification strings (may be empty)
+     * @return two lists: the users and the servers this call created (the others already existed)
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the batches could not be registered (nothing was committed)
+     */
+    public List<List<String>> registerDiscord(List<String> users, List<String> servers)
+            throws IOException, SQLException {
+        Logger log = Logger.get();  // logging system (shared)
+        List<List<String>> created = register(new String[] {
+                "INSERT INTO discord_users (user_id) SELECT * FROM unnest(?) ON CONFLICT DO NOTHING RETURNING user_id",
+                "INSERT INTO discord_servers (server_id) SELECT * FROM unnest(?) ON CONFLICT DO NOTHING RETURNING "
+                        + "server_id"
+        }, Arrays.asList(users, servers), log, REGISTER_BOTH);
+
+        for (String user : created.get(0)) {
+            log.databaseUserAdded(user, "discord_users");
+            log.discordUserAdded(user);
+        }
 
-            if (stmt != null){
-                stmt.close();
-                stmt = null;
-            }
+        for (String server : created.get(1)) {
+            log.databaseServerAdded(server, "discord_servers");
+            log.discordServerAdded(server);
+        }
 
-            if (rSet != null) {
-                rSet.close();
-                rSet = null;
-            }
+        return created;
+    }
+
+    /**
+     * This method saves (or replaces) the serialized context of a conversation that was evicted from memory.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @param context serialized conversation context
+     * @return true if the context was saved
+     * @throws IOException logging system is not properly configured
+     */
+    public boolean saveConversationContext(long guild, long channel, long user, String context) throws IOException {
+        Logger log = Logger.get();  // logging system (shared)
+        long start = System.nanoTime();
 
-            if (conn != null) {
-                conn.close();
-                conn = null;
+        try (Connection contextConn = getConnection()) {
+            log.databaseConnected();
 
+            try (PreparedStatement save = contextConn.prepareStatement("INSERT INTO conversation_contexts "
+                    + "(guild_id, channel_id, user_id, context) VALUES (?, ?, ?, ?) "
+                    + "ON CONFLICT (guild_id, channel_id, user_id) DO UPDATE SET context = EXCLUDED.context")) {
+                save.setLong(1, guild);
+                save.setLong(2, channel);
+                save.setLong(3, user);
+                save.setString(4, context);
+                save.executeUpdate();
+
+                return true;
+            } finally {
                 log.databaseDisconnect();
             }
         } catch (SQLException e) {
+            SAVE_CONTEXT_ERRORS.increment();
             e.printStackTrace();
+            return false;
+        } finally {
+            SAVE_CONTEXT.observeSince(start);
         }
     }
 
     /**
-     * This method inserts a Discord user into the Idea Network.
+     * This method loads the serialized context of a conversation that was previously evicted from memory.
      *
-     * @param user Discord user identification string
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @return serialized conversation context, or null if none was saved (or it could not be loaded)
      * @throws IOException logging system is not properly configured
      */
-    public void insertDiscordUser(String user) throws IOException {
-        Logger log = new Logger(false);  // logging system
+    public String loadConversationContext(long guild, long channel, long user) throws IOException {
+        Logger log = Logger.get();  // logging system (shared)
+        long start = System.nanoTime();
 
-        try {
-            conn = DriverManager.getConnection(getJDBC(), getRole(), getPass());
+        try (Connection contextConn = getConnection()) {
             log.databaseConnected();
 
-            pStmt = conn.prepareStatement("INSERT INTO discord_users VALUES (?)");
-            pStmt.setString(1, user);
-            pStmt.executeUpdate();
-            log.databaseUserAdded(user, "discord_users");
-            log.discordUserAdded(user);
-
-            if (pStmt != null) {
-                pStmt.close();
-                pStmt = null;
-            }
-
-            if (conn != null) {
-                conn.close();
-                conn = null;
+            try (PreparedStatement load = contextConn.prepareStatement("SELECT context FROM conversation_contexts "
+                    + "WHERE guild_id = ? AND channel_id = ? AND user_id = ?")) {
+                load.setLong(1, guild);
+                load.setLong(2, channel);
+                load.setLong(3, user);
 
+                try (ResultSet contextSet = load.executeQuery()) {
+                    return contextSet.next() ? contextSet.getString(1) : null;
+                }
+            } finally {
                 log.databaseDisconnect();
             }
         } catch (SQLException e) {
+            LOAD_CONTEXT_ERRORS.increment();
             e.printStackTrace();
+            return null;
+        } finally {
+            LOAD_CONTEXT.observeSince(start);
         }
     }
 
     /**
-     * This method inserts a Discord server into the Idea Network.
+     * This method executes an "INSERT ... SELECT * FROM unnest(?) ON CONFLICT DO NOTHING RETURNING" statement for every
+     * identification string in one round trip. Rows that already exist (including ones inserted concurrently by
+     * another connection) are skipped by PostgreSQL, and only the rows that were actually created are returned. The
+     * statement runs in auto-commit mode, so everything returned has been committed.
      *
-     * @param server Discord user identification string
+     * @param sql insert statement with a single array parameter
+     * @param ids identification strings to insert
+     * @param log logging system
+     * @param latency histogram the time taken is recorded in
+     * @return identification strings whose rows were newly created
      * @throws IOException logging system is not properly configured
+     * @throws SQLException the statement failed (nothing was committed)
      */
-    public void insertDiscordServer(String server) throws IOException {
-        Logger log = new Logger(false);  // logging system
+    private List<String> register(String sql, List<String> ids, Logger log, Histogram latency)
+            throws IOException, SQLException {
+        return register(new String[] { sql }, Collections.singletonList(ids), log, latency).get(0);
+    }
 
-        try {
-            conn = DriverManager.getConnection(getJDBC(), getRole(), getPass());
-            log.databaseConnected();
+    /**
+     * This method pipelines several "INSERT ... SELECT * FROM unnest(?) ON CONFLICT DO NOTHING RETURNING" statements.
+     * They are prepared as one statement, so the driver sends all of them before reading any result and the whole
+     * pipeline costs a single network round trip. Statements without identification strings are left out. The
+     * pipeline ends in a single sync, which makes PostgreSQL run it as one implicit transaction: either every insert
+     * is committed or none is. The pooled connection caches the prepared statement, so PostgreSQL does not parse and
+     * plan it again on the next call.
+     *
+     * @param sql insert statements with a single array parameter each
+     * @param ids identification strings to insert, one list per statement
+     * @param log logging system
+     * @param latency histogram the time taken is recorded in
+     * @return identification strings whose rows were newly created, one list per statement
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException a statement failed (nothing was committed)
+     */
+    private List<List<String>> register(String[] sql, List<List<String>> ids, Logger log, Histogram latency)
+            throws IOException, SQLException {
+        List<List<String>> created = new ArrayList<>(sql.length);
+        StringBuilder pipeline = new StringBuilder();
 
-            pStmt = conn.prepareStatement("INSERT INTO discord_servers VALUES (?)");
-            pStmt.setString(1, server);
-            pStmt.executeUpdate();
-            log.databaseServerAdded(server, "discord_servers");
-            log.discordServerAdded(server);
+        for (int i = 0; i < sql.length; i++) {
+            created.add(new ArrayList<>());
 
-            if (pStmt != null) {
-                pStmt.close();
-                pStmt = null;
+            if (!ids.get(i).isEmpty()) {
+                pipeline.append(pipeline.length() == 0 ? "" : "; ").append(sql[i]);
             }
+        }
 
-            if (conn != null) {
-                conn.close();
-                conn = null;
+        if (pipeline.length() == 0) {
+            return created;
+        }
 
-                log.databaseDisconnect();
+        long start = System.nanoTime();
+
+        try (Connection registerConn = getConnection()) {
+            log.databaseConnected();
+
+            try (PreparedStatement insert = registerConn.prepareStatement(pipeline.toString())) {
+                int parameter = 1;
+
+                for (List<String> batch : ids) {
+                    if (!batch.isEmpty()) {
+                        insert.setArray(parameter++, registerConn.createArrayOf("varchar", batch.toArray()));
+                    }
+                }
+
+                boolean hasResults = insert.execute();
+
+                for (int i = 0; i < sql.length; i++) {
+                    if (ids.get(i).isEmpty()) {
+                        continue;
+                    }
+
+                    if (!hasResults) {
+                        throw new SQLException("The pipelined inserts returned fewer results than expected.");
+                    }
+
+                    try (ResultSet returned = insert.getResultSet()) {
+                        while (returned.next()) {
+                            created.get(i).add(returned.getString(1));
+                        }
+                    }
+
+                    hasResults = insert.getMoreResults();
+                }
+            } finally {
+                log.databaseDisconnect();  // the connection goes back to the pool as this block exits
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            latency.observeSince(start);
         }
+
+        return created;
+    }
+
+    /**
+     * This method determines if the Idea Network is kept by the embedded store rather than by a PostgreSQL server
+     * (defaults to false, i.e. PostgreSQL).
+     *
+     * @return true if the embedded backend is selected
+     */
+    public boolean isEmbedded() {
+        return BACKEND != null && BACKEND.trim().equalsIgnoreCase("embedded");
+    }
+
+    /**
+     * This method returns the directory that holds the embedded store's logs (defaults to idea-store in the working
+     * directory).
+     *
+     * @return store directory
+     */
+    public String getStore() {
+        return STORE == null || STORE.trim().isEmpty() ? "idea-store" : STORE.trim();
+    }
+
+    /**
+     * This method returns how long (in milliseconds) the embedded store waits between syncing its logs to disk
+     * (defaults to 0, every write waits until it is synced).
+     *
+     * @return sync interval in milliseconds
+     */
+    public int getStoreSync() {
+        return Settings.integer(STORE_SYNC, 0, 0);
+    }
+
+    /**
+     * This method returns how much garbage (in MiB) the embedded store's context log has to hold before it is
+     * compacted (defaults to 64).
+     *
+     * @return compaction threshold in MiB
+     */
+    public int getStoreCompact() {
+        return Settings.integer(STORE_COMPACT, 64, 0);
     }
 
     /**
@@ -277,4 +560,174 @@ abstract class PostgreSQL implements DatabaseADT {
     public String getPass() {
         return PASS;
     }
+
+    /**
+     * This method returns the number of pooled connections that are kept open even while idle (defaults to 1). It is
+     * never negative and never above the maximum pool size.
+     *
+     * @return minimum pool size
+     */
+    public int getPoolMin() {
+        return Math.min(Settings.integer(POOL_MIN, 1, 0), getPoolMax());
+    }
+
+    /**
+     * This method returns the upper bound on the number of pooled connections (defaults to 8, and at least 1).
+     *
+     * @return maximum pool size
+     */
+    public int getPoolMax() {
+        return Settings.integer(POOL_MAX, 8, 1);
+    }
+
+    /**
+     * This method returns how many seconds a pooled connection may stay idle before it is closed (defaults to 300).
+     *
+     * @return idle timeout in seconds
+     */
+    public int getPoolIdle() {
+        return Settings.integer(POOL_IDLE, 300, 1);
+    }
+
+    /**
+     * This method returns how many milliseconds a caller may wait to borrow a pooled connection (defaults to 5000).
+     *
+     * @return borrow timeout in milliseconds
+     */
+    public int getPoolWait() {
+        return Settings.integer(POOL_WAIT, 5000, 0);
+    }
+
+    /**
+     * This method returns the number of prepared statements each pooled connection keeps for reuse (defaults to 64,
+     * 0 turns the cache off).
+     *
+     * @return statement cache size per connection
+     */
+    public int getStatementCache() {
+        return Settings.integer(STATEMENT_CACHE, 64, 0);
+    }
+
+    /**
+     * This method returns the number of queued inserts that immediately triggers a batch flush (defaults to 500).
+     *
+     * @return batch size threshold
+     */
+    public int getBatchSize() {
+        return Settings.integer(BATCH_SIZE, 500, 1);
+    }
+
+    /**
+     * This method returns how long (in milliseconds) a queued insert may wait before it is flushed (defaults to 250).
+     *
+     * @return maximum batch delay in milliseconds
+     */
+    public int getBatchDelay() {
+        return Settings.integer(BATCH_DELAY, 250, 1);
+    }
+
+    /**
+     * This method returns the number of rows fetched from the server-side cursor per round trip while warming up
+     * (defaults to 10000).
+     *
+     * @return warm-up fetch size
+     */
+    public int getWarmUpFetch() {
+        return Settings.integer(WARMUP_FETCH, 10000, 1);
+    }
+
+    /**
+     * This method returns the number of key ranges that are loaded in parallel while warming up (defaults to 1).
+     *
+     * @return warm-up partitions
+     */
+    public int getWarmUpPartitions() {
+        return Settings.integer(WARMUP_PARTITIONS, 1, 1);
+    }
+
+    /**
+     * This method returns the directory that keeps local snapshots of known ID's (snapshots are disabled by default).
+     *
+     * @return snapshot directory, or null if snapshots are disabled
+     */
+    public String getSnapshot() {
+        return SNAPSHOT == null || SNAPSHOT.trim().isEmpty() ? null : SNAPSHOT.trim();
+    }
+
+    /**
+     * This method returns how long (in minutes) to wait between saving snapshots of known ID's (defaults to 15).
+     *
+     * @return snapshot interval in minutes
+     */
+    public int getSnapshotInterval() {
+        return Settings.integer(SNAPSHOT_INTERVAL, 15, 1);
+    }
+
+    /**
+     * This method determines if known users are tracked through a Bloom filter, an LRU of recent users and batched
+     * database lookups instead of an exact in-memory set (defaults to false).
+     *
+     * @return true if membership is tiered
+     */
+    public boolean isTiered() {
+        return MEMBERSHIP != null && MEMBERSHIP.trim().equalsIgnoreCase("tiered");
+    }
+
+    /**
+     * This method returns the number of ID's the tiered Bloom filter is sized for (defaults to 100 million).
+     *
+     * @return expected number of ID's
+     */
+    public int getFilterSize() {
+        return Settings.integer(FILTER_SIZE, 100000000, 1);
+    }
+
+    /**
+     * This method returns the bits of Bloom filter memory per expected ID (defaults to 10, about 1% false positives).
+     *
+     * @return bits per ID
+     */
+    public int getFilterBits() {
+        return Settings.integer(FILTER_BITS, 10, 1);
+    }
+
+    /**
+     * This method returns the number of recently confirmed ID's kept in the tiered LRU (defaults to 65536).
+     *
+     * @return LRU capacity
+     */
+    public int getRecent() {
+        return Settings.integer(RECENT, 65536, 1);
+    }
+
+    /**
+     * This method determines if newly known ID's should be shared with (and learned from) other IDEA processes that
+     * use the same database (defaults to false).
+     *
+     * @return true if known ID's are synchronized
+     */
+    public boolean isSync() {
+        return SYNC != null && SYNC.trim().equalsIgnoreCase("true");
+    }
+
+    /**
+     * This method returns the latency histogram of a database call.
+     *
+     * @param method name of the method making the call
+     * @return latency histogram
+     */
+    private static Histogram call(String method) {
+        return Metrics.histogram("idea_database_call_seconds", "Latency of database calls, including borrowing a "
+                + "connection.", "method", method);
+    }
+
+    /**
+     * This method returns the error counter of a database call.
+     *
+     * @param method name of the method making the call
+     * @return error counter
+     */
+    private static Counter error(String method) {
+        return Metrics.counter("idea_database_errors_total", "Database calls that failed.", "method", method);
+    }
 }
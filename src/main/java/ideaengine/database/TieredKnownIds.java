@@ -0,0 +1,338 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.BloomFilter;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TieredKnownIds class answers "is this ID known?" for tables that are too large to keep in memory as a set. Three
+ * tiers are asked in turn:
+ *
+ * <ol>
+ *     <li>a Bloom filter of every ID in the table, which proves most new ID's new without going to the database,</li>
+ *     <li>a bounded LRU of recently confirmed ID's, which answers for the users that are currently active, and</li>
+ *     <li>the table itself, which confirms the remaining (probably known) ID's in batches of
+ *     "WHERE column = ANY(?)" queries. Concurrent lookups of the same ID share one confirmation.</li>
+ * </ol>
+ *
+ * <p>Only the third tier waits on the database, and its answer arrives through a CompletableFuture so that no event
+ * thread blocks. A failed confirmation answers "unknown", which is safe since registering is idempotent.</p>
+ *
+ * <dl>
+ *     <dt><span class="strong">TieredKnownIds()</span></dt><dd>Constructor that sizes the tiers.</dd>
+ *     <dt><span class="strong">long warmUp()</span></dt><dd>Puts every ID in the table into the Bloom filter.</dd>
+ *     <dt><span class="strong">CompletableFuture contains()</span></dt><dd>Determines if an ID is known.</dd>
+ *     <dt><span class="strong">boolean add()</span></dt><dd>Remembers a newly registered ID.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Answers pending lookups and stops confirming.</dd>
+ * </dl>
+ */
+public class TieredKnownIds {
+    private static final int RECENT_SEGMENTS = 16;  // separately locked parts of the LRU
+    private static final long CONFIRM_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final DBMS database;
+    private final String table;
+    private final String column;
+    private final BloomFilter filter;
+    private final Recent[] recent = new Recent[RECENT_SEGMENTS];
+    private final int batchSize;
+
+    private final ConcurrentMap<Long, CompletableFuture<Boolean>> confirming = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+    private final Thread confirmer;
+    private volatile boolean running = true;
+
+    private final Counter definitelyNew;
+    private final Counter recentHits;
+    private final Counter confirmed;
+    private final Counter falsePositives;
+    private final Counter errors;
+
+    /**
+     * The TieredKnownIds constructor sizes the Bloom filter and the LRU and starts the background thread that
+     * confirms probable positives. The filter starts out empty (see warmUp()).
+     *
+     * @param database database that confirms probable positives
+     * @param table name of table in database
+     * @param column name of the identification string column
+     * @param expected number of ID's the Bloom filter is sized for
+     * @param bitsPerId bits of memory per expected ID (10 gives about 1% false positives)
+     * @param recentCapacity number of recently confirmed ID's that are remembered
+     * @param batchSize largest number of ID's confirmed in one query
+     */
+    public TieredKnownIds(DBMS database, String table, String column, long expected, int bitsPerId,
+                          int recentCapacity, int batchSize) {
+        this.database = database;
+        this.table = table;
+        this.column = column;
+        this.filter = new BloomFilter(expected, bitsPerId);
+        this.batchSize = Math.max(1, batchSize);
+
+        for (int i = 0; i < RECENT_SEGMENTS; i++) {
+            recent[i] = new Recent(Math.max(1, recentCapacity / RECENT_SEGMENTS));
+        }
+
+        String name = "idea_" + table + "_membership_total";
+        String help = "Tiered known-ID lookups of the " + table + " table by the tier that answered.";
+
+        definitelyNew = Metrics.counter(name, help, "result", "filter_new");
+        recentHits = Metrics.counter(name, help, "result", "recent_hit");
+        confirmed = Metrics.counter(name, help, "result", "confirmed");
+        falsePositives = Metrics.counter(name, help, "result", "false_positive");
+        errors = Metrics.counter(name, help, "result", "error");
+        Metrics.gauge("idea_" + table + "_filter_bytes", "Memory taken by the Bloom filter of the " + table
+                + " table.", () -> filter.bitSize() / 8);
+
+        confirmer = ThreadFactories.platform("idea-known-id-confirm-" + table + "-").newThread(this::confirmBatches);
+        confirmer.start();
+    }
+
+    /**
+     * This method puts every identification string in the table into the Bloom filter. Lookups may be made while it
+     * runs; ID's that have not been put into the filter yet merely look new.
+     *
+     * @return number of rows loaded
+     * @throws IOException logging system is not properly configured
+     * @throws SQLException the table could not be read
+     */
+    public long warmUp() throws IOException, SQLException {
+        return new KnownIdLoader(database, database.getWarmUpFetch(), database.getWarmUpPartitions())
+                .load(table, column, filter::put);
+    }
+
+    /**
+     * This method determines if an ID is known. The answer is immediate unless the Bloom filter thinks the ID is
+     * probably known and it was not confirmed recently, in which case it is confirmed with the next batch. Once
+     * shutdown() has been called such ID's are no longer confirmed and look new.
+     *
+     * @param id snowflake ID
+     * @return completes with true if the ID is in the table
+     */
+    public CompletableFuture<Boolean> contains(long id) {
+        if (!running || !filter.mightContain(id)) {
+            definitelyNew.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+
+        if (recentContains(id)) {
+            recentHits.increment();
+            return CompletableFuture.completedFuture(true);
+        }
+
+        CompletableFuture<Boolean> lookup = confirming.computeIfAbsent(id, key -> {
+            queue.add(key);
+            return new CompletableFuture<>();
+        });
+
+        if (!running && confirming.remove(id, lookup)) {
+            lookup.complete(false);  // shutdown() began while we were queuing it, so nothing may confirm it anymore
+        }
+
+        return lookup;
+    }
+
+    /**
+     * This method remembers an ID that was just registered (by this or another process) in every tier.
+     *
+     * @param id snowflake ID
+     * @return true if the Bloom filter did not contain the ID before
+     */
+    public boolean add(long id) {
+        recentAdd(id);
+
+        return filter.put(id);
+    }
+
+    /**
+     * This method confirms every queued lookup one last time and stops the background thread.
+     */
+    public void shutdown() {
+        running = false;
+
+        try {
+            confirmer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (CompletableFuture<Boolean> pending : confirming.values()) {
+            pending.complete(false);
+        }
+    }
+
+    /**
+     * This method is the body of the background thread: wait for a lookup, collect whatever else arrives within a few
+     * milliseconds (up to the batch size), and confirm them in one query.
+     */
+    private void confirmBatches() {
+        List<Long> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Long first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + CONFIRM_WINDOW_NANOS;
+
+                while (batch.size() < batchSize) {
+                    Long next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+
+                confirm(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * This method looks a batch of ID's up in the table and answers their lookups. Confirmed ID's are remembered in
+     * the LRU. If the query fails, every lookup of the batch is answered with false.
+     *
+     * @param batch ID's to confirm
+     */
+    private void confirm(List<Long> batch) {
+        Set<Long> found = new HashSet<>();
+        boolean failed = false;
+        String[] ids = new String[batch.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Long.toUnsignedString(batch.get(i));
+        }
+
+        try (Connection conn = database.getConnection();
+             PreparedStatement query = conn.prepareStatement(
+                     "SELECT " + column + " FROM " + table + " WHERE " + column + " = ANY(?)")) {
+            query.setArray(1, conn.createArrayOf("varchar", ids));
+
+            try (ResultSet rSet = query.executeQuery()) {
+                while (rSet.next()) {
+                    found.add(Long.parseUnsignedLong(rSet.getString(1)));
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            errors.add(batch.size());
+            found.clear();
+            failed = true;
+            e.printStackTrace();
+        }
+
+        for (Long id : batch) {
+            boolean known = found.contains(id);
+
+            if (known) {
+                confirmed.increment();
+                recentAdd(id);
+            } else if (!failed) {
+                falsePositives.increment();
+            }
+
+            CompletableFuture<Boolean> pending = confirming.remove(id);
+
+            if (pending != null) {
+                pending.complete(known);
+            }
+        }
+    }
+
+    /**
+     * This method determines if an ID was confirmed (or registered) recently, refreshing its place in the LRU.
+     *
+     * @param id snowflake ID
+     * @return true if the ID is in the LRU
+     */
+    private boolean recentContains(long id) {
+        Recent segment = segmentFor(id);
+
+        synchronized (segment) {
+            return segment.get(id) != null;
+        }
+    }
+
+    /**
+     * This method remembers an ID in the LRU, evicting the least recently used ID of its segment when it is full.
+     *
+     * @param id snowflake ID
+     */
+    private void recentAdd(long id) {
+        Recent segment = segmentFor(id);
+
+        synchronized (segment) {
+            segment.put(id, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * This method picks the LRU segment of an ID.
+     *
+     * @param id snowflake ID
+     * @return LRU segment
+     */
+    private Recent segmentFor(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+
+        return recent[(int) (hash >>> 60)];  // RECENT_SEGMENTS is 16, so the top four bits pick the segment
+    }
+
+    /**
+     * The Recent class is one access-ordered, bounded segment of the LRU.
+     */
+    private static final class Recent extends LinkedHashMap<Long, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Recent(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+}
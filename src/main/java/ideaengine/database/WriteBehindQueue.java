@@ -0,0 +1,375 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The WriteBehindQueue class collects newly encountered Discord users and servers and writes them to the Idea Network
+ * in batches on a background thread, so that the thread which encountered them never waits on the database. A batch is
+ * flushed as soon as enough inserts are pending or once the oldest pending insert has waited for the maximum delay.
+ * Inserts are idempotent registrations (see PostgreSQL.registerDiscord()), and every caller gets a future that
+ * completes once the row is committed, telling whether it was newly created. Requests for an ID that is already queued
+ * or being written share the same future instead of causing another insert. A user batch and a server batch are
+ * written together in a single round trip. A batch that fails is retried with an exponential backoff; once its ID's
+ * have failed MAX_ATTEMPTS times they are written one at a time, so that only the ID's the database keeps rejecting
+ * fail (their futures complete exceptionally) and the rest get through.
+ *
+ * <dl>
+ *     <dt><span class="strong">WriteBehindQueue()</span></dt><dd>Constructor that starts the background writer.</dd>
+ *     <dt><span class="strong">CompletableFuture queueDiscordUser()</span></dt><dd>Queues a Discord user.</dd>
+ *     <dt><span class="strong">CompletableFuture queueDiscordServer()</span></dt><dd>Queues a Discord server.</dd>
+ *     <dt><span class="strong">int getPending()</span></dt><dd>Returns the number of inserts not yet written.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Writes all pending inserts and stops the writer.</dd>
+ * </dl>
+ */
+public class WriteBehindQueue {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final int MAX_ATTEMPTS = 6;  // failed batch writes before an ID is written on its own
+    private static final long BACKOFF_MILLIS = 250;  // wait after the first failure, doubled after every other one
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final DBMS database;
+    private final int batchSize;
+
+    private final Queue<String> users = new ConcurrentLinkedQueue<>();
+    private final Queue<String> servers = new ConcurrentLinkedQueue<>();
+    private final Map<String, CompletableFuture<Boolean>> userRequests = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> serverRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService writer;
+
+    // Only touched by the writer (under the drain() lock).
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private int failures = 0;  // failed flushes in a row
+    private long retryAt = 0;  // System.nanoTime() before which the next flush waits
+
+    /**
+     * The WriteBehindQueue constructor starts a single background writer thread that flushes pending inserts at least
+     * once every maximum delay.
+     *
+     * @param database database management system used to write batches
+     * @param batchSize number of pending inserts that triggers an immediate flush
+     * @param maxDelayMillis longest time (in milliseconds) a pending insert should wait before being flushed
+     */
+    WriteBehindQueue(DBMS database, int batchSize, long maxDelayMillis) {
+        this.database = database;
+        this.batchSize = Math.max(1, batchSize);
+
+        this.writer = Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("idea-write-behind-"));
+
+        long delay = Math.max(1L, maxDelayMillis);
+        writer.scheduleWithFixedDelay(() -> drain(false), delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method queues a Discord user to be registered with the Idea Network by the background writer.
+     *
+     * @param user Discord user identification string
+     * @return completes (on the writer thread) once the user is committed: true if newly created, false if the user
+     *         already existed
+     */
+    public CompletableFuture<Boolean> queueDiscordUser(String user) {
+        return request(users, userRequests, user);
+    }
+
+    /**
+     * This method queues a Discord server to be registered with the Idea Network by the background writer.
+     *
+     * @param server Discord server identification string
+     * @return completes (on the writer thread) once the server is committed: true if newly created, false if the
+     *         server already existed
+     */
+    public CompletableFuture<Boolean> queueDiscordServer(String server) {
+        return request(servers, serverRequests, server);
+    }
+
+    /**
+     * This method returns the number of queued inserts that have not been written yet.
+     *
+     * @return pending inserts
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * This method stops the background writer after it has written every pending insert. Anything queued while the
+     * writer was stopping is written on the calling thread.
+     */
+    public void shutdown() {
+        try {
+            writer.execute(() -> drain(true));
+        } catch (RejectedExecutionException e) {
+            // Already shut down; the final drain below still runs.
+        }
+
+        writer.shutdown();
+
+        try {
+            writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (pending.get() > 0) {
+            drain(true);
+        }
+
+        // Whatever is left could not be written (e.g. the database is down); let the callers know.
+        fail(users, userRequests);
+        fail(servers, serverRequests);
+    }
+
+    /**
+     * This method queues an identification string unless a request for it is already queued or being written, in
+     * which case the caller shares that request's future.
+     *
+     * @param queue queue of pending identification strings
+     * @param requests futures of the queued and in-flight identification strings
+     * @param id identification string
+     * @return future of the request
+     */
+    private CompletableFuture<Boolean> request(Queue<String> queue, Map<String, CompletableFuture<Boolean>> requests,
+                                               String id) {
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        CompletableFuture<Boolean> inFlight = requests.putIfAbsent(id, created);
+
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        queue.add(id);
+        queued();
+
+        return created;
+    }
+
+    /**
+     * This method fails every request that is still queued once the writer has stopped.
+     *
+     * @param queue queue of pending identification strings
+     * @param requests futures of the queued identification strings
+     */
+    private void fail(Queue<String> queue, Map<String, CompletableFuture<Boolean>> requests) {
+        String id;
+
+        while ((id = queue.poll()) != null) {
+            CompletableFuture<Boolean> request = requests.remove(id);
+            pending.decrementAndGet();
+
+            if (request != null) {
+                request.completeExceptionally(new SQLException(id + " could not be written to the Idea Network."));
+            }
+        }
+    }
+
+    /**
+     * This method records a newly queued insert and wakes the writer once a full batch is waiting.
+     */
+    private void queued() {
+        if (pending.incrementAndGet() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                writer.execute(() -> drain(false));
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);  // shutting down, the final drain picks it up
+            }
+        }
+    }
+
+    /**
+     * This method writes every pending insert in batches of at most the batch size. A batch that fails is put back
+     * into its queue and retried once its backoff has passed.
+     *
+     * @param force true to flush right away even while backing off (e.g. when shutting down)
+     */
+    private synchronized void drain(boolean force) {
+        flushRequested.set(false);
+
+        if (!force && failures > 0 && System.nanoTime() - retryAt < 0) {
+            return;  // still backing off after a failure
+        }
+
+        while (pending.get() > 0) {
+            if (!flush()) {
+                return;  // both queues are empty or the database is unavailable, try again later
+            }
+        }
+    }
+
+    /**
+     * This method writes up to one batch of users and one batch of servers (pipelined in a single round trip) and
+     * completes the requests of both batches once they have been committed. A request is only forgotten after its
+     * future completed, so anyone asking for the same ID in between gets the already completed future rather than a
+     * second insert.
+     *
+     * @return true if a batch was written successfully
+     */
+    private boolean flush() {
+        List<String> userBatch = poll(users);
+        List<String> serverBatch = poll(servers);
+
+        if (userBatch.isEmpty() && serverBatch.isEmpty()) {
+            return false;
+        }
+
+        pending.addAndGet(-(userBatch.size() + serverBatch.size()));
+
+        List<List<String>> created;
+
+        try {
+            created = database.registerDiscord(userBatch, serverBatch);
+        } catch (SQLException | IOException | RuntimeException e) {
+            e.printStackTrace();
+            failed(userBatch, serverBatch);
+
+            return false;
+        }
+
+        failures = 0;
+        forget(userBatch);
+        forget(serverBatch);
+        complete(userBatch, userRequests, created.get(0));
+        complete(serverBatch, serverRequests, created.get(1));
+
+        return true;
+    }
+
+    /**
+     * This method handles a failed batch: it backs off, writes the ID's that have failed too often one at a time and
+     * puts the others back into their queues.
+     *
+     * @param userBatch Discord users of the failed batch
+     * @param serverBatch Discord servers of the failed batch
+     */
+    private void failed(List<String> userBatch, List<String> serverBatch) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(failures, 20));
+        failures++;
+        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+
+        retry(userBatch, users, userRequests, true);
+        retry(serverBatch, servers, serverRequests, false);
+    }
+
+    /**
+     * This method puts the ID's of a failed batch back into their queue, or writes them on their own once they have
+     * failed MAX_ATTEMPTS times. An ID that fails on its own is given up on: its future completes exceptionally.
+     *
+     * @param batch identification strings of the failed batch
+     * @param queue queue of pending identification strings
+     * @param requests futures of the queued identification strings
+     * @param user true for Discord users, false for Discord servers
+     */
+    private void retry(List<String> batch, Queue<String> queue, Map<String, CompletableFuture<Boolean>> requests,
+                       boolean user) {
+        for (String id : batch) {
+            int failed = attempts.merge(id, 1, Integer::sum);
+
+            if (failed < MAX_ATTEMPTS) {
+                queue.add(id);
+                pending.incrementAndGet();
+                continue;
+            }
+
+            List<String> single = Collections.singletonList(id);
+            List<String> none = Collections.emptyList();
+            attempts.remove(id);
+
+            try {
+                List<List<String>> created = database.registerDiscord(user ? single : none, user ? none : single);
+                complete(single, requests, created.get(user ? 0 : 1));
+                failures = 0;  // the database is up, it was the other ID's that were rejected
+            } catch (SQLException | IOException | RuntimeException e) {
+                CompletableFuture<Boolean> request = requests.remove(id);
+
+                if (request != null) {
+                    request.completeExceptionally(e instanceof SQLException ? e
+                            : new SQLException(id + " could not be written to the Idea Network.", e));
+                }
+            }
+        }
+    }
+
+    /**
+     * This method forgets how often the ID's of a written batch had failed.
+     *
+     * @param batch identification strings that were written
+     */
+    private void forget(List<String> batch) {
+        if (!attempts.isEmpty()) {
+            for (String id : batch) {
+                attempts.remove(id);
+            }
+        }
+    }
+
+    /**
+     * This method takes up to one batch of identification strings from the given queue.
+     *
+     * @param queue queue of pending identification strings
+     * @return batch of identification strings (empty if the queue was empty)
+     */
+    private List<String> poll(Queue<String> queue) {
+        List<String> batch = new ArrayList<>(Math.min(batchSize, pending.get()));
+        String id;
+
+        while (batch.size() < batchSize && (id = queue.poll()) != null) {
+            batch.add(id);
+        }
+
+        return batch;
+    }
+
+    /**
+     * This method completes the requests of a committed batch.
+     *
+     * @param batch identification strings that were written
+     * @param requests futures of the queued identification strings
+     * @param created identification strings whose rows were newly created
+     */
+    private void complete(List<String> batch, Map<String, CompletableFuture<Boolean>> requests, List<String> created) {
+        Set<String> newlyCreated = new HashSet<>(created);
+
+        for (String registered : batch) {
+            CompletableFuture<Boolean> request = requests.get(registered);
+
+            if (request != null) {
+                request.complete(newlyCreated.contains(registered));
+                requests.remove(registered, request);
+            }
+        }
+    }
+}
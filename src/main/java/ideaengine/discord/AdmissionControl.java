@@ -0,0 +1,326 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The AdmissionControl class decides how much of a guild message's work is done, so that a raid or mass-join in one
+ * server degrades IDEA predictably instead of piling up inserts and log writes that starve every other server. It sits
+ * between the event dispatcher and the listeners, each of which is added with a priority:
+ *
+ * <ul>
+ *     <li>Every server has a token bucket that refills at a steady rate. A message takes one token; a server without
+ *     tokens has its interactive work shed.</li>
+ *     <li>A global limit (sized to the connection pool) caps how much interactive work runs at once. Interactive work
+ *     that finds no room waits a little (is deferred) before it is shed.</li>
+ *     <li>Background work only hands ID's to the write-behind queue and never blocks, so it takes neither a token nor
+ *     a permit. It is only shed while the write-behind queue holds more than its backlog limit, i.e. while the
+ *     database really cannot keep up, and a busy server's new users are still registered.</li>
+ * </ul>
+ *
+ * <p>Shedding background work is safe: a user or server that was not registered is registered on a later message
+ * once the backlog has drained. Other events are not guild messages and always pass straight through.</p>
+ *
+ * <dl>
+ *     <dt><span class="strong">Priority</span></dt><dd>Whether a listener is interactive or background work.</dd>
+ *     <dt><span class="strong">AdmissionControl()</span></dt><dd>Constructor that records the limits.</dd>
+ *     <dt><span class="strong">Semaphore permits()</span></dt><dd>Creates permits that shards can share.</dd>
+ *     <dt><span class="strong">AdmissionControl add()</span></dt><dd>Adds a listener with a priority.</dd>
+ *     <dt><span class="strong">void onEvent()</span></dt><dd>Hands an event to every listener that is admitted.</dd>
+ *     <dt><span class="strong">long getShed()</span></dt><dd>Returns the number of listener calls that were shed.</dd>
+ *     <dt><span class="strong">long getDeferred()</span></dt><dd>Returns the number of calls that waited.</dd>
+ * </dl>
+ */
+public class AdmissionControl implements EventListener {
+    private static final int SWEEP_INTERVAL = 4096;  // messages between removing idle (and therefore full) buckets
+
+    private final List<EventListener> interactive = new ArrayList<>();
+    private final List<EventListener> background = new ArrayList<>();
+    private final ConcurrentMap<Long, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger untilSweep = new AtomicInteger(SWEEP_INTERVAL);
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final Semaphore permits;
+    private final long waitNanos;
+    private final IntSupplier backlog;
+    private final int backlogLimit;
+
+    private final Counter admittedInteractive = result("interactive", "admitted");
+    private final Counter deferredInteractive = result("interactive", "deferred");
+    private final Counter shedInteractiveRate = result("interactive", "shed_rate");
+    private final Counter shedInteractiveBusy = result("interactive", "shed_busy");
+    private final Counter admittedBackground = result("background", "admitted");
+    private final Counter shedBackgroundBacklog = result("background", "shed_backlog");
+    private final LongAdder shed = new LongAdder();  // the counters above add up every shard, these only this one
+    private final LongAdder deferred = new LongAdder();
+
+    /**
+     * The Priority enum tells the admission control how important a listener's work is.
+     */
+    public enum Priority {
+        /** Work someone is waiting for, e.g. answering a message directed at IDEA. */
+        INTERACTIVE,
+        /** Work nobody is waiting for, e.g. registering a newly seen user. */
+        BACKGROUND
+    }
+
+    /**
+     * The AdmissionControl constructor records the limits. Listeners are added afterwards with add().
+     *
+     * @param rate messages per second each server may send on average
+     * @param burst messages a server may send at once (the size of its token bucket)
+     * @param concurrency interactive listener calls that may run at once (e.g. the connection pool size)
+     * @param waitMillis milliseconds interactive work may wait for room before it is shed
+     * @param backlog supplies the number of database writes that are still queued
+     * @param backlogLimit queued database writes at which background work is shed
+     */
+    public AdmissionControl(int rate, int burst, int concurrency, long waitMillis, IntSupplier backlog,
+                            int backlogLimit) {
+        this(rate, burst, permits(concurrency), waitMillis, backlog, backlogLimit);
+    }
+
+    /**
+     * The AdmissionControl constructor records the limits, sharing the limit on concurrent listener calls with other
+     * admission controls (e.g. one per shard, since every shard talks to the same connection pool).
+     *
+     * @param rate messages per second each server may send on average
+     * @param burst messages a server may send at once (the size of its token bucket)
+     * @param permits interactive listener calls that may run at once (see permits())
+     * @param waitMillis milliseconds interactive work may wait for room before it is shed
+     * @param backlog supplies the number of database writes that are still queued
+     * @param backlogLimit queued database writes at which background work is shed
+     */
+    public AdmissionControl(int rate, int burst, Semaphore permits, long waitMillis, IntSupplier backlog,
+                            int backlogLimit) {
+        this.tokensPerNano = Math.max(1, rate) / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.permits = permits;
+        this.waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMillis));
+        this.backlog = backlog;
+        this.backlogLimit = Math.max(1, backlogLimit);
+    }
+
+    /**
+     * This method creates the permits that limit how many interactive listener calls run at once and reports how many
+     * are taken.
+     *
+     * @param concurrency interactive listener calls that may run at once (e.g. the connection pool size)
+     * @return permits for one or more admission controls
+     */
+    public static Semaphore permits(int concurrency) {
+        int limit = Math.max(1, concurrency);
+        Semaphore permits = new Semaphore(limit);
+
+        Metrics.gauge("idea_admission_busy", "Listener calls currently holding an admission permit.",
+                () -> limit - permits.availablePermits());
+
+        return permits;
+    }
+
+    /**
+     * This method adds a listener. Listeners of the same priority are called in the order they were added, interactive
+     * ones before background ones.
+     *
+     * @param priority importance of the listener's work
+     * @param listener listener to admit events to
+     * @return this admission control, for chaining
+     */
+    public AdmissionControl add(Priority priority, EventListener listener) {
+        (priority == Priority.INTERACTIVE ? interactive : background).add(listener);
+
+        return this;
+    }
+
+    /**
+     * This method hands an event to every listener it is admitted to. A listener that throws does not keep the others
+     * from running (the event dispatcher reports the exception).
+     *
+     * @param event any event fired by JDA
+     */
+    public void onEvent(@NotNull GenericEvent event) {
+        if (!(event instanceof GuildMessageReceivedEvent)) {
+            deliver(interactive, event);
+            deliver(background, event);
+            return;
+        }
+
+        double level = bucketFor(((GuildMessageReceivedEvent) event).getGuild().getIdLong()).take();
+
+        for (EventListener listener : interactive) {
+            if (level < 0) {
+                shedInteractiveRate.increment();
+                shed.increment();
+            } else {
+                admitInteractive(listener, event);
+            }
+        }
+
+        for (EventListener listener : background) {
+            if (backlog != null && backlog.getAsInt() >= backlogLimit) {
+                shedBackgroundBacklog.increment();
+                shed.increment();
+            } else {
+                admittedBackground.increment();
+                listener.onEvent(event);
+            }
+        }
+    }
+
+    /**
+     * This method returns the number of listener calls this admission control shed (of either priority). The
+     * idea_admission_*_total metrics add up every admission control of the process instead.
+     *
+     * @return shed calls
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * This method returns the number of interactive listener calls this admission control made wait for room before
+     * running.
+     *
+     * @return deferred calls
+     */
+    public long getDeferred() {
+        return deferred.sum();
+    }
+
+    /**
+     * This method runs an interactive listener once there is room, waiting a little if there is none right away.
+     *
+     * @param listener interactive listener
+     * @param event guild message
+     */
+    private void admitInteractive(EventListener listener, GenericEvent event) {
+        if (!permits.tryAcquire()) {
+            try {
+                if (!permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                    shedInteractiveBusy.increment();
+                    shed.increment();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                shedInteractiveBusy.increment();
+                shed.increment();
+                return;
+            }
+
+            deferredInteractive.increment();
+            deferred.increment();
+        }
+
+        try {
+            admittedInteractive.increment();
+            listener.onEvent(event);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * This method returns the token bucket of a server, occasionally removing buckets that have been idle long enough
+     * to be full again (a new bucket starts out full, so forgetting them changes nothing).
+     *
+     * @param guild Discord server snowflake ID
+     * @return token bucket
+     */
+    private Bucket bucketFor(long guild) {
+        if (untilSweep.decrementAndGet() == 0) {
+            untilSweep.set(SWEEP_INTERVAL);
+
+            long now = System.nanoTime();
+            buckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+
+        return buckets.computeIfAbsent(guild, key -> new Bucket());
+    }
+
+    /**
+     * This method hands an event to a list of listeners.
+     *
+     * @param listeners listeners to call
+     * @param event any event fired by JDA
+     */
+    private static void deliver(List<EventListener> listeners, GenericEvent event) {
+        for (EventListener listener : listeners) {
+            listener.onEvent(event);
+        }
+    }
+
+    /**
+     * This method returns the counter of admission decisions for a priority and result.
+     *
+     * @param priority interactive or background
+     * @param result admitted, deferred or the reason it was shed
+     * @return decision counter
+     */
+    private static Counter result(String priority, String result) {
+        return Metrics.counter("idea_admission_" + priority + "_total", "Admission decisions for " + priority
+                + " listener calls.", "result", result);
+    }
+
+    /**
+     * The Bucket class is the token bucket of one server.
+     */
+    private final class Bucket {
+        private double tokens = burst;
+        private long refilled = System.nanoTime();
+
+        /**
+         * This method refills the bucket for the time that has passed and takes one token if there is one.
+         *
+         * @return tokens left after taking one, or -1 if the bucket was empty
+         */
+        private synchronized double take() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+            refilled = now;
+
+            if (tokens < 1) {
+                return -1;
+            }
+
+            return --tokens;
+        }
+
+        /**
+         * This method determines if the bucket would be full by now.
+         *
+         * @param now current System.nanoTime()
+         * @return true if enough time has passed to refill the bucket completely
+         */
+        private synchronized boolean isFull(long now) {
+            return tokens + (now - refilled) * tokensPerNano >= burst;
+        }
+    }
+}
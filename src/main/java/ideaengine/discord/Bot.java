@@ -13,6 +13,8 @@
  * ****************************************************************************************************************** */
 package ideaengine.discord;
 
+import ideaengine.util.StartupGraph;
+
 import java.io.IOException;
 import javax.security.auth.login.LoginException;
 
@@ -23,6 +25,7 @@ import javax.security.auth.login.LoginException;
  *
  * <dl>
  *     <dt><span class="strong">Bot()</span></dt><dd>Constructor that initializes the Discord bot.</dd>
+ *     <dt><span class="strong">Bot(StartupGraph)</span></dt><dd>Constructor that adds the bot's startup steps.</dd>
  * </dl>
  */
 public class Bot extends Discord {
@@ -34,9 +37,28 @@ public class Bot extends Discord {
      * @throws LoginException secret Discord token is incorrect or invalid
      */
     public Bot() throws IOException, LoginException {
+        KnownUsers.setupSync();  // learn about users and servers met by other processes (if enabled)
         KnownUsers.setupUsers();  // setup the user list
         KnownUsers.setupServers();  // setup the server list
 
         setup();
     }
+
+    /**
+     * The Bot constructor adds the steps that initialize the Discord bot to a startup graph instead of running them
+     * right away. The user and server lists warm up in parallel, and the login to Discord runs alongside them rather
+     * than after them. Messages that arrive before the lists are warm have their known user and server checks held
+     * back until the warm-up is done, rather than registering everyone who is not loaded yet.
+     *
+     * @param startup startup graph that runs the steps
+     * @param after names of the steps that have to succeed first (e.g. the logging system)
+     */
+    public Bot(StartupGraph startup, String... after) {
+        KnownUsers.expectWarmUp();  // before any step runs, so no message can slip in ahead of it
+
+        startup.step("known-id-sync", KnownUsers::setupSync, after);  // must record its marks before the lists load
+        startup.step("known-users", KnownUsers::setupUsers, "known-id-sync");
+        startup.step("known-servers", KnownUsers::setupServers, "known-id-sync");
+        startup.step("discord", this::setup, after);
+    }
 }
@@ -22,10 +22,42 @@ import javax.security.auth.login.LoginException;
  *
  * <d>
  *     <dt><span class="strong">TOKEN</span></dt><dd>Secret Discord token in order to connect to the Discord bot.</dd>
+ *     <dt><span class="strong">LANES</span></dt><dd>Number of worker threads (lanes) that handle Discord events.</dd>
+ *     <dt><span class="strong">LANE_QUEUE</span></dt><dd>Number of events each lane can queue before JDA waits.</dd>
+ *     <dt><span class="strong">THREADS</span></dt><dd>Kind of threads the lanes run on (platform or virtual).</dd>
+ *     <dt><span class="strong">PREFIX</span></dt><dd>Text that starts every message directed at IDEA.</dd>
+ *     <dt><span class="strong">CONTEXT_BUDGET</span></dt><dd>Megabytes all conversation contexts may take up.</dd>
+ *     <dt><span class="strong">CONTEXT_TTL</span></dt><dd>Minutes a conversation context may stay idle.</dd>
+ *     <dt><span class="strong">CONTEXT_TURNS</span></dt><dd>Number of turns each conversation context keeps.</dd>
+ *     <dt><span class="strong">CONTEXT_SPILL</span></dt><dd>Whether evicted contexts are saved to the database.</dd>
+ *     <dt><span class="strong">ADMISSION_RATE</span></dt><dd>Messages per second each server may send on average.</dd>
+ *     <dt><span class="strong">ADMISSION_BURST</span></dt><dd>Messages each server may send at once.</dd>
+ *     <dt><span class="strong">ADMISSION_WAIT</span></dt><dd>Milliseconds interactive work may wait for room.</dd>
+ *     <dt><span class="strong">SHARDS</span></dt><dd>Total number of shards (gateway connections) of the bot.</dd>
+ *     <dt><span class="strong">SHARD_RANGE</span></dt><dd>Shards run by this process (e.g. 0-7).</dd>
  * </d>
  */
 interface BotADT {
     String TOKEN = System.getenv("DISCORD_IDEA_TOKEN");  // https://discordapp.com/developers/applications/
+    String LANES = System.getenv("DISCORD_IDEA_LANES");  // worker threads that handle events (default: CPU cores)
+    String LANE_QUEUE = System.getenv("DISCORD_IDEA_LANE_QUEUE");  // events each worker can queue (default: 1024)
+    String THREADS = System.getenv("DISCORD_IDEA_THREADS");  // "platform" (default) or "virtual" (Java 21+)
+    String PREFIX = System.getenv("DISCORD_IDEA_PREFIX");  // starts messages directed at IDEA (default: "!idea")
+
+    // Conversation context settings (optional, sensible defaults are used when these are not set).
+    String CONTEXT_BUDGET = System.getenv("DISCORD_IDEA_CONTEXT_BUDGET");  // MiB (default: 64)
+    String CONTEXT_TTL = System.getenv("DISCORD_IDEA_CONTEXT_TTL");  // idle minutes (default: 30)
+    String CONTEXT_TURNS = System.getenv("DISCORD_IDEA_CONTEXT_TURNS");  // turns per context (default: 10)
+    String CONTEXT_SPILL = System.getenv("DISCORD_IDEA_CONTEXT_SPILL");  // "true" to save evicted contexts
+
+    // Admission control settings (optional, sensible defaults are used when these are not set).
+    String ADMISSION_RATE = System.getenv("DISCORD_IDEA_ADMISSION_RATE");  // messages per second (default: 20)
+    String ADMISSION_BURST = System.getenv("DISCORD_IDEA_ADMISSION_BURST");  // messages at once (default: 100)
+    String ADMISSION_WAIT = System.getenv("DISCORD_IDEA_ADMISSION_WAIT");  // milliseconds (default: 250)
+
+    // Sharding settings (optional, the bot runs as a single shard when these are not set).
+    String SHARDS = System.getenv("DISCORD_IDEA_SHARDS");  // total shards across every process (default: 1)
+    String SHARD_RANGE = System.getenv("DISCORD_IDEA_SHARD_RANGE");  // "first-last" run here (default: all)
 
     /**
      * This method initializes the Discord bot via JDA.
@@ -41,4 +73,108 @@ interface BotADT {
      * @return secret Discord token
      */
     String getToken();
+
+    /**
+     * This method disconnects from Discord and stops the event dispatchers after every queued event has been handled.
+     */
+    void shutdown();
+
+    /**
+     * This method returns the number of event dispatcher lanes (worker threads).
+     *
+     * @return number of lanes
+     */
+    int getLanes();
+
+    /**
+     * This method returns the number of events each event dispatcher lane can queue before JDA has to wait.
+     *
+     * @return lane queue capacity
+     */
+    int getLaneQueue();
+
+    /**
+     * This method determines if events should be handled on virtual threads. Virtual threads are only used when the
+     * running JVM supports them.
+     *
+     * @return true if virtual threads were requested
+     */
+    boolean isVirtual();
+
+    /**
+     * This method returns the text that starts every message directed at IDEA (mentioning IDEA works as well).
+     *
+     * @return command prefix
+     */
+    String getPrefix();
+
+    /**
+     * This method returns the conversation handler, which intents and commands can be registered with.
+     *
+     * @return conversation handler (null until the bot has been set up)
+     */
+    Conversation getConversation();
+
+    /**
+     * This method returns how many bytes (estimated) all conversation contexts together may take up.
+     *
+     * @return context budget in bytes
+     */
+    long getContextBudget();
+
+    /**
+     * This method returns how long (in minutes) a conversation context may stay idle before it is evicted.
+     *
+     * @return context TTL in minutes
+     */
+    int getContextTtl();
+
+    /**
+     * This method returns the number of turns each conversation context remembers.
+     *
+     * @return turns per context
+     */
+    int getContextTurns();
+
+    /**
+     * This method determines if evicted conversation contexts are saved to (and restored from) the Idea Network.
+     *
+     * @return true if contexts are spilled to the database
+     */
+    boolean isContextSpill();
+
+    /**
+     * This method returns how many messages per second each server may send on average before its work is shed.
+     *
+     * @return messages per second
+     */
+    int getAdmissionRate();
+
+    /**
+     * This method returns how many messages each server may send at once before its work is shed.
+     *
+     * @return burst size
+     */
+    int getAdmissionBurst();
+
+    /**
+     * This method returns how long (in milliseconds) interactive work may wait for room before it is shed.
+     *
+     * @return admission wait in milliseconds
+     */
+    int getAdmissionWait();
+
+    /**
+     * This method returns the total number of shards (gateway connections) the bot is split into, across every process.
+     *
+     * @return total shards
+     */
+    int getShards();
+
+    /**
+     * This method returns the range of shards that this process runs.
+     *
+     * @return first and last shard ID (inclusive)
+     */
+    int[] getShardRange();
 }
@@ -0,0 +1,391 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.database.DBMS;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ContextStore class keeps the ConversationContext of every recent (server, channel, user) conversation in memory,
+ * so multi-turn conversations don't have to go back to the database for every message. Memory is bounded by a global
+ * byte budget: once the contexts' estimated sizes add up to more than the budget, the least recently used contexts are
+ * evicted. Contexts that have been idle for longer than the TTL are evicted by a background sweep. Evicted contexts can
+ * optionally be spilled to the Idea Network and are then restored the next time the user talks to IDEA.
+ *
+ * <dl>
+ *     <dt><span class="strong">ContextStore()</span></dt><dd>Constructor that starts the background sweep.</dd>
+ *     <dt><span class="strong">ConversationContext get()</span></dt><dd>Returns, restores or creates a context.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Spills every context (if enabled) and stops.</dd>
+ *     <dt><span class="strong">int getSize()</span></dt><dd>Returns the number of contexts in memory.</dd>
+ *     <dt><span class="strong">long getBytes()</span></dt><dd>Returns the estimated size of every context.</dd>
+ *     <dt><span class="strong">long getHits()</span></dt><dd>Returns the number of lookups found in memory.</dd>
+ *     <dt><span class="strong">long getMisses()</span></dt><dd>Returns the number of lookups not found in memory.</dd>
+ *     <dt><span class="strong">long getEvictions()</span></dt><dd>Returns the contexts evicted for space.</dd>
+ *     <dt><span class="strong">long getExpirations()</span></dt><dd>Returns the contexts evicted as idle.</dd>
+ *     <dt><span class="strong">long getSpills()</span></dt><dd>Returns the contexts spilled to the database.</dd>
+ *     <dt><span class="strong">long getRestores()</span></dt><dd>Returns the contexts restored from a spill.</dd>
+ * </dl>
+ */
+public class ContextStore {
+    private final long budget;
+    private final long ttlNanos;
+    private final int maxTurns;
+    private final boolean spill;
+
+    private final LinkedHashMap<Key, ConversationContext> contexts = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Map<Key, ConversationContext> spilling = new ConcurrentHashMap<>();  // evicted, not yet written
+    private final ScheduledExecutorService background;
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong restores = new AtomicLong();
+
+    /**
+     * The ContextStore constructor creates an empty store and starts the background sweep for idle contexts.
+     *
+     * @param budget total estimated size (in bytes) the contexts may take up
+     * @param ttlMillis how long (in milliseconds) a context may stay idle before it is evicted
+     * @param maxTurns number of turns each context remembers
+     * @param spill whether evicted contexts are written to the database (and restored from it)
+     */
+    public ContextStore(long budget, long ttlMillis, int maxTurns, boolean spill) {
+        this.budget = Math.max(1, budget);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ttlMillis));
+        this.maxTurns = maxTurns;
+        this.spill = spill;
+
+        this.background = Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("idea-context-store-"));
+
+        long sweep = Math.max(1000, Math.min(ttlMillis, 60000));
+        background.scheduleWithFixedDelay(this::expire, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method returns the context of a conversation. A context that is not in memory is restored from the database
+     * (if spilling is enabled and one was spilled) or otherwise created empty.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @return context of the conversation
+     */
+    public ConversationContext get(long guild, long channel, long user) {
+        Key key = new Key(guild, channel, user);
+        ConversationContext context;
+
+        synchronized (contexts) {
+            context = contexts.get(key);  // also moves the context to the most recently used end
+
+            if (context != null) {
+                context.lastUsed = System.nanoTime();
+                hits.incrementAndGet();
+                return context;
+            }
+        }
+
+        misses.incrementAndGet();
+        context = restore(key);  // may have to query the database, so it happens outside of the lock
+
+        List<ConversationContext> evicted = new ArrayList<>();
+
+        synchronized (contexts) {
+            ConversationContext raced = contexts.get(key);
+
+            if (raced != null) {
+                raced.lastUsed = System.nanoTime();
+                return raced;
+            }
+
+            contexts.put(key, context);
+            bytes.addAndGet(context.attach(this));
+
+            // Evict least recently used contexts until the budget fits again (but never the one being returned).
+            Iterator<ConversationContext> eldest = contexts.values().iterator();
+
+            while (bytes.get() > budget && contexts.size() > 1) {
+                ConversationContext victim = eldest.next();
+                eldest.remove();
+                bytes.addAndGet(-victim.detach());
+                evictions.incrementAndGet();
+                evicted.add(victim);
+            }
+        }
+
+        spill(evicted);
+
+        return context;
+    }
+
+    /**
+     * This method spills every context in memory to the database (if spilling is enabled), waits for the writes to
+     * finish, and stops the background sweep.
+     */
+    public void shutdown() {
+        List<ConversationContext> remaining;
+
+        synchronized (contexts) {
+            remaining = new ArrayList<>(contexts.values());
+            contexts.clear();
+
+            for (ConversationContext context : remaining) {
+                bytes.addAndGet(-context.detach());
+            }
+        }
+
+        spill(remaining);
+        background.shutdown();
+
+        try {
+            background.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method returns the number of contexts in memory.
+     *
+     * @return number of contexts
+     */
+    public int getSize() {
+        synchronized (contexts) {
+            return contexts.size();
+        }
+    }
+
+    /**
+     * This method returns the estimated size of every context in memory.
+     *
+     * @return estimated size in bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * This method returns the number of lookups that found their context in memory.
+     *
+     * @return cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * This method returns the number of lookups that did not find their context in memory.
+     *
+     * @return cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * This method returns the number of contexts evicted to stay within the byte budget.
+     *
+     * @return evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * This method returns the number of contexts evicted for being idle longer than the TTL.
+     *
+     * @return expirations
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * This method returns the number of contexts written to the database.
+     *
+     * @return spills
+     */
+    public long getSpills() {
+        return spills.get();
+    }
+
+    /**
+     * This method returns the number of contexts restored from a spill.
+     *
+     * @return restores
+     */
+    public long getRestores() {
+        return restores.get();
+    }
+
+    /**
+     * This method is told by a context whenever its estimated size changes.
+     *
+     * @param delta change in bytes
+     */
+    void resized(int delta) {
+        bytes.addAndGet(delta);
+    }
+
+    /**
+     * This method evicts every context that has been idle for longer than the TTL. Contexts are kept in least recently
+     * used order, so the sweep stops at the first one that is still fresh.
+     */
+    private void expire() {
+        List<ConversationContext> expired = new ArrayList<>();
+        long now = System.nanoTime();
+
+        synchronized (contexts) {
+            Iterator<ConversationContext> eldest = contexts.values().iterator();
+
+            while (eldest.hasNext()) {
+                ConversationContext context = eldest.next();
+
+                if (now - context.lastUsed < ttlNanos) {
+                    break;
+                }
+
+                eldest.remove();
+                bytes.addAndGet(-context.detach());
+                expirations.incrementAndGet();
+                expired.add(context);
+            }
+        }
+
+        spill(expired);
+    }
+
+    /**
+     * This method returns the context to use for a key that is not in memory: one still waiting to be spilled, one
+     * restored from the database, or a new one.
+     *
+     * @param key conversation key
+     * @return detached context
+     */
+    private ConversationContext restore(Key key) {
+        if (spill) {
+            ConversationContext pending = spilling.get(key);
+
+            if (pending != null) {
+                restores.incrementAndGet();
+                return pending;
+            }
+
+            try {
+                DBMS database = new DBMS(false);
+                String text = database.loadConversationContext(key.guild, key.channel, key.user);
+
+                if (text != null) {
+                    restores.incrementAndGet();
+                    return ConversationContext.deserialize(key.guild, key.channel, key.user, maxTurns, text);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return new ConversationContext(key.guild, key.channel, key.user, maxTurns);
+    }
+
+    /**
+     * This method writes evicted contexts to the database in the background (if spilling is enabled). Until a context
+     * has been written, a lookup of its key gets the context itself rather than an outdated copy from the database.
+     *
+     * @param evicted contexts that left the store
+     */
+    private void spill(List<ConversationContext> evicted) {
+        if (!spill || evicted.isEmpty()) {
+            return;
+        }
+
+        for (ConversationContext context : evicted) {
+            spilling.put(new Key(context.getGuild(), context.getChannel(), context.getUser()), context);
+        }
+
+        final List<ConversationContext> batch = Collections.unmodifiableList(evicted);
+
+        try {
+            background.execute(() -> {
+                for (ConversationContext context : batch) {
+                    Key key = new Key(context.getGuild(), context.getChannel(), context.getUser());
+
+                    try {
+                        DBMS database = new DBMS(false);
+                        if (database.saveConversationContext(key.guild, key.channel, key.user, context.serialize())) {
+                            spills.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        spilling.remove(key, context);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The store has been shut down; these contexts are lost along with the process.
+            for (ConversationContext context : batch) {
+                spilling.remove(new Key(context.getGuild(), context.getChannel(), context.getUser()), context);
+            }
+        }
+    }
+
+    /**
+     * The Key class identifies a conversation by server, channel and user.
+     */
+    private static final class Key {
+        private final long guild;
+        private final long channel;
+        private final long user;
+
+        private Key(long guild, long channel, long user) {
+            this.guild = guild;
+            this.channel = channel;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+
+            return guild == key.guild && channel == key.channel && user == key.user;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = (guild * 31 + channel) * 31 + user;
+
+            return Long.hashCode(hash * 0x9E3779B97F4A7C15L);
+        }
+    }
+}
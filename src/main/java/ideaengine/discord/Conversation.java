@@ -1,12 +1,244 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
 package ideaengine.discord;
 
+import ideaengine.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import org.jetbrains.annotations.NotNull;
 
-/* TODO: Actually do something with this eventually. */
+/**
+ * The Conversation class handles conversations directed at IDEA. Most messages never mention IDEA, so every message is
+ * first checked for IDEA's prefix (e.g. "!idea help") or a mention of the bot, which rejects everything else without
+ * allocating. The rest of the message is then matched against every registered intent and command in a single pass
+ * through a precompiled IntentIndex. Handlers receive the ConversationContext of the (server, channel, user)
+ * conversation from a ContextStore, so they can carry state from one message to the next.
+ *
+ * <dl>
+ *     <dt><span class="strong">Conversation()</span></dt><dd>Constructor that registers IDEA's built-in intents.</dd>
+ *     <dt><span class="strong">void onGuildMessageReceived()</span></dt><dd>Handles messages sent via any server.</dd>
+ *     <dt><span class="strong">void registerIntent()</span></dt><dd>Adds an intent matched by phrases anywhere.</dd>
+ *     <dt><span class="strong">void registerCommand()</span></dt><dd>Adds a command matched at the start.</dd>
+ *     <dt><span class="strong">void setFallback()</span></dt><dd>Sets the handler for messages nothing matched.</dd>
+ *     <dt><span class="strong">int addressed()</span></dt><dd>Determines if (and where) a message addresses IDEA.</dd>
+ * </dl>
+ */
 public class Conversation extends ListenerAdapter {
+    private final String prefix;
+    private final ContextStore contexts;
+
+    // Registrations are rare, so each one compiles a new immutable index that message threads pick up lock-free.
+    private final List<String> phrases = new ArrayList<>();
+    private final List<Boolean> anchors = new ArrayList<>();
+    private final List<IntentHandler> handlers = new ArrayList<>();
+    private volatile Intents intents = new Intents(new IntentIndex(new String[0], new boolean[0]), new String[0],
+            new IntentHandler[0], null);
+
+    /**
+     * The Conversation constructor registers IDEA's built-in intents.
+     *
+     * @param prefix text that starts every message directed at IDEA (e.g. "!idea")
+     * @param contexts keeps the context of every recent conversation
+     */
+    public Conversation(String prefix, ContextStore contexts) {
+        this.prefix = prefix;
+        this.contexts = contexts;
+
+        registerIntent((event, text, context) -> event.getChannel().sendMessage("Hello!").queue(),
+                "hello", "hi", "hey");
+    }
+
+    /**
+     * This method handles conversations directed at IDEA. Messages from bots, or that neither start with IDEA's prefix
+     * nor mention IDEA, are ignored.
+     *
+     * @param event a message was sent in any given Discord server
+     */
     public void onGuildMessageReceived(@NotNull GuildMessageReceivedEvent event) {
-        System.out.println("Hello!");
+        String content = event.getMessage().getContentRaw();
+        int start = addressed(content, prefix, event.getJDA().getSelfUser().getIdLong());
+
+        if (start < 0 || event.getAuthor().isBot()) {
+            return;
+        }
+
+        Intents current = intents;
+        int phrase = current.index.match(content, start, content.length());
+        IntentHandler handler = phrase < 0 ? current.fallback : current.handlers[phrase];
+
+        if (handler != null) {
+            String text = content.substring(start);
+            ConversationContext context = contexts.get(event.getGuild().getIdLong(), event.getChannel().getIdLong(),
+                    event.getAuthor().getIdLong());
+
+            handler.handle(event, text, context);
+            context.addTurn(text);
+
+            try {
+                Logger.get().conversationAnswered(event.getAuthor().getIdLong(), event.getGuild().getIdLong(),
+                        phrase < 0 ? "fallback" : current.phrases[phrase]);  // a DEBUG event, usually skipped
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * This method registers an intent that is recognized by any of its phrases appearing (as whole words) anywhere in
+     * a message directed at IDEA.
+     *
+     * @param handler responds to the intent
+     * @param phrases words or phrases that express the intent
+     */
+    public synchronized void registerIntent(IntentHandler handler, String... phrases) {
+        for (String phrase : phrases) {
+            add(phrase, false, handler);
+        }
+
+        compile();
+    }
+
+    /**
+     * This method registers a command that is recognized when its name is the first word of a message directed at
+     * IDEA (e.g. "!idea help").
+     *
+     * @param name name of the command
+     * @param handler responds to the command
+     */
+    public synchronized void registerCommand(String name, IntentHandler handler) {
+        add(name, true, handler);
+        compile();
+    }
+
+    /**
+     * This method sets the handler for messages directed at IDEA that match no intent or command.
+     *
+     * @param handler responds to unmatched messages (null ignores them)
+     */
+    public synchronized void setFallback(IntentHandler handler) {
+        Intents current = intents;
+        intents = new Intents(current.index, current.phrases, current.handlers, handler);
+    }
+
+    /**
+     * This method determines if a message is directed at IDEA, either by starting with the prefix or by starting with
+     * a mention of the bot (e.g. "&lt;@123&gt;" or "&lt;@!123&gt;"). It does not allocate.
+     *
+     * @param content raw message content
+     * @param prefix text that starts every message directed at IDEA
+     * @param self IDEA's own Discord user snowflake ID
+     * @return index where the rest of the message starts, or -1 if the message is not directed at IDEA
+     */
+    static int addressed(String content, String prefix, long self) {
+        int length = content.length();
+        int i = skipSpaces(content, 0);
+        int end = -1;
+
+        if (prefix.length() > 0 && content.regionMatches(true, i, prefix, 0, prefix.length())) {
+            end = i + prefix.length();
+        } else if (content.startsWith("<@", i)) {
+            int j = i + 2;
+            long id = 0;
+
+            if (j < length && content.charAt(j) == '!') {
+                j++;
+            }
+
+            int digits = j;
+
+            while (j < length && content.charAt(j) >= '0' && content.charAt(j) <= '9' && j - digits < 20) {
+                id = id * 10 + (content.charAt(j++) - '0');
+            }
+
+            if (j > digits && j < length && content.charAt(j) == '>' && id == self) {
+                end = j + 1;
+            }
+        }
+
+        // The prefix or mention has to be a word of its own ("!ideas" is not "!idea").
+        if (end < 0 || (end < length && !Character.isWhitespace(content.charAt(end)))) {
+            return -1;
+        }
+
+        return skipSpaces(content, end);
+    }
+
+    /**
+     * This method skips whitespace.
+     *
+     * @param content raw message content
+     * @param from index to start at
+     * @return index of the first character that is not whitespace
+     */
+    private static int skipSpaces(String content, int from) {
+        while (from < content.length() && Character.isWhitespace(content.charAt(from))) {
+            from++;
+        }
+
+        return from;
+    }
+
+    /**
+     * This method adds a phrase to the registrations (the caller compiles them afterwards).
+     *
+     * @param phrase word or phrase to match
+     * @param anchored whether the phrase must start the message
+     * @param handler responds to the phrase
+     */
+    private void add(String phrase, boolean anchored, IntentHandler handler) {
+        if (phrase == null || phrase.trim().isEmpty() || handler == null) {
+            throw new IllegalArgumentException("Intents and commands need a handler and non-empty phrases.");
+        }
+
+        phrases.add(phrase.trim());
+        anchors.add(anchored);
+        handlers.add(handler);
+    }
+
+    /**
+     * This method compiles the registrations into a new index and publishes it.
+     */
+    private void compile() {
+        boolean[] anchored = new boolean[anchors.size()];
+
+        for (int i = 0; i < anchored.length; i++) {
+            anchored[i] = anchors.get(i);
+        }
+
+        String[] compiled = phrases.toArray(new String[0]);
+        IntentIndex index = new IntentIndex(compiled, anchored);
+        intents = new Intents(index, compiled, handlers.toArray(new IntentHandler[0]), intents.fallback);
+    }
+
+    /**
+     * The Intents class is an immutable snapshot of the compiled index and the phrase and handler of every match.
+     */
+    private static final class Intents {
+        private final IntentIndex index;
+        private final String[] phrases;
+        private final IntentHandler[] handlers;
+        private final IntentHandler fallback;
+
+        private Intents(IntentIndex index, String[] phrases, IntentHandler[] handlers, IntentHandler fallback) {
+            this.index = index;
+            this.phrases = phrases;
+            this.handlers = handlers;
+            this.fallback = fallback;
+        }
     }
 }
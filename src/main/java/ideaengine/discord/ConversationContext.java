@@ -0,0 +1,317 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ConversationContext class remembers a conversation between IDEA and one user in one channel: the user's most
+ * recent turns and any slot state (named values) that intent handlers want to carry from one message to the next.
+ * Contexts live in a ContextStore, which keeps track of their (estimated) size so that the total stays within budget.
+ *
+ * <dl>
+ *     <dt><span class="strong">ConversationContext()</span></dt><dd>Constructor that creates an empty context.</dd>
+ *     <dt><span class="strong">long getGuild()</span></dt><dd>Returns the server (guild) snowflake ID.</dd>
+ *     <dt><span class="strong">long getChannel()</span></dt><dd>Returns the channel snowflake ID.</dd>
+ *     <dt><span class="strong">long getUser()</span></dt><dd>Returns the user snowflake ID.</dd>
+ *     <dt><span class="strong">void addTurn()</span></dt><dd>Remembers a turn, forgetting the oldest if needed.</dd>
+ *     <dt><span class="strong">List getTurns()</span></dt><dd>Returns the remembered turns, oldest first.</dd>
+ *     <dt><span class="strong">String getSlot()</span></dt><dd>Returns the value of a slot.</dd>
+ *     <dt><span class="strong">void setSlot()</span></dt><dd>Sets (or, given null, clears) the value of a slot.</dd>
+ *     <dt><span class="strong">void clear()</span></dt><dd>Forgets every turn and slot.</dd>
+ *     <dt><span class="strong">int getBytes()</span></dt><dd>Returns the estimated heap size of the context.</dd>
+ *     <dt><span class="strong">String serialize()</span></dt><dd>Returns the turns and slots as text.</dd>
+ *     <dt><span class="strong">ConversationContext deserialize()</span></dt><dd>Restores a serialized context.</dd>
+ * </dl>
+ */
+public class ConversationContext {
+    // Rough heap cost of the context itself, of each remembered turn, and of each slot (headers, references, etc.).
+    private static final int BASE_BYTES = 256;
+    private static final int TURN_BYTES = 56;
+    private static final int SLOT_BYTES = 96;
+
+    private final long guild;
+    private final long channel;
+    private final long user;
+    private final int maxTurns;
+
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+    private final Map<String, String> slots = new HashMap<>();
+    private int bytes = BASE_BYTES;
+
+    private ContextStore store;  // null while the context is not kept by a store (e.g. once evicted)
+    volatile long lastUsed = System.nanoTime();  // maintained by the ContextStore
+
+    /**
+     * The ConversationContext constructor creates an empty context.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @param maxTurns number of turns to remember
+     */
+    public ConversationContext(long guild, long channel, long user, int maxTurns) {
+        this.guild = guild;
+        this.channel = channel;
+        this.user = user;
+        this.maxTurns = Math.max(1, maxTurns);
+    }
+
+    /**
+     * This method returns the server (guild) the conversation takes place in.
+     *
+     * @return Discord server snowflake ID
+     */
+    public long getGuild() {
+        return guild;
+    }
+
+    /**
+     * This method returns the channel the conversation takes place in.
+     *
+     * @return Discord channel snowflake ID
+     */
+    public long getChannel() {
+        return channel;
+    }
+
+    /**
+     * This method returns the user IDEA is talking to.
+     *
+     * @return Discord user snowflake ID
+     */
+    public long getUser() {
+        return user;
+    }
+
+    /**
+     * This method remembers a turn of the conversation, forgetting the oldest turn once too many are remembered.
+     *
+     * @param text what was said
+     */
+    public synchronized void addTurn(String text) {
+        turns.addLast(text);
+        int delta = TURN_BYTES + 2 * text.length();
+
+        if (turns.size() > maxTurns) {
+            delta -= TURN_BYTES + 2 * turns.removeFirst().length();
+        }
+
+        resized(delta);
+    }
+
+    /**
+     * This method returns the remembered turns.
+     *
+     * @return copy of the turns, oldest first
+     */
+    public synchronized List<String> getTurns() {
+        return new ArrayList<>(turns);
+    }
+
+    /**
+     * This method returns the value of a slot.
+     *
+     * @param name name of the slot
+     * @return value of the slot, or null if it is not set
+     */
+    public synchronized String getSlot(String name) {
+        return slots.get(name);
+    }
+
+    /**
+     * This method sets the value of a slot.
+     *
+     * @param name name of the slot
+     * @param value value of the slot (null clears the slot)
+     */
+    public synchronized void setSlot(String name, String value) {
+        String previous = value == null ? slots.remove(name) : slots.put(name, value);
+        int delta = 0;
+
+        if (previous != null) {
+            delta -= SLOT_BYTES + 2 * (name.length() + previous.length());
+        }
+
+        if (value != null) {
+            delta += SLOT_BYTES + 2 * (name.length() + value.length());
+        }
+
+        resized(delta);
+    }
+
+    /**
+     * This method forgets every turn and slot.
+     */
+    public synchronized void clear() {
+        turns.clear();
+        slots.clear();
+        resized(BASE_BYTES - bytes);
+    }
+
+    /**
+     * This method returns the estimated heap size of the context.
+     *
+     * @return estimated size in bytes
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * This method returns the turns and slots as text (one per line, tab separated), e.g. for spilling the context to
+     * the database.
+     *
+     * @return serialized context
+     */
+    public synchronized String serialize() {
+        StringBuilder text = new StringBuilder(bytes / 2);
+
+        for (String turn : turns) {
+            text.append('T').append('\t');
+            escape(text, turn);
+            text.append('\n');
+        }
+
+        for (Map.Entry<String, String> slot : slots.entrySet()) {
+            text.append('S').append('\t');
+            escape(text, slot.getKey());
+            text.append('\t');
+            escape(text, slot.getValue());
+            text.append('\n');
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * This method restores a context from the text serialize() returned. Lines it does not understand are skipped.
+     *
+     * @param guild Discord server snowflake ID
+     * @param channel Discord channel snowflake ID
+     * @param user Discord user snowflake ID
+     * @param maxTurns number of turns to remember
+     * @param text serialized context
+     * @return restored context
+     */
+    public static ConversationContext deserialize(long guild, long channel, long user, int maxTurns, String text) {
+        ConversationContext context = new ConversationContext(guild, channel, user, maxTurns);
+
+        for (String line : text.split("\n")) {
+            String[] fields = line.split("\t", -1);
+
+            if (fields.length == 2 && fields[0].equals("T")) {
+                context.addTurn(unescape(fields[1]));
+            } else if (fields.length == 3 && fields[0].equals("S")) {
+                context.setSlot(unescape(fields[1]), unescape(fields[2]));
+            }
+        }
+
+        return context;
+    }
+
+    /**
+     * This method hands the context to a store, which from now on is told about every change in size.
+     *
+     * @param owner store that keeps the context
+     * @return estimated size in bytes at the moment of attaching
+     */
+    synchronized int attach(ContextStore owner) {
+        store = owner;
+        return bytes;
+    }
+
+    /**
+     * This method takes the context away from its store (it was evicted), after which changes are no longer reported.
+     *
+     * @return estimated size in bytes at the moment of detaching
+     */
+    synchronized int detach() {
+        store = null;
+        return bytes;
+    }
+
+    /**
+     * This method adjusts the estimated size and reports the change to the owning store.
+     *
+     * @param delta change in bytes
+     */
+    private void resized(int delta) {
+        bytes += delta;
+
+        if (store != null && delta != 0) {
+            store.resized(delta);
+        }
+    }
+
+    /**
+     * This method appends text with backslashes, tabs and line breaks escaped.
+     *
+     * @param out destination
+     * @param text text to escape
+     */
+    private static void escape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * This method reverses escape().
+     *
+     * @param text escaped text
+     * @return original text
+     */
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+
+        StringBuilder out = new StringBuilder(text.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+
+        return out.toString();
+    }
+}
@@ -13,36 +13,105 @@
  * ****************************************************************************************************************** */
 package ideaengine.discord;
 
+import ideaengine.database.DBMS;
 import ideaengine.logging.Logger;
+import ideaengine.util.Settings;
+import ideaengine.util.ThreadFactories;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import javax.security.auth.login.LoginException;
-import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
 
 /**
- * The PostgreSQL abstract class implements the DatabaseADT interface. This class loosely provides a working skeleton
- * of how one should connect Java to PostgreSQL (version 12.1 or later) in order to achieve embedded SQL functionality.
+ * The Discord abstract class implements the BotADT interface. This class connects IDEA to Discord through JDA's shard
+ * manager and gives every shard run by this process an event pipeline of its own, configured from the settings found
+ * in the BotADT interface.
  *
  * <dl>
  *     <dt><span class="strong">void setup()</span></dt><dd>Sets up the Discord bot to connect to Discord via JDA.</dd>
+ *     <dt><span class="strong">DefaultShardManagerBuilder configure()</span></dt><dd>Adjusts the shard manager.</dd>
+ *     <dt><span class="strong">int getShards()</span></dt><dd>Returns the SHARDS from the interface class.</dd>
+ *     <dt><span class="strong">int[] getShardRange()</span></dt><dd>Returns the SHARD_RANGE setting.</dd>
  *     <dt><span class="strong">String getToken()</span></dt><dd>Returns the secret Discord token.</dd>
  * </dl>
  */
 abstract class Discord implements BotADT {
+    private ShardManager shardManager;  // the gateway connections of every shard run by this process
+    private Map<Integer, EventDispatcher> dispatchers;  // hands events from each shard's JDA thread to the listeners
+    private Conversation conversation;  // matches messages directed at IDEA to intents and commands
+    private ContextStore contexts;  // remembers recent conversations
+
     /**
-     * This method initializes the Discord bot via JDA.
+     * This method initializes the Discord bot via JDA's shard manager. Every shard run by this process has a pipeline
+     * of its own (an event dispatcher, admission control and KnownUsers listener), so shards do not queue behind one
+     * another. The conversation handler holds the registered intents and is attached to every shard's pipeline, and
+     * the limit on concurrent database-bound work is shared by all of them since they use the same connection pool.
      *
      * @throws IOException logging system is not properly configured
      * @throws LoginException secret Discord token is incorrect or invalid
      */
     public void setup() throws IOException, LoginException {
-        Logger log = new Logger(false);  // logging system
+        Logger log = Logger.get();  // logging system (shared)
         log.discordConnected();
 
-        JDA client = new JDABuilder(getToken()).build();
-        client.addEventListener(new KnownUsers());  // always check to determine if a user is known or not
-        client.addEventListener(new Conversation());  // handles conversations directed at IDEA
+        int[] range = getShardRange();
+        int lanes = Math.max(1, getLanes() / (range[1] - range[0] + 1));  // the lanes are split among the shards
+
+        // Prefer virtual threads when asked for, falling back to a bounded pool of platform threads on older JVMs.
+        boolean virtual = isVirtual() && ThreadFactories.supportsVirtualThreads();
+
+        log.discordShards(range[0], range[1], getShards());
+        log.discordDispatcher(virtual ? "virtual" : "platform", lanes * (range[1] - range[0] + 1));
+
+        contexts = new ContextStore(getContextBudget(), getContextTtl() * 60000L, getContextTurns(), isContextSpill());
+        conversation = new Conversation(getPrefix(), contexts);  // handles conversations directed at IDEA
+
+        // No more conversations run at once than the pool can serve; registrations only wait on the write-behind queue.
+        DBMS database = new DBMS(false);
+        Semaphore permits = AdmissionControl.permits(database.getPoolMax());
+        Map<Integer, EventDispatcher> shards = new HashMap<>();
+
+        for (int shard = range[0]; shard <= range[1]; shard++) {
+            String prefix = getShards() > 1 ? "idea-shard-" + shard + "-lane-" : "idea-lane-";
+            ThreadFactory threads = virtual ? ThreadFactories.virtual(prefix) : null;
+
+            if (threads == null) {
+                threads = ThreadFactories.platform(prefix);
+            }
+
+            AdmissionControl admission = new AdmissionControl(getAdmissionRate(), getAdmissionBurst(), permits,
+                    getAdmissionWait(), DBMS::getPendingWrites, database.getBatchSize() * 4)
+                    .add(AdmissionControl.Priority.INTERACTIVE, conversation)
+                    .add(AdmissionControl.Priority.BACKGROUND, new KnownUsers());  // check if a user is known or not
+
+            shards.put(shard, new EventDispatcher(String.valueOf(shard), lanes, getLaneQueue(), threads, admission));
+        }
+
+        dispatchers = Collections.unmodifiableMap(shards);
+
+        shardManager = configure(new DefaultShardManagerBuilder(getToken())
+                .setShardsTotal(getShards())
+                .setShards(range[0], range[1])
+                .addEventListenerProvider(dispatchers::get))
+                .build();
+    }
+
+    /**
+     * This method lets a subclass adjust the shard manager before it logs in, e.g. to point JDA at a stand-in gateway
+     * for load tests. The default leaves it as it is.
+     *
+     * @param shards shard manager builder with IDEA's settings and listeners applied
+     * @return builder the shard manager is built from
+     */
+    protected DefaultShardManagerBuilder configure(DefaultShardManagerBuilder shards) {
+        return shards;
     }
 
     /**
@@ -53,4 +122,182 @@ abstract class Discord implements BotADT {
     public String getToken() {
         return TOKEN;
     }
+
+    /**
+     * This method disconnects every shard from Discord so that no new events arrive, stops every shard's event
+     * dispatcher after every queued event has been handled, and then stops synchronizing known ID's with other IDEA
+     * processes.
+     */
+    public void shutdown() {
+        if (shardManager != null) {
+            shardManager.shutdown();  // first, since events arriving at a stopped dispatcher would be dropped
+        }
+
+        if (dispatchers != null) {
+            for (EventDispatcher dispatcher : dispatchers.values()) {
+                dispatcher.shutdown();
+            }
+        }
+
+        if (contexts != null) {
+            contexts.shutdown();  // after the dispatcher, since queued events may still use a context
+        }
+
+        KnownUsers.shutdown();
+    }
+
+    /**
+     * This method returns the number of event dispatcher lanes (worker threads). Virtual threads are cheap enough to
+     * give most servers a lane of their own, so the default is much higher in that mode.
+     *
+     * @return number of lanes
+     */
+    public int getLanes() {
+        boolean virtual = isVirtual() && ThreadFactories.supportsVirtualThreads();
+
+        return Settings.integer(LANES, virtual ? 1024 : Runtime.getRuntime().availableProcessors(), 1);
+    }
+
+    /**
+     * This method returns the number of events each event dispatcher lane can queue before JDA has to wait.
+     *
+     * @return lane queue capacity
+     */
+    public int getLaneQueue() {
+        return Settings.integer(LANE_QUEUE, 1024, 1);
+    }
+
+    /**
+     * This method determines if events should be handled on virtual threads. Virtual threads are only used when the
+     * running JVM supports them.
+     *
+     * @return true if virtual threads were requested
+     */
+    public boolean isVirtual() {
+        return THREADS != null && THREADS.trim().toLowerCase(Locale.US).equals("virtual");
+    }
+
+    /**
+     * This method returns the text that starts every message directed at IDEA (mentioning IDEA works as well).
+     *
+     * @return command prefix
+     */
+    public String getPrefix() {
+        return PREFIX == null || PREFIX.trim().isEmpty() ? "!idea" : PREFIX.trim();
+    }
+
+    /**
+     * This method returns the conversation handler, which intents and commands can be registered with.
+     *
+     * @return conversation handler (null until the bot has been set up)
+     */
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /**
+     * This method returns how many bytes (estimated) all conversation contexts together may take up (defaults to 64
+     * MiB).
+     *
+     * @return context budget in bytes
+     */
+    public long getContextBudget() {
+        return Settings.integer(CONTEXT_BUDGET, 64, 1) * 1024L * 1024L;
+    }
+
+    /**
+     * This method returns how long (in minutes) a conversation context may stay idle before it is evicted (defaults to
+     * 30).
+     *
+     * @return context TTL in minutes
+     */
+    public int getContextTtl() {
+        return Settings.integer(CONTEXT_TTL, 30, 1);
+    }
+
+    /**
+     * This method returns the number of turns each conversation context remembers (defaults to 10).
+     *
+     * @return turns per context
+     */
+    public int getContextTurns() {
+        return Settings.integer(CONTEXT_TURNS, 10, 1);
+    }
+
+    /**
+     * This method determines if evicted conversation contexts are saved to (and restored from) the Idea Network.
+     *
+     * @return true if contexts are spilled to the database
+     */
+    public boolean isContextSpill() {
+        return CONTEXT_SPILL != null && CONTEXT_SPILL.trim().equalsIgnoreCase("true");
+    }
+
+    /**
+     * This method returns how many messages per second each server may send on average before its work is shed
+     * (defaults to 20).
+     *
+     * @return messages per second
+     */
+    public int getAdmissionRate() {
+        return Settings.integer(ADMISSION_RATE, 20, 1);
+    }
+
+    /**
+     * This method returns how many messages each server may send at once before its work is shed (defaults to 100).
+     *
+     * @return burst size
+     */
+    public int getAdmissionBurst() {
+        return Settings.integer(ADMISSION_BURST, 100, 1);
+    }
+
+    /**
+     * This method returns how long (in milliseconds) interactive work may wait for room before it is shed (defaults
+     * to 250).
+     *
+     * @return admission wait in milliseconds
+     */
+    public int getAdmissionWait() {
+        return Settings.integer(ADMISSION_WAIT, 250, 1);
+    }
+
+    /**
+     * This method returns the total number of shards (gateway connections) the bot is split into, across every process
+     * (defaults to 1). Discord requires a shard for roughly every 2,500 servers.
+     *
+     * @return total shards
+     */
+    public int getShards() {
+        return Settings.integer(SHARDS, 1, 1);
+    }
+
+    /**
+     * This method returns the range of shards that this process runs, given as "first-last" (e.g. 0-7). Running every
+     * shard is the default, and a range that does not fit within the total number of shards is ignored.
+     *
+     * @return first and last shard ID (inclusive)
+     */
+    public int[] getShardRange() {
+        int last = getShards() - 1;
+
+        if (SHARD_RANGE == null || SHARD_RANGE.trim().isEmpty()) {
+            return new int[] { 0, last };
+        }
+
+        String[] bounds = SHARD_RANGE.trim().split("\\s*-\\s*");
+
+        try {
+            int first = Integer.parseInt(bounds[0]);
+            int upTo = bounds.length > 1 ? Integer.parseInt(bounds[1]) : first;
+
+            if (bounds.length <= 2 && first >= 0 && first <= upTo && upTo <= last) {
+                return new int[] { first, upTo };
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to running every shard.
+        }
+
+        return new int[] { 0, last };
+    }
 }
@@ -0,0 +1,299 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import ideaengine.metrics.Histogram;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.ThreadFactories;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The EventDispatcher class sits between JDA and IDEA's listeners so that slow work (database calls, file I/O) never
+ * runs on JDA's event thread. Guild messages are handed to one of several lanes, each a single worker thread with a
+ * bounded queue. The lane is picked by hashing the server (guild) ID, so messages from the same server are always
+ * handled in the order they arrived while different servers are handled in parallel. When a lane's queue is full the
+ * JDA thread waits for room, which keeps memory bounded and preserves ordering. It waits no longer than FULL_LANE_WAIT
+ * though, so a stuck lane cannot stall the gateway; a message that finds no room by then, or that arrives after
+ * shutdown(), is dropped and counted. A lane's worker is only started once the lane gets its first event, so with
+ * virtual threads (see ThreadFactories) thousands of lanes cost next to nothing. When the bot runs several shards,
+ * every shard has a dispatcher of its own and its metrics carry a shard label.
+ *
+ * <dl>
+ *     <dt><span class="strong">EventDispatcher()</span></dt><dd>Constructor that creates the worker lanes.</dd>
+ *     <dt><span class="strong">void onEvent()</span></dt><dd>Hands an event from JDA to the listeners.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Handles every queued event and stops the lanes.</dd>
+ *     <dt><span class="strong">int getLaneCount()</span></dt><dd>Returns the number of lanes.</dd>
+ *     <dt><span class="strong">int getQueueDepth()</span></dt><dd>Returns the number of queued events.</dd>
+ *     <dt><span class="strong">long getProcessed()</span></dt><dd>Returns the number of handled events.</dd>
+ *     <dt><span class="strong">long getBlocked()</span></dt><dd>Returns how often JDA waited for a full lane.</dd>
+ *     <dt><span class="strong">long getDropped()</span></dt><dd>Returns the number of dropped events.</dd>
+ *     <dt><span class="strong">long getAverageLatencyNanos()</span></dt><dd>Returns mean enqueue-to-done time.</dd>
+ *     <dt><span class="strong">long getMaxLatencyNanos()</span></dt><dd>Returns worst enqueue-to-done time.</dd>
+ * </dl>
+ */
+public class EventDispatcher implements EventListener {
+    private static final long FULL_LANE_WAIT = TimeUnit.SECONDS.toNanos(5);  // longest JDA waits for room in a lane
+
+    private final Histogram latency;
+    private final List<EventListener> listeners;
+    private final ThreadPoolExecutor[] lanes;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * The EventDispatcher constructor creates one single-threaded lane per worker, running on platform threads.
+     *
+     * @param laneCount number of lanes (worker threads)
+     * @param queueCapacity number of events each lane can queue before JDA has to wait
+     * @param listeners listeners that handle every event, in this order
+     */
+    public EventDispatcher(int laneCount, int queueCapacity, EventListener... listeners) {
+        this(laneCount, queueCapacity, ThreadFactories.platform("idea-lane-"), listeners);
+    }
+
+    /**
+     * The EventDispatcher constructor creates one single-threaded lane per worker, running on the given threads.
+     *
+     * @param laneCount number of lanes (worker threads)
+     * @param queueCapacity number of events each lane can queue before JDA has to wait
+     * @param threads creates the lane workers (platform or virtual threads)
+     * @param listeners listeners that handle every event, in this order
+     */
+    public EventDispatcher(int laneCount, int queueCapacity, ThreadFactory threads, EventListener... listeners) {
+        this(null, laneCount, queueCapacity, threads, listeners);
+    }
+
+    /**
+     * The EventDispatcher constructor creates one single-threaded lane per worker for a single shard, running on the
+     * given threads.
+     *
+     * @param shard shard ID reported with the dispatcher's metrics, or null if the bot is not sharded
+     * @param laneCount number of lanes (worker threads)
+     * @param queueCapacity number of events each lane can queue before JDA has to wait
+     * @param threads creates the lane workers (platform or virtual threads)
+     * @param listeners listeners that handle every event, in this order
+     */
+    public EventDispatcher(String shard, int laneCount, int queueCapacity, ThreadFactory threads,
+                           EventListener... listeners) {
+        String label = shard == null ? null : "shard";
+
+        this.latency = Metrics.histogram("idea_event_latency_seconds", "Time from a guild message being queued to "
+                + "its listeners finishing.", label, shard);
+        this.listeners = Arrays.asList(listeners.clone());
+        this.lanes = new ThreadPoolExecutor[Math.max(1, laneCount)];
+
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(Math.max(1, queueCapacity)),
+                    threads,
+                    this::waitForRoom);
+        }
+
+        Metrics.gauge("idea_event_queue_depth", "Guild messages waiting in the dispatcher lanes.", label, shard,
+                this::getQueueDepth);
+        Metrics.counter("idea_event_blocked_total", "Times JDA waited for room in a full lane.", label, shard,
+                blocked::get);
+        Metrics.counter("idea_events_total", "Guild messages handled by the dispatcher lanes.", label, shard,
+                processed::get);
+        Metrics.counter("idea_event_dropped_total", "Guild messages dropped for a full or stopped lane.", label, shard,
+                dropped::get);
+    }
+
+    /**
+     * This method hands an event from JDA to the listeners. Guild messages are queued on their server's lane; every
+     * other event is rare and cheap, so it is handled right away on the calling thread.
+     *
+     * @param event any event fired by JDA
+     */
+    public void onEvent(@NotNull GenericEvent event) {
+        if (!(event instanceof GuildMessageReceivedEvent)) {
+            deliver(event);
+            return;
+        }
+
+        final long queuedAt = System.nanoTime();
+        long guild = ((GuildMessageReceivedEvent) event).getGuild().getIdLong();
+
+        laneFor(guild).execute(() -> {
+            deliver(event);
+
+            long elapsed = System.nanoTime() - queuedAt;
+            processed.incrementAndGet();
+            latencyNanos.addAndGet(elapsed);
+            maxLatencyNanos.accumulate(elapsed);
+            latency.observe(elapsed);
+        });
+    }
+
+    /**
+     * This method stops accepting events and waits for every lane to handle what it has already queued.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+
+        for (ThreadPoolExecutor lane : lanes) {
+            try {
+                lane.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method returns the number of lanes (worker threads).
+     *
+     * @return number of lanes
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * This method returns the number of events waiting in every lane's queue.
+     *
+     * @return queued events
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (ThreadPoolExecutor lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * This method returns the number of guild messages that have been handled.
+     *
+     * @return handled events
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * This method returns how many times JDA had to wait because a lane's queue was full.
+     *
+     * @return blocked hand-offs
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * This method returns the number of guild messages that were dropped because their lane stayed full for too long
+     * or had been shut down.
+     *
+     * @return dropped events
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * This method returns the mean time between a guild message being queued and its listeners finishing.
+     *
+     * @return mean latency in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        long count = processed.get();
+
+        return count == 0 ? 0 : latencyNanos.get() / count;
+    }
+
+    /**
+     * This method returns the longest time between a guild message being queued and its listeners finishing.
+     *
+     * @return worst latency in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * This method is called by a lane that cannot take a task right away. It waits for room instead of running the
+     * task here, which would break per-server ordering, and drops the task if there is no room in time or the lane has
+     * been shut down. A task queued just as the lane shuts down is taken back out unless the worker already has it.
+     *
+     * @param task event waiting to be handled
+     * @param lane lane of the event's server
+     */
+    private void waitForRoom(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        blocked.incrementAndGet();
+
+        try {
+            if (!lane.getQueue().offer(task, FULL_LANE_WAIT, TimeUnit.NANOSECONDS)) {
+                dropped.incrementAndGet();
+            } else if (lane.isShutdown() && lane.getQueue().remove(task)) {
+                dropped.incrementAndGet();  // the worker may already have stopped, so nothing would ever run it
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * This method picks the lane for a server. The ID is mixed first because snowflakes have mostly-zero low bits.
+     *
+     * @param guild Discord server snowflake ID
+     * @return lane that handles every message of the server
+     */
+    private ThreadPoolExecutor laneFor(long guild) {
+        long hash = guild * 0x9E3779B97F4A7C15L;
+
+        return lanes[(int) Math.floorMod(hash ^ (hash >>> 32), (long) lanes.length)];
+    }
+
+    /**
+     * This method hands an event to every listener. A listener that throws does not keep the others from running.
+     *
+     * @param event any event fired by JDA
+     */
+    private void deliver(GenericEvent event) {
+        for (EventListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
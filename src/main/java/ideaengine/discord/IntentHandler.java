@@ -0,0 +1,37 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+
+/**
+ * The IntentHandler interface is implemented by anything that responds to a conversation intent or command registered
+ * with the Conversation class.
+ *
+ * <dl>
+ *     <dt><span class="strong">void handle()</span></dt><dd>Responds to a message directed at IDEA.</dd>
+ * </dl>
+ */
+@FunctionalInterface
+public interface IntentHandler {
+    /**
+     * This method responds to a message that was directed at IDEA and matched the handler's intent or command. The
+     * message is added to the context's turns once the handler returns.
+     *
+     * @param event the message event
+     * @param text message text without IDEA's prefix or mention
+     * @param context the conversation so far (earlier turns and slot state)
+     */
+    void handle(GuildMessageReceivedEvent event, String text, ConversationContext context);
+}
@@ -0,0 +1,230 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * The IntentIndex class is a precompiled Aho-Corasick automaton over every phrase registered with the Conversation
+ * class. A message is scanned once, one table lookup per character, no matter how many phrases are registered. Phrases
+ * are matched case-insensitively and only as whole words; anchored phrases (commands) must also start the message.
+ * When several phrases match, the longest one wins, and between equally long ones the earliest.
+ *
+ * <dl>
+ *     <dt><span class="strong">IntentIndex()</span></dt><dd>Constructor that compiles the phrases.</dd>
+ *     <dt><span class="strong">int match()</span></dt><dd>Returns the index of the best matching phrase.</dd>
+ * </dl>
+ */
+final class IntentIndex {
+    private static final int ASCII = 128;
+
+    private final int[] asciiClasses;  // character class of every ASCII character (0 = in no phrase)
+    private final char[] otherChars;  // sorted non-ASCII characters that appear in phrases (classes follow ASCII's)
+    private final int classes;
+
+    private final int[] transitions;  // state * classes + character class -> next state (failures resolved)
+    private final int[] outputs;  // phrase ending in a state, or -1
+    private final int[] outputLinks;  // nearest state on the failure chain with an output, or -1
+    private final int[] lengths;
+    private final boolean[] anchored;
+
+    /**
+     * The IntentIndex constructor compiles the phrases into a deterministic automaton.
+     *
+     * @param phrases phrases to look for (matched case-insensitively)
+     * @param anchored whether each phrase must start the message
+     */
+    IntentIndex(String[] phrases, boolean[] anchored) {
+        this.lengths = new int[phrases.length];
+        this.anchored = anchored.clone();
+
+        // Assign a character class to every distinct character so the transition table stays small.
+        TreeSet<Character> alphabet = new TreeSet<>();
+
+        for (String phrase : phrases) {
+            for (int i = 0; i < phrase.length(); i++) {
+                alphabet.add(fold(phrase.charAt(i)));
+            }
+        }
+
+        int[] ascii = new int[ASCII];
+        StringBuilder other = new StringBuilder();
+        int count = 1;
+
+        for (char c : alphabet) {
+            if (c < ASCII) {
+                ascii[c] = count++;
+            } else {
+                other.append(c);
+            }
+        }
+
+        this.asciiClasses = ascii;
+        this.otherChars = other.toString().toCharArray();
+        this.classes = count + otherChars.length;
+
+        // Build the trie.
+        int capacity = 1;
+
+        for (String phrase : phrases) {
+            capacity += phrase.length();
+        }
+
+        int[] next = new int[capacity * classes];
+        int[] output = new int[capacity];
+        int states = 1;
+
+        Arrays.fill(next, -1);
+        Arrays.fill(output, -1);
+
+        for (int p = 0; p < phrases.length; p++) {
+            int state = 0;
+
+            for (int i = 0; i < phrases[p].length(); i++) {
+                int slot = state * classes + classOf(fold(phrases[p].charAt(i)));
+
+                if (next[slot] < 0) {
+                    next[slot] = states++;
+                }
+
+                state = next[slot];
+            }
+
+            lengths[p] = phrases[p].length();
+
+            if (output[state] < 0 || lengths[p] > lengths[output[state]]) {
+                output[state] = p;  // duplicate phrases keep the first registration
+            }
+        }
+
+        // Resolve failure transitions breadth-first so the automaton never has to backtrack.
+        int[] failures = new int[states];
+        int[] links = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+        links[0] = -1;
+
+        for (int c = 0; c < classes; c++) {
+            int child = next[c];
+
+            if (child < 0) {
+                next[c] = 0;
+            } else {
+                failures[child] = 0;
+                links[child] = -1;
+                queue.add(child);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+
+            for (int c = 0; c < classes; c++) {
+                int slot = state * classes + c;
+                int fallback = next[failures[state] * classes + c];
+
+                if (next[slot] < 0) {
+                    next[slot] = fallback;
+                } else {
+                    int child = next[slot];
+                    failures[child] = fallback;
+                    links[child] = output[fallback] >= 0 ? fallback : links[fallback];
+                    queue.add(child);
+                }
+            }
+        }
+
+        this.transitions = Arrays.copyOf(next, states * classes);
+        this.outputs = Arrays.copyOf(output, states);
+        this.outputLinks = links;
+    }
+
+    /**
+     * This method scans part of a message and returns the best whole-word match. It does not allocate.
+     *
+     * @param text message text
+     * @param from index of the first character to scan (where anchored phrases must start)
+     * @param to index after the last character to scan
+     * @return index of the matching phrase, or -1 if none matched
+     */
+    int match(CharSequence text, int from, int to) {
+        int state = 0;
+        int best = -1;
+
+        for (int i = from; i < to; i++) {
+            state = transitions[state * classes + classOf(fold(text.charAt(i)))];
+
+            for (int s = outputs[state] >= 0 ? state : outputLinks[state]; s >= 0; s = outputLinks[s]) {
+                int phrase = outputs[s];
+                int start = i + 1 - lengths[phrase];
+
+                if ((anchored[phrase] && start != from) || !boundary(text, start - 1, from, to)
+                        || !boundary(text, i + 1, from, to)) {
+                    continue;
+                }
+
+                if (best < 0 || lengths[phrase] > lengths[best]) {
+                    best = phrase;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * This method returns the character class of a (folded) character.
+     *
+     * @param c folded character
+     * @return character class (0 if the character appears in no phrase)
+     */
+    private int classOf(char c) {
+        if (c < ASCII) {
+            return asciiClasses[c];
+        }
+
+        int index = Arrays.binarySearch(otherChars, c);
+
+        return index < 0 ? 0 : classes - otherChars.length + index;
+    }
+
+    /**
+     * This method folds a character for case-insensitive matching.
+     *
+     * @param c any character
+     * @return lower case character
+     */
+    private static char fold(char c) {
+        if (c < ASCII) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * This method determines whether a position lies outside of a word, so phrases only match whole words.
+     *
+     * @param text message text
+     * @param index position next to a match
+     * @param from index of the first scanned character
+     * @param to index after the last scanned character
+     * @return true if the position is outside of the scanned text or not a letter or digit
+     */
+    private static boolean boundary(CharSequence text, int index, int from, int to) {
+        return index < from || index >= to || !Character.isLetterOrDigit(text.charAt(index));
+    }
+}
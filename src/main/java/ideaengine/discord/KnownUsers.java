@@ -14,9 +14,15 @@
 package ideaengine.discord;
 
 import ideaengine.database.DBMS;
+import ideaengine.database.KnownIdSync;
+import ideaengine.database.TieredKnownIds;
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Metrics;
+import ideaengine.util.SnowflakeSet;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import org.jetbrains.annotations.NotNull;
@@ -27,9 +33,16 @@ import org.jetbrains.annotations.NotNull;
  * database.
  *
  * <dl>
- *     <dt><span class="strong">users</span></dt><dd>A HashSet data structure containing all known user ID's.</dd>
- *     <dt><span class="strong">servers</span></dt><dd>A HashSet data structure containing all known server ID's.</dd>
+ *     <dt><span class="strong">users</span></dt><dd>A SnowflakeSet data structure containing all known user ID's.</dd>
+ *     <dt><span class="strong">servers</span></dt><dd>A SnowflakeSet data structure with all known server ID's.</dd>
+ *     <dt><span class="strong">tieredUsers</span></dt><dd>Replaces the users set when membership is tiered.</dd>
+ *     <dt><span class="strong">sync</span></dt><dd>Shares newly known ID's with other IDEA processes (if enabled).</dd>
+ *     <dt><span class="strong">usersReady</span></dt><dd>Completes once the user list has been pre-filled.</dd>
+ *     <dt><span class="strong">serversReady</span></dt><dd>Completes once the server list has been pre-filled.</dd>
  *     <dt><span class="strong">onGuildMessageReceived()</span></dt><dd>Handles messages sent via any server.</dd>
+ *     <dt><span class="strong">expectWarmUp()</span></dt><dd>Holds lookups back until the lists are pre-filled.</dd>
+ *     <dt><span class="strong">setupSync()</span></dt><dd>Starts learning ID's registered by other IDEA processes.</dd>
+ *     <dt><span class="strong">shutdown()</span></dt><dd>Stops syncing and answers pending tiered lookups.</dd>
  *     <dt><span class="strong">setupUsers()</span></dt><dd>Sets up the user list with known user ID's.</dd>
  *     <dt><span class="strong">setupServers()</span></dt><dd>Sets up the server list with known user ID's.</dd>
  *     <dt><span class="strong">isKnownUser()</span></dt><dd>Determines if a user's ID is known.</dd>
@@ -37,60 +50,216 @@ import org.jetbrains.annotations.NotNull;
  * </dl>
  */
 public class KnownUsers extends ListenerAdapter {
-    private static HashSet<String> users = new HashSet<>();  // list of all users
-    private static HashSet<String> servers = new HashSet<>();  // list of all servers
+    static final SnowflakeSet users = new SnowflakeSet();  // list of all users (package-private for benchmarks)
+    static final SnowflakeSet servers = new SnowflakeSet();  // list of all servers (package-private for benchmarks)
+    private static volatile TieredKnownIds tieredUsers = null;  // only used for very large user tables
+    private static KnownIdSync sync = null;  // only used when several IDEA processes share the Idea Network
+    private static volatile CompletableFuture<Void> usersReady = CompletableFuture.completedFuture(null);
+    private static volatile CompletableFuture<Void> serversReady = CompletableFuture.completedFuture(null);
+
+    private static final Counter USER_HITS = lookups("idea_known_user_lookups_total", "hit");
+    private static final Counter USER_MISSES = lookups("idea_known_user_lookups_total", "miss");
+    private static final Counter SERVER_HITS = lookups("idea_known_server_lookups_total", "hit");
+    private static final Counter SERVER_MISSES = lookups("idea_known_server_lookups_total", "miss");
+
+    static {
+        Metrics.gauge("idea_known_users", "Users in the known user set.", users::size);
+        Metrics.gauge("idea_known_servers", "Servers in the known server set.", servers::size);
+    }
 
     /**
      * This method determines if a user in any given server is currently "known" (e.g. his or her information is stored
-     * within the Idea Network database. If yes, then nothing happens. If no, then the user's information will be stored
-     * appropriately. This will ALSO check for a known or unknown Discord server (guild) and apply the same logic
-     * towards that.
+     * within the Idea Network database. If yes, then nothing happens. If no, then the user's information will be queued
+     * to be registered (the insert happens in the background so this event thread never waits on the database). The
+     * user only becomes known once the registration has been committed, and messages that arrive in the meantime
+     * share the queued registration rather than causing another insert. This will ALSO check for a known or unknown
+     * Discord server (guild) and apply the same logic towards that. While a list is still being pre-filled its check
+     * waits for the warm-up to finish, since a user missing from a half-filled list is most likely not new.
      *
      * @param event a message was sent in any given Discord server by either a known or unknown user
      */
     public void onGuildMessageReceived(@NotNull GuildMessageReceivedEvent event) {
-        // Determines if the user is known...
-        if (!isKnownUser(event.getAuthor().getId())) {
+        final long userID = event.getAuthor().getIdLong();
+        final String user = event.getAuthor().getId();
+        final long serverID = event.getGuild().getIdLong();
+        final String server = event.getGuild().getId();
+
+        final CompletableFuture<Void> usersWarm = usersReady;
+        final CompletableFuture<Void> serversWarm = serversReady;
+
+        if (usersWarm.isDone()) {
+            checkUser(userID, user);
+        } else {
+            usersWarm.thenRun(() -> checkUser(userID, user));
+        }
+
+        if (serversWarm.isDone()) {
+            checkServer(serverID, server);
+        } else {
+            serversWarm.thenRun(() -> checkServer(serverID, server));
+        }
+    }
+
+    /**
+     * This method determines if a user is known, and queues the user to be registered if not.
+     *
+     * @param userID Discord user snowflake ID
+     * @param user Discord user identification string
+     */
+    private static void checkUser(long userID, String user) {
+        final TieredKnownIds tiered = tieredUsers;
+
+        // Determines if the user is known... (remembered only after the registration has been committed)
+        if (tiered != null) {
+            tiered.contains(userID).thenAccept(known -> {
+                if (known) {
+                    USER_HITS.increment();
+                } else {
+                    USER_MISSES.increment();
+                    registerUser(user, () -> tiered.add(userID));
+                }
+            });
+        } else if (isKnownUser(userID)) {
+            USER_HITS.increment();
+        } else {
+            USER_MISSES.increment();
+            registerUser(user, () -> users.add(userID));
+        }
+    }
+
+    /**
+     * This method determines if a server is known, and queues the server to be registered if not.
+     *
+     * @param serverID Discord server snowflake ID
+     * @param server Discord server identification string
+     */
+    private static void checkServer(long serverID, String server) {
+        // Determines if the server is known... (remembered only after the registration has been committed)
+        if (isKnownServer(serverID)) {
+            SERVER_HITS.increment();
+        } else {
+            SERVER_MISSES.increment();
+
             try {
                 DBMS database = new DBMS(false);
 
-                database.insertDiscordUser(event.getAuthor().getId());
-                users.add(event.getAuthor().getId());
+                database.queueDiscordServer(server).thenRun(() -> servers.add(serverID));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+    }
 
-        // Determines if the server is known...
-        if (!isKnownServer(event.getGuild().getId())) {
-            try {
-                DBMS database = new DBMS(false);
+    /**
+     * This method queues a user to be registered with the Idea Network and remembers the user once the registration has
+     * been committed.
+     *
+     * @param user Discord user identification string
+     * @param remember remembers the user as known
+     */
+    private static void registerUser(String user, Runnable remember) {
+        try {
+            DBMS database = new DBMS(false);
 
-                database.insertDiscordServer(event.getGuild().getId());
-                servers.add(event.getGuild().getId());
-            } catch (IOException e) {
-                e.printStackTrace();
+            database.queueDiscordUser(user).thenRun(remember);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method returns the tiered membership of users when PostgreSQL_IDEA_MEMBERSHIP is set to tiered, creating it
+     * on first use.
+     *
+     * @param database settings and connections for the tiers
+     * @return tiered user membership, or null if users are kept in an exact set
+     */
+    private static synchronized TieredKnownIds tieredUsers(DBMS database) {
+        if (tieredUsers == null && database.isTiered()) {
+            tieredUsers = new TieredKnownIds(database, "discord_users", "user_id", database.getFilterSize(),
+                    database.getFilterBits(), database.getRecent(), database.getBatchSize());
+        }
+
+        return tieredUsers;
+    }
+
+    /**
+     * This method starts learning the user and server ID's that other IDEA processes register, so that a user met by
+     * one process is not registered again by every other process. It does nothing unless PostgreSQL_IDEA_SYNC is set,
+     * and it should be called before the lists are pre-filled so that nothing registered meanwhile is missed.
+     */
+    protected static synchronized void setupSync() {
+        try {
+            DBMS database = new DBMS(false);
+
+            if (database.isSync() && sync == null) {
+                TieredKnownIds tiered = tieredUsers(database);
+
+                sync = new KnownIdSync(database, tiered != null ? tiered::add : users::add, servers::add);
+                sync.start();
             }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method holds back the known user and server checks of incoming messages until setupUsers() and
+     * setupServers() have pre-filled the lists. It should be called before logging into Discord whenever the login
+     * runs alongside the warm-up, so that messages arriving meanwhile do not register users who are merely not loaded
+     * yet (or look them up before the tiered membership exists).
+     */
+    protected static synchronized void expectWarmUp() {
+        if (usersReady.isDone()) {
+            usersReady = new CompletableFuture<>();
+        }
+
+        if (serversReady.isDone()) {
+            serversReady = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * This method stops learning the user and server ID's that other IDEA processes register, and answers any tiered
+     * lookups that are still waiting for the database.
+     */
+    protected static synchronized void shutdown() {
+        if (sync != null) {
+            sync.stop();
+            sync = null;
+        }
+
+        if (tieredUsers != null) {
+            tieredUsers.shutdown();
+            tieredUsers = null;
         }
     }
 
     /**
      * This method pre-fills the user list with known Discord user ID's that have already been stored in the Idea
-     * Network.
+     * Network. With tiered membership only the Bloom filter is filled, and the ID's themselves stay in the database.
+     * Any user checks held back by expectWarmUp() run afterwards, even if the warm-up failed.
      */
     protected static void setupUsers() {
         try {
             DBMS database = new DBMS(false);
+            TieredKnownIds tiered = tieredUsers(database);
 
-            database.initializeDiscordUsers(users);
-        } catch (IOException e) {
+            if (tiered != null) {
+                tiered.warmUp();
+            } else {
+                database.initializeDiscordUsers(users);
+            }
+        } catch (IOException | SQLException e) {
             e.printStackTrace();
+        } finally {
+            usersReady.complete(null);
         }
     }
 
     /**
      * This method pre-fills the server list with known Discord server ID's that have already been stored in the Idea
-     * Network.
+     * Network. Any server checks held back by expectWarmUp() run afterwards, even if the warm-up failed.
      */
     protected static void setupServers() {
         try {
@@ -99,6 +268,8 @@ public class KnownUsers extends ListenerAdapter {
             database.initializeDiscordServers(servers);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            serversReady.complete(null);
         }
     }
 
@@ -106,21 +277,32 @@ public class KnownUsers extends ListenerAdapter {
      * This method determines whether or not a user has been encountered before or not. This is to prevent IDEA from
      * having to access the database needlessly.
      *
-     * @param userID Discord user identification string
-     * @return true if userID exists in HashSet data structure
+     * @param userID Discord user snowflake ID
+     * @return true if userID exists in SnowflakeSet data structure
      */
-    private boolean isKnownUser(String userID) {
+    static boolean isKnownUser(long userID) {
         return users.contains(userID);
     }
 
+    /**
+     * This method returns the counter of known-ID lookups with a given result.
+     *
+     * @param name metric name
+     * @param result hit or miss
+     * @return lookup counter
+     */
+    private static Counter lookups(String name, String result) {
+        return Metrics.counter(name, "Known-ID set lookups made while handling guild messages.", "result", result);
+    }
+
     /**
      * This method determines whether or not a server has been encountered before or not. This is to prevent IDEA from
      * having to access the database needlessly.
      *
-     * @param serverID Discord server identification string
-     * @return true if serverID exists in HashSet data structure
+     * @param serverID Discord server snowflake ID
+     * @return true if serverID exists in SnowflakeSet data structure
      */
-    private boolean isKnownServer(String serverID) {
+    static boolean isKnownServer(long serverID) {
         return servers.contains(serverID);
     }
 }
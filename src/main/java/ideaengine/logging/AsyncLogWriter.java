@@ -0,0 +1,278 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The AsyncLogWriter class moves log file I/O off of the threads that log. Callers claim a pre-allocated record in a
+ * bounded, lock-free ring buffer (a Vyukov-style sequence per slot) and return immediately, while a single consumer
+ * thread renders the records and writes them in batches into the (memory-mapped) RollingLogFile sinks, either as text
+ * or, for binary logs, as template records through BinaryLogFile.
+ *
+ * <dl>
+ *     <dt><span class="strong">Overflow</span></dt><dd>What a caller does when the ring buffer is full.</dd>
+ *     <dt><span class="strong">AsyncLogWriter()</span></dt><dd>Constructor that starts the consumer thread.</dd>
+ *     <dt><span class="strong">boolean offer()</span></dt><dd>Hands a log line to the consumer thread.</dd>
+ *     <dt><span class="strong">int getDepth()</span></dt><dd>Returns the number of records not yet written.</dd>
+ *     <dt><span class="strong">long getDropped()</span></dt><dd>Returns the number of records dropped on overflow.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Writes every pending record and stops.</dd>
+ * </dl>
+ */
+final class AsyncLogWriter {
+    /**
+     * The Overflow enum lists what a caller does when the ring buffer is full: wait for room (BLOCK), discard the
+     * record (DROP), or wait for room for one out of every SAMPLE_RATE records and discard the rest (SAMPLE).
+     */
+    enum Overflow { BLOCK, DROP, SAMPLE }
+
+    private static final int SAMPLE_RATE = 16;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Record[] records;  // allocated once, reused for the lifetime of the writer
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final Overflow overflow;
+
+    private final AtomicLong tail = new AtomicLong();  // next position a producer will claim
+    private volatile long head = 0;  // next position the consumer will read (only the consumer writes it)
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private volatile boolean sleeping = false;
+
+    /**
+     * The AsyncLogWriter constructor allocates the ring buffer and starts the consumer thread.
+     *
+     * @param capacity number of records the ring buffer can hold (rounded up to a power of two)
+     * @param overflow what a caller does when the ring buffer is full
+     */
+    AsyncLogWriter(int capacity, Overflow overflow) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.records = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.overflow = overflow;
+
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+
+        this.consumer = ThreadFactories.platform("idea-log-writer-").newThread(this::consume);
+        this.consumer.start();
+    }
+
+    /**
+     * This method hands a log line to the consumer thread. Depending on the overflow policy this may wait for room in
+     * the ring buffer, or give up and drop the line.
+     *
+     * @param path path of the log file
+     * @param text text to write
+     * @return false if the writer has been shut down (the caller should write the line itself), true otherwise
+     */
+    boolean offer(String path, String text) {
+        return offer(path, text, null, 0, null);
+    }
+
+    /**
+     * This method hands a log event to the consumer thread, which renders it for a text log or encodes it for a binary
+     * log (see BinaryLogFile). It follows the same overflow policy as a log line.
+     *
+     * @param path path of the log file
+     * @param template template of the event
+     * @param millis time of the event in milliseconds since the epoch
+     * @param args arguments of the template
+     * @return false if the writer has been shut down (the caller should write the record itself), true otherwise
+     */
+    boolean offer(String path, LogTemplate template, long millis, Object[] args) {
+        return offer(path, null, template, millis, args);
+    }
+
+    /**
+     * This method claims a slot of the ring buffer and publishes either a log line or a binary log record in it.
+     *
+     * @param path path of the log file
+     * @param text text to write, or null for a binary log record
+     * @param template template of a binary log record
+     * @param millis time of a binary log record
+     * @param args arguments of a binary log record
+     * @return false if the writer has been shut down, true otherwise
+     */
+    private boolean offer(String path, String text, LogTemplate template, long millis, Object[] args) {
+        boolean mayWait = overflow == Overflow.BLOCK;
+
+        while (running) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Record record = records[index];
+                    record.path = path;
+                    record.text = text;
+                    record.template = template;
+                    record.millis = millis;
+                    record.args = args;
+                    sequences.lazySet(index, position + 1);  // publish the record to the consumer
+
+                    if (sleeping) {
+                        LockSupport.unpark(consumer);
+                    }
+
+                    return true;
+                }
+            } else if (difference < 0) {
+                // The ring buffer is full.
+                if (!mayWait && overflow == Overflow.SAMPLE) {
+                    mayWait = overflowed.incrementAndGet() % SAMPLE_RATE == 0;
+                }
+
+                if (!mayWait) {
+                    dropped.incrementAndGet();
+                    return true;
+                }
+
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This method returns the number of records that have been queued but not yet written.
+     *
+     * @return queue depth
+     */
+    int getDepth() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * This method returns the number of records that were dropped because the ring buffer was full.
+     *
+     * @return dropped records
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * This method stops accepting records and waits for the consumer thread to write everything that was queued.
+     */
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(consumer);
+
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method is the body of the consumer thread. It writes records as long as any are available and parks once it
+     * has caught up until a producer wakes it up again.
+     */
+    private void consume() {
+        while (true) {
+            while (drainOne()) {
+                // Keep writing until we catch up with the producers.
+            }
+
+            if (!running && tail.get() == head) {
+                break;
+            }
+
+            sleeping = true;
+
+            if (tail.get() == head && running) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+
+            sleeping = false;
+        }
+
+        while (drainOne()) {
+            // Anything a producer managed to publish while we were stopping.
+        }
+    }
+
+    /**
+     * This method writes the next record, if one has been published.
+     *
+     * @return true if a record was written
+     */
+    private boolean drainOne() {
+        long position = head;
+        int index = (int) position & mask;
+
+        if (sequences.get(index) != position + 1) {
+            return false;  // not published yet
+        }
+
+        Record record = records[index];
+        String path = record.path;
+        String text = record.text;
+        LogTemplate template = record.template;
+        long millis = record.millis;
+        Object[] args = record.args;
+
+        record.path = null;
+        record.text = null;
+        record.template = null;
+        record.args = null;
+        sequences.lazySet(index, position + records.length);  // hand the slot back to the producers
+        head = position + 1;
+
+        try {
+            if (text != null) {
+                RollingLogFile.get(path).write(text);
+            } else if (path.endsWith(LogADT.BINARY_EXT)) {
+                BinaryLogFile.get(path).write(template, millis, args);
+            } else {
+                RollingLogFile.get(path).write(Logger.line(template, millis, args));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return true;
+    }
+
+    /**
+     * The Record class is a single, reusable slot of the ring buffer.
+     */
+    private static final class Record {
+        private String path;
+        private String text;
+        private LogTemplate template;
+        private long millis;
+        private Object[] args;
+    }
+}
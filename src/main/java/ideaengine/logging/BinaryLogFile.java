@@ -0,0 +1,301 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The BinaryLogFile class writes log events as compact binary records into a RollingLogFile instead of rendering them
+ * to text: a record only holds the event's template ID (see LogTemplate), the time since the previous record and the
+ * typed arguments, e.g. a Discord snowflake in 8 bytes rather than as a 19-digit string. LogDecoder renders them back.
+ *
+ * A file starts with the MAGIC header. Every record is a varint record type, its body and an END byte; END is never
+ * zero, so the zero padding of a mapped region (see RollingLogFile) is never mistaken for part of a record. A lone END
+ * is an empty record: it precedes the RESET of a reopened file, so that the decoder can pick up there even if the last
+ * record before it was cut off by a crash.
+ * <ul>
+ *     <li>RESET: the absolute time as 8 bytes. It starts every (re)opened file and clears the string dictionary.</li>
+ *     <li>DEFINE: a template's ID, arity, label, name and pattern. It precedes the template's first event after each
+ *     RESET, so that a file can be decoded without knowing the templates of the engine that wrote it.</li>
+ *     <li>An event (record type 16 and up is a template ID): the zigzag varint milliseconds since the previous record
+ *     followed by one tagged value per argument.</li>
+ * </ul>
+ *
+ * <dl>
+ *     <dt><span class="strong">BinaryLogFile get()</span></dt><dd>Returns the shared encoder for a log file path.</dd>
+ *     <dt><span class="strong">void write()</span></dt><dd>Encodes and appends an event.</dd>
+ * </dl>
+ */
+final class BinaryLogFile {
+    static final byte[] MAGIC = {'I', 'D', 'E', 'A', '-', 'L', 'O', 'G', 1, '\n'};  // name, format version, newline
+
+    // Record types; template IDs start at FIRST_TEMPLATE.
+    static final int DEFINE = 0;
+    static final int RESET = 1;
+    static final int FIRST_TEMPLATE = 16;
+    static final int END = '\n';
+
+    // Argument tags.
+    static final int NULL = 1;
+    static final int FALSE = 2;
+    static final int TRUE = 3;
+    static final int LONG = 4;  // zigzag varint
+    static final int SNOWFLAKE = 5;  // 8 bytes, rendered unsigned
+    static final int STRING = 6;  // varint length and UTF-8 bytes
+    static final int STRING_NEW = 7;  // same as STRING, and the next entry of the string dictionary
+    static final int STRING_REF = 8;  // varint index into the string dictionary
+
+    private static final int DICTIONARY_SIZE = 1024;  // strings remembered per file
+    private static final int DICTIONARY_LENGTH = 64;  // longer strings are never remembered
+    private static final int SNOWFLAKE_DIGITS = 15;  // shorter numbers are cheaper as varints
+
+    private static final Map<String, BinaryLogFile> open = new ConcurrentHashMap<>();
+
+    private final String path;
+
+    private RollingLogFile file = null;
+    private long generation = -1;  // generation of the file the state below belongs to
+    private final BitSet defined = new BitSet();
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private long last = 0;  // time of the previous record
+
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+
+    private BinaryLogFile(String path) {
+        this.path = path;
+    }
+
+    /**
+     * This method returns the encoder shared by everything that logs to the given path.
+     *
+     * @param path path of the binary log file
+     * @return shared encoder
+     */
+    static BinaryLogFile get(String path) {
+        BinaryLogFile encoder = open.get(path);
+
+        if (encoder == null) {
+            encoder = open.computeIfAbsent(path, BinaryLogFile::new);
+        }
+
+        return encoder;
+    }
+
+    /**
+     * This method encodes an event and appends it to the log file, preceded by the header, a RESET record and the
+     * template's definition whenever the file is new to this encoder.
+     *
+     * @param template template of the event
+     * @param millis time of the event in milliseconds since the epoch
+     * @param args arguments of the template (missing ones are written as null, extra ones are ignored)
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    synchronized void write(LogTemplate template, long millis, Object[] args) throws IOException {
+        RollingLogFile current = RollingLogFile.get(path);
+
+        synchronized (current) {
+            long opened = current.prepare();
+            length = 0;
+
+            if (current != file || opened != generation) {
+                file = current;
+                generation = opened;
+                defined.clear();
+                dictionary.clear();
+
+                if (current.length() == 0) {
+                    bytes(MAGIC);
+                } else {
+                    put(END);  // ends whatever the previous process left behind, complete or not
+                }
+
+                varint(RESET);
+                fixed(millis);
+                put(END);
+                last = millis;
+            }
+
+            if (!defined.get(template.getId())) {
+                define(template);
+            }
+
+            varint(template.getId());
+            varint(zigzag(millis - last));
+            last = millis;
+
+            for (int i = 0; i < template.getArity(); i++) {
+                argument(i < args.length ? args[i] : null);
+            }
+
+            put(END);
+            current.append(buffer, 0, length);
+        }
+    }
+
+    /**
+     * This method encodes the definition of a template.
+     *
+     * @param template template to define
+     */
+    private void define(LogTemplate template) {
+        varint(DEFINE);
+        varint(template.getId());
+        varint(template.getArity());
+        string(template.getLabel());
+        string(template.name());
+        string(template.getPattern());
+        put(END);
+
+        defined.set(template.getId());
+    }
+
+    /**
+     * This method encodes an argument with the smallest tag that renders back to the same text.
+     *
+     * @param arg argument
+     */
+    private void argument(Object arg) {
+        if (arg == null) {
+            put(NULL);
+        } else if (arg instanceof Boolean) {
+            put((Boolean) arg ? TRUE : FALSE);
+        } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+            put(LONG);
+            varint(zigzag(((Number) arg).longValue()));
+        } else {
+            String text = arg.toString();
+            int digits = digits(text);
+
+            if (digits >= SNOWFLAKE_DIGITS) {
+                put(SNOWFLAKE);
+                fixed(Long.parseUnsignedLong(text));
+            } else if (digits > 0) {
+                put(LONG);
+                varint(zigzag(Long.parseLong(text)));
+            } else {
+                dictionaryString(text);
+            }
+        }
+    }
+
+    /**
+     * This method encodes a string, through the string dictionary if it is short enough to be worth remembering.
+     *
+     * @param text string
+     */
+    private void dictionaryString(String text) {
+        Integer index = dictionary.get(text);
+
+        if (index != null) {
+            put(STRING_REF);
+            varint(index);
+        } else if (text.length() <= DICTIONARY_LENGTH && dictionary.size() < DICTIONARY_SIZE) {
+            dictionary.put(text, dictionary.size());
+            put(STRING_NEW);
+            string(text);
+        } else {
+            put(STRING);
+            string(text);
+        }
+    }
+
+    /**
+     * This method determines whether a string is a number that renders back exactly (no sign, no leading zero) and fits
+     * in an unsigned long.
+     *
+     * @param text string
+     * @return number of digits, or 0 if the string is not such a number
+     */
+    private static int digits(String text) {
+        int count = text.length();
+
+        if (count == 0 || count > 20 || (count > 1 && text.charAt(0) == '0')) {
+            return 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+        }
+
+        if (count == 20 && text.compareTo("18446744073709551615") > 0) {
+            return 0;  // beyond an unsigned long
+        }
+
+        return count;
+    }
+
+    /**
+     * This method maps signed values to unsigned ones so that small negative values stay short as varints.
+     *
+     * @param value signed value
+     * @return zigzag-encoded value
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void string(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        varint(bytes.length);
+        bytes(bytes);
+    }
+
+    private void varint(long value) {
+        ensure(10);
+
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        buffer[length++] = (byte) value;
+    }
+
+    private void fixed(long value) {
+        ensure(8);
+
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void bytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void put(int value) {
+        ensure(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void ensure(int count) {
+        if (length + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+    }
+}
@@ -22,9 +22,21 @@ package ideaengine.logging;
  *     <dt><span class="strong">USR_PATH</span></dt><dd>Provides the path to the user directory of this project.</dd>
  *     <dt><span class="strong">LOG_PATH</span></dt><dd>Provides the path to the logs directory of this project.</dd>
  *     <dt><span class="strong">EXT</span></dt><dd>Provides the extension for any generated log file.</dd>
+ *     <dt><span class="strong">BINARY_EXT</span></dt><dd>Provides the extension for binary log files.</dd>
  *     <dt><span class="strong">testLog</span></dt><dd>Provides the name of the test log file.</dd>
  *     <dt><span class="strong">databaseLog</span></dt><dd>Provides the name of the database log file.</dd>
  *     <dt><span class="strong">discordLog</span></dt><dd>Provides the name of the Discord log file.</dd>
+ *     <dt><span class="strong">MODE</span></dt><dd>Provides the logging mode (sync or async).</dd>
+ *     <dt><span class="strong">BUFFER</span></dt><dd>Provides the number of records the async ring buffer holds.</dd>
+ *     <dt><span class="strong">OVERFLOW</span></dt><dd>Provides the async overflow policy (block, drop or sample).</dd>
+ *     <dt><span class="strong">TIME_FORMAT</span></dt><dd>Provides the timestamp layout (seconds, millis or iso).</dd>
+ *     <dt><span class="strong">MAX_SIZE</span></dt><dd>Provides the size (in MiB) at which a log file is rotated.</dd>
+ *     <dt><span class="strong">MAX_AGE</span></dt><dd>Provides the age (in hours) at which a log file is rotated.</dd>
+ *     <dt><span class="strong">RETENTION</span></dt><dd>Provides the number of rotated log files that are kept.</dd>
+ *     <dt><span class="strong">GZIP</span></dt><dd>Provides whether rotated log files are compressed.</dd>
+ *     <dt><span class="strong">FORMAT</span></dt><dd>Provides the log file format (text or binary).</dd>
+ *     <dt><span class="strong">LEVEL</span></dt><dd>Provides the level thresholds (overall and per category).</dd>
+ *     <dt><span class="strong">SAMPLE</span></dt><dd>Provides the sample rates of high-frequency events.</dd>
  * </d>
  */
 public interface LogADT {
@@ -37,12 +49,34 @@ public interface LogADT {
 
     // The file extension for all log files.
     String EXT = ".txt";  // extension for text files
+    String BINARY_EXT = ".bin";  // extension for binary log files (read them with LogDecoder)
 
     // The names of all log files (with special directories included) that should be generated.
     String testLog = "test_log";
     String databaseLog = ("/dbms/database").replace("/", SEPARATOR);
     String discordLog = ("/discord/discord").replace("/", SEPARATOR);
 
+    // How log files are written (optional, logging is synchronous unless IDEA_LOG_MODE is set to 'async').
+    String MODE = System.getenv("IDEA_LOG_MODE");
+    String BUFFER = System.getenv("IDEA_LOG_BUFFER");
+    String OVERFLOW = System.getenv("IDEA_LOG_OVERFLOW");
+
+    // The layout of the date and time at the start of every log line (optional, defaults to 'seconds').
+    String TIME_FORMAT = System.getenv("IDEA_LOG_TIME");
+
+    // When log files are rotated and how many rotated files are kept (optional, sensible defaults are used).
+    String MAX_SIZE = System.getenv("IDEA_LOG_MAX_SIZE");
+    String MAX_AGE = System.getenv("IDEA_LOG_MAX_AGE");
+    String RETENTION = System.getenv("IDEA_LOG_RETENTION");
+    String GZIP = System.getenv("IDEA_LOG_GZIP");
+
+    // How log records are stored (optional, logs are plain text unless IDEA_LOG_FORMAT is set to 'binary').
+    String FORMAT = System.getenv("IDEA_LOG_FORMAT");
+
+    // Which events are logged (optional, e.g. 'info,dbms=debug' and 'databaseConnected=100'; defaults to 'info').
+    String LEVEL = System.getenv("IDEA_LOG_LEVEL");
+    String SAMPLE = System.getenv("IDEA_LOG_SAMPLE");
+
     /**
      * This method returns the path to the logs directory.
      *
@@ -77,4 +111,53 @@ public interface LogADT {
      * @return Discord log file name
      */
     String getDiscordLog();
+
+    /**
+     * This method determines whether log files are written asynchronously by a background thread.
+     *
+     * @return true if logging is asynchronous
+     */
+    boolean isAsync();
+
+    /**
+     * This method returns the number of records the asynchronous ring buffer can hold.
+     *
+     * @return ring buffer capacity
+     */
+    int getBufferSize();
+
+    /**
+     * This method returns the policy for records logged while the asynchronous ring buffer is full.
+     *
+     * @return overflow policy (block, drop or sample)
+     */
+    String getOverflow();
+
+    /**
+     * This method determines whether log files are written as compact binary template records instead of text.
+     *
+     * @return true if logs are binary
+     */
+    boolean isBinary();
+
+    /**
+     * This method returns the extension for binary log files.
+     *
+     * @return extension for binary log files
+     */
+    String getBinaryExtension();
+
+    /**
+     * This method returns the level thresholds events are filtered by when logging starts.
+     *
+     * @return comma-separated level (for every category) and category=level entries
+     */
+    String getLevels();
+
+    /**
+     * This method returns the sample rates of high-frequency events when logging starts.
+     *
+     * @return comma-separated event=rate entries (one out of every rate events is logged)
+     */
+    String getSampling();
 }
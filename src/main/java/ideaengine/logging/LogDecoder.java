@@ -0,0 +1,517 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The LogDecoder class renders binary logs (see BinaryLogFile) back to the same lines a text log would hold, optionally
+ * filtered by template, text or time. It reads rotated segments, gzipped or not, and takes the template definitions
+ * from the files themselves, so it also reads logs written by older versions of the engine. A log that was cut off
+ * (e.g. by a crash) is decoded up to the damage and picked up again at the next RESET record.
+ *
+ * Usage: <code>./gradlew decodeLogs -PlogArgs="[options] [files or directories]"</code> (directories are searched for
+ * .bin and .bin.gz files; the logs directory is used when none are given).
+ * <ul>
+ *     <li>--template NAME[,NAME...]: only events of these templates (e.g. DISCORD_USER_ADDED).</li>
+ *     <li>--contains TEXT: only events whose rendered text contains TEXT.</li>
+ *     <li>--from / --to "yyyy-MM-dd HH:mm:ss": only events in this time range.</li>
+ *     <li>--time seconds|millis|iso: timestamp layout (defaults to IDEA_LOG_TIME).</li>
+ *     <li>--stats: print the number of events and bytes per template instead of the events.</li>
+ * </ul>
+ *
+ * <dl>
+ *     <dt><span class="strong">void main()</span></dt><dd>Decodes the given binary logs to standard output.</dd>
+ *     <dt><span class="strong">int decode()</span></dt><dd>Decodes a single binary log.</dd>
+ * </dl>
+ */
+public final class LogDecoder {
+    private final Set<String> templates = new HashSet<>();  // empty for every template
+    private String contains = null;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private boolean stats = false;
+    private Timestamp timestamp = new Timestamp(Timestamp.Format.of(LogADT.TIME_FORMAT));
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final char[] time = new char[64];
+    private final Map<String, long[]> counts = new TreeMap<>();  // template name -> {events, bytes}
+
+    LogDecoder(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * This method decodes the given binary logs (or every binary log under the given directories) in order.
+     *
+     * @param args options followed by files or directories
+     * @throws IOException unable to read a log
+     */
+    public static void main(String[] args) throws IOException {
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        LogDecoder decoder = new LogDecoder(out, System.err);
+        List<Path> paths = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+
+                if (!arg.startsWith("--")) {
+                    paths.addAll(logs(Paths.get(arg)));
+                } else if (arg.equals("--stats")) {
+                    decoder.stats = true;
+                } else if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(arg + " needs a value.");
+                } else {
+                    decoder.option(arg, args[++i]);
+                }
+            }
+
+            if (paths.isEmpty() && Files.isDirectory(Paths.get(LogADT.LOG_PATH))) {
+                paths.addAll(logs(Paths.get(LogADT.LOG_PATH)));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LogDecoder [--template NAME[,NAME...]] [--contains TEXT] "
+                    + "[--from \"yyyy-MM-dd HH:mm:ss\"] [--to \"yyyy-MM-dd HH:mm:ss\"] [--time seconds|millis|iso] "
+                    + "[--stats] [files or directories]");
+            System.exit(2);
+        }
+
+        for (Path path : paths) {
+            decoder.decode(path);
+        }
+
+        if (decoder.stats) {
+            decoder.printStats();
+        }
+
+        out.flush();
+    }
+
+    /**
+     * This method applies an option that takes a value.
+     *
+     * @param name option name
+     * @param value option value
+     */
+    private void option(String name, String value) {
+        switch (name) {
+            case "--template":
+                for (String template : value.split(",")) {
+                    templates.add(template.trim().toUpperCase(Locale.US));
+                }
+                break;
+            case "--contains":
+                contains = value;
+                break;
+            case "--from":
+                from = time(value);
+                break;
+            case "--to":
+                to = time(value);
+                break;
+            case "--time":
+                timestamp = new Timestamp(Timestamp.Format.of(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name + ".");
+        }
+    }
+
+    /**
+     * This method decodes a single binary log, gzipped or not, and prints (or counts) the events that pass the filters.
+     *
+     * @param path path of the binary log
+     * @return number of events that passed the filters
+     * @throws IOException unable to read the log
+     */
+    int decode(Path path) throws IOException {
+        byte[] bytes = read(path);
+        Reader reader = new Reader(bytes);
+        Map<Integer, Definition> definitions = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        long last = 0;
+        int matched = 0;
+
+        if (!reader.startsWith(BinaryLogFile.MAGIC)) {
+            if (bytes.length > 0 && bytes[0] != 0) {
+                err.println(path + ": not a binary log.");
+            }
+
+            return 0;
+        }
+
+        while (reader.position < bytes.length) {
+            int start = reader.position;
+
+            if (reader.isPadding()) {
+                break;  // the unused rest of a mapped region
+            }
+
+            if (bytes[start] == BinaryLogFile.END) {
+                reader.position++;  // an empty record, written ahead of the RESET of a reopened file
+                continue;
+            }
+
+            try {
+                long type = reader.varint();
+
+                if (type == BinaryLogFile.DEFINE) {
+                    int id = (int) reader.varint();
+                    int arity = (int) reader.varint();
+                    String label = reader.string();
+                    String name = reader.string();
+                    String pattern = reader.string();
+
+                    if (id < BinaryLogFile.FIRST_TEMPLATE || arity < 0) {
+                        throw new IllegalStateException("bad definition of template " + id);
+                    }
+
+                    reader.end();
+                    definitions.put(id, new Definition(name, label, pattern, arity));
+                } else if (type == BinaryLogFile.RESET) {
+                    last = reader.fixed();
+                    reader.end();
+                    dictionary.clear();
+                } else {
+                    Definition definition = definitions.get((int) type);
+
+                    if (definition == null) {
+                        throw new IllegalStateException("undefined template " + type);
+                    }
+
+                    long millis = last + unzigzag(reader.varint());
+                    Object[] args = new Object[definition.arity];
+
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = reader.argument(dictionary);
+                    }
+
+                    reader.end();
+                    last = millis;
+
+                    if (accept(definition, millis, args, reader.position - start)) {
+                        matched++;
+                    }
+                }
+            } catch (IllegalStateException | IndexOutOfBoundsException e) {
+                int next = reader.resync(start + 1);
+
+                err.println(path + ": damaged record at byte " + start + " (" + e.getMessage() + "), "
+                        + (next < 0 ? "skipped the rest of the file." : "skipped " + (next - start) + " bytes."));
+
+                if (next < 0) {
+                    break;
+                }
+
+                reader.position = next;
+            }
+        }
+
+        return matched;
+    }
+
+    /**
+     * This method applies the filters to an event and prints (or counts) it.
+     *
+     * @param definition template of the event
+     * @param millis time of the event
+     * @param args arguments of the event
+     * @param size bytes of the encoded event
+     * @return true if the event passed the filters
+     */
+    private boolean accept(Definition definition, long millis, Object[] args, int size) {
+        if (millis < from || millis > to || (!templates.isEmpty() && !templates.contains(definition.name))) {
+            return false;
+        }
+
+        String text = LogTemplate.render(definition.pattern, args);
+
+        if (contains != null && !text.contains(contains)) {
+            return false;
+        }
+
+        if (stats) {
+            long[] count = counts.computeIfAbsent(definition.name, name -> new long[2]);
+            count[0]++;
+            count[1] += size;
+        } else {
+            int length = timestamp.formatTo(millis, time, 0);
+            out.append(new String(time, 0, length)).append(definition.label).append(text).append('\n');
+        }
+
+        return true;
+    }
+
+    /**
+     * This method prints the number of events and bytes per template, most frequent first.
+     */
+    private void printStats() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(counts.entrySet());
+        long events = 0;
+        long bytes = 0;
+
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        for (Map.Entry<String, long[]> entry : entries) {
+            long[] count = entry.getValue();
+            events += count[0];
+            bytes += count[1];
+
+            out.printf(Locale.US, "%-28s %12d events %14d bytes %8.1f bytes/event%n", entry.getKey(), count[0],
+                    count[1], (double) count[1] / count[0]);
+        }
+
+        out.printf(Locale.US, "%-28s %12d events %14d bytes%n", "total", events, bytes);
+    }
+
+    /**
+     * This method lists the binary logs of a path: the path itself if it is a file, otherwise every .bin and .bin.gz
+     * file below it in name order (rotated segments sort before the active file).
+     *
+     * @param path file or directory
+     * @return binary logs
+     * @throws IOException unable to list the directory
+     */
+    private static List<Path> logs(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.endsWith(LogADT.BINARY_EXT) || name.endsWith(LogADT.BINARY_EXT + ".gz");
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * This method reads a whole log, decompressing it if it is gzipped.
+     *
+     * @param path path of the log
+     * @return contents of the log
+     * @throws IOException unable to read the log
+     */
+    private static byte[] read(Path path) throws IOException {
+        if (!path.getFileName().toString().endsWith(".gz")) {
+            return Files.readAllBytes(path);
+        }
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path), 1 << 16)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * This method parses a date and time given on the command line.
+     *
+     * @param text "yyyy-MM-dd HH:mm:ss" (or "yyyy-MM-dd") in the default time zone
+     * @return milliseconds since the epoch
+     */
+    private static long time(String text) {
+        String pattern = text.trim().length() > 10 ? "yyyy-MM-dd HH:mm:ss" : "yyyy-MM-dd";
+
+        try {
+            return new SimpleDateFormat(pattern, Locale.US).parse(text.trim()).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Cannot read the time \"" + text + "\", use yyyy-MM-dd HH:mm:ss.");
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * The Definition class is a template as it was defined in a binary log.
+     */
+    private static final class Definition {
+        private final String name;
+        private final String label;
+        private final String pattern;
+        private final int arity;
+
+        private Definition(String name, String label, String pattern, int arity) {
+            this.name = name;
+            this.label = label;
+            this.pattern = pattern;
+            this.arity = arity;
+        }
+    }
+
+    /**
+     * The Reader class reads the values of a binary log; it throws IllegalStateException (or IndexOutOfBounds) on
+     * anything malformed.
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        private Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            if (bytes.length < prefix.length) {
+                return false;
+            }
+
+            for (int i = 0; i < prefix.length; i++) {
+                if (bytes[i] != prefix[i]) {
+                    return false;
+                }
+            }
+
+            position = prefix.length;
+            return true;
+        }
+
+        private boolean isPadding() {
+            for (int i = position; i < bytes.length; i++) {
+                if (bytes[i] != 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private long varint() {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalStateException("varint too long");
+        }
+
+        private long fixed() {
+            long value = 0;
+
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+
+            return value;
+        }
+
+        private String string() {
+            long length = varint();
+
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalStateException("string runs past the end");
+            }
+
+            String text = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+
+            return text;
+        }
+
+        private Object argument(List<String> dictionary) {
+            int tag = bytes[position++];
+
+            switch (tag) {
+                case BinaryLogFile.NULL:
+                    return null;
+                case BinaryLogFile.FALSE:
+                    return Boolean.FALSE;
+                case BinaryLogFile.TRUE:
+                    return Boolean.TRUE;
+                case BinaryLogFile.LONG:
+                    return unzigzag(varint());
+                case BinaryLogFile.SNOWFLAKE:
+                    return Long.toUnsignedString(fixed());
+                case BinaryLogFile.STRING:
+                    return string();
+                case BinaryLogFile.STRING_NEW:
+                    String text = string();
+                    dictionary.add(text);
+                    return text;
+                case BinaryLogFile.STRING_REF:
+                    long index = varint();
+
+                    if (index < 0 || index >= dictionary.size()) {
+                        throw new IllegalStateException("unknown string " + index);
+                    }
+
+                    return dictionary.get((int) index);
+                default:
+                    throw new IllegalStateException("unknown argument tag " + tag);
+            }
+        }
+
+        private void end() {
+            if (bytes[position++] != BinaryLogFile.END) {
+                throw new IllegalStateException("record is not terminated");
+            }
+        }
+
+        /**
+         * This method finds the next RESET record at or after a position, which is where decoding can safely resume.
+         *
+         * @param from first position to look at
+         * @return position of the RESET record, or -1 if there is none
+         */
+        private int resync(int from) {
+            for (int i = Math.max(1, from); i + 9 < bytes.length; i++) {
+                if (bytes[i - 1] == BinaryLogFile.END && bytes[i] == BinaryLogFile.RESET
+                        && bytes[i + 9] == BinaryLogFile.END) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
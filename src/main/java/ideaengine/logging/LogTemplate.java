@@ -0,0 +1,262 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import ideaengine.logging.Logger.Category;
+import ideaengine.logging.Logger.Level;
+
+/**
+ * The LogTemplate enum registers every kind of event the Logger writes. A template is the fixed part of a log line,
+ * with a {} where each argument goes, so text logs render it and binary logs (see BinaryLogFile) only store its ID and
+ * the arguments. IDs are written into binary logs and must never be reused or renumbered; a retired template keeps its
+ * ID reserved. IDs below 16 are reserved for the binary format itself. Whether an event is logged at all depends on its
+ * category and level (see Logger.setLevel()); the label stays what the line has always shown.
+ *
+ * <dl>
+ *     <dt><span class="strong">File</span></dt><dd>Log file a template is written to.</dd>
+ *     <dt><span class="strong">Label</span></dt><dd>Label that follows the date and time of a line.</dd>
+ *     <dt><span class="strong">int getId()</span></dt><dd>Returns the stable ID of the template.</dd>
+ *     <dt><span class="strong">File getFile()</span></dt><dd>Returns the log file the template is written to.</dd>
+ *     <dt><span class="strong">Category getCategory()</span></dt><dd>Returns the category of the template.</dd>
+ *     <dt><span class="strong">Level getLevel()</span></dt><dd>Returns the level of the template.</dd>
+ *     <dt><span class="strong">String getLabel()</span></dt><dd>Returns the label of the template's lines.</dd>
+ *     <dt><span class="strong">String getPattern()</span></dt><dd>Returns the text with a {} per argument.</dd>
+ *     <dt><span class="strong">int getArity()</span></dt><dd>Returns the number of arguments.</dd>
+ *     <dt><span class="strong">String render()</span></dt><dd>Renders a pattern with its arguments.</dd>
+ * </dl>
+ */
+enum LogTemplate {
+    DATABASE_FIRST_CONNECT(16, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Connected to the Idea Network."),
+    DATABASE_DISCONNECT(17, File.DATABASE, Category.DBMS, Level.DEBUG, Label.INFO,
+            "Disconnected from the Idea Network."),
+    DATABASE_CONNECTED(18, File.DATABASE, Category.DBMS, Level.DEBUG, Label.INFO,
+            "Connected to the Idea Network."),
+    DATABASE_USER_ADDED(19, File.DATABASE, Category.DBMS, Level.INFO, Label.IDEA,
+            "Added {} to the {} table!"),
+    DATABASE_SERVER_ADDED(20, File.DATABASE, Category.DBMS, Level.INFO, Label.IDEA,
+            "Added {} to the {} table!"),
+    DATABASE_WARM_UP(21, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Loaded {} rows from the {} table ({} rows/sec)."),
+    DATABASE_WARMED_UP(22, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Finished loading {} rows from the {} table in {} ms."),
+    DATABASE_SNAPSHOT_LOADED(23, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Restored {} known ID's of the {} table ({} newer than the snapshot) in {} ms."),
+    DATABASE_SNAPSHOT_SAVED(24, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Saved {} known ID's of the {} table ({} bytes) in {} ms."),
+    DATABASE_STORE_OPENED(25, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Opened the embedded store in {} with {} users, {} servers and {} conversation contexts in {} ms."),
+    DATABASE_STORE_RECOVERED(26, File.DATABASE, Category.DBMS, Level.WARN, Label.INFO,
+            "Opened the embedded store in {} with {} users, {} servers and {} conversation contexts in {} ms (cut "
+                    + "off {} bytes of an incomplete write)."),
+    DATABASE_STORE_COMPACTED(27, File.DATABASE, Category.DBMS, Level.INFO, Label.INFO,
+            "Compacted {} from {} to {} bytes in {} ms."),
+    STARTUP_STEP_SKIPPED(28, File.TEST, Category.STARTUP, Level.INFO, Label.INFO,
+            "Startup step {} was skipped."),
+    STARTUP_STEP_FINISHED(29, File.TEST, Category.STARTUP, Level.INFO, Label.INFO,
+            "Startup step {} finished after {} ms (started at +{} ms)."),
+    STARTUP_STEP_FAILED(30, File.TEST, Category.STARTUP, Level.WARN, Label.INFO,
+            "Startup step {} failed after {} ms (started at +{} ms)."),
+    STARTUP_FINISHED(31, File.TEST, Category.STARTUP, Level.INFO, Label.INFO,
+            "Started {} steps in {} ms."),
+    DISCORD_CONNECTED(32, File.DISCORD, Category.DISCORD, Level.INFO, Label.INFO,
+            "Establishing a connection to Discord..."),
+    DISCORD_DISPATCHER(33, File.DISCORD, Category.DISCORD, Level.INFO, Label.INFO,
+            "Handling events on {} {} thread lanes."),
+    DISCORD_SHARDS(34, File.DISCORD, Category.DISCORD, Level.INFO, Label.INFO,
+            "Running shards {} to {} of {}."),
+    DISCORD_USER_ADDED(35, File.DISCORD, Category.DISCORD, Level.INFO, Label.IDEA,
+            "Added {} (user) to the Idea Network!"),
+    DISCORD_SERVER_ADDED(36, File.DISCORD, Category.DISCORD, Level.INFO, Label.IDEA,
+            "Added {} (server) to the Idea Network!"),
+    CONVERSATION_ANSWERED(37, File.DISCORD, Category.CONVERSATION, Level.DEBUG, Label.IDEA,
+            "Answered user {} in server {} with the \"{}\" intent."),
+    DATABASE_WARMED_UP_SKIPPED(38, File.DATABASE, Category.DBMS, Level.WARN, Label.INFO,
+            "Finished loading {} rows from the {} table in {} ms (skipped {} malformed ID's).");
+
+    /**
+     * The File enum lists the log files templates are written to.
+     */
+    enum File { TEST, DATABASE, DISCORD }
+
+    /**
+     * The Label enum lists the labels that follow the date and time of a line: INFO is an all-purpose, general logging
+     * event and IDEA is an event that is being handled by IDEA.
+     */
+    enum Label {
+        INFO(" [INFO]: "),
+        IDEA(" [IDEA]: ");
+
+        private final String text;
+
+        Label(String text) {
+            this.text = text;
+        }
+
+        /**
+         * This method returns the label as it appears in a log line.
+         *
+         * @return label text (with its surrounding spaces)
+         */
+        String getText() {
+            return text;
+        }
+    }
+
+    private static final LogTemplate[] byId = new LogTemplate[64];
+
+    static {
+        for (LogTemplate template : values()) {
+            if (byId[template.id] != null) {
+                throw new ExceptionInInitializerError("Log template ID " + template.id + " is used twice.");
+            }
+
+            byId[template.id] = template;
+        }
+    }
+
+    private final int id;
+    private final File file;
+    private final Category category;
+    private final Level level;
+    private final Label label;
+    private final String pattern;
+    private final int arity;
+
+    LogTemplate(int id, File file, Category category, Level level, Label label, String pattern) {
+        this.id = id;
+        this.file = file;
+        this.category = category;
+        this.level = level;
+        this.label = label;
+        this.pattern = pattern;
+
+        int count = 0;
+
+        for (int i = pattern.indexOf("{}"); i >= 0; i = pattern.indexOf("{}", i + 2)) {
+            count++;
+        }
+
+        this.arity = count;
+    }
+
+    /**
+     * This method returns the template with a given ID.
+     *
+     * @param id template ID
+     * @return template, or null if no template has that ID
+     */
+    static LogTemplate of(int id) {
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /**
+     * This method returns the stable ID that identifies the template in binary logs.
+     *
+     * @return template ID
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * This method returns the log file the template is written to.
+     *
+     * @return log file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * This method returns the category whose threshold decides whether the template is logged.
+     *
+     * @return category
+     */
+    Category getCategory() {
+        return category;
+    }
+
+    /**
+     * This method returns the level of the template's events.
+     *
+     * @return level
+     */
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * This method returns the label of the template's lines.
+     *
+     * @return label text
+     */
+    String getLabel() {
+        return label.getText();
+    }
+
+    /**
+     * This method returns the text of the template with a {} where each argument goes.
+     *
+     * @return pattern
+     */
+    String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * This method returns the number of arguments the template takes.
+     *
+     * @return number of arguments
+     */
+    int getArity() {
+        return arity;
+    }
+
+    /**
+     * This method renders the template with its arguments.
+     *
+     * @param args arguments, one per {}
+     * @return rendered text
+     */
+    String render(Object... args) {
+        return render(pattern, args);
+    }
+
+    /**
+     * This method renders a pattern with its arguments. Missing arguments leave their {} in place, and extra arguments
+     * are ignored.
+     *
+     * @param pattern text with a {} where each argument goes
+     * @param args arguments
+     * @return rendered text
+     */
+    static String render(String pattern, Object[] args) {
+        StringBuilder text = new StringBuilder(pattern.length() + 16 * args.length);
+        int from = 0;
+
+        for (Object arg : args) {
+            int at = pattern.indexOf("{}", from);
+
+            if (at < 0) {
+                break;
+            }
+
+            text.append(pattern, from, at).append(arg);
+            from = at + 2;
+        }
+
+        return text.append(pattern, from, pattern.length()).toString();
+    }
+}
@@ -13,64 +13,138 @@
  * ****************************************************************************************************************** */
 package ideaengine.logging;
 
-import java.io.BufferedWriter;
+import ideaengine.metrics.Counter;
+import ideaengine.metrics.Metrics;
+
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * The Logger class handles the overall logging system for the IDEA engine. Ensure that you have a resources directory
  * located in 'src/main' along with a 'logs' directory located in the 'resources' directory. It may or may not
  * automatically create these directories depending on your operating system.
  *
+ * Every event has a category and a level. Events below the threshold of their category, or skipped by the sample rate
+ * of their event, cost a single branch: arguments are neither boxed nor formatted. Thresholds and sample rates start
+ * out from IDEA_LOG_LEVEL and IDEA_LOG_SAMPLE and can be changed while the engine runs. All Loggers share the same
+ * state, so callers should use the shared Logger (get()) rather than create one per operation.
+ *
  * <d>
- *     <dt><span class="strong">date</span></dt><dd>Stores the current date and time into this variable.</dd>
- *     <dt><span class="strong">dateFormat</span></dt><dd>Formats the current date and time into a readable format.</dd>
+ *     <dt><span class="strong">Level</span></dt><dd>Levels of events, from the most to the least detailed.</dd>
+ *     <dt><span class="strong">Category</span></dt><dd>Categories that have their own threshold.</dd>
+ *     <dt><span class="strong">clock</span></dt><dd>Formats the current date and time (cached per second).</dd>
  *     <dt><span class="strong">strDate</span></dt><dd>Formats the current date and time into a string.</dd>
  *     <dt><span class="strong">INFO</span></dt><dd>INFO label is an all-purpose, general logging event.</dd>
- *     <dt><span class="strong">IDEA</span></dt><dd>IDEA label is an event that is being handled by IDEA.</dd>
  *     <dt><span class="strong">Logger()</span></dt><dd>Constructor that outputs a simple test log file.</dd>
+ *     <dt><span class="strong">Logger get()</span></dt><dd>Returns the Logger shared by the whole engine.</dd>
+ *     <dt><span class="strong">void setLevel()</span></dt><dd>Sets the threshold of a category at runtime.</dd>
+ *     <dt><span class="strong">Level getLevel()</span></dt><dd>Returns the threshold of a category.</dd>
+ *     <dt><span class="strong">boolean setSampling()</span></dt><dd>Logs one out of every N events of a kind.</dd>
+ *     <dt><span class="strong">boolean isEnabled()</span></dt><dd>Returns whether a category logs a level.</dd>
  *     <dt><span class="strong">void databaseFirstConnect()</span></dt><dd>Logs database's first connection.</dd>
  *     <dt><span class="strong">void databaseConnected()</span></dt><dd>Logs database's successful connection.</dd>
  *     <dt><span class="strong">void databaseDisconnect()</span></dt><dd>Logs database's first disconnection.</dd>
  *     <dt><span class="strong">void databaseUserAdded()</span></dt><dd>Logs when a user is added to the database.</dd>
  *     <dt><span class="strong">void databaseServerAdded()</span></dt><dd>Logs when a server is added to the DB.</dd>
+ *     <dt><span class="strong">void databaseWarmUp()</span></dt><dd>Logs the progress of loading known ID's.</dd>
+ *     <dt><span class="strong">void databaseWarmedUp()</span></dt><dd>Logs when known ID's are done loading.</dd>
+ *     <dt><span class="strong">void databaseSnapshotLoaded()</span></dt><dd>Logs a known-ID snapshot being loaded.</dd>
+ *     <dt><span class="strong">void databaseSnapshotSaved()</span></dt><dd>Logs a known-ID snapshot being saved.</dd>
+ *     <dt><span class="strong">void databaseStoreOpened()</span></dt><dd>Logs the embedded store being opened.</dd>
+ *     <dt><span class="strong">void databaseStoreCompacted()</span></dt><dd>Logs an embedded store compaction.</dd>
+ *     <dt><span class="strong">void startupStep()</span></dt><dd>Logs how long a startup step took.</dd>
+ *     <dt><span class="strong">void startupFinished()</span></dt><dd>Logs how long the whole startup took.</dd>
  *     <dt><span class="strong">void discordConnected()</span></dt><dd>Logs attempt at connecting to Discord.</dd>
+ *     <dt><span class="strong">void discordDispatcher()</span></dt><dd>Logs how Discord events are handled.</dd>
+ *     <dt><span class="strong">void discordShards()</span></dt><dd>Logs which shards this process runs.</dd>
  *     <dt><span class="strong">void discordUserAdded()</span></dt><dd>Logs when a Discord user is added to DB.</dd>
  *     <dt><span class="strong">void discordServerAdded()</span></dt><dd>Logs when a Discord server is added to DB.</dd>
+ *     <dt><span class="strong">void conversationAnswered()</span></dt><dd>Logs a message IDEA answered.</dd>
  *     <dt><span class="strong">String getPath()</span></dt><dd>Returns the path to the logs directory.</dd>
  *     <dt><span class="strong">String getExtension()</span></dt><dd>Returns the extension for all log files.</dd>
  *     <dt><span class="strong">String getTestLog</span></dt><dd>Returns the file name of the test log.</dd>
  *     <dt><span class="strong">String getDatabaseLog</span></dt><dd>Returns the file name of the database log.</dd>
  *     <dt><span class="strong">String getDiscordLog</span></dt><dd>Returns the file name of the Discord log.</dd>
- *     <dt><span class="strong">String updateDate()</span></dt><dd>Updates the current date and time.</dd>
+ *     <dt><span class="strong">boolean isAsync()</span></dt><dd>Returns whether logging is asynchronous.</dd>
+ *     <dt><span class="strong">int getBufferSize()</span></dt><dd>Returns the async ring buffer capacity.</dd>
+ *     <dt><span class="strong">String getOverflow()</span></dt><dd>Returns the async overflow policy.</dd>
+ *     <dt><span class="strong">boolean isBinary()</span></dt><dd>Returns whether logs are binary.</dd>
+ *     <dt><span class="strong">String getBinaryExtension()</span></dt><dd>Returns the binary log extension.</dd>
+ *     <dt><span class="strong">String getLevels()</span></dt><dd>Returns the configured level thresholds.</dd>
+ *     <dt><span class="strong">String getSampling()</span></dt><dd>Returns the configured sample rates.</dd>
+ *     <dt><span class="strong">int getQueueDepth()</span></dt><dd>Returns the number of unwritten async records.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Writes pending async records and closes all files.</dd>
+ *     <dt><span class="strong">boolean enabled()</span></dt><dd>Decides whether an event is logged.</dd>
+ *     <dt><span class="strong">void log()</span></dt><dd>Writes an event as text or as a binary record.</dd>
+ *     <dt><span class="strong">String line()</span></dt><dd>Renders an event as a text log line.</dd>
+ *     <dt><span class="strong">String getLog()</span></dt><dd>Returns the file name of a template's log.</dd>
  * </d>
  */
 public class Logger implements LogADT {
-    // Get a string format of the current date and time (this will need to be updated via a method each time).
-    private Date date = Calendar.getInstance().getTime();
-    private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-    private String strDate = dateFormat.format(date);
+    /**
+     * The Level enum lists the levels of events, from the most to the least detailed. A category logs the events at or
+     * above its threshold; OFF as a threshold logs nothing.
+     */
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    /**
+     * The Category enum lists the parts of the engine that have their own threshold.
+     */
+    public enum Category { DBMS, DISCORD, CONVERSATION, STARTUP }
+
+    private static volatile AsyncLogWriter writer = null;  // shared by every Logger when logging asynchronously
+    private static volatile boolean stopped = false;
+
+    static {
+        Metrics.gauge("idea_log_queue_depth", "Log records waiting for the asynchronous writer.",
+                Logger::getQueueDepth);
+    }
+
+    private static final Counter SAMPLED_OUT = Metrics.counter("idea_log_sampled_out_total",
+            "Log events skipped by their sample rate.");
+
+    // Shared by every Logger; re-renders the date and time only once per second.
+    private static final Timestamp clock = new Timestamp(Timestamp.Format.of(TIME_FORMAT));
+
+    // Thresholds and sample rates (guarded by Logger.class), compiled into one rate per template: 0 skips the template,
+    // 1 logs every event and N logs one out of every N. The compiled array is replaced, never changed, on updates.
+    private static volatile Level[] levels = new Level[Category.values().length];
+    private static final int[] samples = new int[LogTemplate.values().length];
+    private static volatile int[] rates = new int[LogTemplate.values().length];
+    private static final AtomicLongArray sampled = new AtomicLongArray(LogTemplate.values().length);
+
+    private static final Logger shared;
+
+    static {
+        Arrays.fill(levels, Level.INFO);  // until configure() applies IDEA_LOG_LEVEL
+        Arrays.fill(samples, 1);
+        compile();
+        shared = new Logger();
+        configure(shared.getLevels(), shared.getSampling());
+    }
+
+    // Get a string format of the current date and time (for the test log, events are dated when they are logged).
+    private String strDate = clock.now();
 
-    // Signal where the log message is coming from.
+    // Signal where the log message is coming from (see LogTemplate for the labels of every other message).
     private final String INFO = " [INFO]: ";
-    private final String IDEA = " [IDEA]: ";
 
     /**
      * The Logger constructor initializes the logging system and outputs a simple test log file to ensure that writing
-     * to files is achievable on this operating system. Set the parameter to FALSE if you do not want to run a test log
+     * to files is achievable on this operating system. The check is appended to the test log like any other line, so
+     * the startup events of earlier runs are kept. Set the parameter to FALSE if you do not want to run a test log
      * file check.
      *
      * @param check boolean parameter to determine if a test log should be generated
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public Logger(boolean check) throws IOException {
+        this();
+
         if (check) {
             String TEST_LOG = getPath() + getTestLog() + getExtension();  // test_log.txt
 
@@ -78,12 +152,87 @@ public class Logger implements LogADT {
             // @holo-wolf (https://github.com/holo-wolf)
             createLog(getPath(), getTestLog() + getExtension());
 
-            BufferedWriter file = new BufferedWriter(new FileWriter(TEST_LOG));
-            file.write(strDate + INFO + "Test log successfully generated.");
-            file.close();
+            RollingLogFile.get(TEST_LOG).write("\n" + strDate + INFO + "Test log successfully generated.");
         }
     }
 
+    /**
+     * The Logger constructor for the shared Logger, which skips the test log file check.
+     */
+    private Logger() {
+    }
+
+    /**
+     * This method returns the Logger shared by the whole engine. A Logger keeps no state of its own, so there is no
+     * need to create one per operation.
+     *
+     * @return shared Logger
+     */
+    public static Logger get() {
+        return shared;
+    }
+
+    /**
+     * This method sets the threshold of a category while the engine runs: events of the category below the level are
+     * skipped from now on.
+     *
+     * @param category category of events
+     * @param level lowest level that is logged (OFF skips every event of the category)
+     */
+    public static synchronized void setLevel(Category category, Level level) {
+        Level[] next = levels.clone();
+        next[category.ordinal()] = level;
+        levels = next;
+        compile();
+    }
+
+    /**
+     * This method returns the threshold of a category.
+     *
+     * @param category category of events
+     * @return lowest level that is logged
+     */
+    public static Level getLevel(Category category) {
+        return levels[category.ordinal()];
+    }
+
+    /**
+     * This method samples a kind of event while the engine runs, so that only one out of every rate events is logged
+     * (events below their category's threshold stay skipped).
+     *
+     * @param event template name (e.g. DATABASE_CONNECTED, as listed by LogDecoder --stats) or the Logger method that
+     *              logs it (e.g. databaseConnected)
+     * @param rate one out of every rate events is logged (1 logs every event)
+     * @return false if no event has that name
+     */
+    public static synchronized boolean setSampling(String event, int rate) {
+        String name = event.replace("_", "").trim().toUpperCase(Locale.US);
+        boolean found = false;
+
+        for (LogTemplate template : LogTemplate.values()) {
+            if (template.name().replace("_", "").equals(name)) {
+                samples[template.ordinal()] = Math.max(1, rate);
+                found = true;
+            }
+        }
+
+        compile();
+
+        return found;
+    }
+
+    /**
+     * This method determines whether a category logs events of a level, so that callers can skip work that only
+     * serves a log line.
+     *
+     * @param category category of events
+     * @param level level of the event
+     * @return true if events of the level are logged (subject to sampling)
+     */
+    public static boolean isEnabled(Category category, Level level) {
+        return level != Level.OFF && level.compareTo(getLevel(category)) >= 0;
+    }
+
     /**
      * This method logs a successful first-time connection attempt to the Idea Network (database that is powered by
      * PostgreSQL 12).
@@ -91,16 +240,13 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void databaseFirstConnect() throws IOException {
-        strDate = updateDate();
-        String DATABASE_LOG = getPath() + getDatabaseLog() + getExtension();  // dbms/database.txt
-
         // fix -- see javadoc for details
         // @holo-wolf (https://github.com/holo-wolf)
         createLog(getPath(), getDatabaseLog() + getExtension());
 
-        BufferedWriter file = new BufferedWriter(new FileWriter(DATABASE_LOG));
-        file.write(strDate + INFO + "Connected to the Idea Network.");
-        file.close();
+        if (enabled(LogTemplate.DATABASE_FIRST_CONNECT)) {
+            log(LogTemplate.DATABASE_FIRST_CONNECT);
+        }
     }
 
     /**
@@ -110,13 +256,9 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void databaseDisconnect() throws IOException {
-        strDate = updateDate();
-        String DATABASE_LOG = getPath() + getDatabaseLog() + getExtension();  // dbms/database.txt
-
-        FileWriter db = new FileWriter(DATABASE_LOG, true);
-        BufferedWriter file = new BufferedWriter(db);
-        file.write("\n" + strDate + INFO + "Disconnected from the Idea Network.");
-        file.close();
+        if (enabled(LogTemplate.DATABASE_DISCONNECT)) {
+            log(LogTemplate.DATABASE_DISCONNECT);
+        }
     }
 
     /**
@@ -125,13 +267,9 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void databaseConnected() throws IOException {
-        strDate = updateDate();
-        String DATABASE_LOG = getPath() + getDatabaseLog() + getExtension();  // dbms/database.txt
-
-        FileWriter db = new FileWriter(DATABASE_LOG, true);
-        BufferedWriter file = new BufferedWriter(db);
-        file.write("\n" + strDate + INFO + "Connected to the Idea Network.");
-        file.close();
+        if (enabled(LogTemplate.DATABASE_CONNECTED)) {
+            log(LogTemplate.DATABASE_CONNECTED);
+        }
     }
 
     /**
@@ -142,13 +280,9 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void databaseUserAdded(String userID, String table) throws IOException {
-        strDate = updateDate();
-        String DATABASE_LOG = getPath() + getDatabaseLog() + getExtension();  // dbms/database.txt
-
-        FileWriter db = new FileWriter(DATABASE_LOG, true);
-        BufferedWriter file = new BufferedWriter(db);
-        file.write("\n" + strDate + IDEA + "Added " + userID + " to the " + table + " table!");
-        file.close();
+        if (enabled(LogTemplate.DATABASE_USER_ADDED)) {
+            log(LogTemplate.DATABASE_USER_ADDED, userID, table);
+        }
     }
 
     /**
@@ -159,13 +293,158 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void databaseServerAdded(String serverID, String table) throws IOException {
-        strDate = updateDate();
-        String DATABASE_LOG = getPath() + getDatabaseLog() + getExtension();  // dbms/database.txt
+        if (enabled(LogTemplate.DATABASE_SERVER_ADDED)) {
+            log(LogTemplate.DATABASE_SERVER_ADDED, serverID, table);
+        }
+    }
+
+    /**
+     * This method logs the progress of loading known identification strings from the Idea Network database.
+     *
+     * @param table name of table in database
+     * @param rows number of rows loaded so far
+     * @param rowsPerSecond rows loaded per second since the previous progress report
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseWarmUp(String table, long rows, long rowsPerSecond) throws IOException {
+        if (enabled(LogTemplate.DATABASE_WARM_UP)) {
+            log(LogTemplate.DATABASE_WARM_UP, rows, table, rowsPerSecond);
+        }
+    }
 
-        FileWriter db = new FileWriter(DATABASE_LOG, true);
-        BufferedWriter file = new BufferedWriter(db);
-        file.write("\n" + strDate + IDEA + "Added " + serverID + " to the " + table + " table!");
-        file.close();
+    /**
+     * This method logs that all known identification strings have been loaded from the Idea Network database.
+     *
+     * @param table name of table in database
+     * @param rows total number of rows loaded
+     * @param millis time taken to load every row
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseWarmedUp(String table, long rows, long millis) throws IOException {
+        databaseWarmedUp(table, rows, 0, millis);
+    }
+
+    /**
+     * This method logs that all known identification strings have been loaded from the Idea Network database, and how
+     * many rows were skipped because they did not hold a valid identification string.
+     *
+     * @param table name of table in database
+     * @param rows total number of rows loaded
+     * @param skipped number of malformed rows that were skipped
+     * @param millis time taken to load every row
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseWarmedUp(String table, long rows, long skipped, long millis) throws IOException {
+        if (skipped > 0 && enabled(LogTemplate.DATABASE_WARMED_UP_SKIPPED)) {
+            log(LogTemplate.DATABASE_WARMED_UP_SKIPPED, rows, table, millis, skipped);
+        } else if (skipped <= 0 && enabled(LogTemplate.DATABASE_WARMED_UP)) {
+            log(LogTemplate.DATABASE_WARMED_UP, rows, table, millis);
+        }
+    }
+
+    /**
+     * This method logs that the known identification strings of a table have been restored from a local snapshot (and
+     * brought up to date with the Idea Network database).
+     *
+     * @param table name of table in database
+     * @param ids total number of known identification strings
+     * @param newer number of identification strings that were newer than the snapshot
+     * @param millis time taken to restore every identification string
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseSnapshotLoaded(String table, long ids, long newer, long millis) throws IOException {
+        if (enabled(LogTemplate.DATABASE_SNAPSHOT_LOADED)) {
+            log(LogTemplate.DATABASE_SNAPSHOT_LOADED, ids, table, newer, millis);
+        }
+    }
+
+    /**
+     * This method logs that the known identification strings of a table have been saved to a local snapshot.
+     *
+     * @param table name of table in database
+     * @param ids number of identification strings saved
+     * @param bytes size of the snapshot file
+     * @param millis time taken to save the snapshot
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseSnapshotSaved(String table, long ids, long bytes, long millis) throws IOException {
+        if (enabled(LogTemplate.DATABASE_SNAPSHOT_SAVED)) {
+            log(LogTemplate.DATABASE_SNAPSHOT_SAVED, ids, table, bytes, millis);
+        }
+    }
+
+    /**
+     * This method logs that the embedded store has been opened and how much it holds.
+     *
+     * @param directory directory holding the store's logs
+     * @param users number of registered users
+     * @param servers number of registered servers
+     * @param contexts number of saved conversation contexts
+     * @param dropped bytes of incomplete writes that were cut off the logs
+     * @param millis time taken to open the store
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseStoreOpened(String directory, long users, long servers, long contexts, long dropped,
+                                    long millis) throws IOException {
+        createLog(getPath(), getDatabaseLog() + getExtension());
+
+        if (dropped > 0 && enabled(LogTemplate.DATABASE_STORE_RECOVERED)) {
+            log(LogTemplate.DATABASE_STORE_RECOVERED, directory, users, servers, contexts, millis, dropped);
+        } else if (dropped <= 0 && enabled(LogTemplate.DATABASE_STORE_OPENED)) {
+            log(LogTemplate.DATABASE_STORE_OPENED, directory, users, servers, contexts, millis);
+        }
+    }
+
+    /**
+     * This method logs that a log of the embedded store has been compacted.
+     *
+     * @param file compacted log file
+     * @param before size of the log before compaction
+     * @param after size of the log after compaction
+     * @param millis time taken to compact the log
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void databaseStoreCompacted(String file, long before, long after, long millis) throws IOException {
+        if (enabled(LogTemplate.DATABASE_STORE_COMPACTED)) {
+            log(LogTemplate.DATABASE_STORE_COMPACTED, file, before, after, millis);
+        }
+    }
+
+    /**
+     * This method logs when a startup step started (relative to the start of the startup) and how long it took.
+     *
+     * @param step name of the startup step
+     * @param startedMillis milliseconds after the start of the startup that the step started, or -1 if it never ran
+     * @param millis time taken by the step, or -1 if it never ran
+     * @param failed whether the step failed
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void startupStep(String step, long startedMillis, long millis, boolean failed) throws IOException {
+        LogTemplate template = millis < 0 ? LogTemplate.STARTUP_STEP_SKIPPED
+                : failed ? LogTemplate.STARTUP_STEP_FAILED : LogTemplate.STARTUP_STEP_FINISHED;
+
+        if (!enabled(template)) {
+            return;
+        }
+
+        if (millis < 0) {
+            log(template, step);
+        } else {
+            log(template, step, millis, startedMillis);
+        }
+    }
+
+    /**
+     * This method logs how long the whole startup took.
+     *
+     * @param steps number of startup steps
+     * @param millis time taken by the startup
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void startupFinished(int steps, long millis) throws IOException {
+        if (enabled(LogTemplate.STARTUP_FINISHED)) {
+            log(LogTemplate.STARTUP_FINISHED, steps, millis);
+        }
     }
 
     /**
@@ -175,16 +454,40 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void discordConnected() throws IOException {
-        strDate = updateDate();
-        String DISCORD_LOG = getPath() + getDiscordLog() + getExtension();  // discord/discord.txt
-
         // fix -- see javadoc for details
         // @holo-wolf (https://github.com/holo-wolf)
         createLog(getPath(), getDiscordLog() + getExtension());
 
-        BufferedWriter file = new BufferedWriter(new FileWriter(DISCORD_LOG));
-        file.write(strDate + INFO + "Establishing a connection to Discord...");
-        file.close();
+        if (enabled(LogTemplate.DISCORD_CONNECTED)) {
+            log(LogTemplate.DISCORD_CONNECTED);
+        }
+    }
+
+    /**
+     * This method logs which kind of threads (platform or virtual) handle Discord events, and how many lanes they use.
+     *
+     * @param mode "platform" or "virtual"
+     * @param lanes number of event dispatcher lanes
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void discordDispatcher(String mode, int lanes) throws IOException {
+        if (enabled(LogTemplate.DISCORD_DISPATCHER)) {
+            log(LogTemplate.DISCORD_DISPATCHER, lanes, mode);
+        }
+    }
+
+    /**
+     * This method logs which range of shards (gateway connections) this process runs out of the bot's total.
+     *
+     * @param first first shard ID run by this process
+     * @param last last shard ID run by this process
+     * @param total total number of shards
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void discordShards(int first, int last, int total) throws IOException {
+        if (enabled(LogTemplate.DISCORD_SHARDS)) {
+            log(LogTemplate.DISCORD_SHARDS, first, last, total);
+        }
     }
 
     /**
@@ -194,13 +497,9 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void discordUserAdded(String userID) throws IOException {
-        strDate = updateDate();
-        String DISCORD_LOG = getPath() + getDiscordLog() + getExtension();  // discord/discord.txt
-
-        FileWriter db = new FileWriter(DISCORD_LOG, true);
-        BufferedWriter file = new BufferedWriter(db);
-        file.write("\n" + strDate + IDEA + "Added " + userID + " (user) to the Idea Network!");
-        file.close();
+        if (enabled(LogTemplate.DISCORD_USER_ADDED)) {
+            log(LogTemplate.DISCORD_USER_ADDED, userID);
+        }
     }
 
     /**
@@ -210,13 +509,25 @@ public class Logger implements LogADT {
      * @throws IOException unable to write file and/or the appropriate directory does not exist
      */
     public void discordServerAdded(String serverID) throws IOException {
-        strDate = updateDate();
-        String DISCORD_LOG = getPath() + getDiscordLog() + getExtension();  // discord/discord.txt
+        if (enabled(LogTemplate.DISCORD_SERVER_ADDED)) {
+            log(LogTemplate.DISCORD_SERVER_ADDED, serverID);
+        }
+    }
 
-        FileWriter db = new FileWriter(DISCORD_LOG, true);
-        BufferedWriter file = new BufferedWriter(db);
-        file.write("\n" + strDate + IDEA + "Added " + serverID + " (server) to the Idea Network!");
-        file.close();
+    /**
+     * This method logs that IDEA answered a message directed at it, and which intent (or command) answered it. It is
+     * logged for every answered message, so it is a DEBUG event.
+     *
+     * @param userID Discord user identification number of the author
+     * @param serverID Discord server identification number the message was sent in
+     * @param intent phrase that matched, or "fallback" if nothing matched
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    public void conversationAnswered(long userID, long serverID, String intent) throws IOException {
+        if (enabled(LogTemplate.CONVERSATION_ANSWERED)) {
+            log(LogTemplate.CONVERSATION_ANSWERED, Long.toUnsignedString(userID), Long.toUnsignedString(serverID),
+                    intent);
+        }
     }
 
     /**
@@ -265,15 +576,271 @@ public class Logger implements LogADT {
     }
 
     /**
-     * This method updates the current date and time for logging purposes.
+     * This method determines whether log files are written asynchronously by a background thread (IDEA_LOG_MODE is set
+     * to 'async').
+     *
+     * @return true if logging is asynchronous
+     */
+    public boolean isAsync() {
+        return "async".equalsIgnoreCase(MODE);
+    }
+
+    /**
+     * This method returns the number of records the asynchronous ring buffer can hold (defaults to 8192).
+     *
+     * @return ring buffer capacity
+     */
+    public int getBufferSize() {
+        try {
+            return BUFFER == null ? 8192 : Math.max(2, Integer.parseInt(BUFFER.trim()));
+        } catch (NumberFormatException e) {
+            return 8192;
+        }
+    }
+
+    /**
+     * This method returns the policy for records logged while the asynchronous ring buffer is full (defaults to block).
+     *
+     * @return overflow policy (block, drop or sample)
+     */
+    public String getOverflow() {
+        return OVERFLOW == null ? "block" : OVERFLOW.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * This method determines whether log files are written as compact binary template records (IDEA_LOG_FORMAT is set
+     * to 'binary') instead of text. Binary logs are read back with LogDecoder.
+     *
+     * @return true if logs are binary
+     */
+    public boolean isBinary() {
+        return "binary".equalsIgnoreCase(FORMAT);
+    }
+
+    /**
+     * This method returns the extension for binary log files.
+     *
+     * @return extension for binary log files
+     */
+    public String getBinaryExtension() {
+        return BINARY_EXT;
+    }
+
+    /**
+     * This method returns the level thresholds events are filtered by when logging starts (IDEA_LOG_LEVEL, e.g.
+     * 'info,dbms=debug'; defaults to 'info'). A bare level applies to every category and later entries win.
+     *
+     * @return comma-separated level and category=level entries
+     */
+    public String getLevels() {
+        return LEVEL == null ? "info" : LEVEL.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * This method returns the sample rates of high-frequency events when logging starts (IDEA_LOG_SAMPLE, e.g.
+     * 'databaseConnected=100,databaseDisconnect=100'; defaults to logging every event).
+     *
+     * @return comma-separated event=rate entries
+     */
+    public String getSampling() {
+        return SAMPLE == null ? "" : SAMPLE.trim();
+    }
+
+    /**
+     * This method returns the number of asynchronous records that have been logged but not yet written.
+     *
+     * @return queue depth (always 0 when logging synchronously)
+     */
+    public static int getQueueDepth() {
+        AsyncLogWriter current = writer;
+
+        return current == null ? 0 : current.getDepth();
+    }
+
+    /**
+     * This method writes every pending asynchronous record and closes all log files (trimming them to their contents).
+     * Anything logged afterwards is written synchronously. It should be called once while the engine shuts down.
+     */
+    public static void shutdown() {
+        AsyncLogWriter current;
+
+        synchronized (Logger.class) {
+            stopped = true;
+            current = writer;
+            writer = null;
+        }
+
+        if (current != null) {
+            current.shutdown();
+        }
+
+        RollingLogFile.closeAll();
+    }
+
+    /**
+     * This method applies level thresholds and sample rates given as text (see getLevels() and getSampling()).
+     * Unknown categories, levels and events are ignored.
      *
-     * @return updated date and time in string format
+     * @param levels comma-separated level and category=level entries
+     * @param sampling comma-separated event=rate entries
      */
-    private String updateDate() {
-        date = Calendar.getInstance().getTime();
-        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private static void configure(String levels, String sampling) {
+        for (String entry : levels.split(",")) {
+            int equals = entry.indexOf('=');
+
+            try {
+                Level level = Level.valueOf(entry.substring(equals + 1).trim().toUpperCase(Locale.US));
+
+                if (equals < 0) {
+                    for (Category category : Category.values()) {
+                        setLevel(category, level);
+                    }
+                } else {
+                    setLevel(Category.valueOf(entry.substring(0, equals).trim().toUpperCase(Locale.US)), level);
+                }
+            } catch (IllegalArgumentException e) {
+                // Not a level or category, keep the current threshold.
+            }
+        }
+
+        for (String entry : sampling.split(",")) {
+            int equals = entry.indexOf('=');
+
+            try {
+                if (equals > 0) {
+                    setSampling(entry.substring(0, equals), Integer.parseInt(entry.substring(equals + 1).trim()));
+                }
+            } catch (NumberFormatException e) {
+                // Not a rate, keep logging every event.
+            }
+        }
+    }
+
+    /**
+     * This method compiles the thresholds and sample rates into the rate of every template. The caller holds the lock
+     * on Logger.class.
+     */
+    private static void compile() {
+        int[] next = new int[rates.length];
+
+        for (LogTemplate template : LogTemplate.values()) {
+            if (isEnabled(template.getCategory(), template.getLevel())) {
+                next[template.ordinal()] = samples[template.ordinal()];
+            }
+        }
+
+        rates = next;
+    }
+
+    /**
+     * This method decides whether an event is logged: it has to pass the threshold of its category and, if its kind
+     * of event is sampled, be the one out of every N events that is kept. Callers check this before building the
+     * arguments, so a skipped event costs a single branch.
+     *
+     * @param template template of the event
+     * @return true if the event should be logged
+     */
+    private static boolean enabled(LogTemplate template) {
+        int rate = rates[template.ordinal()];
+
+        if (rate <= 1) {
+            return rate == 1;
+        }
+
+        if (sampled.getAndIncrement(template.ordinal()) % rate == 0) {
+            return true;
+        }
+
+        SAMPLED_OUT.increment();
+        return false;
+    }
+
+    /**
+     * This method logs an event. Text logs get the rendered line; binary logs get the template ID, the time and the
+     * arguments as they are (see BinaryLogFile), which skips formatting altogether. When logging asynchronously the
+     * event is rendered (or encoded) on the writer thread rather than the calling one.
+     *
+     * @param template template of the event
+     * @param args arguments of the template
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    private void log(LogTemplate template, Object... args) throws IOException {
+        String path = getPath() + getLog(template.getFile());
+
+        path += isBinary() ? getBinaryExtension() : getExtension();
+        long millis = System.currentTimeMillis();
+        AsyncLogWriter async = asyncWriter();
+
+        if (async != null && async.offer(path, template, millis, args)) {
+            return;  // the writer thread renders (or encodes) the event
+        }
+
+        if (isBinary()) {
+            BinaryLogFile.get(path).write(template, millis, args);
+        } else {
+            RollingLogFile.get(path).write(line(template, millis, args));
+        }
+    }
+
+    /**
+     * This method renders an event as a line of a text log.
+     *
+     * @param template template of the event
+     * @param millis time of the event in milliseconds since the epoch
+     * @param args arguments of the template
+     * @return log line (starting with a line break, as every line is appended to the previous one)
+     */
+    static String line(LogTemplate template, long millis, Object[] args) {
+        StringBuilder text = new StringBuilder(96).append('\n');
+        clock.formatTo(millis, text);
+
+        return text.append(template.getLabel()).append(template.render(args)).toString();
+    }
+
+    /**
+     * This method returns the file name of the log a template is written to.
+     *
+     * @param file log file of the template
+     * @return log file name (without an extension)
+     */
+    private String getLog(LogTemplate.File file) {
+        switch (file) {
+            case DATABASE:
+                return getDatabaseLog();
+            case DISCORD:
+                return getDiscordLog();
+            default:
+                return getTestLog();
+        }
+    }
+
+    /**
+     * This method returns the shared asynchronous writer, creating it on first use.
+     *
+     * @return asynchronous writer, or null when logging synchronously (or after shutdown)
+     */
+    private AsyncLogWriter asyncWriter() {
+        AsyncLogWriter current = writer;
+
+        if (current == null && isAsync() && !stopped) {
+            synchronized (Logger.class) {
+                if (writer == null && !stopped) {
+                    AsyncLogWriter.Overflow policy;
+
+                    try {
+                        policy = AsyncLogWriter.Overflow.valueOf(getOverflow().toUpperCase(Locale.US));
+                    } catch (IllegalArgumentException e) {
+                        policy = AsyncLogWriter.Overflow.BLOCK;
+                    }
+
+                    writer = new AsyncLogWriter(getBufferSize(), policy);
+                }
+
+                current = writer;
+            }
+        }
 
-        return dateFormat.format(date);
+        return current;
     }
 
     /**
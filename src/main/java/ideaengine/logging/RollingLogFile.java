@@ -0,0 +1,464 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import ideaengine.util.Settings;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The RollingLogFile class appends log lines to a file through a memory-mapped region of a FileChannel, so a write is a
+ * memory copy rather than a system call. Once the active file grows past its size limit or gets older than its age
+ * limit it is renamed to a timestamped segment (e.g. database.2019-12-14_15-20-41.txt), optionally gzipped in the
+ * background, and a fresh file is started. Only the newest segments are kept. Reopening an existing log file always
+ * appends to it, so restarting the engine never destroys history.
+ *
+ * <dl>
+ *     <dt><span class="strong">RollingLogFile get()</span></dt><dd>Returns the shared sink for a log file path.</dd>
+ *     <dt><span class="strong">void closeAll()</span></dt><dd>Closes every open sink.</dd>
+ *     <dt><span class="strong">void write()</span></dt><dd>Appends text, rotating the file first if needed.</dd>
+ *     <dt><span class="strong">long prepare()</span></dt><dd>Opens or rotates the file ahead of an append.</dd>
+ *     <dt><span class="strong">long length()</span></dt><dd>Returns the bytes written to the active file.</dd>
+ *     <dt><span class="strong">void append()</span></dt><dd>Appends bytes to the active file as they are.</dd>
+ *     <dt><span class="strong">void close()</span></dt><dd>Trims the file to its contents and closes it.</dd>
+ * </dl>
+ */
+final class RollingLogFile {
+    private static final int REGION_SIZE = 1 << 20;  // 1 MiB mapped at a time
+    private static final long MEBIBYTE = 1L << 20;
+
+    private static final Map<String, RollingLogFile> open = new ConcurrentHashMap<>();
+    private static final ExecutorService compressor =
+            Executors.newSingleThreadExecutor(ThreadFactories.platform("idea-log-compressor-"));
+
+    private final Path path;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int retention;
+    private final boolean gzip;
+
+    private FileChannel channel = null;
+    private MappedByteBuffer region = null;
+    private long size = 0;  // bytes of actual log text in the active file
+    private long openedAt = 0;
+    private long generation = 0;  // incremented whenever a file is (re)opened
+
+    /**
+     * The RollingLogFile constructor records where the active file lives and when it should be rotated.
+     *
+     * @param path path of the active log file
+     * @param maxBytes size after which the file is rotated (0 disables size-based rotation)
+     * @param maxAgeMillis age after which the file is rotated (0 disables time-based rotation)
+     * @param retention number of rotated segments to keep
+     * @param gzip true if rotated segments should be compressed
+     */
+    RollingLogFile(Path path, long maxBytes, long maxAgeMillis, int retention, boolean gzip) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.retention = Math.max(0, retention);
+        this.gzip = gzip;
+    }
+
+    /**
+     * This method returns the sink shared by everything that logs to the given path, creating it on first use from the
+     * rotation settings found in the LogADT interface.
+     *
+     * @param path path of the active log file
+     * @return shared sink
+     */
+    static RollingLogFile get(String path) {
+        RollingLogFile file = open.get(path);
+
+        if (file == null) {
+            file = open.computeIfAbsent(path, key -> new RollingLogFile(Paths.get(key),
+                    Settings.integer(LogADT.MAX_SIZE, 64, 1) * MEBIBYTE,
+                    TimeUnit.HOURS.toMillis(Settings.integer(LogADT.MAX_AGE, 24, 1)),
+                    Settings.integer(LogADT.RETENTION, 14, 0),
+                    !"false".equalsIgnoreCase(LogADT.GZIP)));
+        }
+
+        return file;
+    }
+
+    /**
+     * This method closes every sink and waits (briefly) for any background compression to finish.
+     */
+    static void closeAll() {
+        for (RollingLogFile file : open.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        open.clear();
+        compressor.shutdown();
+
+        try {
+            compressor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method appends text to the active file, rotating it first if it has grown too large or too old.
+     *
+     * @param text text to append
+     * @throws IOException unable to write file and/or the appropriate directory does not exist
+     */
+    synchronized void write(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        prepare();
+        append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * This method opens the active file if it is closed and rotates it if it has grown too large or too old. Formats
+     * that carry state from one record to the next (see BinaryLogFile) compare the returned generation to notice that
+     * they are writing to a different file than before.
+     *
+     * @return generation of the active file, which changes whenever a file is opened
+     * @throws IOException unable to open or rotate the file
+     */
+    synchronized long prepare() throws IOException {
+        if (channel == null) {
+            open();
+        } else if (size > 0 && needsRotation()) {
+            rotate();
+        }
+
+        return generation;
+    }
+
+    /**
+     * This method returns the number of bytes written to the active file.
+     *
+     * @return size of the log contents
+     */
+    synchronized long length() {
+        return size;
+    }
+
+    /**
+     * This method appends bytes to the active file as they are, without rotating it; call prepare() first.
+     *
+     * @param bytes buffer holding the bytes
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     * @throws IOException unable to map the file
+     */
+    synchronized void append(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+
+        while (offset < end) {
+            if (!region.hasRemaining()) {
+                map(size);
+            }
+
+            int count = Math.min(region.remaining(), end - offset);
+            region.put(bytes, offset, count);
+            offset += count;
+            size += count;
+        }
+    }
+
+    /**
+     * This method flushes the mapped region, trims the file to its actual contents and closes it. Writing again
+     * reopens the file and appends to it.
+     *
+     * @throws IOException unable to close the file
+     */
+    synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        region.force();
+        unmap(region);
+        region = null;
+
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            // Still mapped on platforms that refuse to truncate; the padding is skipped when the file is reopened.
+        }
+
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * This method opens (or creates) the active file and positions the mapped region right after its last log text.
+     *
+     * @throws IOException unable to open the file
+     */
+    private void open() throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        boolean existed = Files.exists(path);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = existed ? findEnd() : 0;
+        openedAt = existed ? createdAt() : System.currentTimeMillis();
+        generation++;
+
+        map(size);
+    }
+
+    /**
+     * This method maps the next region of the file, starting at the given position.
+     *
+     * @param position file offset the region starts at
+     * @throws IOException unable to map the file
+     */
+    private void map(long position) throws IOException {
+        if (region != null) {
+            unmap(region);
+        }
+
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+    }
+
+    /**
+     * This method finds the end of the log text in a file that may still carry the zero padding of a mapped region
+     * (e.g. after a crash, before the file could be trimmed).
+     *
+     * @return offset just past the last byte of log text
+     * @throws IOException unable to read the file
+     */
+    private long findEnd() throws IOException {
+        long end = channel.size();
+        ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+
+        while (end > 0) {
+            long start = Math.max(0, end - chunk.capacity());
+            chunk.clear();
+            chunk.limit((int) (end - start));
+            channel.read(chunk, start);
+
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) != 0) {
+                    return start + i + 1;
+                }
+            }
+
+            end = start;
+        }
+
+        return 0;
+    }
+
+    /**
+     * This method returns when the active file was created, falling back to its last modification time on file systems
+     * that do not record creation times.
+     *
+     * @return creation time in milliseconds since the epoch
+     * @throws IOException unable to read the file attributes
+     */
+    private long createdAt() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        return Math.min(attributes.creationTime().toMillis(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * This method determines whether the active file has grown too large or too old.
+     *
+     * @return true if the file should be rotated before the next write
+     */
+    private boolean needsRotation() {
+        return (maxBytes > 0 && size >= maxBytes)
+                || (maxAgeMillis > 0 && System.currentTimeMillis() - openedAt >= maxAgeMillis);
+    }
+
+    /**
+     * This method closes the active file, renames it to a timestamped segment, hands the segment to the background
+     * compressor (if enabled), drops segments beyond the retention count and starts a new active file.
+     *
+     * @throws IOException unable to rotate the file
+     */
+    private void rotate() throws IOException {
+        close();
+
+        Path segment = segmentPath();
+        Files.move(path, segment);
+
+        try {
+            if (gzip) {
+                compressor.execute(() -> {
+                    compress(segment);
+                    prune();
+                });
+            } else {
+                prune();
+            }
+        } catch (RejectedExecutionException e) {
+            prune();  // shutting down, leave this segment uncompressed
+        }
+
+        open();
+    }
+
+    /**
+     * This method picks the name of the next rotated segment, which sorts by the time the segment was closed. Every
+     * name ends in a zero-padded sequence number, so that segments closed within the same second sort in order too.
+     *
+     * @return path of the new segment
+     */
+    private Path segmentPath() {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+
+        // Formatted once per rotation, so a new SimpleDateFormat is cheap enough.
+        String stamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US).format(new Date());
+        Path segment;
+        int sequence = 0;
+
+        do {
+            String suffix = String.format(Locale.US, "-%03d", sequence++);
+            segment = path.resolveSibling(base + "." + stamp + suffix + extension);
+        } while (Files.exists(segment) || Files.exists(Paths.get(segment + ".gz")));
+
+        return segment;
+    }
+
+    /**
+     * This method gzips a rotated segment and removes the uncompressed copy.
+     *
+     * @param segment rotated segment
+     */
+    private static void compress(Path segment) {
+        Path compressed = Paths.get(segment + ".gz");
+
+        try (InputStream in = Files.newInputStream(segment);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed), 1 << 16)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            Files.delete(segment);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method deletes the oldest rotated segments (compressed or not) beyond the retention count. Only segments
+     * with the same extension count, so that text and binary logs of the same name are kept separately.
+     */
+    private synchronized void prune() {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String prefix = (dot < 0 ? name : name.substring(0, dot)) + ".";
+        String extension = dot < 0 ? "" : name.substring(dot);
+        List<Path> segments = new ArrayList<>();
+
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(path.toAbsolutePath().getParent(),
+                prefix + "*" + extension + "*")) {
+            for (Path sibling : siblings) {
+                if (!sibling.getFileName().toString().equals(name)) {
+                    segments.add(sibling);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        Collections.sort(segments, Collections.reverseOrder());  // newest first, the names embed the time
+
+        for (int i = retention; i < segments.size(); i++) {
+            try {
+                Files.deleteIfExists(segments.get(i));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * This method releases a mapped region right away instead of waiting for the garbage collector, which some
+     * platforms require before the file can be truncated or renamed. It is best-effort: if neither the Java 9+ nor the
+     * Java 8 mechanism is available the region is simply left for the garbage collector.
+     *
+     * @param buffer mapped region
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not Java 9+, try the Java 8 way below.
+        }
+
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object clean = cleaner.invoke(buffer);
+
+            if (clean != null) {
+                clean.getClass().getMethod("clean").invoke(clean);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Leave it to the garbage collector.
+        }
+    }
+}
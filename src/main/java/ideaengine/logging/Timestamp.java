@@ -0,0 +1,322 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The Timestamp class formats the current date and time for log lines without creating Calendar, Date or DateFormat
+ * objects. The formatted second is cached and only re-rendered once the clock moves on to the next second, so logging
+ * many lines within the same second costs a clock read and a comparison. The cache is an immutable object published
+ * through a volatile field, which makes the class thread-safe without locks.
+ *
+ * <dl>
+ *     <dt><span class="strong">Format</span></dt><dd>Supported layouts (seconds, milliseconds and ISO-8601).</dd>
+ *     <dt><span class="strong">Timestamp()</span></dt><dd>Constructor that uses the default time zone.</dd>
+ *     <dt><span class="strong">String now()</span></dt><dd>Returns the current date and time as a string.</dd>
+ *     <dt><span class="strong">int formatTo()</span></dt><dd>Writes a date and time into a buffer or builder.</dd>
+ *     <dt><span class="strong">int length()</span></dt><dd>Returns the number of characters formatTo() writes.</dd>
+ * </dl>
+ */
+public final class Timestamp {
+    /**
+     * The Format enum lists the supported layouts. SECONDS matches what the logs have always used.
+     */
+    public enum Format {
+        SECONDS,   // 2019-12-14 15:20:41
+        MILLIS,    // 2019-12-14 15:20:41.123
+        ISO_8601;  // 2019-12-14T15:20:41.123-06:00
+
+        /**
+         * This method returns the format with the given name, falling back to SECONDS for unknown or missing names.
+         *
+         * @param name format name (e.g. "seconds", "millis" or "iso")
+         * @return matching format
+         */
+        public static Format of(String name) {
+            if (name == null) {
+                return SECONDS;
+            }
+
+            switch (name.trim().toLowerCase(Locale.US)) {
+                case "millis":
+                    return MILLIS;
+                case "iso":
+                case "iso_8601":
+                case "iso-8601":
+                    return ISO_8601;
+                default:
+                    return SECONDS;
+            }
+        }
+    }
+
+    private static final int DATE_TIME_LENGTH = 19;  // yyyy-MM-dd HH:mm:ss
+
+    private final Format format;
+    private final TimeZone zone;
+    private volatile Second cached = new Second(Long.MIN_VALUE, new char[DATE_TIME_LENGTH], new char[0], "");
+
+    /**
+     * The Timestamp constructor creates a timestamp facility for the default time zone.
+     *
+     * @param format layout of the rendered timestamps
+     */
+    public Timestamp(Format format) {
+        this(format, TimeZone.getDefault());
+    }
+
+    /**
+     * The Timestamp constructor creates a timestamp facility for a specific time zone.
+     *
+     * @param format layout of the rendered timestamps
+     * @param zone time zone the timestamps are rendered in
+     */
+    public Timestamp(Format format, TimeZone zone) {
+        this.format = format;
+        this.zone = (TimeZone) zone.clone();
+    }
+
+    /**
+     * This method returns the current date and time. With the SECONDS format the same String instance is returned for
+     * every call within a second; the other formats need one new String per call.
+     *
+     * @return current date and time
+     */
+    public String now() {
+        long millis = System.currentTimeMillis();
+        Second second = second(millis);
+
+        if (format == Format.SECONDS) {
+            return second.text;
+        }
+
+        char[] buffer = new char[length()];
+        formatTo(millis, buffer, 0);
+
+        return new String(buffer);
+    }
+
+    /**
+     * This method writes a date and time into a reusable char buffer without allocating.
+     *
+     * @param millis milliseconds since the epoch
+     * @param buffer destination buffer (needs room for length() characters)
+     * @param offset index of the first character to write
+     * @return number of characters written
+     */
+    public int formatTo(long millis, char[] buffer, int offset) {
+        Second second = second(millis);
+        System.arraycopy(second.dateTime, 0, buffer, offset, DATE_TIME_LENGTH);
+
+        if (format == Format.SECONDS) {
+            return DATE_TIME_LENGTH;
+        }
+
+        int position = offset + DATE_TIME_LENGTH;
+        int milli = (int) Math.floorMod(millis, 1000L);
+
+        buffer[position++] = '.';
+        buffer[position++] = (char) ('0' + milli / 100);
+        buffer[position++] = (char) ('0' + milli / 10 % 10);
+        buffer[position++] = (char) ('0' + milli % 10);
+
+        if (format == Format.ISO_8601) {
+            buffer[offset + 10] = 'T';
+            System.arraycopy(second.zoneSuffix, 0, buffer, position, second.zoneSuffix.length);
+            position += second.zoneSuffix.length;
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * This method writes a date and time into a reusable byte buffer (as ASCII) without allocating.
+     *
+     * @param millis milliseconds since the epoch
+     * @param buffer destination buffer (needs room for length() bytes)
+     * @param offset index of the first byte to write
+     * @return number of bytes written
+     */
+    public int formatTo(long millis, byte[] buffer, int offset) {
+        Second second = second(millis);
+        int length = DATE_TIME_LENGTH;
+
+        for (int i = 0; i < DATE_TIME_LENGTH; i++) {
+            buffer[offset + i] = (byte) second.dateTime[i];
+        }
+
+        if (format != Format.SECONDS) {
+            int milli = (int) Math.floorMod(millis, 1000L);
+
+            buffer[offset + length++] = '.';
+            buffer[offset + length++] = (byte) ('0' + milli / 100);
+            buffer[offset + length++] = (byte) ('0' + milli / 10 % 10);
+            buffer[offset + length++] = (byte) ('0' + milli % 10);
+        }
+
+        if (format == Format.ISO_8601) {
+            buffer[offset + 10] = 'T';
+
+            for (char c : second.zoneSuffix) {
+                buffer[offset + length++] = (byte) c;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * This method appends a date and time to a StringBuilder without allocating anything else. With the SECONDS format
+     * the cached string of the second is appended as it is.
+     *
+     * @param millis milliseconds since the epoch
+     * @param text destination
+     * @return number of characters appended
+     */
+    public int formatTo(long millis, StringBuilder text) {
+        Second second = second(millis);
+
+        if (format == Format.SECONDS) {
+            text.append(second.text);
+            return DATE_TIME_LENGTH;
+        }
+
+        int start = text.length();
+        int milli = (int) Math.floorMod(millis, 1000L);
+
+        text.append(second.dateTime).append('.').append((char) ('0' + milli / 100))
+                .append((char) ('0' + milli / 10 % 10)).append((char) ('0' + milli % 10));
+
+        if (format == Format.ISO_8601) {
+            text.setCharAt(start + 10, 'T');
+            text.append(second.zoneSuffix);
+        }
+
+        return text.length() - start;
+    }
+
+    /**
+     * This method returns the (maximum) number of characters that formatTo() writes for this format.
+     *
+     * @return timestamp length
+     */
+    public int length() {
+        switch (format) {
+            case MILLIS:
+                return DATE_TIME_LENGTH + 4;
+            case ISO_8601:
+                return DATE_TIME_LENGTH + 4 + 6;  // the zone suffix is either "Z" or "+hh:mm"
+            default:
+                return DATE_TIME_LENGTH;
+        }
+    }
+
+    /**
+     * This method returns the cached rendering of the second containing the given instant, rendering (and caching) it
+     * first if the cache holds a different second. Concurrent callers may each render the new second once; the last
+     * one to publish wins, which is harmless since they all render the same thing.
+     *
+     * @param millis milliseconds since the epoch
+     * @return rendering of the second
+     */
+    private Second second(long millis) {
+        long epochSecond = Math.floorDiv(millis, 1000L);
+        Second current = cached;
+
+        if (current.epochSecond == epochSecond) {
+            return current;
+        }
+
+        int offsetMillis = zone.getOffset(millis);
+        long local = epochSecond + offsetMillis / 1000;
+        long days = Math.floorDiv(local, 86400L);
+        int secondOfDay = (int) Math.floorMod(local, 86400L);
+
+        // Convert days since 1970-01-01 to a civil date (Howard Hinnant's days_from_civil, inverted).
+        long shifted = days + 719468;
+        long era = Math.floorDiv(shifted, 146097);
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        char[] dateTime = new char[DATE_TIME_LENGTH];
+        digits(dateTime, 0, year, 4);
+        dateTime[4] = '-';
+        digits(dateTime, 5, month, 2);
+        dateTime[7] = '-';
+        digits(dateTime, 8, day, 2);
+        dateTime[10] = ' ';
+        digits(dateTime, 11, secondOfDay / 3600, 2);
+        dateTime[13] = ':';
+        digits(dateTime, 14, secondOfDay / 60 % 60, 2);
+        dateTime[16] = ':';
+        digits(dateTime, 17, secondOfDay % 60, 2);
+
+        char[] zoneSuffix;
+
+        if (offsetMillis == 0) {
+            zoneSuffix = new char[] { 'Z' };
+        } else {
+            int offsetMinutes = Math.abs(offsetMillis) / 60000;
+            zoneSuffix = new char[6];
+            zoneSuffix[0] = offsetMillis < 0 ? '-' : '+';
+            digits(zoneSuffix, 1, offsetMinutes / 60, 2);
+            zoneSuffix[3] = ':';
+            digits(zoneSuffix, 4, offsetMinutes % 60, 2);
+        }
+
+        Second rendered = new Second(epochSecond, dateTime, zoneSuffix, new String(dateTime));
+        cached = rendered;
+
+        return rendered;
+    }
+
+    /**
+     * This method writes a zero-padded decimal number into a char buffer.
+     *
+     * @param buffer destination buffer
+     * @param offset index of the first digit
+     * @param value number to write
+     * @param width number of digits
+     */
+    private static void digits(char[] buffer, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * The Second class is an immutable rendering of a single second, shared by every thread until the clock moves on.
+     */
+    private static final class Second {
+        private final long epochSecond;
+        private final char[] dateTime;
+        private final char[] zoneSuffix;
+        private final String text;
+
+        private Second(long epochSecond, char[] dateTime, char[] zoneSuffix, String text) {
+            this.epochSecond = epochSecond;
+            this.dateTime = dateTime;
+            this.zoneSuffix = zoneSuffix;
+            this.text = text;
+        }
+    }
+}
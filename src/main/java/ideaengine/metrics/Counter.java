@@ -0,0 +1,61 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Counter class is a monotonically increasing count (events handled, errors, cache hits). Increments are striped
+ * across cells (see LongAdder), so threads that count at the same time do not contend on a single memory location.
+ *
+ * <dl>
+ *     <dt><span class="strong">void increment()</span></dt><dd>Adds one to the count.</dd>
+ *     <dt><span class="strong">void add()</span></dt><dd>Adds an amount to the count.</dd>
+ *     <dt><span class="strong">long get()</span></dt><dd>Returns the current count.</dd>
+ * </dl>
+ */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The Counter constructor creates a count of zero. Counters are normally obtained from Metrics.counter().
+     */
+    Counter() {
+    }
+
+    /**
+     * This method adds one to the count.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * This method adds an amount to the count.
+     *
+     * @param amount amount to add (should not be negative)
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    /**
+     * This method returns the current count.
+     *
+     * @return count
+     */
+    public long get() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,237 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The Metrics class is the registry every part of IDEA records its metrics in. Counters and histograms are looked up
+ * (or created) once, typically into a static final field, so recording a value never touches the registry. Gauges (and
+ * counters kept elsewhere) are read through a supplier only when the metrics are scraped. A metric may carry a single
+ * label, e.g. idea_database_call_seconds{method="registerDiscordUsers"}.
+ *
+ * <dl>
+ *     <dt><span class="strong">Counter counter()</span></dt><dd>Returns (and registers) a counter.</dd>
+ *     <dt><span class="strong">Histogram histogram()</span></dt><dd>Returns (and registers) a latency histogram.</dd>
+ *     <dt><span class="strong">void gauge()</span></dt><dd>Registers a value that is read while scraping.</dd>
+ *     <dt><span class="strong">void counter()</span></dt><dd>Registers a count that is read while scraping.</dd>
+ *     <dt><span class="strong">String scrape()</span></dt><dd>Returns every metric in the Prometheus text format.</dd>
+ * </dl>
+ */
+public final class Metrics {
+    private static final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * This method returns the counter of a name, registering it on first use.
+     *
+     * @param name metric name (e.g. idea_events_total)
+     * @param help one-line description of the metric
+     * @return counter
+     */
+    public static Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * This method returns the counter of a name and label value, registering it on first use.
+     *
+     * @param name metric name (e.g. idea_known_user_lookups_total)
+     * @param help one-line description of the metric
+     * @param label label name (e.g. result)
+     * @param value label value (e.g. hit)
+     * @return counter
+     */
+    public static Counter counter(String name, String help, String label, String value) {
+        return (Counter) family(name, help, "counter").children
+                .computeIfAbsent(labels(label, value), key -> new Counter());
+    }
+
+    /**
+     * This method registers a count that is kept elsewhere (e.g. in an AtomicLong) and read while scraping. A later
+     * registration of the same name replaces the supplier, so a restarted component reports its own count.
+     *
+     * @param name metric name (e.g. idea_pool_timeouts_total)
+     * @param help one-line description of the metric
+     * @param count supplies the current count
+     */
+    public static void counter(String name, String help, LongSupplier count) {
+        counter(name, help, null, null, count);
+    }
+
+    /**
+     * This method registers a count of a label value that is kept elsewhere and read while scraping. A later
+     * registration of the same name and label value replaces the supplier.
+     *
+     * @param name metric name (e.g. idea_events_total)
+     * @param help one-line description of the metric
+     * @param label label name (e.g. shard)
+     * @param value label value (e.g. 0)
+     * @param count supplies the current count
+     */
+    public static void counter(String name, String help, String label, String value, LongSupplier count) {
+        family(name, help, "counter").children.put(labels(label, value), count);
+    }
+
+    /**
+     * This method returns the latency histogram of a name, registering it on first use.
+     *
+     * @param name metric name (e.g. idea_event_latency_seconds)
+     * @param help one-line description of the metric
+     * @return histogram
+     */
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * This method returns the latency histogram of a name and label value, registering it on first use.
+     *
+     * @param name metric name (e.g. idea_database_call_seconds)
+     * @param help one-line description of the metric
+     * @param label label name (e.g. method)
+     * @param value label value (e.g. registerDiscordUsers)
+     * @return histogram
+     */
+    public static Histogram histogram(String name, String help, String label, String value) {
+        return (Histogram) family(name, help, "histogram").children
+                .computeIfAbsent(labels(label, value), key -> new Histogram());
+    }
+
+    /**
+     * This method registers a value that is read while scraping. A later registration of the same name replaces the
+     * supplier, so a restarted component reports its own value.
+     *
+     * @param name metric name (e.g. idea_known_users)
+     * @param help one-line description of the metric
+     * @param value supplies the current value
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, null, null, value);
+    }
+
+    /**
+     * This method registers a value of a label value that is read while scraping. A later registration of the same
+     * name and label value replaces the supplier.
+     *
+     * @param name metric name (e.g. idea_event_queue_depth)
+     * @param help one-line description of the metric
+     * @param label label name (e.g. shard)
+     * @param value label value (e.g. 0)
+     * @param current supplies the current value
+     */
+    public static void gauge(String name, String help, String label, String value, LongSupplier current) {
+        family(name, help, "gauge").children.put(labels(label, value), current);
+    }
+
+    /**
+     * This method returns every registered metric in the Prometheus text exposition format (version 0.0.4), sorted by
+     * name so that consecutive scrapes are easy to compare.
+     *
+     * @return metrics text
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        for (Family family : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Object> child : new TreeMap<>(family.children).entrySet()) {
+                String labels = child.getKey();
+                Object metric = child.getValue();
+
+                if (metric instanceof Histogram) {
+                    ((Histogram) metric).write(out, family.name, labels);
+                    continue;
+                }
+
+                long value;
+
+                try {
+                    value = metric instanceof Counter ? ((Counter) metric).get() : ((LongSupplier) metric).getAsLong();
+                } catch (RuntimeException e) {
+                    continue;  // a supplier whose component is shutting down is left out of this scrape
+                }
+
+                out.append(family.name);
+
+                if (!labels.isEmpty()) {
+                    out.append('{').append(labels).append('}');
+                }
+
+                out.append(' ').append(value).append('\n');
+            }
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * This method returns the family (every label value) of a metric name, registering it on first use.
+     *
+     * @param name metric name
+     * @param help one-line description of the metric
+     * @param type Prometheus metric type
+     * @return metric family
+     */
+    private static Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type + ".");
+        }
+
+        return family;
+    }
+
+    /**
+     * This method formats a label pair, escaping the value as the Prometheus text format requires.
+     *
+     * @param label label name, or null for no label
+     * @param value label value
+     * @return label pair (e.g. method="x"), or an empty string
+     */
+    private static String labels(String label, String value) {
+        if (label == null) {
+            return "";
+        }
+
+        String escaped = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+
+        return label + "=\"" + escaped + "\"";
+    }
+
+    /**
+     * The Family class holds every labelled instance of one metric name.
+     */
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final ConcurrentMap<String, Object> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
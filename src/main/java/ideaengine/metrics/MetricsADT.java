@@ -0,0 +1,43 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.metrics;
+
+/**
+ * The MetricsADT interface provides an abstraction of the different types of variables and methods one may use to
+ * expose IDEA's metrics to a monitoring system.
+ *
+ * <dl>
+ *     <dt><span class="strong">PORT</span></dt><dd>Port the metrics endpoint listens on (disabled when not set).</dd>
+ *     <dt><span class="strong">HOST</span></dt><dd>Address the metrics endpoint binds to.</dd>
+ * </dl>
+ */
+public interface MetricsADT {
+    // Where the Prometheus endpoint is served (optional, no endpoint is started unless IDEA_METRICS_PORT is set).
+    String PORT = System.getenv("IDEA_METRICS_PORT");
+    String HOST = System.getenv("IDEA_METRICS_HOST");
+
+    /**
+     * This method returns the port the metrics endpoint listens on.
+     *
+     * @return port, or 0 if the endpoint is disabled
+     */
+    int getPort();
+
+    /**
+     * This method returns the address the metrics endpoint binds to.
+     *
+     * @return host name or address
+     */
+    String getHost();
+}
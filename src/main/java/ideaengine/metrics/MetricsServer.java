@@ -0,0 +1,122 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import ideaengine.util.ThreadFactories;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The MetricsServer class serves the metrics registry over HTTP so that Prometheus (or curl) can scrape it. It uses the
+ * HTTP server that ships with the JDK, so there are no extra dependencies, and handles scrapes on a single daemon
+ * thread since a scrape only formats a few kilobytes of text.
+ *
+ * <dl>
+ *     <dt><span class="strong">server</span></dt><dd>HTTP server, or null while no endpoint is running.</dd>
+ *     <dt><span class="strong">void start()</span></dt><dd>Starts the endpoint if IDEA_METRICS_PORT is set.</dd>
+ *     <dt><span class="strong">void shutdown()</span></dt><dd>Stops the endpoint.</dd>
+ *     <dt><span class="strong">int getPort()</span></dt><dd>Returns the PORT from the interface class.</dd>
+ *     <dt><span class="strong">String getHost()</span></dt><dd>Returns the HOST from the interface class.</dd>
+ * </dl>
+ */
+public class MetricsServer implements MetricsADT {
+    private static HttpServer server = null;
+    private static ExecutorService executor = null;
+
+    /**
+     * This method starts serving every metric on /metrics, unless no port has been configured (or the endpoint is
+     * already running).
+     *
+     * @throws IOException the port could not be bound
+     */
+    public static synchronized void start() throws IOException {
+        MetricsServer settings = new MetricsServer();
+
+        if (server != null || settings.getPort() == 0) {
+            return;
+        }
+
+        HttpServer http = HttpServer.create(new InetSocketAddress(settings.getHost(), settings.getPort()), 0);
+
+        http.createContext("/metrics", exchange -> {
+            try {
+                byte[] body = "HEAD".equals(exchange.getRequestMethod())
+                        ? new byte[0]
+                        : Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+
+        executor = Executors.newSingleThreadExecutor(ThreadFactories.platform("idea-metrics-"));
+        http.setExecutor(executor);
+        http.start();
+
+        server = http;
+    }
+
+    /**
+     * This method stops the endpoint (if it was ever started). It should be called once while the engine shuts down.
+     */
+    public static synchronized void shutdown() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+
+            server = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * This method returns the port the metrics endpoint listens on.
+     *
+     * @return port, or 0 if the endpoint is disabled
+     */
+    public int getPort() {
+        if (PORT == null) {
+            return 0;
+        }
+
+        try {
+            int port = Integer.parseInt(PORT.trim());
+
+            return port > 0 && port < 65536 ? port : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * This method returns the address the metrics endpoint binds to (defaults to every interface).
+     *
+     * @return host name or address
+     */
+    public String getHost() {
+        return HOST == null || HOST.trim().isEmpty() ? "0.0.0.0" : HOST.trim();
+    }
+}
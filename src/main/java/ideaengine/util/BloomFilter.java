@@ -0,0 +1,142 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The BloomFilter class is a compact, concurrent membership filter for 64-bit snowflakes. It never forgets an ID that
+ * was put into it, but may claim to contain an ID that was never put into it (a false positive). With 10 bits per
+ * expected ID about 1% of unknown ID's are false positives, so a hundred million ID's take about 120 MB instead of the
+ * gigabytes an exact set needs. Lookups never lock and puts set their bits with compare-and-set.
+ *
+ * <dl>
+ *     <dt><span class="strong">BloomFilter()</span></dt><dd>Constructor that sizes the filter.</dd>
+ *     <dt><span class="strong">boolean put()</span></dt><dd>Adds an ID and reports whether any bit changed.</dd>
+ *     <dt><span class="strong">boolean mightContain()</span></dt><dd>Determines if an ID may be in the filter.</dd>
+ *     <dt><span class="strong">long bitSize()</span></dt><dd>Returns the number of bits in the filter.</dd>
+ *     <dt><span class="strong">int hashCount()</span></dt><dd>Returns the number of bits set per ID.</dd>
+ * </dl>
+ */
+public class BloomFilter {
+    private static final long MAX_WORDS = Integer.MAX_VALUE - 8;
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+
+    /**
+     * The BloomFilter constructor sizes the filter for an expected number of ID's. The number of bits set per ID is
+     * chosen to minimize false positives for that size (bitsPerId times ln 2).
+     *
+     * @param expected number of ID's the filter is expected to hold
+     * @param bitsPerId bits of memory per expected ID (10 gives about 1% false positives)
+     */
+    public BloomFilter(long expected, int bitsPerId) {
+        long wordCount = Math.min(MAX_WORDS, Math.max(1, (Math.max(1, expected) * Math.max(1, bitsPerId) + 63) / 64));
+
+        this.words = new AtomicLongArray((int) wordCount);
+        this.bits = wordCount * 64;
+        this.hashes = (int) Math.max(1, Math.min(16, Math.round(Math.max(1, bitsPerId) * Math.log(2))));
+    }
+
+    /**
+     * This method adds an ID to the filter.
+     *
+     * @param id snowflake ID
+     * @return true if any bit changed (the ID was definitely not in the filter before)
+     */
+    public boolean put(long id) {
+        long hash = mix(id);
+        long step = (hash >>> 32) | 1;  // odd, so every probe lands on a different bit
+        boolean changed = false;
+
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((hash + i * step) & Long.MAX_VALUE) % bits;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word;
+
+            do {
+                word = words.get(index);
+
+                if ((word & mask) != 0) {
+                    break;
+                }
+            } while (!words.compareAndSet(index, word, word | mask));
+
+            changed |= (word & mask) == 0;
+        }
+
+        return changed;
+    }
+
+    /**
+     * This method determines if an ID may be in the filter.
+     *
+     * @param id snowflake ID
+     * @return false if the ID is definitely not in the filter, true if it probably is
+     */
+    public boolean mightContain(long id) {
+        long hash = mix(id);
+        long step = (hash >>> 32) | 1;
+
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((hash + i * step) & Long.MAX_VALUE) % bits;
+
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * This method returns the number of bits in the filter (its memory footprint is this divided by eight).
+     *
+     * @return number of bits
+     */
+    public long bitSize() {
+        return bits;
+    }
+
+    /**
+     * This method returns the number of bits set (and checked) per ID.
+     *
+     * @return number of hash functions
+     */
+    public int hashCount() {
+        return hashes;
+    }
+
+    /**
+     * This method spreads a snowflake over 64 bits, since its low bits are mostly zero (see SnowflakeSet).
+     *
+     * @param id snowflake ID
+     * @return mixed hash
+     */
+    private static long mix(long id) {
+        long hash = id;
+
+        // Finalizer from MurmurHash3 (fmix64).
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
@@ -0,0 +1,50 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.util;
+
+/**
+ * The Settings class parses the optional numeric settings that IDEA takes from environment variables (see the ADT
+ * interfaces), so that every setting follows the same rules: surrounding whitespace is ignored, and a missing,
+ * malformed or too small value falls back to the setting's default.
+ *
+ * <dl>
+ *     <dt><span class="strong">int integer()</span></dt><dd>Parses a whole number setting.</dd>
+ * </dl>
+ */
+public final class Settings {
+    private Settings() {
+    }
+
+    /**
+     * This method parses a whole number setting, falling back to a default if it is missing, malformed or below the
+     * smallest value the setting accepts.
+     *
+     * @param value raw environment variable value (may be null)
+     * @param fallback default value
+     * @param minimum smallest value the setting accepts
+     * @return parsed setting
+     */
+    public static int integer(String value, int fallback, int minimum) {
+        if (value == null || value.trim().isEmpty()) {
+            return fallback;
+        }
+
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed >= minimum ? parsed : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+/**
+ * The SnowflakeSet class is a concurrent set of 64-bit Discord snowflakes (user, server, channel ID's, etc.). Values
+ * are stored unboxed in a single open-addressing table using linear probing, which takes roughly 16 bytes per ID
+ * instead of the ~100 bytes a HashSet of Strings needs. Lookups never lock, adds claim their slot with a single
+ * compare-and-set, and a resize copies into a new table while readers keep using the old (still complete) one.
+ *
+ * <dl>
+ *     <dt><span class="strong">SnowflakeSet()</span></dt><dd>Constructor that creates an empty set.</dd>
+ *     <dt><span class="strong">boolean contains()</span></dt><dd>Determines if an ID is in the set (lock-free).</dd>
+ *     <dt><span class="strong">boolean add()</span></dt><dd>Adds an ID and reports whether this call inserted it.</dd>
+ *     <dt><span class="strong">int size()</span></dt><dd>Returns the number of ID's in the set.</dd>
+ *     <dt><span class="strong">int capacity()</span></dt><dd>Returns the number of slots in the current table.</dd>
+ *     <dt><span class="strong">void ensureCapacity()</span></dt><dd>Grows the table ahead of a known bulk load.</dd>
+ *     <dt><span class="strong">void forEach()</span></dt><dd>Visits every ID in the set.</dd>
+ *     <dt><span class="strong">long[] toArray()</span></dt><dd>Copies every ID in the set into an array.</dd>
+ * </dl>
+ */
+public class SnowflakeSet {
+    private static final long EMPTY = 0L;  // marks a free slot, so the value zero is tracked separately
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private volatile AtomicLongArray table;
+    private volatile int threshold;  // resize once size reaches this (half of the capacity)
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean hasZero = new AtomicBoolean();
+
+    // Adds share the read lock (they only CAS into the table), a resize takes the write lock. Lookups never lock.
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+    /**
+     * The SnowflakeSet constructor creates an empty set with a small default capacity.
+     */
+    public SnowflakeSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * The SnowflakeSet constructor creates an empty set that can hold the expected number of ID's without resizing.
+     *
+     * @param expected number of ID's the set is expected to hold
+     */
+    public SnowflakeSet(int expected) {
+        int capacity = tableSizeFor(Math.max(expected, 1) * 2L);
+
+        this.table = new AtomicLongArray(capacity);
+        this.threshold = capacity / 2;
+    }
+
+    /**
+     * This method determines whether or not an ID is in the set. It never blocks, even while the set is resizing.
+     *
+     * @param id snowflake ID
+     * @return true if the ID is in the set
+     */
+    public boolean contains(long id) {
+        if (id == EMPTY) {
+            return hasZero.get();
+        }
+
+        AtomicLongArray current = table;
+        int mask = current.length() - 1;
+
+        for (int i = indexFor(id, mask), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            long value = current.get(i);
+
+            if (value == id) {
+                return true;
+            }
+
+            if (value == EMPTY) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This method adds an ID to the set. When several threads add the same ID at once, exactly one of them is told that
+     * it inserted the ID, which makes the return value safe to use for "first time seen" decisions.
+     *
+     * @param id snowflake ID
+     * @return true if this call inserted the ID, false if it was already present
+     */
+    public boolean add(long id) {
+        if (id == EMPTY) {
+            if (hasZero.compareAndSet(false, true)) {
+                size.incrementAndGet();
+                return true;
+            }
+
+            return false;
+        }
+
+        while (true) {
+            AtomicLongArray current = table;
+
+            if (size.get() >= threshold) {
+                resize(current, current.length() * 2);
+                continue;
+            }
+
+            resizeLock.readLock().lock();
+            try {
+                if (current != table) {
+                    continue;  // a resize finished while we were waiting, start over on the new table
+                }
+
+                int mask = current.length() - 1;
+
+                for (int i = indexFor(id, mask), probes = 0; probes <= mask; probes++) {
+                    long value = current.get(i);
+
+                    if (value == id) {
+                        return false;
+                    }
+
+                    if (value == EMPTY) {
+                        if (current.compareAndSet(i, EMPTY, id)) {
+                            size.incrementAndGet();
+                            return true;
+                        }
+
+                        continue;  // lost the slot to another add, look at what it wrote before moving on
+                    }
+
+                    i = (i + 1) & mask;
+                }
+            } finally {
+                resizeLock.readLock().unlock();
+            }
+
+            resize(current, current.length() * 2);  // every slot was probed without finding room
+        }
+    }
+
+    /**
+     * This method returns the number of ID's in the set.
+     *
+     * @return number of ID's
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * This method returns the number of slots in the current table (each slot takes 8 bytes).
+     *
+     * @return table capacity
+     */
+    public int capacity() {
+        return table.length();
+    }
+
+    /**
+     * This method grows the table (if needed) so that the expected number of ID's fit without any further resizing,
+     * which avoids repeatedly copying the table while a large number of ID's is bulk loaded.
+     *
+     * @param expected number of ID's the set is expected to hold
+     */
+    public void ensureCapacity(int expected) {
+        int capacity = tableSizeFor(Math.max(expected, 1) * 2L);
+        AtomicLongArray current = table;
+
+        if (current.length() < capacity) {
+            resize(current, capacity);
+        }
+    }
+
+    /**
+     * This method visits every ID in the set. ID's added while the visit is in progress may or may not be seen.
+     *
+     * @param action action to perform on each ID
+     */
+    public void forEach(LongConsumer action) {
+        if (hasZero.get()) {
+            action.accept(EMPTY);
+        }
+
+        AtomicLongArray current = table;
+
+        for (int i = 0; i < current.length(); i++) {
+            long value = current.get(i);
+
+            if (value != EMPTY) {
+                action.accept(value);
+            }
+        }
+    }
+
+    /**
+     * This method copies every ID in the set into a new array (in no particular order).
+     *
+     * @return array of ID's
+     */
+    public long[] toArray() {
+        long[] values = new long[size()];
+        int[] count = { 0 };
+
+        forEach(value -> {
+            if (count[0] == values.length) {
+                return;  // added after the array was sized
+            }
+
+            values[count[0]++] = value;
+        });
+
+        return count[0] == values.length ? values : Arrays.copyOf(values, count[0]);
+    }
+
+    /**
+     * This method grows the table. Adds wait for the resize to finish while lookups keep reading the old table, which
+     * still holds every ID until the new table is published.
+     *
+     * @param expected table that was found to be too small
+     * @param capacity new table capacity (a power of two)
+     */
+    private void resize(AtomicLongArray expected, int capacity) {
+        resizeLock.writeLock().lock();
+        try {
+            AtomicLongArray current = table;
+
+            if (current != expected) {
+                return;  // someone else already resized
+            }
+
+            if (current.length() >= MAX_CAPACITY) {
+                throw new IllegalStateException("SnowflakeSet cannot grow beyond " + MAX_CAPACITY + " slots.");
+            }
+
+            AtomicLongArray next = new AtomicLongArray(Math.min(capacity, MAX_CAPACITY));
+            int mask = next.length() - 1;
+
+            for (int i = 0; i < current.length(); i++) {
+                long value = current.get(i);
+
+                if (value != EMPTY) {
+                    int slot = indexFor(value, mask);
+
+                    while (next.get(slot) != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+
+                    next.set(slot, value);
+                }
+            }
+
+            threshold = next.length() / 2;
+            table = next;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method spreads a snowflake over the table. Snowflakes have a timestamp in their upper bits and mostly-zero
+     * sequence bits at the bottom, so their low bits alone would cluster badly.
+     *
+     * @param id snowflake ID
+     * @param mask table capacity minus one
+     * @return starting slot for the ID
+     */
+    private static int indexFor(long id, int mask) {
+        long hash = id;
+
+        // Finalizer from MurmurHash3 (fmix64).
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return (int) hash & mask;
+    }
+
+    /**
+     * This method returns the smallest power of two that is at least the requested capacity.
+     *
+     * @param capacity requested capacity
+     * @return table capacity
+     */
+    private static int tableSizeFor(long capacity) {
+        if (capacity >= MAX_CAPACITY) {
+            return MAX_CAPACITY;
+        }
+
+        int size = MIN_CAPACITY;
+
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,214 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.util;
+
+import ideaengine.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The StartupGraph class runs the engine's startup steps as a dependency graph. Every step names the steps it has to
+ * wait for, and steps that do not depend on each other run at the same time (e.g. warming up the known ID's while
+ * logging into Discord). A step only runs once everything it depends on has succeeded; should a step fail, the steps
+ * that depend on it are skipped, the independent ones still finish, and run() throws the failure. When the graph is
+ * done, the start offset and duration of every step are written to the test log.
+ *
+ * <dl>
+ *     <dt><span class="strong">StartupGraph step()</span></dt><dd>Adds a step and the steps it waits for.</dd>
+ *     <dt><span class="strong">void run()</span></dt><dd>Runs every step as soon as its dependencies are done.</dd>
+ *     <dt><span class="strong">long getMillis()</span></dt><dd>Returns how long a step took.</dd>
+ *     <dt><span class="strong">long getTotalMillis()</span></dt><dd>Returns how long the whole graph took.</dd>
+ * </dl>
+ */
+public class StartupGraph {
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private long totalNanos = -1;
+
+    /**
+     * The Step interface is a single startup action, which may throw whatever its work throws.
+     */
+    public interface Step {
+        /**
+         * This method performs the startup action.
+         *
+         * @throws Exception the action failed
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * This method adds a step to the graph. Dependencies have to be added first, which also keeps the graph free of
+     * cycles.
+     *
+     * @param name unique name of the step (used in the startup log)
+     * @param step startup action
+     * @param after names of the steps that have to succeed before this one runs
+     * @return this graph, for chaining
+     */
+    public synchronized StartupGraph step(String name, Step step, String... after) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Startup step " + name + " was added twice.");
+        }
+
+        List<Node> dependencies = new ArrayList<>();
+
+        for (String dependency : after) {
+            Node node = nodes.get(dependency);
+
+            if (node == null) {
+                throw new IllegalArgumentException("Startup step " + name + " depends on " + dependency
+                        + ", which has not been added (yet).");
+            }
+
+            dependencies.add(node);
+        }
+
+        nodes.put(name, new Node(name, step, dependencies));
+
+        return this;
+    }
+
+    /**
+     * This method runs every step as soon as the steps it depends on have succeeded, and waits for all of them. Steps
+     * that depend on a failed step are skipped.
+     *
+     * @throws Exception the first step (in the order they were added) that failed
+     */
+    public synchronized void run() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, nodes.size()),
+                ThreadFactories.platform("idea-startup-"));
+        long start = System.nanoTime();
+
+        try {
+            for (Node node : nodes.values()) {
+                CompletableFuture<?>[] dependencies = new CompletableFuture<?>[node.dependencies.size()];
+
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencies[i] = node.dependencies.get(i).done;
+                }
+
+                node.done = CompletableFuture.allOf(dependencies).thenRunAsync(() -> node.perform(start), workers);
+            }
+
+            for (Node node : nodes.values()) {
+                try {
+                    node.done.join();
+                } catch (CompletionException e) {
+                    // Reported below, once every independent step has finished as well.
+                }
+            }
+        } finally {
+            workers.shutdown();
+            totalNanos = System.nanoTime() - start;
+        }
+
+        report();
+
+        for (Node node : nodes.values()) {
+            if (node.failure != null) {
+                throw node.failure;
+            }
+        }
+    }
+
+    /**
+     * This method returns how long a step took.
+     *
+     * @param name name of the step
+     * @return duration in milliseconds, or -1 if the step did not run
+     */
+    public synchronized long getMillis(String name) {
+        Node node = nodes.get(name);
+
+        return node == null || node.tookNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(node.tookNanos);
+    }
+
+    /**
+     * This method returns how long the whole graph took, which is the length of its slowest chain of steps rather
+     * than the sum of every step.
+     *
+     * @return duration in milliseconds, or -1 if the graph has not run
+     */
+    public synchronized long getTotalMillis() {
+        return totalNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    /**
+     * This method writes the start offset and duration of every step (and the total) to the test log.
+     */
+    private void report() {
+        try {
+            Logger log = Logger.get();  // logging system (shared)
+
+            for (Node node : nodes.values()) {
+                log.startupStep(node.name, TimeUnit.NANOSECONDS.toMillis(node.startedNanos),
+                        node.tookNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(node.tookNanos),
+                        node.failure != null);
+            }
+
+            log.startupFinished(nodes.size(), getTotalMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The Node class is a step together with the steps it waits for and what happened when it ran.
+     */
+    private static final class Node {
+        private final String name;
+        private final Step step;
+        private final List<Node> dependencies;
+
+        private CompletableFuture<Void> done;
+        private volatile long startedNanos = -1;  // relative to the start of the graph
+        private volatile long tookNanos = -1;
+        private volatile Exception failure = null;
+
+        private Node(String name, Step step, List<Node> dependencies) {
+            this.name = name;
+            this.step = step;
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * This method runs the step, recording its timing and any failure (which also fails the step's future so that
+         * the steps depending on it are skipped).
+         *
+         * @param graphStart System.nanoTime() at which the graph started
+         */
+        private void perform(long graphStart) {
+            long begin = System.nanoTime();
+            startedNanos = begin - graphStart;
+
+            try {
+                step.run();
+            } catch (Exception e) {
+                failure = e;
+                throw new CompletionException(e);
+            } finally {
+                tookNanos = System.nanoTime() - begin;
+            }
+        }
+    }
+}
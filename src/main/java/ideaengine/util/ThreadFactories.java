@@ -0,0 +1,133 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ThreadFactories class creates the threads IDEA runs its blocking work (JDBC calls, log file writes) on. On
+ * Java 21 and newer it can hand out virtual threads, so thousands of blocked handlers only cost a few platform threads.
+ * The engine is compiled for Java 8, so virtual threads are looked up reflectively at runtime; on older JVMs, and on
+ * Java 19 and 20 unless preview features are enabled, virtual() returns null and callers fall back to platform()
+ * threads.
+ *
+ * <dl>
+ *     <dt><span class="strong">boolean supportsVirtualThreads()</span></dt><dd>Determines if this JVM has them.</dd>
+ *     <dt><span class="strong">ThreadFactory virtual()</span></dt><dd>Returns a factory for named virtual threads.</dd>
+ *     <dt><span class="strong">ThreadFactory platform()</span></dt><dd>Returns a factory for named daemon threads.</dd>
+ * </dl>
+ */
+public final class ThreadFactories {
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+    private static final Method NAME = lookup(type("java.lang.Thread$Builder"), "name", String.class, long.class);
+    private static final Method FACTORY = lookup(type("java.lang.Thread$Builder"), "factory");
+    private static final boolean VIRTUAL = build("idea-probe-") != null;  // the methods alone may be a disabled preview
+
+    private ThreadFactories() {
+    }
+
+    /**
+     * This method determines if the running JVM can create virtual threads, which was checked once by building a
+     * factory for them.
+     *
+     * @return true on Java 21 and newer (or Java 19 and 20 with preview features enabled)
+     */
+    public static boolean supportsVirtualThreads() {
+        return VIRTUAL;
+    }
+
+    /**
+     * This method returns a factory for virtual threads named prefix0, prefix1, and so on. Virtual threads are always
+     * daemon threads.
+     *
+     * @param prefix thread name prefix (e.g. "idea-lane-")
+     * @return virtual thread factory, or null if the running JVM has no virtual threads
+     */
+    public static ThreadFactory virtual(String prefix) {
+        return VIRTUAL ? build(prefix) : null;
+    }
+
+    /**
+     * This method returns a factory for platform daemon threads named prefix0, prefix1, and so on.
+     *
+     * @param prefix thread name prefix (e.g. "idea-lane-")
+     * @return platform thread factory
+     */
+    public static ThreadFactory platform(String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * This method builds a factory for virtual threads through Thread.ofVirtual().
+     *
+     * @param prefix thread name prefix
+     * @return virtual thread factory, or null if the methods are missing or refuse to run (e.g. a disabled preview)
+     */
+    private static ThreadFactory build(String prefix) {
+        if (OF_VIRTUAL == null || NAME == null || FACTORY == null) {
+            return null;
+        }
+
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = NAME.invoke(builder, prefix, 0L);
+
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This method looks up a class by name.
+     *
+     * @param name fully qualified class name
+     * @return class, or null if the running JVM does not have it
+     */
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This method looks up a public method.
+     *
+     * @param type class declaring the method (may be null)
+     * @param name method name
+     * @param parameters parameter types
+     * @return method, or null if the running JVM does not have it
+     */
+    private static Method lookup(Class<?> type, String name, Class<?>... parameters) {
+        if (type == null) {
+            return null;
+        }
+
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The ConnectionPoolTest class checks the prepared statement cache of pooled connections against a stand-in database:
+ * a statement is prepared once and reused by later borrows, every borrower starts with cleared parameters and default
+ * settings, and statements that cannot be reset or fall out of the cache are closed rather than reused.
+ */
+public class ConnectionPoolTest {
+    private static final String USERS = "INSERT INTO discord_users (user_id) SELECT * FROM unnest(?) "
+            + "ON CONFLICT DO NOTHING RETURNING user_id";
+    private static final String SERVERS = "INSERT INTO discord_servers (server_id) SELECT * FROM unnest(?) "
+            + "ON CONFLICT DO NOTHING RETURNING server_id";
+
+    private final TestDatabase network = new TestDatabase();
+    private ConnectionPool pool;
+
+    @After
+    public void closePool() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void statementIsPreparedOnceAcrossBorrows() throws SQLException {
+        pool = pool(8);
+
+        for (int i = 0; i < 3; i++) {
+            try (Connection conn = pool.borrow(); PreparedStatement insert = conn.prepareStatement(USERS)) {
+                insert.setArray(1, conn.createArrayOf("varchar", new Object[] { String.valueOf(i) }));
+                insert.execute();
+            }
+        }
+
+        assertEquals(1, network.connections.get());
+        assertEquals(1, network.prepared.get());
+        assertEquals(3, network.users.size());
+        assertEquals(0, network.closedStatements.get());
+    }
+
+    @Test
+    public void statementOpenTwiceInOneBorrowIsNotShared() throws SQLException {
+        pool = pool(8);
+
+        try (Connection conn = pool.borrow();
+             PreparedStatement first = conn.prepareStatement(USERS);
+             PreparedStatement second = conn.prepareStatement(USERS)) {
+            first.setArray(1, conn.createArrayOf("varchar", new Object[] { "1" }));
+            second.setArray(1, conn.createArrayOf("varchar", new Object[] { "2" }));
+            first.execute();
+            second.execute();
+        }
+
+        assertEquals(2, network.prepared.get());
+        assertEquals(2, network.users.size());
+    }
+
+    @Test
+    public void nextBorrowerStartsWithClearedParametersAndDefaultSettings() throws SQLException {
+        pool = pool(8);
+
+        try (Connection conn = pool.borrow(); PreparedStatement insert = conn.prepareStatement(USERS)) {
+            insert.setArray(1, conn.createArrayOf("varchar", new Object[] { "1" }));
+            insert.setFetchSize(50);
+            insert.setMaxRows(10);
+            insert.setQueryTimeout(3);
+        }
+
+        try (Connection conn = pool.borrow(); PreparedStatement insert = conn.prepareStatement(USERS)) {
+            assertEquals(1, network.prepared.get());  // the same statement...
+            assertEquals(0, insert.getFetchSize());  // ...with the settings it was prepared with
+            assertEquals(0, insert.getMaxRows());
+            assertEquals(0, insert.getQueryTimeout());
+
+            try {
+                insert.execute();
+                fail("The parameter of the earlier borrower should have been cleared.");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().contains("parameter 1"));
+            }
+        }
+    }
+
+    @Test
+    public void statementWithSettingsThatCannotBePutBackIsNotReused() throws SQLException {
+        pool = pool(8);
+
+        try (Connection conn = pool.borrow(); PreparedStatement insert = conn.prepareStatement(USERS)) {
+            insert.setCursorName("registrations");
+        }
+
+        assertEquals(1, network.closedStatements.get());
+
+        try (Connection conn = pool.borrow()) {
+            conn.prepareStatement(USERS).close();
+        }
+
+        assertEquals(2, network.prepared.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedStatementIsClosed() throws SQLException {
+        pool = pool(1);
+
+        try (Connection conn = pool.borrow()) {
+            conn.prepareStatement(USERS).close();
+            conn.prepareStatement(SERVERS).close();  // evicts the users statement
+            conn.prepareStatement(USERS).close();
+        }
+
+        assertEquals(3, network.prepared.get());
+        assertEquals(2, network.closedStatements.get());
+    }
+
+    @Test
+    public void disabledCachePreparesEveryTime() throws SQLException {
+        pool = pool(0);
+
+        for (int i = 0; i < 2; i++) {
+            try (Connection conn = pool.borrow(); PreparedStatement insert = conn.prepareStatement(USERS)) {
+                insert.setArray(1, conn.createArrayOf("varchar", new Object[] { "1" }));
+                insert.execute();
+            }
+        }
+
+        assertEquals(2, network.prepared.get());
+        assertEquals(2, network.closedStatements.get());
+    }
+
+    /**
+     * This method creates a pool of a single connection to the stand-in database.
+     *
+     * @param statementCacheSize prepared statements kept per connection
+     * @return connection pool
+     * @throws SQLException the stand-in database could not be registered
+     */
+    private ConnectionPool pool(int statementCacheSize) throws SQLException {
+        return new ConnectionPool(network.register(), null, null, 0, 1, 60000, 1000, statementCacheSize);
+    }
+}
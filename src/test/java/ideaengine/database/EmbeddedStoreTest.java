@@ -0,0 +1,220 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.logging.Logger;
+import ideaengine.util.SnowflakeSet;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The EmbeddedStoreTest class checks that the embedded store gets back everything it made durable: after a clean
+ * close, after a crash cut its last record in half, and after its context log was compacted.
+ */
+public class EmbeddedStoreTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    private Path directory;
+
+    @BeforeClass
+    public static void quietLogs() {
+        Logger.setLevel(Logger.Category.DBMS, Logger.Level.OFF);
+    }
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("idea-store");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void registrationsAndContextsSurviveReopening() throws IOException, SQLException {
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            List<List<String>> created = store.registerDiscord(Arrays.asList("175928847299117063", "1", "1"),
+                    Collections.singletonList("41771983423143937"));
+
+            assertEquals(Arrays.asList("175928847299117063", "1"), created.get(0));  // each ID is created once
+            assertEquals(Collections.singletonList("41771983423143937"), created.get(1));
+
+            store.saveConversationContext(1, 2, 3, "first");
+            store.saveConversationContext(1, 2, 4, "caf\u00e9");
+            store.saveConversationContext(1, 2, 3, "second");
+        }
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            assertEquals(Arrays.asList("175928847299117063", "1"), users(store));
+            assertEquals(Collections.singletonList("41771983423143937"), servers(store));
+            assertEquals("second", store.loadConversationContext(1, 2, 3));
+            assertEquals("caf\u00e9", store.loadConversationContext(1, 2, 4));
+            assertNull(store.loadConversationContext(1, 2, 5));
+
+            List<List<String>> created = store.registerDiscord(Collections.singletonList("1"),
+                    Collections.singletonList("41771983423143937"));
+            assertTrue(created.get(0).isEmpty());
+            assertTrue(created.get(1).isEmpty());
+        }
+    }
+
+    @Test
+    public void tornRecordIsCutOffWhenOpening() throws IOException, SQLException {
+        Path ids = directory.resolve("ids.log");
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            store.registerDiscord(Collections.singletonList("175928847299117063"), NONE);
+        }
+
+        long intact = Files.size(ids);
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            store.registerDiscord(NONE, Arrays.asList("41771983423143937", "41771983423143938"));
+        }
+
+        // Cut the last record short, as a crash in the middle of the write would.
+        try (FileChannel channel = FileChannel.open(ids, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(ids) - 5);
+        }
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            assertEquals(intact, Files.size(ids));  // the torn record is gone, not just skipped
+            assertEquals(Collections.singletonList("175928847299117063"), users(store));
+            assertTrue(servers(store).isEmpty());
+
+            List<List<String>> created = store.registerDiscord(NONE, Collections.singletonList("41771983423143937"));
+            assertEquals(Collections.singletonList("41771983423143937"), created.get(1));
+        }
+
+        // What was written after the cut is read back, so it was not appended behind garbage.
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            assertEquals(Collections.singletonList("175928847299117063"), users(store));
+            assertEquals(Collections.singletonList("41771983423143937"), servers(store));
+        }
+    }
+
+    @Test
+    public void damagedChecksumIsCutOffWhenOpening() throws IOException, SQLException {
+        Path contexts = directory.resolve("contexts.log");
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            store.saveConversationContext(1, 2, 3, "kept");
+        }
+
+        long intact = Files.size(contexts);
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            store.saveConversationContext(1, 2, 4, "damaged");
+        }
+
+        byte[] bytes = Files.readAllBytes(contexts);
+        bytes[bytes.length - 6] ^= 0x20;  // flip a bit of the last context's text
+        Files.write(contexts, bytes);
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1 << 20)) {
+            assertEquals(intact, Files.size(contexts));
+            assertEquals("kept", store.loadConversationContext(1, 2, 3));
+            assertNull(store.loadConversationContext(1, 2, 4));
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyTheLatestContexts() throws IOException {
+        Path contexts = directory.resolve("contexts.log");
+        long written = 0;
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1)) {
+            store.saveConversationContext(9, 9, 9, "untouched");
+
+            for (int i = 0; i < 50; i++) {
+                String context = "turn " + i + " " + String.join("", Collections.nCopies(i, "x"));
+
+                store.saveConversationContext(1, 2, 3, context);
+                store.saveConversationContext(1, 2, 4, "other " + i);
+                written += context.length() + ("other " + i).length() + 2 * (24 + 9);
+
+                // Loads keep working while (and after) the log is compacted behind them.
+                assertEquals(context, store.loadConversationContext(1, 2, 3));
+            }
+        }
+
+        // Live data is about two of the hundred saved copies, plus the context that was never replaced.
+        assertTrue(Files.size(contexts) < written / 10);
+
+        try (EmbeddedStore store = EmbeddedStore.open(directory, 0, 1)) {
+            assertEquals("turn 49 " + String.join("", Collections.nCopies(49, "x")),
+                    store.loadConversationContext(1, 2, 3));
+            assertEquals("other 49", store.loadConversationContext(1, 2, 4));
+            assertEquals("untouched", store.loadConversationContext(9, 9, 9));
+
+            try (Stream<Path> files = Files.list(directory)) {
+                assertFalse(files.anyMatch(file -> file.toString().endsWith(".tmp")));  // no compaction left behind
+            }
+        }
+    }
+
+    private static List<String> users(EmbeddedStore store) {
+        SnowflakeSet set = new SnowflakeSet();
+        store.loadDiscordUsers(set);
+
+        return sorted(set);
+    }
+
+    private static List<String> servers(EmbeddedStore store) {
+        SnowflakeSet set = new SnowflakeSet();
+        store.loadDiscordServers(set);
+
+        return sorted(set);
+    }
+
+    /**
+     * This method lists the ID's of a set, largest first.
+     *
+     * @param set ID's
+     * @return identification strings
+     */
+    private static List<String> sorted(SnowflakeSet set) {
+        long[] values = set.toArray();
+        String[] ids = new String[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            ids[i] = Long.toUnsignedString(values[i]);
+        }
+
+        Arrays.sort(ids, (a, b) -> Long.compareUnsigned(Long.parseUnsignedLong(b), Long.parseUnsignedLong(a)));
+
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,159 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.util.SnowflakeSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The KnownIdSnapshotTest class writes snapshot files and reads them back, checking the header, the delta encoding of
+ * the sorted ID's and that a damaged or foreign file is rejected (so startup falls back to a full load).
+ */
+public class KnownIdSnapshotTest {
+    private static final int HEADER_BYTES = 48;
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("idea-snapshot", ".bin");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void idsSurviveARoundTrip() throws IOException {
+        Random random = new Random(42);
+        long[] ids = new long[100000];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 175928847299117063L + (random.nextLong() >>> 8);  // snowflakes a few years apart
+        }
+
+        ids[0] = 0L;
+        ids[1] = -1L;  // the largest unsigned snowflake
+        ids[2] = Long.MIN_VALUE;
+        Arrays.sort(ids);
+
+        long size = KnownIdSnapshot.write(file, ids, 123456789L);
+        assertEquals(Files.size(file), size);
+
+        SnowflakeSet set = new SnowflakeSet();
+        assertEquals(123456789L, snapshot(set).read());
+
+        long[] read = set.toArray();
+        Arrays.sort(read);
+        assertArrayEquals(ids, read);
+    }
+
+    @Test
+    public void fileHoldsTheHeaderAndVarintDeltas() throws IOException {
+        long size = KnownIdSnapshot.write(file, new long[] { 1, 3, 300, 300 + (1L << 35) }, 7);
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        byte[] payload = { 1, 2, (byte) 0xA9, 0x02, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                0x01 };  // deltas 1, 2, 297 and 2^35
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        assertEquals(HEADER_BYTES + payload.length, size);
+        assertEquals(0x49444541534E4150L, bytes.getLong());  // "IDEASNAP"
+        assertEquals(1, bytes.getInt());  // version
+        assertEquals(0, bytes.getInt());  // reserved
+        assertEquals(7L, bytes.getLong());  // high-water mark
+        assertEquals(4L, bytes.getLong());  // ID count
+        assertEquals(payload.length, bytes.getLong());
+        assertEquals(crc.getValue(), bytes.getLong());
+
+        byte[] written = new byte[bytes.remaining()];
+        bytes.get(written);
+        assertArrayEquals(payload, written);
+    }
+
+    @Test
+    public void emptySnapshotIsUsable() throws IOException {
+        KnownIdSnapshot.write(file, new long[0], 5);
+        SnowflakeSet set = new SnowflakeSet();
+
+        assertEquals(5L, snapshot(set).read());
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void damagedPayloadIsRejected() throws IOException {
+        KnownIdSnapshot.write(file, new long[] { 10, 20, 30 }, 7);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[HEADER_BYTES + 1] ^= 0x01;
+        Files.write(file, bytes);
+
+        assertRejected();
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        KnownIdSnapshot.write(file, new long[] { 10, 20, 30 }, 7);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+
+        assertRejected();
+
+        Files.write(file, Arrays.copyOf(bytes, HEADER_BYTES - 1));
+
+        assertRejected();
+    }
+
+    @Test
+    public void otherVersionsAreRejected() throws IOException {
+        KnownIdSnapshot.write(file, new long[] { 10, 20, 30 }, 7);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[11] = 2;  // last byte of the version
+        Files.write(file, bytes);
+
+        assertRejected();
+    }
+
+    @Test
+    public void missingFileIsRejected() throws IOException {
+        Files.delete(file);
+
+        assertRejected();
+    }
+
+    private void assertRejected() {
+        SnowflakeSet set = new SnowflakeSet();
+
+        assertEquals(-1L, snapshot(set).read());
+        assertEquals(0, set.size());
+    }
+
+    private KnownIdSnapshot snapshot(SnowflakeSet set) {
+        return new KnownIdSnapshot(null, file, "discord_users", "user_id", set);  // reading needs no database
+    }
+}
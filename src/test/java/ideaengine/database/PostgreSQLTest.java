@@ -0,0 +1,145 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import ideaengine.logging.Logger;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The PostgreSQLTest class checks the registration of Discord users and servers against a stand-in database: an ID is
+ * only reported as created by the call that inserted it, however often and however concurrently it is registered, and
+ * a batch of users and a batch of servers are registered together in a single round trip.
+ */
+public class PostgreSQLTest {
+    private final TestDatabase network = new TestDatabase();
+    private final PostgreSQL database = new PostgreSQL() {
+        @Override
+        public Connection getConnection() {
+            return network.connect();
+        }
+    };
+
+    @BeforeClass
+    public static void quietLogs() {
+        Logger.setLevel(Logger.Category.DBMS, Logger.Level.OFF);
+        Logger.setLevel(Logger.Category.DISCORD, Logger.Level.OFF);
+    }
+
+    @Test
+    public void idIsCreatedOnlyOnce() throws IOException, SQLException {
+        assertTrue(database.registerDiscordUser("175928847299117063"));
+        assertFalse(database.registerDiscordUser("175928847299117063"));
+        assertTrue(database.registerDiscordServer("175928847299117063"));  // servers are a table of their own
+    }
+
+    @Test
+    public void batchReturnsOnlyTheIdsItCreated() throws IOException, SQLException {
+        assertEquals(Arrays.asList("1", "2"), database.registerDiscordUsers(Arrays.asList("1", "2")));
+        assertEquals(Collections.singletonList("3"), database.registerDiscordUsers(Arrays.asList("2", "3")));
+        assertEquals(Collections.emptyList(), database.registerDiscordUsers(Arrays.asList("1", "3")));
+        assertEquals(3, network.executed.size());  // one statement per batch, however large
+    }
+
+    @Test
+    public void emptyBatchDoesNotTouchTheDatabase() throws IOException, SQLException {
+        assertEquals(Collections.emptyList(), database.registerDiscordServers(Collections.emptyList()));
+        assertEquals(0, network.connections.get());
+    }
+
+    @Test
+    public void usersAndServersArePipelinedInOneRoundTrip() throws IOException, SQLException {
+        List<List<String>> created = database.registerDiscord(Arrays.asList("1", "2"), Arrays.asList("1", "3"));
+
+        assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("1", "3")), created);
+        assertEquals(1, network.executed.size());
+        assertTrue(network.executed.get(0).contains("; "));  // both inserts in one statement
+
+        created = database.registerDiscord(Arrays.asList("2", "4"), Collections.singletonList("3"));
+
+        assertEquals(Arrays.asList(Collections.singletonList("4"), Collections.emptyList()), created);
+        assertEquals(2, network.executed.size());
+    }
+
+    @Test
+    public void emptyBatchIsLeftOutOfThePipeline() throws IOException, SQLException {
+        List<List<String>> created = database.registerDiscord(Collections.emptyList(), Collections.singletonList("5"));
+
+        assertEquals(Arrays.asList(Collections.emptyList(), Collections.singletonList("5")), created);
+        assertEquals(1, network.executed.size());
+        assertTrue(network.executed.get(0).startsWith("INSERT INTO discord_servers "));
+        assertFalse(network.executed.get(0).contains("; "));
+    }
+
+    @Test
+    public void pipelineIsPreparedOnceOnAPooledConnection() throws IOException, SQLException {
+        ConnectionPool pool = new ConnectionPool(network.register(), null, null, 0, 1, 60000, 1000, 8);
+        PostgreSQL pooled = new PostgreSQL() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                return pool.borrow();
+            }
+        };
+
+        try {
+            pooled.registerDiscord(Collections.singletonList("1"), Collections.singletonList("2"));
+            pooled.registerDiscord(Collections.singletonList("3"), Collections.singletonList("4"));
+        } finally {
+            pool.close();
+        }
+
+        assertEquals(1, network.prepared.get());
+        assertEquals(2, network.executed.size());
+        assertEquals(4, network.users.size() + network.servers.size());
+    }
+
+    @Test
+    public void concurrentRegistrationsCreateTheIdOnce() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 64; i++) {
+                Callable<Boolean> register = () -> database.registerDiscordUser("41771983423143937");
+                results.add(threads.submit(register));
+            }
+
+            int created = 0;
+
+            for (Future<Boolean> result : results) {
+                created += result.get() ? 1 : 0;
+            }
+
+            assertEquals(1, created);
+        } finally {
+            threads.shutdown();
+        }
+    }
+}
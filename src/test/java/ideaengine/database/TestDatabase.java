@@ -0,0 +1,322 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The TestDatabase class stands in for the Idea Network in tests without a PostgreSQL server. Its connections are
+ * dynamic proxies that understand just enough JDBC to run the registration inserts: each prepared statement may hold
+ * several "INSERT INTO discord_users/discord_servers ... unnest(?) ... RETURNING" statements separated by "; ", which
+ * run together and return the ID's they created, one result per statement. It counts what the code under test asked
+ * of it, so that tests can tell how many statements were prepared and how many round trips were made. It can also be
+ * reached through DriverManager (see register()), e.g. by a ConnectionPool.
+ */
+final class TestDatabase {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    final Set<String> users = new HashSet<>();
+    final Set<String> servers = new HashSet<>();
+    final List<String> executed = Collections.synchronizedList(new ArrayList<>());  // SQL of every round trip
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger prepared = new AtomicInteger();
+    final AtomicInteger closedStatements = new AtomicInteger();
+
+    /**
+     * This method makes the stand-in database reachable through DriverManager.
+     *
+     * @return JDBC pathway of this database
+     * @throws SQLException the driver could not be registered
+     */
+    String register() throws SQLException {
+        String jdbc = "jdbc:idea-test:" + databases.incrementAndGet();
+        DriverManager.registerDriver(new TestDriver(jdbc));
+
+        return jdbc;
+    }
+
+    /**
+     * This method opens a connection to the stand-in database.
+     *
+     * @return connection proxy
+     */
+    Connection connect() {
+        connections.incrementAndGet();
+        boolean[] closed = { false };
+
+        return proxy(Connection.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    prepared.incrementAndGet();
+                    return statement((String) args[0]);
+                case "createArrayOf":
+                    return array((Object[]) args[1]);
+                case "getAutoCommit":
+                case "isValid":
+                    return true;
+                case "close":
+                    closed[0] = true;
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                default:
+                    return standard(self, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    /**
+     * This method prepares a statement. It remembers its parameters and settings (the getters return what was last
+     * set, or the JDBC defaults) and runs the inserts it holds when executed.
+     *
+     * @param sql one or more insert statements separated by "; "
+     * @return prepared statement proxy
+     */
+    private PreparedStatement statement(String sql) {
+        Map<Integer, Object> parameters = new HashMap<>();
+        Map<String, Object> settings = new HashMap<>();
+        Queue<List<String>> results = new ArrayDeque<>();
+        boolean[] closed = { false };
+
+        return proxy(PreparedStatement.class, (self, method, args) -> {
+            String name = method.getName();
+
+            switch (name) {
+                case "setArray":
+                    parameters.put((Integer) args[0], args[1]);
+                    return null;
+                case "clearParameters":
+                    parameters.clear();
+                    return null;
+                case "execute":
+                    results.clear();
+                    results.addAll(execute(sql, parameters));
+                    return !results.isEmpty();
+                case "getResultSet":
+                    return results.isEmpty() ? null : resultSet(results.peek());
+                case "getMoreResults":
+                    results.poll();
+                    return !results.isEmpty();
+                case "close":
+                    if (!closed[0]) {
+                        closed[0] = true;
+                        closedStatements.incrementAndGet();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                case "getFetchDirection":
+                    return settings.getOrDefault("FetchDirection", ResultSet.FETCH_FORWARD);
+                default:
+                    if (name.startsWith("set") && args != null && args.length == 1) {
+                        settings.put(name.substring(3), args[0]);
+                        return null;
+                    } else if (name.startsWith("get") && args == null && settings.containsKey(name.substring(3))) {
+                        return settings.get(name.substring(3));
+                    }
+
+                    return standard(self, name, method.getReturnType(), args);
+            }
+        });
+    }
+
+    /**
+     * This method runs the inserts of a statement in one go, the way PostgreSQL runs a pipeline ending in one sync.
+     *
+     * @param sql one or more insert statements separated by "; "
+     * @param parameters array parameter of every insert, by position
+     * @return ID's each insert created
+     * @throws SQLException a parameter is missing or a statement is not a registration insert
+     */
+    private synchronized List<List<String>> execute(String sql, Map<Integer, Object> parameters) throws SQLException {
+        executed.add(sql);
+
+        String[] inserts = sql.split("; ");
+        List<List<String>> created = new ArrayList<>(inserts.length);
+
+        for (int i = 0; i < inserts.length; i++) {
+            Set<String> table;
+
+            if (inserts[i].startsWith("INSERT INTO discord_users ")) {
+                table = users;
+            } else if (inserts[i].startsWith("INSERT INTO discord_servers ")) {
+                table = servers;
+            } else {
+                throw new SQLException("Unexpected statement: " + inserts[i]);
+            }
+
+            Array ids = (Array) parameters.get(i + 1);
+
+            if (ids == null) {
+                throw new SQLException("No value specified for parameter " + (i + 1) + ".");
+            }
+
+            List<String> rows = new ArrayList<>();
+
+            for (Object id : (Object[]) ids.getArray()) {
+                if (table.add((String) id)) {
+                    rows.add((String) id);  // ON CONFLICT DO NOTHING returns only the rows it inserted
+                }
+            }
+
+            created.add(rows);
+        }
+
+        return created;
+    }
+
+    /**
+     * This method returns the result set of an insert.
+     *
+     * @param rows ID's the insert created
+     * @return result set proxy with one column
+     */
+    private static ResultSet resultSet(List<String> rows) {
+        int[] row = { -1 };
+
+        return proxy(ResultSet.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++row[0] < rows.size();
+                case "getString":
+                    return rows.get(row[0]);
+                default:
+                    return standard(self, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    /**
+     * This method returns an SQL array holding the given elements.
+     *
+     * @param elements array elements
+     * @return array proxy
+     */
+    private static Array array(Object[] elements) {
+        Object[] copy = Arrays.copyOf(elements, elements.length);
+
+        return proxy(Array.class, (self, method, args) -> method.getName().equals("getArray") ? copy
+                : standard(self, method.getName(), method.getReturnType(), args));
+    }
+
+    /**
+     * This method answers the methods every proxy shares, and returns null, false or 0 for everything else.
+     *
+     * @param self proxy
+     * @param name method name
+     * @param returns method return type
+     * @param args method arguments
+     * @return answer
+     */
+    private static Object standard(Object self, String name, Class<?> returns, Object[] args) {
+        switch (name) {
+            case "hashCode":
+                return System.identityHashCode(self);
+            case "equals":
+                return self == args[0];
+            case "toString":
+                return "TestDatabase@" + Integer.toHexString(System.identityHashCode(self));
+            default:
+                if (returns == boolean.class) {
+                    return false;
+                } else if (returns == int.class) {
+                    return 0;
+                } else if (returns == long.class) {
+                    return 0L;
+                }
+
+                return null;
+        }
+    }
+
+    /**
+     * This method creates a proxy for a JDBC interface.
+     *
+     * @param type JDBC interface
+     * @param handler answers every method
+     * @return proxy implementing the interface
+     */
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    /**
+     * The TestDriver class connects DriverManager to the stand-in database of one JDBC pathway.
+     */
+    private final class TestDriver implements Driver {
+        private final String jdbc;
+
+        private TestDriver(String jdbc) {
+            this.jdbc = jdbc;
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? TestDatabase.this.connect() : null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return jdbc.equals(url);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
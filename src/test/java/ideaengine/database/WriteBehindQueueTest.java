@@ -0,0 +1,175 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.database;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The WriteBehindQueueTest class checks that the write-behind queue coalesces repeated requests into one insert,
+ * writes users and servers in the same round trip, retries a batch the database rejected, and fails whatever it could
+ * not write by the time it shuts down. The database is a stand-in that records every batch.
+ */
+public class WriteBehindQueueTest {
+    private static final long NEVER = TimeUnit.MINUTES.toMillis(10);  // no timed flush during a test
+
+    private final RecordingDBMS database = new RecordingDBMS();
+    private WriteBehindQueue queue;
+
+    public WriteBehindQueueTest() throws IOException {
+    }
+
+    @After
+    public void stopWriter() {
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void repeatedRequestsShareOneInsert() throws Exception {
+        queue = new WriteBehindQueue(database, 10, NEVER);
+
+        CompletableFuture<Boolean> first = queue.queueDiscordUser("1");
+        CompletableFuture<Boolean> second = queue.queueDiscordUser("1");
+
+        assertSame(first, second);
+        assertEquals(1, queue.getPending());
+
+        queue.shutdown();
+
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(Arrays.asList("1")), database.userBatches);
+    }
+
+    @Test
+    public void fullBatchIsWrittenInOneRoundTrip() throws Exception {
+        queue = new WriteBehindQueue(database, 2, NEVER);
+
+        CompletableFuture<Boolean> user = queue.queueDiscordUser("1");
+        CompletableFuture<Boolean> server = queue.queueDiscordServer("2");
+
+        assertTrue(user.get(5, TimeUnit.SECONDS));  // written without waiting for the delay
+        assertTrue(server.get(5, TimeUnit.SECONDS));
+        assertEquals(1, database.calls());
+        assertEquals(Collections.singletonList(Arrays.asList("1")), database.userBatches);
+        assertEquals(Collections.singletonList(Arrays.asList("2")), database.serverBatches);
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void existingIdsAreReportedAsNotCreated() throws Exception {
+        database.existing.add("1");
+        queue = new WriteBehindQueue(database, 2, NEVER);
+
+        CompletableFuture<Boolean> existing = queue.queueDiscordUser("1");
+        CompletableFuture<Boolean> created = queue.queueDiscordUser("2");
+
+        assertFalse(existing.get(5, TimeUnit.SECONDS));
+        assertTrue(created.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectedBatchIsRetried() throws Exception {
+        database.failures = 1;
+        queue = new WriteBehindQueue(database, 1, 10);
+
+        assertTrue(queue.queueDiscordUser("1").get(10, TimeUnit.SECONDS));
+        assertEquals(2, database.calls());  // the first attempt failed, the retry after the backoff did not
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void unwrittenRequestsFailOnShutdown() throws Exception {
+        database.failures = Integer.MAX_VALUE;
+        queue = new WriteBehindQueue(database, 10, NEVER);
+
+        CompletableFuture<Boolean> request = queue.queueDiscordServer("2");
+        queue.shutdown();
+
+        try {
+            request.get(5, TimeUnit.SECONDS);
+            fail("The request should have failed.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+
+        assertEquals(0, queue.getPending());
+    }
+
+    /**
+     * The RecordingDBMS class stands in for the database: it rejects the first few calls, records every batch it
+     * writes, and reports every ID it has not been given before as created.
+     */
+    private static class RecordingDBMS extends DBMS {
+        private final List<List<String>> userBatches = Collections.synchronizedList(new ArrayList<>());
+        private final List<List<String>> serverBatches = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> existing = Collections.synchronizedSet(new HashSet<>());
+        private volatile int failures = 0;  // calls that are rejected before the database "comes back"
+        private int calls = 0;
+
+        private RecordingDBMS() throws IOException {
+            super(false);
+        }
+
+        @Override
+        public synchronized List<List<String>> registerDiscord(List<String> users, List<String> servers)
+                throws SQLException {
+            calls++;
+
+            if (failures > 0) {
+                failures--;
+                throw new SQLException("The database is unavailable.");
+            }
+
+            userBatches.add(new ArrayList<>(users));
+            serverBatches.add(new ArrayList<>(servers));
+
+            return Arrays.asList(created(users), created(servers));
+        }
+
+        private synchronized int calls() {
+            return calls;
+        }
+
+        private List<String> created(List<String> ids) {
+            List<String> created = new ArrayList<>();
+
+            for (String id : ids) {
+                if (existing.add(id)) {
+                    created.add(id);
+                }
+            }
+
+            return created;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.dv8tion.jda.api.events.GenericEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The AdmissionControlTest class drives an admission control with counting listeners and a backlog it controls, and
+ * checks when interactive work runs, waits or is shed, and that background work is only ever shed for the backlog.
+ */
+public class AdmissionControlTest {
+    private static final int RATE = 1;  // slow enough that no bucket refills a token during a test
+    private static final int BURST = 3;
+    private static final int BACKLOG_LIMIT = 10;
+
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final AtomicInteger answered = new AtomicInteger();
+    private final AtomicInteger registered = new AtomicInteger();
+
+    @Test
+    public void admitsEveryListenerWithinTheBurst() {
+        AdmissionControl admission = admission(AdmissionControl.permits(1), 0);
+
+        for (int i = 0; i < BURST; i++) {
+            admission.onEvent(TestEvents.message(1, 1));
+        }
+
+        assertEquals(BURST, answered.get());
+        assertEquals(BURST, registered.get());
+        assertEquals(0, admission.getShed());
+        assertEquals(0, admission.getDeferred());
+    }
+
+    @Test
+    public void emptyBucketShedsInteractiveWorkOfThatServerOnly() {
+        AdmissionControl admission = admission(AdmissionControl.permits(1), 0);
+
+        for (int i = 0; i < BURST + 2; i++) {
+            admission.onEvent(TestEvents.message(1, 1));
+        }
+
+        admission.onEvent(TestEvents.message(2, 1));
+
+        assertEquals(BURST + 1, answered.get());
+        assertEquals(2, admission.getShed());
+    }
+
+    @Test
+    public void emptyBucketStillRegistersNewUsers() {
+        AdmissionControl admission = admission(AdmissionControl.permits(1), 0);
+
+        for (int i = 0; i < BURST * 10; i++) {
+            admission.onEvent(TestEvents.message(1, 1));
+        }
+
+        assertEquals(BURST * 10, registered.get());
+    }
+
+    @Test
+    public void backlogShedsBackgroundWorkUntilItDrains() {
+        AdmissionControl admission = admission(AdmissionControl.permits(1), 0);
+
+        backlog.set(BACKLOG_LIMIT);
+        admission.onEvent(TestEvents.message(1, 1));
+
+        assertEquals(1, answered.get());
+        assertEquals(0, registered.get());
+        assertEquals(1, admission.getShed());
+
+        backlog.set(BACKLOG_LIMIT - 1);
+        admission.onEvent(TestEvents.message(1, 1));
+
+        assertEquals(1, registered.get());
+        assertEquals(1, admission.getShed());
+    }
+
+    @Test
+    public void backgroundWorkNeedsNoPermit() {
+        Semaphore permits = AdmissionControl.permits(1);
+        AdmissionControl admission = admission(permits, 0);
+
+        permits.acquireUninterruptibly();  // every permit is held by someone else
+
+        try {
+            admission.onEvent(TestEvents.message(1, 1));
+        } finally {
+            permits.release();
+        }
+
+        assertEquals(0, answered.get());
+        assertEquals(1, registered.get());
+        assertEquals(1, admission.getShed());  // only the interactive call
+    }
+
+    @Test
+    public void busyInteractiveWorkIsShedAfterWaiting() {
+        Semaphore permits = AdmissionControl.permits(1);
+        AdmissionControl admission = admission(permits, 20);
+
+        permits.acquireUninterruptibly();
+
+        try {
+            long start = System.nanoTime();
+            admission.onEvent(TestEvents.message(1, 1));
+
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        } finally {
+            permits.release();
+        }
+
+        assertEquals(0, answered.get());
+        assertEquals(1, admission.getShed());
+        assertEquals(0, admission.getDeferred());
+        assertEquals(1, permits.availablePermits());
+    }
+
+    @Test
+    public void busyInteractiveWorkRunsOnceThereIsRoom() throws InterruptedException {
+        Semaphore permits = AdmissionControl.permits(1);
+        AdmissionControl admission = admission(permits, TimeUnit.SECONDS.toMillis(10));
+        CountDownLatch held = new CountDownLatch(1);
+
+        Thread holder = new Thread(() -> {
+            permits.acquireUninterruptibly();
+            held.countDown();
+
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                permits.release();
+            }
+        });
+
+        holder.start();
+        held.await();
+        admission.onEvent(TestEvents.message(1, 1));
+        holder.join();
+
+        assertEquals(1, answered.get());
+        assertEquals(0, admission.getShed());
+        assertEquals(1, admission.getDeferred());
+        assertEquals(1, permits.availablePermits());
+    }
+
+    @Test
+    public void otherEventsPassStraightThrough() {
+        AdmissionControl admission = admission(AdmissionControl.permits(1), 0);
+        GenericEvent event = TestEvents.event();
+
+        backlog.set(BACKLOG_LIMIT);
+
+        for (int i = 0; i < BURST * 2; i++) {
+            admission.onEvent(event);
+        }
+
+        assertEquals(BURST * 2, answered.get());
+        assertEquals(BURST * 2, registered.get());
+        assertEquals(0, admission.getShed());
+    }
+
+    private AdmissionControl admission(Semaphore permits, long waitMillis) {
+        return new AdmissionControl(RATE, BURST, permits, waitMillis, backlog::get, BACKLOG_LIMIT)
+                .add(AdmissionControl.Priority.INTERACTIVE, event -> answered.incrementAndGet())
+                .add(AdmissionControl.Priority.BACKGROUND, event -> registered.incrementAndGet());
+    }
+}
@@ -0,0 +1,188 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The EventDispatcherTest class checks that the event dispatcher keeps the messages of a server in order, handles
+ * different servers in parallel, makes JDA wait for a full lane rather than dropping, and drops (and counts) what
+ * arrives after shutdown.
+ */
+public class EventDispatcherTest {
+    private static final int SERVERS = 8;
+    private static final int MESSAGES = 500;
+
+    @Test
+    public void messagesOfOneServerKeepTheirOrder() {
+        Map<Long, List<Long>> seen = new ConcurrentHashMap<>();
+        EventDispatcher dispatcher = new EventDispatcher(3, 16, event -> {
+            GuildMessageReceivedEvent message = (GuildMessageReceivedEvent) event;
+            seen.computeIfAbsent(message.getGuild().getIdLong(), guild -> new ArrayList<>())
+                    .add(message.getAuthor().getIdLong());  // one lane per server, so no other thread adds here
+        });
+
+        for (long user = 0; user < MESSAGES; user++) {
+            for (long guild = 1; guild <= SERVERS; guild++) {
+                dispatcher.onEvent(TestEvents.message(guild, user));
+            }
+        }
+
+        dispatcher.shutdown();
+
+        assertEquals(SERVERS * MESSAGES, dispatcher.getProcessed());
+        assertEquals(SERVERS, seen.size());
+
+        for (List<Long> users : seen.values()) {
+            assertEquals(MESSAGES, users.size());
+
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(i, (long) users.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void slowServerDoesNotHoldUpTheOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger others = new AtomicInteger();
+        EventDispatcher dispatcher = new EventDispatcher(4, 16, event -> {
+            if (((GuildMessageReceivedEvent) event).getGuild().getIdLong() == 1) {
+                await(release);
+            } else {
+                others.incrementAndGet();
+            }
+        });
+
+        dispatcher.onEvent(TestEvents.message(1, 1));
+
+        for (long guild = 2; guild <= SERVERS; guild++) {
+            dispatcher.onEvent(TestEvents.message(guild, 1));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (others.get() == 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(1);
+        }
+
+        assertTrue(others.get() > 0);  // at least one server is on another lane than the blocked one
+
+        release.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void fullLaneMakesJdaWait() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        EventDispatcher dispatcher = new EventDispatcher(1, 1, event -> {
+            started.countDown();
+            await(release);
+        });
+
+        dispatcher.onEvent(TestEvents.message(1, 1));
+        await(started);  // the worker is busy with the first message...
+        dispatcher.onEvent(TestEvents.message(1, 2));  // ...the second fills the queue...
+
+        Thread jda = new Thread(() -> dispatcher.onEvent(TestEvents.message(1, 3)));  // ...so the third has to wait
+        jda.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (dispatcher.getBlocked() == 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(1);
+        }
+
+        release.countDown();
+        jda.join();
+        dispatcher.shutdown();
+
+        assertEquals(1, dispatcher.getBlocked());
+        assertEquals(0, dispatcher.getDropped());
+        assertEquals(3, dispatcher.getProcessed());
+    }
+
+    @Test
+    public void messagesAfterShutdownAreDropped() {
+        AtomicInteger handled = new AtomicInteger();
+        EventListener counting = event -> handled.incrementAndGet();
+        EventDispatcher dispatcher = new EventDispatcher(2, 16, counting);
+
+        dispatcher.onEvent(TestEvents.message(1, 1));
+        dispatcher.shutdown();
+        dispatcher.onEvent(TestEvents.message(1, 2));
+
+        assertEquals(1, handled.get());
+        assertEquals(1, dispatcher.getProcessed());
+        assertEquals(1, dispatcher.getDropped());
+    }
+
+    @Test
+    public void otherEventsRunOnTheCallingThread() {
+        List<Thread> threads = new ArrayList<>();
+        EventListener recording = event -> threads.add(Thread.currentThread());
+        EventDispatcher dispatcher = new EventDispatcher(2, 16, recording);
+
+        dispatcher.onEvent(TestEvents.event());
+        dispatcher.shutdown();
+
+        assertEquals(1, threads.size());
+        assertSame(Thread.currentThread(), threads.get(0));
+        assertEquals(0, dispatcher.getProcessed());
+    }
+
+    @Test
+    public void failingListenerDoesNotStopTheOthers() {
+        AtomicInteger handled = new AtomicInteger();
+        EventListener failing = event -> {
+            throw new IllegalStateException("listener failed");
+        };
+        EventListener counting = event -> handled.incrementAndGet();
+        EventDispatcher dispatcher = new EventDispatcher(1, 16, failing, counting);
+
+        dispatcher.onEvent(TestEvents.message(1, 1));
+        dispatcher.onEvent(TestEvents.event());
+        dispatcher.shutdown();
+
+        assertEquals(2, handled.get());
+    }
+
+    /**
+     * This method waits for a latch, giving up after a few seconds so that a broken dispatcher fails the test rather
+     * than hanging it.
+     *
+     * @param latch latch to wait for
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The IntentIndexTest class checks how phrases are matched: as whole words, case-insensitively, at the start of the
+ * message when anchored, and preferring the longest phrase when several match.
+ */
+public class IntentIndexTest {
+    @Test
+    public void matchesWholeWordsOnly() {
+        IntentIndex index = index(new String[] { "hi" }, false);
+
+        assertEquals(0, match(index, "hi there"));
+        assertEquals(0, match(index, "well, hi!"));
+        assertEquals(0, match(index, "hi"));
+        assertEquals(-1, match(index, "this"));
+        assertEquals(-1, match(index, "ohio"));
+        assertEquals(-1, match(index, "hi5"));
+        assertEquals(-1, match(index, ""));
+    }
+
+    @Test
+    public void ignoresCase() {
+        IntentIndex index = index(new String[] { "good morning", "Caf\u00e9" }, false);
+
+        assertEquals(0, match(index, "GOOD Morning, IDEA"));
+        assertEquals(1, match(index, "meet me at the CAF\u00c9"));
+        assertEquals(-1, match(index, "good  morning"));  // the spacing is part of the phrase
+    }
+
+    @Test
+    public void anchoredPhrasesMustStartTheText() {
+        IntentIndex index = new IntentIndex(new String[] { "!help", "help" }, new boolean[] { true, false });
+
+        assertEquals(0, match(index, "!help me"));
+        assertEquals(1, match(index, "please !help"));
+        assertEquals(1, match(index, "please help"));
+
+        // Anchored phrases start where the scan starts, e.g. right after the command prefix.
+        String text = "!idea !help";
+        assertEquals(0, index.match(text, 6, text.length()));
+        assertEquals(1, index.match(text, 0, text.length()));
+    }
+
+    @Test
+    public void longestMatchWins() {
+        IntentIndex index = index(new String[] { "good", "good morning", "morning" }, false);
+
+        assertEquals(1, match(index, "good morning everyone"));
+        assertEquals(0, match(index, "good evening"));
+        assertEquals(2, match(index, "morning"));
+        assertEquals(1, match(index, "morning! oh, good morning"));
+    }
+
+    @Test
+    public void earliestOfEquallyLongMatchesWins() {
+        IntentIndex index = index(new String[] { "abc", "xyz" }, false);
+
+        assertEquals(1, match(index, "xyz abc"));
+        assertEquals(0, match(index, "abc xyz"));
+    }
+
+    @Test
+    public void findsPhrasesThatOverlapOthers() {
+        // "are you" is found through the failure links of the automaton once "how are you" stops matching.
+        IntentIndex index = index(new String[] { "how are you", "are you", "you" }, false);
+
+        assertEquals(1, match(index, "so are you?"));
+        assertEquals(0, match(index, "hey, how are you"));
+        assertEquals(2, match(index, "thank you"));
+        assertEquals(-1, match(index, "bayou"));
+    }
+
+    @Test
+    public void onlyScansTheGivenRange() {
+        IntentIndex index = index(new String[] { "hi" }, false);
+        String text = "xx hi yy";
+
+        assertEquals(0, index.match(text, 3, 5));
+        assertEquals(0, index.match(text, 2, 6));
+        assertEquals(-1, index.match(text, 0, 4));  // "h" alone
+        assertEquals(0, index.match("xhix", 1, 3));  // the range edges count as word boundaries
+    }
+
+    private static IntentIndex index(String[] phrases, boolean anchored) {
+        boolean[] flags = new boolean[phrases.length];
+        Arrays.fill(flags, anchored);
+
+        return new IntentIndex(phrases, flags);
+    }
+
+    private static int match(IntentIndex index, String text) {
+        return index.match(text, 0, text.length());
+    }
+}
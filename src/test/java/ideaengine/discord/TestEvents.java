@@ -0,0 +1,108 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.discord;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+
+/**
+ * The TestEvents class builds JDA events for tests without a Discord connection. The entities behind an event are
+ * dynamic proxies that only answer ID's, the author, the channel and the server.
+ */
+final class TestEvents {
+    private static final JDA API = proxy(JDA.class, 0, null, null, null);
+
+    private TestEvents() {
+    }
+
+    /**
+     * This method builds an event for a message sent by a user in a server.
+     *
+     * @param guild Discord server snowflake ID
+     * @param user Discord user snowflake ID
+     * @return message event
+     */
+    static GuildMessageReceivedEvent message(long guild, long user) {
+        Guild server = proxy(Guild.class, guild, null, null, null);
+        TextChannel channel = proxy(TextChannel.class, guild, null, server, null);
+        User author = proxy(User.class, user, null, null, null);
+
+        return new GuildMessageReceivedEvent(API, 0, proxy(Message.class, guild ^ user, author, server, channel));
+    }
+
+    /**
+     * This method builds an event that is not a guild message.
+     *
+     * @return event
+     */
+    static GenericEvent event() {
+        return proxy(GenericEvent.class, 0, null, null, null);
+    }
+
+    /**
+     * This method creates a proxy for a JDA type that answers the ID, author, server and channel and returns null,
+     * false or 0 for everything else.
+     *
+     * @param type JDA interface
+     * @param id snowflake ID returned by getIdLong() and getId()
+     * @param author returned by getAuthor()
+     * @param guild returned by getGuild()
+     * @param channel returned by getTextChannel() and getChannel()
+     * @return proxy implementing the interface
+     */
+    private static <T> T proxy(Class<T> type, long id, User author, Guild guild, TextChannel channel) {
+        InvocationHandler handler = (self, method, args) -> {
+            switch (method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toUnsignedString(id);
+                case "getAuthor":
+                    return author;
+                case "getGuild":
+                    return guild;
+                case "getTextChannel":
+                case "getChannel":
+                    return channel;
+                case "hashCode":
+                    return Long.hashCode(id);
+                case "equals":
+                    return self == args[0];
+                case "toString":
+                    return type.getSimpleName() + "(" + id + ")";
+                default:
+                    Class<?> returns = method.getReturnType();
+
+                    if (returns == boolean.class) {
+                        return false;
+                    } else if (returns == long.class) {
+                        return 0L;
+                    } else if (returns == int.class) {
+                        return 0;
+                    }
+
+                    return null;
+            }
+        };
+
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+}
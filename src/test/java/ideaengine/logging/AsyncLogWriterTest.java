@@ -0,0 +1,130 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The AsyncLogWriterTest class checks that the ring buffer writes every line it accepted, in order, before shutdown()
+ * returns, and that the DROP and SAMPLE policies account for every line they did not write.
+ */
+public class AsyncLogWriterTest {
+    private static final int LINES = 20000;
+
+    private Path directory;
+    private String path;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("idea-async-log");
+        path = directory.resolve("test_log.txt").toString();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        RollingLogFile.get(path).close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void blockingWriterKeepsEveryLineInOrder() throws IOException {
+        AsyncLogWriter writer = new AsyncLogWriter(4, AsyncLogWriter.Overflow.BLOCK);  // far smaller than LINES
+
+        for (int i = 0; i < LINES; i++) {
+            assertTrue(writer.offer(path, i + "\n"));
+        }
+
+        writer.shutdown();
+
+        List<String> lines = written();
+        assertEquals(LINES, lines.size());
+        assertEquals(0, writer.getDropped());
+        assertEquals(0, writer.getDepth());
+
+        for (int i = 0; i < LINES; i++) {
+            assertEquals(String.valueOf(i), lines.get(i));
+        }
+    }
+
+    @Test
+    public void droppingWriterAccountsForEveryLine() throws IOException {
+        accountsForEveryLine(AsyncLogWriter.Overflow.DROP);
+    }
+
+    @Test
+    public void samplingWriterAccountsForEveryLine() throws IOException {
+        accountsForEveryLine(AsyncLogWriter.Overflow.SAMPLE);
+    }
+
+    @Test
+    public void linesAfterShutdownAreHandedBack() {
+        AsyncLogWriter writer = new AsyncLogWriter(4, AsyncLogWriter.Overflow.BLOCK);
+        writer.shutdown();
+
+        assertFalse(writer.offer(path, "late\n"));  // the caller writes it itself
+        assertEquals(0, writer.getDropped());
+    }
+
+    /**
+     * This method floods a small ring buffer and checks that every line was either written (in order) or counted as
+     * dropped.
+     *
+     * @param overflow overflow policy under test
+     * @throws IOException the log file could not be read
+     */
+    private void accountsForEveryLine(AsyncLogWriter.Overflow overflow) throws IOException {
+        AsyncLogWriter writer = new AsyncLogWriter(2, overflow);
+
+        for (int i = 0; i < LINES; i++) {
+            assertTrue(writer.offer(path, i + "\n"));
+        }
+
+        writer.shutdown();
+
+        List<String> lines = written();
+        assertEquals(LINES, lines.size() + writer.getDropped());
+        assertEquals(0, writer.getDepth());
+
+        for (int i = 1; i < lines.size(); i++) {
+            assertTrue(Integer.parseInt(lines.get(i - 1)) < Integer.parseInt(lines.get(i)));
+        }
+    }
+
+    /**
+     * This method closes the log file and returns its lines.
+     *
+     * @return lines of the log file
+     * @throws IOException the log file could not be read
+     */
+    private List<String> written() throws IOException {
+        RollingLogFile.get(path).close();
+
+        return Files.readAllLines(directory.resolve("test_log.txt"), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,186 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The BinaryLogFileTest class encodes events with BinaryLogFile and checks that LogDecoder renders them back to exactly
+ * the lines a text log would hold, including after the file was reopened, cut off by a crash or gzipped.
+ */
+public class BinaryLogFileTest {
+    private static final long START = 1577880000000L;  // 2020-01-01 12:00:00 UTC
+
+    private Path directory;
+    private Path path;
+    private final List<String> expected = new ArrayList<>();
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("idea-binary-log");
+        path = directory.resolve("test_log" + LogADT.BINARY_EXT);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        RollingLogFile.get(path.toString()).close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void everyArgumentTypeDecodesToTheTextLine() throws IOException {
+        String longText = String.join(" ", Collections.nCopies(20, "overflowing"));
+
+        write(LogTemplate.DISCORD_USER_ADDED, START, "175928847299117063");  // snowflake
+        write(LogTemplate.DISCORD_USER_ADDED, START + 1, "18446744073709551615");  // largest unsigned long
+        write(LogTemplate.DISCORD_USER_ADDED, START + 2, "18446744073709551616");  // one more is just text
+        write(LogTemplate.DATABASE_USER_ADDED, START + 3, "123", "users");  // short number and a dictionary string
+        write(LogTemplate.DATABASE_USER_ADDED, START + 4, "0123", "users");  // leading zero, dictionary reference
+        write(LogTemplate.DATABASE_USER_ADDED, START + 5, "-5", null);
+        write(LogTemplate.DATABASE_WARM_UP, START + 6, 250000L, "users", -42);
+        write(LogTemplate.DATABASE_WARMED_UP, START + 3, 0L, "servers", Long.MIN_VALUE);  // time going backwards
+        write(LogTemplate.CONVERSATION_ANSWERED, START + 7, "175928847299117063", "41771983423143937", longText);
+        write(LogTemplate.CONVERSATION_ANSWERED, START + 8, true, false, "caf\u00e9 \u2615 \ud83d\ude00");
+
+        assertEquals(expected.size(), decode(path));
+    }
+
+    @Test
+    public void repeatedEventsAreSmallerThanTheFirst() throws IOException {
+        write(LogTemplate.CONVERSATION_ANSWERED, START, "175928847299117063", "41771983423143937", "greeting");
+        long first = Files.size(path);
+
+        write(LogTemplate.CONVERSATION_ANSWERED, START + 5, "175928847299117063", "41771983423143937", "greeting");
+        long second = Files.size(path) - first;
+
+        // The first event also carries the header, a RESET record and the template's definition.
+        assertTrue(second < 30);
+        assertTrue(second < first);
+        assertEquals(2, decode(path));
+    }
+
+    @Test
+    public void reopenedFilesStartOverWithAReset() throws IOException {
+        write(LogTemplate.DATABASE_USER_ADDED, START, "175928847299117063", "users");
+        RollingLogFile.get(path.toString()).close();
+
+        write(LogTemplate.DATABASE_USER_ADDED, START + 60000, "41771983423143937", "users");
+        write(LogTemplate.DATABASE_SERVER_ADDED, START + 60001, "41771983423143937", "servers");
+
+        assertEquals(3, decode(path));
+    }
+
+    @Test
+    public void decodingResumesAfterARecordCutOffByACrash() throws IOException {
+        write(LogTemplate.DATABASE_USER_ADDED, START, "175928847299117063", "users");
+        write(LogTemplate.DATABASE_USER_ADDED, START + 1, "41771983423143937", "users");
+        RollingLogFile.get(path.toString()).close();
+
+        // Cut the last record in half, as a crash in the middle of a write would.
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 6));
+        expected.remove(expected.size() - 1);
+
+        write(LogTemplate.DATABASE_SERVER_ADDED, START + 60000, "41771983423143937", "servers");
+
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        assertEquals(2, decode(path, errors));
+        assertTrue(errors.toString("UTF-8").contains("damaged record"));
+    }
+
+    @Test
+    public void gzippedSegmentsDecodeTheSame() throws IOException {
+        write(LogTemplate.DISCORD_SERVER_ADDED, START, "41771983423143937");
+        write(LogTemplate.DISCORD_SHARDS, START + 1, 0, 3, 4);
+        RollingLogFile.get(path.toString()).close();
+
+        Path compressed = Paths.get(path + ".gz");
+
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            Files.copy(path, out);
+        }
+
+        assertEquals(2, decode(compressed));
+    }
+
+    /**
+     * This method encodes an event and remembers the line a text log would hold for it.
+     *
+     * @param template template of the event
+     * @param millis time of the event
+     * @param args arguments of the event
+     * @throws IOException unable to write the log
+     */
+    private void write(LogTemplate template, long millis, Object... args) throws IOException {
+        BinaryLogFile.get(path.toString()).write(template, millis, args);
+        expected.add(Logger.line(template, millis, args).substring(1));  // text lines start with their line break
+    }
+
+    private int decode(Path log) throws IOException {
+        return decode(log, new ByteArrayOutputStream());
+    }
+
+    /**
+     * This method decodes a log and checks that it renders exactly the expected lines.
+     *
+     * @param log binary log
+     * @param errors receives what the decoder reports about damaged records
+     * @return number of decoded events
+     * @throws IOException unable to read the log
+     */
+    private int decode(Path log, ByteArrayOutputStream errors) throws IOException {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        int decoded;
+
+        try (PrintStream out = utf8(lines); PrintStream err = utf8(errors)) {
+            decoded = new LogDecoder(out, err).decode(log);
+        }
+
+        StringBuilder text = new StringBuilder();
+
+        for (String line : expected) {
+            text.append(line).append('\n');
+        }
+
+        assertEquals(text.toString(), lines.toString("UTF-8"));
+
+        return decoded;
+    }
+
+    private static PrintStream utf8(OutputStream out) throws UnsupportedEncodingException {
+        return new PrintStream(out, true, "UTF-8");
+    }
+}
@@ -0,0 +1,145 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.logging;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The TimestampTest class checks the hand-rolled civil-from-days conversion of the Timestamp class against the JDK,
+ * across leap years, century years and daylight saving time transitions.
+ */
+public class TimestampTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    @Test
+    public void formatsTheEpoch() {
+        assertEquals("1970-01-01 00:00:00", format(Timestamp.Format.SECONDS, UTC, 0L));
+        assertEquals("1970-01-01 00:00:00.000", format(Timestamp.Format.MILLIS, UTC, 0L));
+        assertEquals("1970-01-01T00:00:00.000Z", format(Timestamp.Format.ISO_8601, UTC, 0L));
+    }
+
+    @Test
+    public void formatsLeapDays() {
+        assertEquals("2020-02-29 12:00:00", format(Timestamp.Format.SECONDS, UTC, utc("2020-02-29 12:00:00")));
+        assertEquals("2020-03-01 00:00:00", format(Timestamp.Format.SECONDS, UTC, utc("2020-02-29 24:00:00")));
+        assertEquals("2000-02-29 23:59:59", format(Timestamp.Format.SECONDS, UTC, utc("2000-02-29 23:59:59")));
+        assertEquals("2100-03-01 00:00:00", format(Timestamp.Format.SECONDS, UTC, utc("2100-02-28 24:00:00")));
+        assertEquals("1900-03-01 00:00:00", format(Timestamp.Format.SECONDS, UTC, utc("1900-02-28 24:00:00")));
+        assertEquals("2024-12-31 23:59:59", format(Timestamp.Format.SECONDS, UTC, utc("2024-12-31 23:59:59")));
+    }
+
+    @Test
+    public void formatsInstantsBeforeTheEpoch() {
+        assertEquals("1969-12-31 23:59:59.999", format(Timestamp.Format.MILLIS, UTC, -1L));
+        assertEquals("1969-12-31 23:59:59", format(Timestamp.Format.SECONDS, UTC, -1L));
+    }
+
+    @Test
+    public void followsDaylightSavingTime() {
+        // Spring forward: 2:00 EST becomes 3:00 EDT on March 8, 2020.
+        assertEquals("2020-03-08T01:59:59.999-05:00",
+                format(Timestamp.Format.ISO_8601, NEW_YORK, utc("2020-03-08 06:59:59") + 999));
+        assertEquals("2020-03-08T03:00:00.000-04:00",
+                format(Timestamp.Format.ISO_8601, NEW_YORK, utc("2020-03-08 07:00:00")));
+
+        // Fall back: 1:30 happens twice on November 1, 2020.
+        assertEquals("2020-11-01T01:30:00.000-04:00",
+                format(Timestamp.Format.ISO_8601, NEW_YORK, utc("2020-11-01 05:30:00")));
+        assertEquals("2020-11-01T01:30:00.000-05:00",
+                format(Timestamp.Format.ISO_8601, NEW_YORK, utc("2020-11-01 06:30:00")));
+    }
+
+    @Test
+    public void agreesWithTheJdkDayByDay() {
+        for (TimeZone zone : new TimeZone[] { UTC, NEW_YORK, TimeZone.getTimeZone("Australia/Lord_Howe") }) {
+            SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+            expected.setTimeZone(zone);
+            Timestamp timestamp = new Timestamp(Timestamp.Format.MILLIS, zone);
+
+            // Every day from 1901 to 2099, at an hour and millisecond that move around.
+            for (long millis = utc("1901-01-01 00:00:00"); millis < utc("2100-01-01 00:00:00");
+                    millis += 86400000L + 3600000L + 7L) {
+                assertEquals(expected.format(new Date(millis)), format(timestamp, millis));
+            }
+        }
+    }
+
+    @Test
+    public void cachedSecondsDoNotLeakIntoOtherInstants() {
+        Timestamp timestamp = new Timestamp(Timestamp.Format.MILLIS, UTC);
+        long leapDay = utc("2016-02-29 10:20:30");
+
+        assertEquals("2016-02-29 10:20:30.001", format(timestamp, leapDay + 1));
+        assertEquals("2016-02-29 10:20:30.999", format(timestamp, leapDay + 999));
+        assertEquals("2016-02-29 10:20:31.000", format(timestamp, leapDay + 1000));
+        assertEquals("2016-02-29 10:20:30.500", format(timestamp, leapDay + 500));
+    }
+
+    @Test
+    public void everyOverloadRendersTheSameText() {
+        for (Timestamp.Format layout : Timestamp.Format.values()) {
+            Timestamp timestamp = new Timestamp(layout, NEW_YORK);
+            long millis = utc("2020-11-01 06:30:00") + 42;
+
+            char[] chars = new char[timestamp.length()];
+            String fromChars = new String(chars, 0, timestamp.formatTo(millis, chars, 0));
+
+            byte[] bytes = new byte[timestamp.length()];
+            String fromBytes = new String(bytes, 0, timestamp.formatTo(millis, bytes, 0),
+                    StandardCharsets.US_ASCII);
+
+            StringBuilder text = new StringBuilder("x");
+            assertEquals(fromChars.length(), timestamp.formatTo(millis, text));
+
+            assertEquals(fromChars, fromBytes);
+            assertEquals("x" + fromChars, text.toString());
+        }
+    }
+
+    private static String format(Timestamp.Format layout, TimeZone zone, long millis) {
+        return format(new Timestamp(layout, zone), millis);
+    }
+
+    private static String format(Timestamp timestamp, long millis) {
+        char[] buffer = new char[timestamp.length()];
+
+        return new String(buffer, 0, timestamp.formatTo(millis, buffer, 0));
+    }
+
+    /**
+     * This method parses a UTC date and time (hour 24 means midnight of the next day).
+     *
+     * @param text date and time as yyyy-MM-dd HH:mm:ss
+     * @return milliseconds since the epoch
+     */
+    private static long utc(String text) {
+        SimpleDateFormat parser = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        parser.setTimeZone(UTC);
+
+        try {
+            return parser.parse(text).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(text, e);
+        }
+    }
+}
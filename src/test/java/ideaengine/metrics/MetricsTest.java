@@ -0,0 +1,120 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The MetricsTest class checks that the registry hands out one instance per metric and writes what it holds in the
+ * Prometheus text format: help and type once per name, escaped label values and cumulative histogram buckets. The
+ * registry is shared by the whole engine, so every test uses metric names of its own.
+ */
+public class MetricsTest {
+    @Test
+    public void counterIsRegisteredOnce() {
+        Counter counter = Metrics.counter("test_registered_total", "Registered once.");
+        assertSame(counter, Metrics.counter("test_registered_total", "Registered once."));
+
+        counter.increment();
+        counter.add(2);
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# HELP test_registered_total Registered once.\n"));
+        assertTrue(text.contains("# TYPE test_registered_total counter\n"));
+        assertTrue(text.contains("\ntest_registered_total 3\n"));
+    }
+
+    @Test
+    public void labelValuesShareOneFamily() {
+        Metrics.counter("test_lookups_total", "Lookups.", "result", "hit").add(2);
+        Metrics.counter("test_lookups_total", "Lookups.", "result", "miss").increment();
+
+        String text = Metrics.scrape();
+        assertEquals(text.indexOf("# TYPE test_lookups_total"), text.lastIndexOf("# TYPE test_lookups_total"));
+        assertTrue(text.contains("\ntest_lookups_total{result=\"hit\"} 2\n"));
+        assertTrue(text.contains("\ntest_lookups_total{result=\"miss\"} 1\n"));
+    }
+
+    @Test
+    public void labelValuesAreEscaped() {
+        Metrics.counter("test_escaped_total", "Escaped.", "path", "a\"b\\c\nd").increment();
+
+        assertTrue(Metrics.scrape().contains("\ntest_escaped_total{path=\"a\\\"b\\\\c\\nd\"} 1\n"));
+    }
+
+    @Test
+    public void gaugeIsReadWhileScrapingAndReplacedByALaterRegistration() {
+        AtomicLong depth = new AtomicLong(5);
+        Metrics.gauge("test_depth", "Depth.", depth::get);
+        depth.set(7);
+
+        assertTrue(Metrics.scrape().contains("\ntest_depth 7\n"));
+
+        Metrics.gauge("test_depth", "Depth.", () -> 11);  // e.g. the component was restarted
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("\ntest_depth 11\n"));
+        assertFalse(text.contains("\ntest_depth 7\n"));
+    }
+
+    @Test
+    public void failingSupplierIsLeftOut() {
+        Metrics.gauge("test_failing", "Failing.", () -> {
+            throw new IllegalStateException("shutting down");
+        });
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# TYPE test_failing gauge\n"));
+        assertFalse(text.contains("\ntest_failing "));
+    }
+
+    @Test
+    public void histogramBucketsAreCumulative() {
+        Histogram latency = Metrics.histogram("test_latency_seconds", "Latency.", "method", "x");
+        latency.observe(TimeUnit.MICROSECONDS.toNanos(50));
+        latency.observe(TimeUnit.MICROSECONDS.toNanos(300));
+        latency.observe(TimeUnit.SECONDS.toNanos(20));  // slower than the last bound
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# TYPE test_latency_seconds histogram\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_bucket{method=\"x\",le=\"0.0001\"} 1\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_bucket{method=\"x\",le=\"0.00025\"} 1\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_bucket{method=\"x\",le=\"0.0005\"} 2\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_bucket{method=\"x\",le=\"10\"} 2\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_bucket{method=\"x\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_sum{method=\"x\"} 20.00035\n"));
+        assertTrue(text.contains("\ntest_latency_seconds_count{method=\"x\"} 3\n"));
+        assertEquals(3, latency.getCount());
+    }
+
+    @Test
+    public void nameKeepsItsType() {
+        Metrics.counter("test_typed", "Typed.");
+
+        try {
+            Metrics.gauge("test_typed", "Typed.", () -> 1);
+            fail("A counter should not become a gauge.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("test_typed"));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/* *********************************************************************************************************************
+ * Copyright (c) 2019 Allan D. Boswell
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ****************************************************************************************************************** */
+package ideaengine.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The SnowflakeSetTest class checks that the set never loses or duplicates an ID, in particular while adds from several
+ * threads force the table to resize under readers that never lock.
+ */
+public class SnowflakeSetTest {
+    private static final int THREADS = 4;
+    private static final int PER_THREAD = 50000;
+    private static final long FIRST_SNOWFLAKE = 175928847299117063L;  // roughly what Discord hands out
+
+    @Test
+    public void addReportsOnlyTheFirstInsert() {
+        SnowflakeSet set = new SnowflakeSet();
+
+        assertTrue(set.add(FIRST_SNOWFLAKE));
+        assertFalse(set.add(FIRST_SNOWFLAKE));
+        assertTrue(set.add(0L));  // zero marks a free slot and is tracked separately
+        assertFalse(set.add(0L));
+        assertTrue(set.add(-1L));  // snowflakes are unsigned, so the top bit may be set
+
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0L));
+        assertTrue(set.contains(-1L));
+        assertFalse(set.contains(FIRST_SNOWFLAKE + 1));
+    }
+
+    @Test
+    public void resizeKeepsEveryId() {
+        SnowflakeSet set = new SnowflakeSet();
+        int initial = set.capacity();
+
+        for (long i = 0; i < PER_THREAD; i++) {
+            assertTrue(set.add(id(i)));
+        }
+
+        assertTrue(set.capacity() > initial);
+        assertEquals(PER_THREAD, set.size());
+
+        for (long i = 0; i < PER_THREAD; i++) {
+            assertTrue(set.contains(id(i)));
+        }
+
+        long[] expected = new long[PER_THREAD];
+        long[] actual = set.toArray();
+
+        for (int i = 0; i < PER_THREAD; i++) {
+            expected[i] = id(i);
+        }
+
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentAddsAndLookupsAcrossResizes() throws Exception {
+        SnowflakeSet set = new SnowflakeSet();  // starts tiny, so the adds below resize it many times
+        int initial = set.capacity();
+        AtomicIntegerArray added = new AtomicIntegerArray(THREADS);  // ID's each writer has finished adding
+        AtomicInteger writing = new AtomicInteger(THREADS);
+        AtomicInteger misses = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS * 2);
+        List<Future<Integer>> writers = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                int writer = t;
+
+                writers.add(threads.submit((Callable<Integer>) () -> {
+                    start.await();
+                    int inserted = 0;
+
+                    for (int i = 0; i < PER_THREAD; i++) {
+                        if (set.add(id(writer, i))) {
+                            inserted++;
+                        }
+
+                        added.lazySet(writer, i + 1);
+                    }
+
+                    writing.decrementAndGet();
+                    return inserted;
+                }));
+
+                readers.add(threads.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                    while (writing.get() > 0) {
+                        int owner = random.nextInt(THREADS);
+                        int done = added.get(owner);
+
+                        // Anything a writer has finished adding must be visible, in whichever table is current.
+                        if (done > 0 && !set.contains(id(owner, random.nextInt(done)))) {
+                            misses.incrementAndGet();
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<Integer> writer : writers) {
+                assertEquals(PER_THREAD, (int) writer.get());
+            }
+
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            threads.shutdownNow();
+            threads.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(0, misses.get());
+        assertTrue(set.capacity() > initial);
+        assertEquals(THREADS * PER_THREAD, set.size());
+
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < PER_THREAD; i++) {
+                assertTrue(set.contains(id(t, i)));
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void racingAddsOfTheSameIdHaveOneWinner() throws Exception {
+        SnowflakeSet set = new SnowflakeSet();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> adders = new ArrayList<>();
+
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                adders.add(threads.submit(() -> {
+                    start.await();
+                    int inserted = 0;
+
+                    for (int i = 0; i < PER_THREAD; i++) {
+                        if (set.add(id(i))) {
+                            inserted++;
+                        }
+                    }
+
+                    return inserted;
+                }));
+            }
+
+            start.countDown();
+            int inserted = 0;
+
+            for (Future<Integer> adder : adders) {
+                inserted += adder.get();
+            }
+
+            assertEquals(PER_THREAD, inserted);
+            assertEquals(PER_THREAD, set.size());
+        } finally {
+            threads.shutdownNow();
+            threads.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long id(long i) {
+        return FIRST_SNOWFLAKE + (i << 22);  // the low 22 bits of a snowflake are worker, process and increment
+    }
+
+    private static long id(int writer, int i) {
+        return id((long) i * THREADS + writer);
+    }
+}